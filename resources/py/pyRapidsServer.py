@@ -16,6 +16,7 @@
 __author__ = 'mhall'
 
 import base64
+import io
 import json
 import math
 import os
@@ -24,6 +25,7 @@ import struct
 import sys
 import traceback
 from ast import literal_eval as make_tuple
+from collections import OrderedDict
 
 import matplotlib.pyplot as plt
 import pandas as pd
@@ -36,8 +38,45 @@ try:
 except:
     import pickle
 
+try:
+    import cbor2
+except ImportError:
+    cbor2 = None
+
 _global_connection = None
+# buffered reader over _global_connection
+_global_reader = None
+
+# largest message sent as a single frame, and largest continuation frame
+MAX_FRAME_SIZE = 1 << 30
+# frame length announcing a message sent as continuation frames
+EXTENDED_LENGTH_MARKER = 0xFFFFFFFF
+# messages up to this size are sent together with their length prefix
+SMALL_MESSAGE_SIZE = 64 * 1024
+# encodings of command messages that can be negotiated with the client
+_encodings = ['json', 'cbor'] if cbor2 is not None else ['json']
+# encoding of the command messages sent to the client (commands received are
+# decoded as whichever they arrive in)
+_global_encoding = 'json'
+# while running the steps of a compound command: the acks held back (a list),
+# or the fields to add to the reply of the last step (a dict)
+_held_acks = None
+_reply_fields = None
+# id of the request being run, which is echoed in its ack so that the client
+# can match replies to requests when it has several in flight (requests are
+# still run one at a time, in the order they arrive)
+_request_id = None
+# compiled code of scripts, keyed by source, so that scripts sent again (e.g.
+# for every batch) are not parsed and compiled again
+_code_cache = OrderedDict()
+CODE_CACHE_SIZE = 256
+# functions registered by the client, keyed by function id
+_functions = {}
 _global_env = {}
+# schemas registered by the client, keyed by schema id
+_schemas = {}
+# frames (with X and Y) held for reuse, keyed by fingerprint
+_frame_cache = {}
 # _local_env = {}
 # _headers = {}
 
@@ -58,46 +97,27 @@ def runServer():
         print('Python server starting...\n')
     # _local_env['headers'] = {}
     # _local_env['frames'] = {}
-    global _global_connection
-    _global_connection = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-    _global_connection.connect(('localhost', int(sys.argv[1])))
-    pid_response = {'response': 'pid_response', 'pid': os.getpid()}
+    global _global_connection, _global_reader, _request_id
+    address = sys.argv[1]
+    if address.startswith('unix:'):
+        # Unix domain socket transport - the address is the socket file
+        _global_connection = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+        _global_connection.connect(address[len('unix:'):])
+    else:
+        _global_connection = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        _global_connection.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        _global_connection.connect(('localhost', int(address)))
+    # a length prefix and a small message are usually picked up by one recv
+    _global_reader = _global_connection.makefile('rb', buffering=SMALL_MESSAGE_SIZE)
+    pid_response = {'response': 'pid_response', 'pid': os.getpid(),
+                    'encodings': _encodings}
     send_response(pid_response, True)
     try:
         while 1:
             message = receive_message(True)
+            _request_id = message.get('request_id')
             if 'command' in message:
-                command = message['command']
-                if command == 'put_instances':
-                    receive_instances(message)
-                elif command == 'get_instances':
-                    send_instances(message)
-                elif command == 'share_instances':
-                    receive_instances_from_memory(message)
-                elif command == 'close_shared_instances':
-                    close_handle(message)
-                elif command == 'ipc_instances':
-                    deserialize_instances(message)
-                elif command == 'execute_script':
-                    execute_script(message)
-                elif command == 'get_variable_list':
-                    send_variable_list(message)
-                elif command == 'get_variable_type':
-                    send_variable_type(message)
-                elif command == 'get_variable_value':
-                    send_variable_value(message)
-                elif command == 'get_image':
-                    send_image_as_png(message)
-                elif command == 'variable_is_set':
-                    send_variable_is_set(message)
-                elif command == 'set_variable_value':
-                    receive_variable_value(message)
-                elif command == 'get_debug_buffer':
-                    send_debug_buffer()
-                elif command == 'shutdown':
-                    if _global_startup_debug:
-                        print('Received shutdown command...\n')
-                    exit()
+                dispatch(message)
             else:
                 if _global_startup_debug:
                     print('message did not contain a command field!')
@@ -105,6 +125,66 @@ def runServer():
         _global_connection.close()
 
 
+def dispatch(message):
+    command = message['command']
+    if command == 'put_instances':
+        receive_instances(message)
+    elif command == 'get_instances':
+        send_instances(message)
+    elif command == 'get_instances_arrow':
+        send_instances_arrow(message)
+    elif command == 'share_instances':
+        receive_instances_from_memory(message)
+    elif command == 'close_shared_instances':
+        close_handle(message)
+    elif command == 'ipc_instances':
+        deserialize_instances(message)
+    elif command == 'mapped_instances':
+        receive_instances_mapped(message)
+    elif command == 'close_mapped_instances':
+        close_mapped_file(message)
+    elif command == 'csr_instances':
+        receive_instances_csr(message)
+    elif command == 'cache_frame':
+        cache_frame(message)
+    elif command == 'restore_frame':
+        restore_frame(message)
+    elif command == 'evict_frames':
+        evict_frames(message)
+    elif command == 'register_schema':
+        register_schema(message)
+    elif command == 'unregister_schema':
+        unregister_schema(message)
+    elif command == 'execute_script':
+        execute_script(message)
+    elif command == 'get_variable_list':
+        send_variable_list(message)
+    elif command == 'get_variable_type':
+        send_variable_type(message)
+    elif command == 'get_variable_value':
+        send_variable_value(message)
+    elif command == 'get_image':
+        send_image_as_png(message)
+    elif command == 'variable_is_set':
+        send_variable_is_set(message)
+    elif command == 'set_variable_value':
+        receive_variable_value(message)
+    elif command == 'get_debug_buffer':
+        send_debug_buffer()
+    elif command == 'set_encoding':
+        set_encoding(message)
+    elif command == 'shutdown':
+        if _global_startup_debug:
+            print('Received shutdown command...\n')
+        exit()
+    elif command == 'compound':
+        run_compound(message)
+    elif command == 'register_function':
+        register_function(message)
+    elif command == 'call_function':
+        call_function(message)
+
+
 def message_debug(message):
     if 'debug' in message:
         return message['debug']
@@ -124,35 +204,144 @@ def send_debug_buffer():
     send_response(ok_response, True)
 
 
+def register_schema(message):
+    _schemas[message['schema_id']] = message['schema']
+    if message_debug(message):
+        print('Registered schema ' + str(message['schema_id']) + '\n')
+    ack_command_ok()
+
+
+def unregister_schema(message):
+    _schemas.pop(message['schema_id'], None)
+    if message_debug(message):
+        print('Unregistered schema ' + str(message['schema_id']) + '\n')
+    ack_command_ok()
+
+
+def _cached_copy(value):
+    """A copy of a frame, X or Y going into or coming out of the frame cache,
+    so that scripts that change the objects in use (in place) don't change
+    the cached ones"""
+    copy = getattr(value, 'copy', None)
+    return value if copy is None else copy()
+
+
+def cache_frame(message):
+    """Hold on to the frame (and X and Y) just received, so that the same
+    instances need not be sent again. Sent straight after the instances (in
+    a compound command, before the steps that may replace X and Y)"""
+    frame_name = message['frame_name']
+    _frame_cache[message['fingerprints'][0]] = (_cached_copy(_global_env.get(frame_name)),
+                                                _cached_copy(_global_env.get('X')),
+                                                _cached_copy(_global_env.get('Y')))
+    if message_debug(message):
+        print('Cached ' + frame_name + ' (' + str(len(_frame_cache)) + ' cached)\n')
+    ack_command_ok()
+
+
+def restore_frame(message):
+    fingerprint = message['fingerprints'][0]
+    if fingerprint not in _frame_cache:
+        ack_command_err('frame ' + fingerprint + ' is not cached!')
+        return
+    frame, X, Y = _frame_cache[fingerprint]
+    _global_env[message['frame_name']] = _cached_copy(frame)
+    _global_env['X'] = _cached_copy(X)
+    if Y is not None:
+        _global_env['Y'] = _cached_copy(Y)
+    else:
+        # don't leave the target of a previous frame behind
+        _global_env.pop('Y', None)
+    if message_debug(message):
+        print('Restored ' + message['frame_name'] + ' from the cache\n')
+    ack_command_ok()
+
+
+def evict_frames(message):
+    for fingerprint in message['fingerprints']:
+        _frame_cache.pop(fingerprint, None)
+    ack_command_ok()
+
+
+def resolve_header(message):
+    """Get the header for a transfer of instances - either sent in full with
+    the message, or registered earlier and referenced by schema id. Returns
+    the header and the registered schema (None if the header was sent)"""
+    if 'schema_id' in message:
+        schema = _schemas.get(message['schema_id'])
+        if schema is None:
+            return None, None
+        header = dict(schema['header'])
+        header['frame_name'] = message['frame_name']
+        return header, schema
+    return message.get('header'), None
+
+
+def missing_header_error(message):
+    if 'schema_id' in message:
+        return 'schema ' + str(message['schema_id']) + ' has not been registered!'
+    return 'put instances json message does not contain a header entry!'
+
+
+def split_frame(frame, schema):
+    """Create X (and Y) from a transferred frame, using the column selection
+    plan of a registered schema"""
+    x_columns = schema['x_columns']
+    class_index = schema['header']['class_index']
+    if isinstance(frame, pd.DataFrame):
+        X = frame.iloc[:, x_columns]
+        if 'nominal_atts' in schema['header']:
+            X = pd.get_dummies(X, dtype='float32')
+        _global_env['X'] = X
+        if class_index >= 0:
+            _global_env['Y'] = frame.iloc[:, class_index]
+    else:
+        _global_env['X'] = frame[:, x_columns]
+        if class_index >= 0:
+            _global_env['Y'] = frame[:, class_index]
+
+
 def receive_instances(message):
-    if 'header' in message:
+    header, schema = resolve_header(message)
+    if header is not None:
         # get the frame name
-        header = message['header']
         frame_name = header['frame_name']
-        # could store the header (but don't currently)
-        # _headers[frame_name] = header
         num_instances = message['num_instances']
         if num_instances > 0:
-            # receive the CSV
-            csv_data = receive_message(False)
+            # receive the CSV - there is no header row if the column names
+            # are held by a registered schema
+            frames = None
+            if message.get('chunked', False):
+                # chunks arrive as a sequence of frames - parse them as they
+                # are received
+                frames = FramedInputStream()
+                csv_data = io.TextIOWrapper(io.BufferedReader(frames),
+                                            encoding='utf-8')
+            else:
+                csv_data = StringIO(receive_message(False))
             frame = None
+            names = {} if schema is None else {'header': None,
+                                               'names': schema['column_names']}
             if 'date_atts' in header:
-                frame = pd.read_csv(StringIO(csv_data), na_values='?',
+                frame = pd.read_csv(csv_data, na_values='?',
                                     quotechar='\'', escapechar='\\',
                                     index_col=None,
                                     parse_dates=header['date_atts'],
-                                    infer_datetime_format=True)
+                                    infer_datetime_format=True, **names)
             else:
-                frame = pd.read_csv(StringIO(csv_data), na_values='?',
+                frame = pd.read_csv(csv_data, na_values='?',
                                     quotechar='\'', escapechar='\\',
-                                    index_col=None)
-            _global_env[frame_name] = frame
+                                    index_col=None, **names)
+            if frames is not None:
+                frames.drain()
+            _global_env[frame_name] = decode_nominal_columns(frame, header)
+            if schema is not None:
+                split_frame(frame, schema)
             if message_debug(message):
                 print(frame.info(), '\n')
         ack_command_ok()
     else:
-        error = 'put instances json message does not contain a header entry!'
-        ack_command_err(error)
+        ack_command_err(missing_header_error(message))
 
 
 def send_instances(message):
@@ -181,10 +370,62 @@ def send_instances(message):
     send_response(s.getvalue(), False)
 
 
+def send_instances_arrow(message):
+    import pyarrow as pa
+    frame_name = message['frame_name']
+    frame = get_variable(frame_name)
+    if type(frame) is not pd.DataFrame:
+        message = 'Variable ' + frame_name
+        if frame is None:
+            message += ' is not defined'
+        else:
+            message += ' is not a DataFrame object'
+        ack_command_err(message)
+        return
+    ack_command_ok()
+    # nominal and string columns travel dictionary encoded, with the weka
+    # type recorded in the field metadata
+    header = instances_to_header_message(frame_name, frame)
+    fields = []
+    arrays = []
+    for i, attribute in enumerate(header['attributes']):
+        column = frame.iloc[:, i]
+        att_type = attribute['type']
+        if att_type == 'NOMINAL' or att_type == 'STRING':
+            if isinstance(column.dtype, pd.CategoricalDtype):
+                # reuse the categorical codes (-1 for missing) as the indices
+                codes = column.cat.codes.to_numpy()
+                array = pa.DictionaryArray.from_arrays(
+                    pa.array(codes, mask=codes < 0),
+                    pa.array(column.cat.categories.astype(str), type=pa.string()))
+            else:
+                strings = column.astype(str).where(column.notna(), None)
+                array = pa.array(strings, type=pa.string(),
+                                 from_pandas=True).dictionary_encode()
+        else:
+            array = pa.array(column, from_pandas=True)
+            if att_type == 'NUMERIC' and not (pa.types.is_integer(array.type) or
+                                              pa.types.is_float32(array.type) or
+                                              pa.types.is_float64(array.type)):
+                array = pa.array(column.astype('float64'), from_pandas=True)
+        fields.append(pa.field(attribute['name'], array.type,
+                               metadata={'weka_type': att_type}))
+        arrays.append(array)
+    schema = pa.schema(fields, metadata={'relation_name': frame_name})
+    sink = pa.BufferOutputStream()
+    with pa.ipc.new_stream(sink, schema) as writer:
+        writer.write_batch(pa.RecordBatch.from_arrays(arrays, schema=schema))
+    response = {'response': 'instances_arrow', 'num_instances': len(frame.index)}
+    if message_debug(message):
+        print(response)
+    send_response(response, True)
+    send_bytes(sink.getvalue())
+
+
 def receive_instances_from_memory(message):
     import cupy
-    if 'header' in message:
-        header = message['header']
+    header, schema = resolve_header(message)
+    if header is not None:
         frame_name = header['frame_name']
         encoded_handle = message['data_handle']
         data_type = message['data_type']
@@ -197,14 +438,15 @@ def receive_instances_from_memory(message):
 
         arr = cupy.ndarray(make_tuple(data_shape), data_type, mem_ptr)
         _global_env[frame_name] = arr
+        if schema is not None:
+            split_frame(arr, schema)
         if 'handle' not in _global_env:
             _global_env['handle'] = ipc_handle
         else:
             raise Exception('IPC handle exists already.')
         ack_command_ok()
     else:
-        error = 'put instances json message does not contain a header entry!'
-        ack_command_err(error)
+        ack_command_err(missing_header_error(message))
 
 
 def close_handle(message):
@@ -218,22 +460,125 @@ def close_handle(message):
         ack_command_err(error)
 
 
+def receive_instances_mapped(message):
+    import mmap
+    import numpy as np
+    header, schema = resolve_header(message)
+    if header is not None:
+        frame_name = header['frame_name']
+        num_instances = message['num_instances']
+        num_columns = message['num_columns']
+        names = message['column_names'] if schema is None else schema['column_names']
+        mapped = None
+        if num_instances > 0:
+            with open(message['path'], 'rb') as f:
+                # copy-on-write, so that the frame can be modified in place
+                # without touching the file
+                mapped = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_COPY)
+            # the file holds one column after another - the transpose of
+            # that is a (column-major) view of the rows
+            columns = np.frombuffer(mapped, dtype='<f4',
+                                    count=num_instances * num_columns,
+                                    offset=message['data_offset'])
+            data = columns.reshape(num_columns, num_instances).T
+        else:
+            data = np.empty((0, num_columns), dtype='<f4')
+        frame = pd.DataFrame(data, columns=names, copy=False)
+        _global_env[frame_name] = decode_nominal_columns(frame, header)
+        if schema is not None:
+            split_frame(frame, schema)
+        # the mapping stays open until the instances are released
+        _global_env['mapped_file'] = mapped
+        if message_debug(message):
+            print(frame.info(), '\n')
+        ack_command_ok()
+    else:
+        ack_command_err(missing_header_error(message))
+
+
+def close_mapped_file(message):
+    mapped = _global_env.pop('mapped_file', None)
+    if mapped is not None:
+        try:
+            mapped.close()
+        except BufferError:
+            # frames still reference the mapping - it is unmapped once they
+            # are garbage collected
+            pass
+    ack_command_ok()
+
+
 def deserialize_instances(message):
     import pyarrow as pa
-    if 'header' in message:
-        header = message['header']
+    header, schema = resolve_header(message)
+    if header is not None:
         frame_name = header['frame_name']
         num_instances = message['num_instances']
         if num_instances > 0:
-            buf = receive_message(False, False)
-            frame = pa.deserialize_pandas(buf)
-            _global_env[frame_name] = frame
+            if message.get('chunked', False):
+                # record batches arrive as a sequence of frames - decode
+                # them as they arrive rather than buffering the whole IPC
+                # stream first, then convert the table to pandas once
+                frames = FramedInputStream()
+                reader = pa.ipc.open_stream(frames)
+                frame = reader.read_all().to_pandas()
+                # the reader stops at the end-of-stream marker
+                frames.drain()
+            else:
+                buf = receive_message(False, False)
+                frame = pa.ipc.open_stream(pa.py_buffer(buf)).read_pandas()
+            _global_env[frame_name] = decode_nominal_columns(frame, header)
+            if schema is not None:
+                split_frame(frame, schema)
             if message_debug(message):
                 print(frame.info(), '\n')
         ack_command_ok()
     else:
-        error = 'put instances json message does not contain a header entry!'
-        ack_command_err(error)
+        ack_command_err(missing_header_error(message))
+
+
+def receive_instances_csr(message):
+    import numpy as np
+    from scipy import sparse
+    header, schema = resolve_header(message)
+    if header is not None:
+        frame_name = header['frame_name']
+        num_instances = message['num_instances']
+        num_columns = message['num_columns']
+        # indptr, indices and values arrive as separate frames, followed by
+        # the target (if there is a class)
+        indptr_dtype = '<i8' if message.get('indptr_dtype') == 'int64' else '<i4'
+        indptr = np.frombuffer(receive_message(False, False), dtype=indptr_dtype)
+        indices = np.frombuffer(receive_message(False, False), dtype='<i4')
+        values = np.frombuffer(receive_message(False, False), dtype='<f4')
+        X = sparse.csr_matrix((values, indices, indptr),
+                              shape=(num_instances, num_columns))
+        _global_env[frame_name] = X
+        _global_env['X'] = X
+        if message.get('has_class', False):
+            target = np.frombuffer(receive_message(False, False), dtype='<f4')
+            _global_env['Y'] = pd.Series(target)
+        if message_debug(message):
+            print('Received CSR matrix with shape ' + str(X.shape) + ' and '
+                  + str(X.nnz) + ' non-zero values\n')
+        ack_command_ok()
+    else:
+        ack_command_err(missing_header_error(message))
+
+
+def decode_nominal_columns(frame, header):
+    """Turn the label index columns of nominal attributes (listed in the
+    header) into categoricals with the full set of labels, so that one-hot
+    encoding yields the same columns for training and test data. Columns
+    that hold labels rather than label indexes are left as they are"""
+    if 'nominal_atts' in header:
+        for index, labels in zip(header['nominal_atts'], header['nominal_values']):
+            column = frame.columns[index]
+            if not pd.api.types.is_numeric_dtype(frame[column]):
+                continue
+            codes = frame[column].fillna(-1).astype('int32')
+            frame[column] = pd.Categorical.from_codes(codes, categories=labels)
+    return frame
 
 
 def instances_to_header_message(frame_name, frame):
@@ -263,31 +608,173 @@ def instances_to_header_message(frame_name, frame):
     return header
 
 
+def set_encoding(message):
+    """Switch the encoding of command messages. The ack is sent in the old
+    encoding, as the client switches once it has read it"""
+    global _global_encoding
+    encoding = message['encoding']
+    if encoding not in _encodings:
+        ack_command_err('Unsupported command encoding: ' + str(encoding))
+        return
+    ack_command_ok()
+    _global_encoding = encoding
+
+
+def run_compound(message):
+    """Run a sequence of commands from a single request, e.g. an upload of
+    instances (whose data follows the request), scripts, a check that the
+    model exists and a fetch of the predictions. The acks of all but the last
+    step are held back, and the last step replies as it would on its own,
+    with the output of the scripts run along the way added to its ack. The
+    sequence stops at the first step that fails (or at a variable_is_set
+    step whose variable is not set), and its error is the reply"""
+    global _held_acks, _reply_fields
+    steps = message['steps']
+    script_out = ''
+    script_error = ''
+    for i, step in enumerate(steps):
+        if i == len(steps) - 1:
+            _reply_fields = {'script_out': script_out, 'script_error': script_error}
+        else:
+            _held_acks = []
+        try:
+            dispatch(step)
+        finally:
+            held = _held_acks
+            _held_acks = None
+            _reply_fields = None
+        if held is None:
+            return
+        ack = held[-1] if len(held) > 0 else {'response': 'ok'}
+        script_out += ack.get('script_out', '')
+        script_error += ack.get('script_error', '')
+        error = None
+        if ack.get('response') != 'ok':
+            error = ack.get('error_message', 'step ' + str(step.get('command')) + ' failed')
+        elif step.get('command') == 'variable_is_set' and not ack.get('variable_exists'):
+            error = 'Variable ' + str(step.get('variable_name')) + ' is not set in python'
+        if error is not None:
+            send_response({'response': 'error', 'error_message': error,
+                           'script_out': script_out, 'script_error': script_error}, True)
+            return
+
+
 def send_response(response, isJson):
+    if isJson is True and _held_acks is not None:
+        _held_acks.append(response)
+        return
+    if isJson is True and _reply_fields is not None:
+        response = dict(response)
+        response.update(_reply_fields)
+    if isJson is True and _request_id is not None:
+        response = dict(response)
+        response['request_id'] = _request_id
+    if isJson is True and _global_encoding == 'cbor':
+        send_bytes(cbor2.dumps(response))
+        return
     if isJson is True:
         response = json.dumps(response)
-    _global_connection.sendall(struct.pack('>L', len(response)))
-    _global_connection.sendall(response.encode('utf-8'))
+    send_bytes(response.encode('utf-8'))
+
+
+def send_bytes(data):
+    """Send a length delimited message. Messages larger than MAX_FRAME_SIZE
+    are sent as EXTENDED_LENGTH_MARKER and the 64 bit total length, followed
+    by continuation frames of at most MAX_FRAME_SIZE bytes"""
+    view = memoryview(data).cast('B')
+    if len(view) <= SMALL_MESSAGE_SIZE:
+        # one system call for the prefix and the message
+        _global_connection.sendall(struct.pack('>L', len(view)) + view.tobytes())
+        return
+    if len(view) <= MAX_FRAME_SIZE:
+        _global_connection.sendall(struct.pack('>L', len(view)))
+        _global_connection.sendall(view)
+        return
+    _global_connection.sendall(struct.pack('>LQ', EXTENDED_LENGTH_MARKER, len(view)))
+    for start in range(0, len(view), MAX_FRAME_SIZE):
+        frame = view[start:start + MAX_FRAME_SIZE]
+        _global_connection.sendall(struct.pack('>L', len(frame)))
+        _global_connection.sendall(frame)
+
+
+def receive_into(view):
+    """Fill a writable memoryview from the connection"""
+    while len(view) > 0:
+        count = _global_reader.readinto(view)
+        if count == 0:
+            raise EOFError('Connection closed while receiving a message')
+        view = view[count:]
+
+
+def receive_bytes(size):
+    data = bytearray(size)
+    receive_into(memoryview(data))
+    return data
 
 
 def receive_message(isJson, isString=True):
-    length = bytearray()
-    while len(length) < 4:
-        length += _global_connection.recv(4)
-
-    size = struct.unpack('>L', length)[0]
-
-    data = '' if isString else bytearray()
-    while len(data) < size:
-        if isString is True:
-            data += _global_connection.recv(size).decode('utf-8')
-        else:
-            data.extend(_global_connection.recv(size))
+    size = struct.unpack('>L', receive_bytes(4))[0]
+
+    if size == EXTENDED_LENGTH_MARKER:
+        # the message arrives as continuation frames, read straight into
+        # place
+        total = struct.unpack('>Q', receive_bytes(8))[0]
+        data = bytearray(total)
+        view = memoryview(data)
+        offset = 0
+        while offset < total:
+            size = struct.unpack('>L', receive_bytes(4))[0]
+            if size > total - offset:
+                raise IOError('Continuation frame of ' + str(size)
+                              + ' bytes overruns the message')
+            receive_into(view[offset:offset + size])
+            offset += size
+    else:
+        data = receive_bytes(size)
+    if isJson is True and len(data) > 0 and data[0] != 0x7B:
+        # not a JSON object ('{'), so a CBOR map
+        return cbor2.loads(data)
+    if isString is True:
+        data = data.decode('utf-8')
     if isJson is True:
         return json.loads(data)
     return data
 
 
+class FramedInputStream(io.RawIOBase):
+    """Presents a sequence of length delimited frames, terminated by an empty
+    frame, as a single readable stream"""
+
+    def __init__(self):
+        self._frame = memoryview(b'')
+        self._done = False
+
+    def readable(self):
+        return True
+
+    def readinto(self, b):
+        while len(self._frame) == 0:
+            if self._done:
+                return 0
+            frame = receive_message(False, False)
+            if len(frame) == 0:
+                self._done = True
+            else:
+                self._frame = memoryview(frame)
+        n = min(len(b), len(self._frame))
+        b[:n] = self._frame[:n]
+        self._frame = self._frame[n:]
+        return n
+
+    def drain(self):
+        """Discard any unread frames, up to and including the terminating
+        empty frame"""
+        while not self._done:
+            self._frame = memoryview(b'')
+            if len(receive_message(False, False)) == 0:
+                self._done = True
+
+
 def ack_command_err(message):
     err_response = {'response': 'error', 'error_message': message}
     send_response(err_response, True)
@@ -305,36 +792,102 @@ def get_variable(var_name):
         return None
 
 
+def compiled(source, filename='<script>'):
+    """Get the compiled code of a script, from the cache if it was compiled
+    before"""
+    code = _code_cache.get(source)
+    if code is None:
+        code = compile(source, filename, 'exec')
+        _code_cache[source] = code
+        if len(_code_cache) > CODE_CACHE_SIZE:
+            _code_cache.popitem(last=False)
+    else:
+        _code_cache.move_to_end(source)
+    return code
+
+
+def run_captured(run):
+    """Call run() with standard out and error captured, and send them back
+    in the ack"""
+    tOut = sys.stdout
+    tErr = sys.stderr
+    output = StringIO()
+    error = StringIO()
+    sys.stdout = output
+    sys.stderr = error
+    try:
+        run()
+    except Exception:
+        print('Got an exception executing script')
+        traceback.print_exc(file=error)
+    sys.stdout = tOut
+    sys.stderr = tErr
+    # sys.stdout = sys.__stdout__
+    # sys.stderr = sys.__stderr__
+    ok_response = {}
+    ok_response['response'] = 'ok'
+    ok_response['script_out'] = output.getvalue()
+    ok_response['script_error'] = error.getvalue()
+    send_response(ok_response, True)
+
+
 def execute_script(message):
     if 'script' in message:
         script = message['script']
-        tOut = sys.stdout
-        tErr = sys.stderr
-        output = StringIO()
-        error = StringIO()
         if message_debug(message):
             print('Executing script...\n\n' + script)
-        sys.stdout = output
-        sys.stderr = error
-        try:
-            exec(script, _global_env)
-        except Exception:
-            print('Got an exception executing script')
-            traceback.print_exc(file=error)
-        sys.stdout = tOut
-        sys.stderr = tErr
-        # sys.stdout = sys.__stdout__
-        # sys.stderr = sys.__stderr__
-        ok_response = {}
-        ok_response['response'] = 'ok'
-        ok_response['script_out'] = output.getvalue()
-        ok_response['script_error'] = error.getvalue()
-        send_response(ok_response, True)
+        run_captured(lambda: exec(compiled(script), _global_env))
     else:
         error = 'execute script json message does not contain a script entry!'
         ack_command_err(error)
 
 
+def register_function(message):
+    """Install a function that the client calls by id (see call_function).
+    The source defines the function, under the given name, in a namespace of
+    its own, so anything it imports or defines besides the function is set
+    up once"""
+    function_id = message.get('function_id')
+    name = message.get('function_name')
+    if function_id is None or name is None or 'source' not in message:
+        ack_command_err('register function json message does not contain a '
+                        'function_id, function_name and source entry!')
+        return
+    if message_debug(message):
+        print('Registering function ' + function_id + '...\n\n' + message['source'])
+    namespace = {'__name__': function_id}
+    try:
+        exec(compiled(message['source'], '<' + function_id + '>'), namespace)
+        _functions[function_id] = namespace[name]
+    except Exception:
+        ack_command_err('Unable to register function ' + function_id + ':\n'
+                        + traceback.format_exc())
+        return
+    ack_command_ok()
+
+
+def call_function(message):
+    """Call a registered function with the session's variables and the
+    arguments given, optionally storing its result as a variable. Standard
+    out and error are sent back as for execute_script"""
+    function_id = message.get('function_id')
+    if function_id not in _functions:
+        ack_command_err('Function ' + str(function_id) + ' is not registered')
+        return
+    function = _functions[function_id]
+    args = message.get('args') or {}
+    result_variable = message.get('result_variable')
+
+    def run():
+        result = function(_global_env, **args)
+        if result_variable is not None:
+            _global_env[result_variable] = result
+
+    if message_debug(message):
+        print('Calling function ' + function_id + ' with ' + str(args))
+    run_captured(run)
+
+
 def send_variable_is_set(message):
     if 'variable_name' in message:
         var_name = message['variable_name']
@@ -378,6 +931,8 @@ def send_variable_value(message):
         encoding = message['variable_encoding']
         if encoding == 'pickled' or encoding == 'json' or encoding == 'string':
             send_encoded_variable_value(message)
+        elif encoding == 'binary':
+            send_binary_variable_value(message)
         else:
             ack_command_err(
                 'Unknown encoding type for send variable value message')
@@ -481,6 +1036,45 @@ def send_encoded_variable_value(message):
             'get variable value json message does not contain a variable_name entry!')
 
 
+def send_binary_variable_value(message):
+    import numpy as np
+    if 'variable_name' in message:
+        var_name = message['variable_name']
+        value = get_variable(var_name)
+        if value is None:
+            ack_command_err(var_name + ' does not exist!')
+            return
+        # pandas/cudf containers expose their data via values, cupy arrays are
+        # copied to the host via get()
+        if hasattr(value, 'values') and not isinstance(value, np.ndarray) \
+                and not isinstance(value, dict):
+            value = value.values
+        if hasattr(value, 'get') and not isinstance(value, np.ndarray) \
+                and not isinstance(value, dict):
+            value = value.get()
+        try:
+            value = np.asarray(value)
+            if value.dtype != np.float32:
+                value = value.astype(np.float64)
+            value = np.ascontiguousarray(value,
+                                         dtype=value.dtype.newbyteorder('<'))
+        except (TypeError, ValueError) as e:
+            ack_command_err(var_name + ' is not a numeric array: ' + str(e))
+            return
+        ok_response = {'response': 'ok', 'variable_name': var_name,
+                       'variable_encoding': 'binary',
+                       'dtype': 'float32' if value.dtype == np.float32 else 'float64',
+                       'shape': list(value.shape)}
+        if message_debug(message):
+            print('Sending binary value for var ' + var_name + ' with shape '
+                  + str(value.shape) + '\n')
+        send_response(ok_response, True)
+        send_bytes(memoryview(value.reshape(-1)).cast('B'))
+    else:
+        ack_command_err(
+            'get variable value json message does not contain a variable_name entry!')
+
+
 def receive_variable_value(message):
     if 'variable_encoding' in message:
         if message['variable_encoding'] == 'pickled':
@@ -16,16 +16,25 @@
 package weka.classifiers.rapids;
 
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.evaluation.NominalPrediction;
+import weka.classifiers.evaluation.NumericPrediction;
+import weka.classifiers.evaluation.Prediction;
 import weka.classifiers.rules.ZeroR;
 import weka.core.*;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
 import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.python.CompoundCommand;
 import weka.python.InstanceSender;
 import weka.python.RapidsSession;
+import weka.python.ServerFunction;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static weka.python.InstanceSender.*;
 
@@ -41,8 +50,78 @@ public class CuMLClassifier extends AbstractClassifier
 
     protected static final String TRAINING_DATA_ID = "rapids_classifier_training";
     protected static final String TEST_DATA_ID = "cuml_classifier_test";
+    protected static final String CV_DATA_ID = "cuml_classifier_cv";
     protected static final String MODEL_ID = "weka_cuml_learner";
 
+    /**
+     * Python helpers shared by the fit and predict functions: evaluating the
+     * learner options (compiled once per distinct options string) and
+     * preparing X sent via the sparse CSR strategy
+     */
+    protected static final String FUNCTION_HELPERS = "import importlib\n"
+            + "_options = {}\n"
+            + "def _learner_args(env, options):\n"
+            + "    code = _options.get(options)\n"
+            + "    if code is None:\n"
+            + "        code = compile('_collect(' + options + ')', '<options>', 'eval')\n"
+            + "        _options[options] = code\n"
+            + "    return eval(code, env, {'_collect': lambda *a, **kw: (a, kw)})\n"
+            + "def _sparse_input(X, accepts_sparse):\n"
+            + "    if accepts_sparse:\n"
+            + "        import cupyx\n"
+            + "        return cupyx.scipy.sparse.csr_matrix(X)\n"
+            + "    import pandas as pd\n"
+            + "    return pd.DataFrame(X.toarray())\n";
+
+    /**
+     * Creates the learner and fits it to X and Y
+     */
+    protected static final ServerFunction FIT_FUNCTION = new ServerFunction("weka_cuml_fit",
+            FUNCTION_HELPERS
+                    + "def weka_cuml_fit(env, model, module, learner, options, target_type,\n"
+                    + "                  sparse_input, accepts_sparse):\n"
+                    + "    if sparse_input:\n"
+                    + "        env['X'] = _sparse_input(env['X'], accepts_sparse)\n"
+                    + "    args, kwargs = _learner_args(env, options)\n"
+                    + "    learner_class = getattr(importlib.import_module('cuml.' + module), learner)\n"
+                    + "    env[model] = learner_class(*args, **kwargs)\n"
+                    + "    env[model].fit(env['X'].astype('float32'), env['Y'].astype(target_type))\n");
+
+    /**
+     * Predicts X with a fitted learner, returning the predictions
+     */
+    protected static final ServerFunction PREDICT_FUNCTION = new ServerFunction(
+            "weka_cuml_predict", FUNCTION_HELPERS
+            + "def weka_cuml_predict(env, model, sparse_input, accepts_sparse, proba):\n"
+            + "    if sparse_input:\n"
+            + "        env['X'] = _sparse_input(env['X'], accepts_sparse)\n"
+            + "    learner = env[model]\n"
+            + "    predict = learner.predict_proba if proba else learner.predict\n"
+            + "    return predict(env['X'].astype('float32'))\n");
+
+    /**
+     * Selects the rows of a cross-validation fold from data uploaded once:
+     * "start" keeps the uploaded X and Y, "train" and "test" make X (and Y)
+     * the training or test rows of a fold, and "finish" drops the kept data
+     * and the fold's model
+     */
+    protected static final ServerFunction CV_FUNCTION = new ServerFunction("weka_cuml_cv",
+            "import numpy as np\n"
+                    + "def _cv_take(a, idx):\n"
+                    + "    return a.iloc[idx] if hasattr(a, 'iloc') else a[idx]\n"
+                    + "def weka_cuml_cv(env, step, first, last, model):\n"
+                    + "    if step == 'start':\n"
+                    + "        env['_cv_X'], env['_cv_Y'] = env['X'], env['Y']\n"
+                    + "    elif step == 'train':\n"
+                    + "        X = env['_cv_X']\n"
+                    + "        rows = np.concatenate((np.arange(0, first), np.arange(last, X.shape[0])))\n"
+                    + "        env['X'], env['Y'] = _cv_take(X, rows), _cv_take(env['_cv_Y'], rows)\n"
+                    + "    elif step == 'test':\n"
+                    + "        env['X'] = _cv_take(env['_cv_X'], np.arange(first, last))\n"
+                    + "    else:\n"
+                    + "        for name in ('_cv_X', '_cv_Y', model):\n"
+                    + "            env.pop(name, None)\n");
+
     /**
      * For serialization
      */
@@ -54,13 +133,72 @@ public class CuMLClassifier extends AbstractClassifier
     public static final Tag[] TAGS_INSTANCE_SENDING = {
             new Tag(INSTANCE_SENDING_CSV, "Send instances by CSV format"),
             new Tag(INSTANCE_SENDING_ARROW_IPC, "Send Instances by ARROW IPC"),
-            new Tag(INSTANCE_SENDING_SHARED_GPU_MEMORY, "Shared Instances in GPU Memory")};
+            new Tag(INSTANCE_SENDING_SHARED_GPU_MEMORY, "Shared Instances in GPU Memory"),
+            new Tag(INSTANCE_SENDING_SPARSE_CSR, "Send instances as a sparse CSR matrix"),
+            new Tag(INSTANCE_SENDING_MAPPED_FILE, "Share instances via a memory mapped file")};
 
     /**
      * The current method to send instances
      */
     protected int m_sendingMethod = 1;
 
+    /**
+     * Maximum number of rows per Arrow record batch when sending instances
+     * (0 = send all rows as a single batch)
+     */
+    protected int m_arrowChunkSize = 0;
+
+    /**
+     * True to send every column as float32 when using Arrow IPC, rather than
+     * narrowing integer valued columns
+     */
+    protected boolean m_forceFloat32;
+
+    /**
+     * Codec used to compress Arrow record batches ("none", "lz4" or "zstd")
+     */
+    protected String m_arrowCompression = "none";
+
+    /**
+     * Number of threads used to convert instances before sending them (0 = one
+     * per available processor)
+     */
+    protected int m_numConversionThreads = 1;
+
+    /**
+     * Communicate with a newly started server over a Unix domain socket rather
+     * than TCP
+     */
+    protected boolean m_unixDomainSocket;
+
+    /**
+     * Overlap converting instances with sending them (CSV and Arrow IPC)
+     */
+    protected boolean m_pipelinedSend;
+
+    /**
+     * Memory budget (MB) for keeping uploaded training data in the server for
+     * reuse (0 = always upload)
+     */
+    protected int m_frameCacheBudget;
+
+    /**
+     * Number of server processes to run for the python command (and server
+     * ID), so that several classifiers can train or predict at the same time
+     */
+    protected int m_serverPoolSize = 1;
+
+    /**
+     * Hand out the servers of the pool in turn rather than to the least busy
+     */
+    protected boolean m_roundRobinPool;
+
+    /**
+     * True once the server pool has been configured with the current pool
+     * settings (and server)
+     */
+    protected transient boolean m_poolConfigured;
+
     /**
      * Holds info on the different learners available
      */
@@ -214,6 +352,24 @@ public class CuMLClassifier extends AbstractClassifier
             return m_regression;
         }
 
+        /**
+         * Return true if this scheme can be trained on (and make predictions
+         * for) a sparse CSR matrix directly. Other schemes get a densified
+         * matrix when instances are sent via the sparse CSR strategy.
+         *
+         * @return true if this scheme accepts sparse input
+         */
+        public boolean acceptsSparseInput() {
+            switch (this) {
+                case LogisticRegression:
+                case MultinomialNB:
+                case BernoulliNB:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
         /**
          * Get the default settings for parameters for this scheme
          *
@@ -257,6 +413,12 @@ public class CuMLClassifier extends AbstractClassifier
      */
     protected boolean m_useSupervisedNominalToBinary;
 
+    /**
+     * True if nominal attributes should be sent as label indexes and one-hot
+     * encoded in python rather than binarized in Weka
+     */
+    protected boolean m_encodeNominalsInPython;
+
     /**
      * The nominal to binary filter
      */
@@ -475,6 +637,37 @@ public class CuMLClassifier extends AbstractClassifier
         m_useSupervisedNominalToBinary = useSupervisedNominalToBinary;
     }
 
+    /**
+     * Get whether to send nominal attributes as label indexes and one-hot
+     * encode them in python, rather than binarizing them in Weka. Only applies
+     * to the CSV and Arrow IPC sending methods.
+     *
+     * @return true if nominal attributes are to be encoded in python
+     */
+    @OptionMetadata(displayName = "Encode nominal attributes in python",
+            description = "Send nominal attributes as label indexes (one column "
+                    + "each) and one-hot encode them in python, rather than "
+                    + "binarizing them in Weka.\nOnly applies to the CSV and "
+                    + "Arrow IPC sending methods.",
+            commandLineParamName = "nominal-in-python",
+            commandLineParamSynopsis = "-nominal-in-python",
+            commandLineParamIsFlag = true, displayOrder = 12)
+    public boolean getEncodeNominalsInPython() {
+        return m_encodeNominalsInPython;
+    }
+
+    /**
+     * Set whether to send nominal attributes as label indexes and one-hot
+     * encode them in python, rather than binarizing them in Weka. Only applies
+     * to the CSV and Arrow IPC sending methods.
+     *
+     * @param encodeNominalsInPython true if nominal attributes are to be encoded
+     *                               in python
+     */
+    public void setEncodeNominalsInPython(boolean encodeNominalsInPython) {
+        m_encodeNominalsInPython = encodeNominalsInPython;
+    }
+
     /**
      * Get the cuML scheme to use
      *
@@ -629,6 +822,7 @@ public class CuMLClassifier extends AbstractClassifier
      */
     public void setPythonCommand(String pyCommand) {
         m_pyCommand = pyCommand;
+        m_poolConfigured = false;
     }
 
     /**
@@ -683,6 +877,7 @@ public class CuMLClassifier extends AbstractClassifier
      */
     public void setServerID(String serverID) {
         m_serverID = serverID;
+        m_poolConfigured = false;
     }
 
     /**
@@ -713,6 +908,8 @@ public class CuMLClassifier extends AbstractClassifier
                     + "CSV\n"
                     + "Arrow IPC\n"
                     + "Shared GPU Memory\n"
+                    + "Sparse CSR matrix (non-zero values only)\n"
+                    + "Memory mapped file (in /dev/shm, CPU-only hosts)\n"
                     + "\n(default = Arrow IPC)",
             commandLineParamName = "M",
             commandLineParamSynopsis = "-M <method number>", displayOrder = 10)
@@ -723,6 +920,240 @@ public class CuMLClassifier extends AbstractClassifier
     }
 
 
+    /**
+     * Set the maximum number of rows to convert and send per Arrow record batch.
+     *
+     * @param chunkSize the maximum number of rows per batch (0 to send all rows
+     *                  as a single batch)
+     */
+    public void setArrowChunkSize(int chunkSize) {
+        m_arrowChunkSize = chunkSize;
+    }
+
+    /**
+     * Get the maximum number of rows to convert and send per Arrow record batch.
+     *
+     * @return the maximum number of rows per batch (0 to send all rows as a
+     * single batch)
+     */
+    @OptionMetadata(displayName = "Arrow chunk size",
+            description = "Maximum number of rows to convert and stream per Arrow record "
+                    + "batch when sending instances via Arrow IPC. Smaller chunks reduce peak "
+                    + "memory use for large data sets (default = 0, i.e. a single batch)",
+            commandLineParamName = "arrow-chunk-size",
+            commandLineParamSynopsis = "-arrow-chunk-size <rows>", displayOrder = 11)
+    public int getArrowChunkSize() {
+        return m_arrowChunkSize;
+    }
+
+    /**
+     * Set whether to send every column as float32 when using Arrow IPC, rather
+     * than narrowing integer valued columns to the smallest lossless integer
+     * type.
+     *
+     * @param forceFloat32 true to send every column as float32
+     */
+    public void setForceFloat32(boolean forceFloat32) {
+        m_forceFloat32 = forceFloat32;
+    }
+
+    /**
+     * Get whether to send every column as float32 when using Arrow IPC.
+     *
+     * @return true if every column is sent as float32
+     */
+    @OptionMetadata(displayName = "Force float32 columns",
+            description = "Send every column as float32 when using Arrow IPC, rather "
+                    + "than narrowing integer valued columns (e.g. binary indicators) "
+                    + "to the smallest lossless integer type.",
+            commandLineParamName = "force-float32",
+            commandLineParamSynopsis = "-force-float32",
+            commandLineParamIsFlag = true, displayOrder = 13)
+    public boolean getForceFloat32() {
+        return m_forceFloat32;
+    }
+
+    /**
+     * Set the codec used to compress Arrow record batches.
+     *
+     * @param compression one of "none", "lz4" or "zstd"
+     */
+    public void setArrowCompression(String compression) {
+        m_arrowCompression = compression;
+    }
+
+    /**
+     * Get the codec used to compress Arrow record batches.
+     *
+     * @return one of "none", "lz4" or "zstd"
+     */
+    @OptionMetadata(displayName = "Arrow compression",
+            description = "Codec used to compress Arrow record batches when sending "
+                    + "instances via Arrow IPC: none, lz4 or zstd. Batches smaller than "
+                    + "64KB are always sent uncompressed (default = none)",
+            commandLineParamName = "arrow-compression",
+            commandLineParamSynopsis = "-arrow-compression <none|lz4|zstd>", displayOrder = 14)
+    public String getArrowCompression() {
+        return m_arrowCompression;
+    }
+
+    /**
+     * Set the number of threads used to convert instances before sending them.
+     *
+     * @param numThreads the number of threads (0 to use one per available
+     *                   processor)
+     */
+    public void setNumConversionThreads(int numThreads) {
+        m_numConversionThreads = numThreads;
+    }
+
+    /**
+     * Get the number of threads used to convert instances before sending them.
+     *
+     * @return the number of threads (0 to use one per available processor)
+     */
+    @OptionMetadata(displayName = "Number of conversion threads",
+            description = "Number of threads used to convert instances to the format of "
+                    + "the sending method (default = 1, i.e. no parallelism; use 0 to "
+                    + "auto-detect the number of cores)",
+            commandLineParamName = "conversion-threads",
+            commandLineParamSynopsis = "-conversion-threads <num>", displayOrder = 15)
+    public int getNumConversionThreads() {
+        return m_numConversionThreads;
+    }
+
+    /**
+     * Set whether to communicate with a newly started server over a Unix domain
+     * socket rather than TCP.
+     *
+     * @param unixDomainSocket true to use a Unix domain socket
+     */
+    public void setUnixDomainSocket(boolean unixDomainSocket) {
+        m_unixDomainSocket = unixDomainSocket;
+    }
+
+    /**
+     * Get whether to communicate with a newly started server over a Unix domain
+     * socket rather than TCP.
+     *
+     * @return true if a Unix domain socket is used
+     */
+    @OptionMetadata(displayName = "Use Unix domain socket",
+            description = "Communicate with the python server over a Unix domain socket "
+                    + "rather than loopback TCP, when the server is started. Falls back "
+                    + "to TCP on Windows and JVMs older than Java 16.",
+            commandLineParamName = "unix-socket",
+            commandLineParamSynopsis = "-unix-socket",
+            commandLineParamIsFlag = true, displayOrder = 16)
+    public boolean getUnixDomainSocket() {
+        return m_unixDomainSocket;
+    }
+
+    /**
+     * Set whether to overlap converting instances with sending them.
+     *
+     * @param pipelinedSend true to pipeline sending
+     */
+    public void setPipelinedSend(boolean pipelinedSend) {
+        m_pipelinedSend = pipelinedSend;
+    }
+
+    /**
+     * Get whether to overlap converting instances with sending them.
+     *
+     * @return true if sending is pipelined
+     */
+    @OptionMetadata(displayName = "Pipelined send",
+            description = "Convert instances in chunks while a separate thread sends the "
+                    + "previous chunks to the server, rather than converting everything "
+                    + "before sending (CSV and Arrow IPC sending methods only).",
+            commandLineParamName = "pipelined-send",
+            commandLineParamSynopsis = "-pipelined-send",
+            commandLineParamIsFlag = true, displayOrder = 17)
+    public boolean getPipelinedSend() {
+        return m_pipelinedSend;
+    }
+
+    /**
+     * Set the memory budget for keeping uploaded training data in the server.
+     *
+     * @param budget the budget in MB (0 to always upload)
+     */
+    public void setFrameCacheBudget(int budget) {
+        m_frameCacheBudget = budget;
+        m_poolConfigured = false;
+    }
+
+    /**
+     * Get the memory budget for keeping uploaded training data in the server.
+     *
+     * @return the budget in MB (0 to always upload)
+     */
+    @OptionMetadata(displayName = "Frame cache budget (MB)",
+            description = "Memory budget for keeping uploaded training data in the python "
+                    + "server. Training data identical to data that is still held (e.g. "
+                    + "when retraining with different learner options) is not uploaded "
+                    + "again. Least recently used data is dropped first (default = 0, "
+                    + "i.e. always upload)",
+            commandLineParamName = "frame-cache-budget",
+            commandLineParamSynopsis = "-frame-cache-budget <MB>", displayOrder = 18)
+    public int getFrameCacheBudget() {
+        return m_frameCacheBudget;
+    }
+
+    /**
+     * Set the number of server processes to run for the python command.
+     *
+     * @param size the number of server processes
+     */
+    public void setServerPoolSize(int size) {
+        m_serverPoolSize = size;
+        m_poolConfigured = false;
+    }
+
+    /**
+     * Get the number of server processes to run for the python command.
+     *
+     * @return the number of server processes
+     */
+    @OptionMetadata(displayName = "Server pool size",
+            description = "Number of python servers to run for the python command (and "
+                    + "server ID), so that that many classifiers (e.g. in different "
+                    + "threads of the Experimenter) can train and predict at the same "
+                    + "time. Predictions are always made by the server holding the "
+                    + "model. The pool is shared by all classifiers using the same "
+                    + "server and only ever grows (default = 1)",
+            commandLineParamName = "server-pool-size",
+            commandLineParamSynopsis = "-server-pool-size <num>", displayOrder = 19)
+    public int getServerPoolSize() {
+        return m_serverPoolSize;
+    }
+
+    /**
+     * Set whether to hand out the servers of the pool in turn.
+     *
+     * @param roundRobin true to hand out servers in turn
+     */
+    public void setRoundRobinPool(boolean roundRobin) {
+        m_roundRobinPool = roundRobin;
+        m_poolConfigured = false;
+    }
+
+    /**
+     * Get whether to hand out the servers of the pool in turn.
+     *
+     * @return true if servers are handed out in turn
+     */
+    @OptionMetadata(displayName = "Round robin server pool",
+            description = "Hand out the servers of the pool in turn, rather than the free "
+                    + "server holding the fewest models.",
+            commandLineParamName = "pool-round-robin",
+            commandLineParamSynopsis = "-pool-round-robin",
+            commandLineParamIsFlag = true, displayOrder = 20)
+    public boolean getRoundRobinPool() {
+        return m_roundRobinPool;
+    }
+
     /**
      * Gets a python session object to use for interacting with python
      *
@@ -730,6 +1161,20 @@ public class CuMLClassifier extends AbstractClassifier
      * @throws WekaException if a problem occurs
      */
     protected RapidsSession getSession() throws WekaException {
+        return getSession(null);
+    }
+
+    /**
+     * Gets a python session object to use for interacting with python, from
+     * the pool of servers for the python command
+     *
+     * @param placement the name of a variable (i.e. the model) that the
+     *                  session's server must hold if it has been placed, or
+     *                  null for any session
+     * @return a PythonSession object
+     * @throws WekaException if a problem occurs
+     */
+    protected RapidsSession getSession(String placement) throws WekaException {
         RapidsSession session = null;
         String pyCommand = m_pyCommand != null && m_pyCommand.length() > 0
                 && !m_pyCommand.equalsIgnoreCase("default") ? m_pyCommand : null;
@@ -741,24 +1186,37 @@ public class CuMLClassifier extends AbstractClassifier
             if (!RapidsSession.pythonAvailable(pyCommand, serverID)) {
                 // try to create this environment/server
                 // System.err.println("Starting server: " + pyCommand + " " + serverID);
-                if (!RapidsSession.initSession(pyCommand, serverID, pyPath, getDebug())) {
+                m_poolConfigured = false;
+                if (!RapidsSession.initSession(pyCommand, serverID, pyPath, getDebug(),
+                        m_unixDomainSocket)) {
                     String envEvalResults =
                             RapidsSession.getPythonEnvCheckResults(pyCommand, serverID);
                     throw new WekaException("Was unable to start python environment ("
                             + pyCommand + ")\n\n" + envEvalResults);
                 }
             }
-            session = RapidsSession.acquireSession(pyCommand, serverID, this);
+            if (!m_poolConfigured) {
+                RapidsSession.configurePool(pyCommand, serverID, m_serverPoolSize,
+                        m_roundRobinPool, m_frameCacheBudget * 1024L * 1024L);
+                m_poolConfigured = true;
+            }
+            session = RapidsSession.acquireSession(pyCommand, serverID, this, placement);
         } else {
             if (!RapidsSession.pythonAvailable()) {
                 // try initializing
-                if (!RapidsSession.initSession("python", getDebug())) {
+                m_poolConfigured = false;
+                if (!RapidsSession.initSession("python", getDebug(), m_unixDomainSocket)) {
                     String envEvalResults = RapidsSession.getPythonEnvCheckResults();
                     throw new WekaException(
                             "Was unable to start python environment:\n\n" + envEvalResults);
                 }
             }
-            session = RapidsSession.acquireSession(this);
+            if (!m_poolConfigured) {
+                RapidsSession.configurePool(m_serverPoolSize, m_roundRobinPool,
+                        m_frameCacheBudget * 1024L * 1024L);
+                m_poolConfigured = true;
+            }
+            session = RapidsSession.acquireSession(this, placement);
         }
 
         return session;
@@ -825,6 +1283,111 @@ public class CuMLClassifier extends AbstractClassifier
         return RapidsSession.pythonAvailable();
     }
 
+    /**
+     * Create a sender for the configured sending method and options.
+     *
+     * @param session the session to send through
+     * @return the sender
+     * @throws WekaException if a problem occurs
+     */
+    protected InstanceSender createSender(RapidsSession session) throws WekaException {
+        InstanceSender sender = new InstanceSender(session, m_sendingMethod, getDebug());
+        sender.setArrowChunkSize(m_arrowChunkSize);
+        sender.setForceFloat32(m_forceFloat32);
+        sender.setArrowCompression(m_arrowCompression);
+        sender.setNumConversionThreads(m_numConversionThreads);
+        sender.setPipelined(m_pipelinedSend);
+        return sender;
+    }
+
+    /**
+     * Create the filter that converts nominal attributes to binary ones, as
+     * configured.
+     *
+     * @return the filter, or null if nominal attributes are expanded in python
+     */
+    protected Filter createNominalToBinary() {
+        if (getEncodeNominalsInPython()
+                && (m_sendingMethod == INSTANCE_SENDING_CSV
+                || m_sendingMethod == INSTANCE_SENDING_ARROW_IPC)) {
+            // nominal attributes are sent as label indexes and expanded in python
+            return null;
+        } else if (getUseSupervisedNominalToBinary()) {
+            return new weka.filters.supervised.attribute.NominalToBinary();
+        }
+        return new weka.filters.unsupervised.attribute.NominalToBinary();
+    }
+
+    /**
+     * Get the arguments for calling FIT_FUNCTION to fit the configured learner
+     * to X and Y.
+     *
+     * @param modelName the name of the variable to hold the fitted learner
+     * @return the arguments
+     * @throws WekaException if the learner is neither a classifier nor a
+     *                       regressor
+     */
+    protected Map<String, Object> fitArgs(String modelName) throws WekaException {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("model", modelName);
+        args.put("module", m_learner.getModule());
+        args.put("learner", m_learner.toString());
+        args.put("options", getLearnerOpts());
+        args.put("target_type", targetType());
+        args.put("sparse_input", m_sendingMethod == INSTANCE_SENDING_SPARSE_CSR);
+        args.put("accepts_sparse", m_learner.acceptsSparseInput());
+        return args;
+    }
+
+    /**
+     * Get the arguments for calling PREDICT_FUNCTION to predict X with a
+     * fitted learner.
+     *
+     * @param modelName the name of the variable holding the fitted learner
+     * @return the arguments
+     */
+    protected Map<String, Object> predictArgs(String modelName) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("model", modelName);
+        args.put("sparse_input", m_sendingMethod == INSTANCE_SENDING_SPARSE_CSR);
+        args.put("accepts_sparse", m_learner.acceptsSparseInput());
+        args.put("proba", m_learner.producesProbabilities(m_learnerOpts));
+        return args;
+    }
+
+    /**
+     * Get the type that the target is cast to for fitting the learner.
+     *
+     * @return the type
+     * @throws WekaException if the learner is neither a classifier nor a
+     *                       regressor
+     */
+    protected String targetType() throws WekaException {
+        if (m_learner.isClassifier()) {
+            return "int32";
+        } else if (m_learner.isRegressor()) {
+            return "float32";
+        }
+        throw new WekaException("The learner " + m_learner.name() + "is not classifier nor regressor!");
+    }
+
+    /**
+     * Report the output of a script sent to python, failing if it wrote to
+     * standard error (unless continuing on errors).
+     *
+     * @param outAndErr the standard output and error of the script
+     * @throws Exception if the script wrote to standard error
+     */
+    protected void checkScriptErrors(List<String> outAndErr) throws Exception {
+        if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
+            if (m_continueOnSysErr) {
+                System.err.println(outAndErr.get(1));
+            } else {
+                throw new Exception(outAndErr.get(1));
+            }
+        }
+    }
+
     /**
      * Build the classifier
      *
@@ -836,13 +1399,14 @@ public class CuMLClassifier extends AbstractClassifier
         getCapabilities(true).testWithFail(data);
         m_zeroR = null;
 
-        RapidsSession session = getSession();
-        InstanceSender sender = new InstanceSender(session, m_sendingMethod, getDebug());
-
         if (m_modelHash == null) {
             m_modelHash = "" + hashCode();
         }
 
+        // retrain on the server holding the previous model (if any)
+        RapidsSession session = getSession(MODEL_ID + m_modelHash);
+        InstanceSender sender = createSender(session);
+
         data = new Instances(data);
         data.deleteWithMissingClass();
         m_zeroR = new ZeroR();
@@ -878,68 +1442,30 @@ public class CuMLClassifier extends AbstractClassifier
         m_replaceMissing.setInputFormat(data);
         data = Filter.useFilter(data, m_replaceMissing);
 
-        if (getUseSupervisedNominalToBinary()) {
-            m_nominalToBinary =
-                    new weka.filters.supervised.attribute.NominalToBinary();
-        } else {
-            m_nominalToBinary =
-                    new weka.filters.unsupervised.attribute.NominalToBinary();
+        m_nominalToBinary = createNominalToBinary();
+        if (m_nominalToBinary != null) {
+            m_nominalToBinary.setInputFormat(data);
+            data = Filter.useFilter(data, m_nominalToBinary);
         }
-        m_nominalToBinary.setInputFormat(data);
-        data = Filter.useFilter(data, m_nominalToBinary);
 
         try {
-            String learnerModule = m_learner.getModule();
-            String learnerMethod = m_learner.toString();
-
-            // transfer the data over to python
-            sender.sendInstances(data, TRAINING_DATA_ID, getDebug());
-
-            StringBuilder learnScript = new StringBuilder();
-
-            learnScript.append("from cuml import ").append(learnerModule).append("\n")
-                    .append("import cupy as cp\n")
-                    .append("import cudf\n");
+            session.registerFunction(FIT_FUNCTION, getDebug());
 
-            learnScript
-                    .append(MODEL_ID + m_modelHash + " = " + learnerModule + "."
-                            + learnerMethod + "("
-                            + (getLearnerOpts().length() > 0 ? getLearnerOpts() : "") + ")")
-                    .append("\n");
+            // transfer the data over to python, then fit and fetch the
+            // model's description as part of the same request
+            CompoundCommand train = new CompoundCommand(getDebug());
+            train.addFunctionCall(FIT_FUNCTION, fitArgs(MODEL_ID + m_modelHash), null);
+            train.fetchPlainString(MODEL_ID + m_modelHash);
+            sender.sendInstances(data, TRAINING_DATA_ID, true, train, getDebug());
+            checkScriptErrors(train.getScriptOutAndErr());
 
-//            learnScript.append("X, Y = cudf.from_pandas(X), cudf.from_pandas(Y)\n");
-            if (m_learner.isClassifier()) {
-                learnScript.append(MODEL_ID + m_modelHash + ".fit(X.astype('float32'), Y.astype('int32'))\n");
-            } else if (m_learner.isRegressor()) {
-                learnScript.append(MODEL_ID + m_modelHash + ".fit(X.astype('float32'), Y.astype('float32'))\n");
-            } else {
-                throw new WekaException("The learner " + m_learner.name() + "is not classifier nor regressor!");
-            }
-
-            List<String> outAndErr =
-                    session.executeScript(learnScript.toString(), getDebug());
-            if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
-                if (m_continueOnSysErr) {
-                    System.err.println(outAndErr.get(1));
-                } else {
-                    throw new Exception(outAndErr.get(1));
-                }
-            }
-
-            m_learnerToString = session.getVariableValueFromPythonAsPlainString(
-                    MODEL_ID + m_modelHash, getDebug());
+            m_learnerToString = train.getStringValue();
+            session.setPlacement(MODEL_ID + m_modelHash);
 
             if (m_learner.removeModelFromPythonPostTrainPredict()) {
                 String cleanUp = "del " + MODEL_ID + m_modelHash + "\n";
-                outAndErr = session.executeScript(cleanUp, getDebug());
-
-                if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
-                    if (m_continueOnSysErr) {
-                        System.err.println(outAndErr.get(1));
-                    } else {
-                        throw new Exception(outAndErr.get(1));
-                    }
-                }
+                session.clearPlacement(MODEL_ID + m_modelHash);
+                checkScriptErrors(session.executeScript(cleanUp, getDebug()));
             }
             // release session
         } finally {
@@ -991,7 +1517,9 @@ public class CuMLClassifier extends AbstractClassifier
         }
 
         insts = Filter.useFilter(insts, m_replaceMissing);
-        insts = Filter.useFilter(insts, m_nominalToBinary);
+        if (m_nominalToBinary != null) {
+            insts = Filter.useFilter(insts, m_nominalToBinary);
+        }
         Attribute classAtt = insts.classAttribute();
         // remove the class attribute
         Remove r = new Remove();
@@ -1000,125 +1528,334 @@ public class CuMLClassifier extends AbstractClassifier
         insts = Filter.useFilter(insts, r);
         insts.setClassIndex(-1);
 
+        if (insts.numInstances() == 0) {
+            return new double[0][];
+        }
+
         double[][] results = null;
         RapidsSession session = null;
         InstanceSender sender = null;
         try {
-            session = getSession();
-            sender = new InstanceSender(session, m_sendingMethod, getDebug());
-            sender.sendInstances(insts, TEST_DATA_ID, getDebug());
-            StringBuilder predictScript = new StringBuilder();
-
-            // check if model exists in python. If not, then transfer it over
-            if (!session.checkIfPythonVariableIsSet(MODEL_ID + m_modelHash,
-                    getDebug())) {
-                throw new Exception("There is no model exist in Python environment!");
-            }
-
-            String learnerModule = m_learner.getModule();
-            String learnerMethod = m_learner.toString();
-
-//            predictScript.append("X = cudf.from_pandas(X)\n");
-            predictScript
-                    .append("from cuml." + learnerModule + " import " + learnerMethod).append("\n");
-
-            predictScript.append("preds = " + MODEL_ID + m_modelHash + ".predict"
-                    + (m_learner.producesProbabilities(m_learnerOpts) ? "_proba" : "")
-                    + "(X)").append("\npreds = preds.values.tolist()\n");
-            List<String> outAndErr =
-                    session.executeScript(predictScript.toString(), getDebug());
-            if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
-                if (m_continueOnSysErr) {
-                    System.err.println(outAndErr.get(1));
-                } else {
-                    throw new Exception(outAndErr.get(1));
-                }
-            }
-
-            List<Object> preds = (List<Object>) session
-                    .getVariableValueFromPythonAsJson("preds", getDebug());
+            session = getSession(MODEL_ID + m_modelHash);
+            sender = createSender(session);
+            session.registerFunction(PREDICT_FUNCTION, getDebug());
+
+            // upload, check that the model exists in python, predict and
+            // fetch the predictions with a single request
+            CompoundCommand predict = new CompoundCommand(getDebug());
+            predict.requireVariable(MODEL_ID + m_modelHash);
+            predict.addFunctionCall(PREDICT_FUNCTION, predictArgs(MODEL_ID + m_modelHash), "preds");
+            predict.fetchNumericArray("preds");
+            sender.sendInstances(insts, TEST_DATA_ID, false, predict, getDebug());
+            checkScriptErrors(predict.getScriptOutAndErr());
+
+            double[][] preds = predict.getNumericArray();
             if (preds == null) {
                 throw new Exception("Was unable to retrieve predictions from python");
             }
 
-            if (preds.size() != insts.numInstances()) {
+            if (preds.length != insts.numInstances()) {
                 throw new Exception(
                         "Learner did not return as many predictions as there "
                                 + "are test instances");
             }
 
-            results = new double[insts.numInstances()][];
-            if (m_learner.producesProbabilities(m_learnerOpts)
-                    && classAtt.isNominal()) {
-                int j = 0;
-                for (Object o : preds) {
-                    List<Number> dist = (List<Number>) o;
-                    double[] newDist = new double[classAtt.numValues()];
-                    int k = 0;
-                    for (int i = 0; i < newDist.length; i++) {
-                        if (m_nominalEmptyClassIndexes[i]) {
-                            continue;
-                        }
-                        newDist[i] = dist.get(k++).doubleValue();
-                    }
-                    try {
-                        Utils.normalize(newDist);
-                    } catch (IllegalArgumentException e) {
-                        newDist = m_classPriors;
-                        System.err.println(
-                                "WARNING: " + e.getMessage() + ". Predicting using class priors");
+            results = predictionsToDistributions(preds, classAtt, m_nominalEmptyClassIndexes,
+                    m_classPriors);
+
+            if (m_learner.removeModelFromPythonPostTrainPredict()) {
+                String cleanUp = "del " + MODEL_ID + m_modelHash + "\n";
+                session.clearPlacement(MODEL_ID + m_modelHash);
+                checkScriptErrors(session.executeScript(cleanUp, getDebug()));
+            }
+
+        } finally {
+            sender.release();
+            releaseSession();
+        }
+
+        return results;
+    }
+
+    /**
+     * Convert the predictions retrieved from python into distributions.
+     *
+     * @param preds        the predictions (class probabilities, or a single
+     *                     predicted value per row)
+     * @param classAtt     the class attribute
+     * @param emptyClasses the classes that did not occur in the training data
+     *                     (and so have no column in the class probabilities)
+     * @param priors       the class priors, used when the class probabilities
+     *                     can't be normalized
+     * @return the distributions
+     */
+    protected double[][] predictionsToDistributions(double[][] preds, Attribute classAtt,
+                                                    boolean[] emptyClasses, double[] priors) {
+        double[][] results = new double[preds.length][];
+        if (m_learner.producesProbabilities(m_learnerOpts)
+                && classAtt.isNominal()) {
+            for (int j = 0; j < preds.length; j++) {
+                double[] dist = preds[j];
+                double[] newDist = new double[classAtt.numValues()];
+                int k = 0;
+                for (int i = 0; i < newDist.length; i++) {
+                    if (emptyClasses[i]) {
+                        continue;
                     }
-                    results[j++] = newDist;
+                    newDist[i] = dist[k++];
+                }
+                try {
+                    Utils.normalize(newDist);
+                } catch (IllegalArgumentException e) {
+                    newDist = priors;
+                    System.err.println(
+                            "WARNING: " + e.getMessage() + ". Predicting using class priors");
+                }
+                results[j] = newDist;
+            }
+        } else {
+            if (classAtt.isNominal()) {
+                for (int j = 0; j < preds.length; j++) {
+                    double[] dist = new double[classAtt.numValues()];
+                    dist[(int) preds[j][0]] = 1.0;
+                    results[j] = dist;
                 }
             } else {
-                if (classAtt.isNominal()) {
-                    int j = 0;
-                    for (Object o : preds) {
-                        double[] dist = new double[classAtt.numValues()];
-                        Number p = null;
-                        if (o instanceof List) {
-                            p = (Number) ((List) o).get(0);
-                        } else {
-                            p = (Number) o;
-                        }
-                        dist[p.intValue()] = 1.0;
-                        results[j++] = dist;
-                    }
-                } else {
-                    int j = 0;
-                    for (Object o : preds) {
-                        double[] dist = new double[1];
-                        Number p = null;
-                        if (o instanceof List) {
-                            p = (Number) ((List) o).get(0);
-                        } else {
-                            p = (Number) o;
-                        }
-                        dist[0] = p.doubleValue();
-                        results[j++] = dist;
-                    }
+                for (int j = 0; j < preds.length; j++) {
+                    results[j] = new double[]{preds[j][0]};
                 }
             }
+        }
+        return results;
+    }
 
-            if (m_learner.removeModelFromPythonPostTrainPredict()) {
-                String cleanUp = "del " + MODEL_ID + m_modelHash + "\n";
-                outAndErr = session.executeScript(cleanUp, getDebug());
+    /**
+     * Cross-validate the configured learner. The data is randomized (and
+     * stratified, for a nominal class) as by
+     * weka.classifiers.Evaluation.crossValidateModel, after which every fold is
+     * a contiguous range of rows. The missing value and nominal to binary
+     * filters are fitted to the training rows of each fold, so nothing is
+     * learned from the test rows.
+     * <p>
+     * If the filters can't learn anything from the data - i.e. no input
+     * values are missing and nominal attributes are binarized without looking
+     * at the class (or are one-hot encoded in python) - then the data is
+     * uploaded to python just once. For each fold, only the bounds of the test
+     * rows are sent; the server slices the training and test rows out of the
+     * uploaded data, fits a fresh learner and predicts the test rows. As the
+     * upload is cacheable, repeating the cross-validation (e.g. with other
+     * learner options) doesn't send the data again. Otherwise, the filtered
+     * training and test rows of each fold are uploaded in turn. The model
+     * built by buildClassifier (if any) is left untouched.
+     *
+     * @param data      the data to cross-validate on
+     * @param numFolds  the number of folds
+     * @param random    the random number generator used to randomize the data
+     * @return the predictions for every instance with a non-missing class, in
+     * fold order (as returned by Evaluation.predictions())
+     * @throws Exception if a problem occurs
+     */
+    public ArrayList<Prediction> crossValidate(Instances data, int numFolds, Random random)
+            throws Exception {
+        getCapabilities(true).testWithFail(data);
+        data = new Instances(data);
+        data.deleteWithMissingClass();
+        if (numFolds < 2 || data.numInstances() < numFolds) {
+            throw new WekaException("Number of folds must be at least 2 and no more than "
+                    + "the number of instances with a non-missing class");
+        }
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(numFolds);
+        }
 
-                if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
-                    if (m_continueOnSysErr) {
-                        System.err.println(outAndErr.get(1));
-                    } else {
-                        throw new Exception(outAndErr.get(1));
+        if (m_modelHash == null) {
+            m_modelHash = "" + hashCode();
+        }
+        String modelName = MODEL_ID + m_modelHash + "_cv";
+        Filter nominalToBinary = createNominalToBinary();
+        boolean uploadOnce = !hasMissingInputs(data) && !(nominalToBinary
+                instanceof weka.filters.supervised.attribute.NominalToBinary);
+        ArrayList<Prediction> predictions = new ArrayList<Prediction>(data.numInstances());
+
+        RapidsSession session = getSession(modelName);
+        InstanceSender sender = createSender(session);
+        try {
+            session.registerFunction(FIT_FUNCTION, getDebug());
+            session.registerFunction(PREDICT_FUNCTION, getDebug());
+            if (uploadOnce) {
+                session.registerFunction(CV_FUNCTION, getDebug());
+                Instances filtered = data;
+                if (nominalToBinary != null) {
+                    nominalToBinary.setInputFormat(filtered);
+                    filtered = Filter.useFilter(filtered, nominalToBinary);
+                }
+                CompoundCommand start = new CompoundCommand(getDebug());
+                start.addFunctionCall(CV_FUNCTION, cvArgs("start", 0, 0, modelName), null);
+                sender.sendInstances(filtered, CV_DATA_ID, true, start, getDebug());
+                checkScriptErrors(start.getScriptOutAndErr());
+            }
+
+            int numInstances = data.numInstances();
+            for (int fold = 0; fold < numFolds; fold++) {
+                // fold bounds as computed by Instances.testCV()
+                int count = numInstances / numFolds;
+                int offset;
+                if (fold < numInstances % numFolds) {
+                    count++;
+                    offset = fold;
+                } else {
+                    offset = numInstances % numFolds;
+                }
+                int first = fold * (numInstances / numFolds) + offset;
+
+                CompoundCommand predict = new CompoundCommand(getDebug());
+                if (uploadOnce) {
+                    // fit and predict on slices of the uploaded data
+                    predict.addFunctionCall(CV_FUNCTION,
+                            cvArgs("train", first, first + count, modelName), null);
+                    predict.addFunctionCall(FIT_FUNCTION, fitArgs(modelName), null);
+                    predict.addFunctionCall(CV_FUNCTION,
+                            cvArgs("test", first, first + count, modelName), null);
+                    predict.addFunctionCall(PREDICT_FUNCTION, predictArgs(modelName), "cv_preds");
+                    predict.fetchNumericArray("cv_preds");
+                    session.executeCompound(predict, getDebug());
+                } else {
+                    Instances train = data.trainCV(numFolds, fold);
+                    Instances test = data.testCV(numFolds, fold);
+                    Filter replaceMissing = new ReplaceMissingValues();
+                    replaceMissing.setInputFormat(train);
+                    train = Filter.useFilter(train, replaceMissing);
+                    test = Filter.useFilter(test, replaceMissing);
+                    Filter foldNominalToBinary = createNominalToBinary();
+                    if (foldNominalToBinary != null) {
+                        foldNominalToBinary.setInputFormat(train);
+                        train = Filter.useFilter(train, foldNominalToBinary);
+                        test = Filter.useFilter(test, foldNominalToBinary);
                     }
+                    Remove removeClass = new Remove();
+                    removeClass.setAttributeIndices("" + (test.classIndex() + 1));
+                    removeClass.setInputFormat(test);
+                    test = Filter.useFilter(test, removeClass);
+                    test.setClassIndex(-1);
+
+                    CompoundCommand fit = new CompoundCommand(getDebug());
+                    fit.addFunctionCall(FIT_FUNCTION, fitArgs(modelName), null);
+                    sender.sendInstances(train, CV_DATA_ID, false, fit, getDebug());
+                    checkScriptErrors(fit.getScriptOutAndErr());
+
+                    predict.requireVariable(modelName);
+                    predict.addFunctionCall(PREDICT_FUNCTION, predictArgs(modelName), "cv_preds");
+                    predict.fetchNumericArray("cv_preds");
+                    sender.sendInstances(test, TEST_DATA_ID, false, predict, getDebug());
+                }
+                checkScriptErrors(predict.getScriptOutAndErr());
+
+                double[][] preds = predict.getNumericArray();
+                if (preds == null) {
+                    throw new Exception("Was unable to retrieve predictions from python");
                 }
+                if (preds.length != count) {
+                    throw new Exception("Learner did not return as many predictions as there "
+                            + "are test instances in fold " + (fold + 1));
+                }
+                addFoldPredictions(data, first, count, preds, predictions);
             }
 
+            // drop the kept data and the last fold's model
+            session.registerFunction(CV_FUNCTION, getDebug());
+            CompoundCommand finish = new CompoundCommand(getDebug());
+            finish.addFunctionCall(CV_FUNCTION, cvArgs("finish", 0, 0, modelName), null);
+            session.executeCompound(finish, getDebug());
         } finally {
             sender.release();
             releaseSession();
         }
+        return predictions;
+    }
 
-        return results;
+    /**
+     * Get the arguments for calling CV_FUNCTION.
+     *
+     * @param step      the step ("start", "train", "test" or "finish")
+     * @param first     the index of the first test row of the fold
+     * @param last      the index after the last test row of the fold
+     * @param modelName the name of the variable holding the fold's model
+     * @return the arguments
+     */
+    protected static Map<String, Object> cvArgs(String step, int first, int last,
+                                                String modelName) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("step", step);
+        args.put("first", first);
+        args.put("last", last);
+        args.put("model", modelName);
+        return args;
+    }
+
+    /**
+     * Check whether any input (i.e. non-class) value is missing.
+     *
+     * @param data the instances to check
+     * @return true if an input value is missing
+     */
+    protected static boolean hasMissingInputs(Instances data) {
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance current = data.instance(i);
+            for (int k = 0; k < current.numValues(); k++) {
+                if (current.index(k) != data.classIndex() && current.isMissingSparse(k)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Turn the predictions for the test rows of a fold into Prediction
+     * objects. Class priors and empty classes are taken from the training
+     * rows of the fold (as when building a model on them).
+     *
+     * @param data        the randomized data
+     * @param first       the index of the first test row of the fold
+     * @param count       the number of test rows
+     * @param preds       the predictions returned by the learner
+     * @param predictions the list to add the predictions to
+     * @throws Exception if a problem occurs
+     */
+    protected void addFoldPredictions(Instances data, int first, int count, double[][] preds,
+                                      List<Prediction> predictions) throws Exception {
+        Attribute classAtt = data.classAttribute();
+        boolean[] emptyClasses = null;
+        double[] priors = null;
+        if (classAtt.isNominal()) {
+            double[] weights = new double[classAtt.numValues()];
+            for (int i = 0; i < data.numInstances(); i++) {
+                if (i < first || i >= first + count) {
+                    Instance current = data.instance(i);
+                    weights[(int) current.classValue()] += current.weight();
+                }
+            }
+            emptyClasses = new boolean[weights.length];
+            priors = new double[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                emptyClasses[i] = weights[i] == 0;
+                priors[i] = weights[i] + 1;
+            }
+            Utils.normalize(priors);
+        }
+
+        double[][] dists = predictionsToDistributions(preds, classAtt, emptyClasses, priors);
+        for (int j = 0; j < count; j++) {
+            Instance current = data.instance(first + j);
+            if (classAtt.isNominal()) {
+                predictions.add(new NominalPrediction(current.classValue(), dists[j],
+                        current.weight()));
+            } else {
+                predictions.add(new NumericPrediction(current.classValue(), dists[j][0],
+                        current.weight()));
+            }
+        }
     }
 
     /**
@@ -20,12 +20,16 @@ import weka.core.*;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
 import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.python.CompoundCommand;
 import weka.python.InstanceSender;
 import weka.python.RapidsSession;
+import weka.python.ServerFunction;
 
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static weka.python.InstanceSender.*;
 
@@ -43,6 +47,59 @@ public class CuMLDaskClassifier extends AbstractClassifier
     protected static final String TEST_DATA_ID = "cuml_dask_classifier_test";
     protected static final String MODEL_ID = "weka_cuml_dask_learner";
 
+    /**
+     * Python helpers shared by the fit and predict functions: evaluating the
+     * learner options (compiled once per distinct options string) and
+     * distributing X (and Y) over the dask workers
+     */
+    protected static final String FUNCTION_HELPERS = "import importlib\n"
+            + "import cudf\n"
+            + "import dask_cudf\n"
+            + "import pandas as pd\n"
+            + "_options = {}\n"
+            + "def _learner_args(env, options):\n"
+            + "    code = _options.get(options)\n"
+            + "    if code is None:\n"
+            + "        code = compile('_collect(' + options + ')', '<options>', 'eval')\n"
+            + "        _options[options] = code\n"
+            + "    return eval(code, env, {'_collect': lambda *a, **kw: (a, kw)})\n"
+            + "def _distribute(env, frame, sparse_input, to_array):\n"
+            + "    if sparse_input:\n"
+            + "        frame = pd.DataFrame(frame.toarray())\n"
+            + "    frame = dask_cudf.from_cudf(cudf.from_pandas(frame),\n"
+            + "                                npartitions=len(env['dask_cluster'].workers))\n"
+            + "    return frame.to_dask_array() if to_array else frame\n";
+
+    /**
+     * Creates the learner and fits it to X and Y
+     */
+    protected static final ServerFunction FIT_FUNCTION = new ServerFunction(
+            "weka_cuml_dask_fit", FUNCTION_HELPERS
+            + "def weka_cuml_dask_fit(env, model, module, learner, options, target_type,\n"
+            + "                       sparse_input, to_array):\n"
+            + "    args, kwargs = _learner_args(env, options)\n"
+            + "    learner_class = getattr(importlib.import_module('cuml.dask.' + module), learner)\n"
+            + "    env[model] = learner_class(*args, client=env['dask_client'], **kwargs)\n"
+            + "    env['X'] = _distribute(env, env['X'], sparse_input, to_array)\n"
+            + "    env['Y'] = _distribute(env, env['Y'], False, to_array)\n"
+            + "    env[model].fit(env['X'].astype('float32'), env['Y'].astype(target_type))\n");
+
+    /**
+     * Predicts X with a fitted learner, returning the predictions
+     */
+    protected static final ServerFunction PREDICT_FUNCTION = new ServerFunction(
+            "weka_cuml_dask_predict", FUNCTION_HELPERS
+            + "def weka_cuml_dask_predict(env, model, sparse_input, to_array, proba):\n"
+            + "    X = env['X']\n"
+            + "    if sparse_input:\n"
+            + "        X = pd.DataFrame(X.toarray())\n"
+            + "    X = env['X'] = _distribute(env, X.astype('float32'), False, to_array)\n"
+            + "    learner = env[model]\n"
+            + "    preds = (learner.predict_proba if proba else learner.predict)(X)\n"
+            + "    if type(preds) in (dask_cudf.Series, dask_cudf.DataFrame):\n"
+            + "        preds = preds.values\n"
+            + "    return preds.compute()\n");
+
     /**
      * For serialization
      */
@@ -54,13 +111,55 @@ public class CuMLDaskClassifier extends AbstractClassifier
     public static final Tag[] TAGS_INSTANCE_SENDING = {
             new Tag(INSTANCE_SENDING_CSV, "Send instances by CSV format"),
             new Tag(INSTANCE_SENDING_ARROW_IPC, "Send Instances by ARROW IPC"),
-            new Tag(INSTANCE_SENDING_SHARED_GPU_MEMORY, "Shared Instances in GPU Memory")};
+            new Tag(INSTANCE_SENDING_SHARED_GPU_MEMORY, "Shared Instances in GPU Memory"),
+            new Tag(INSTANCE_SENDING_SPARSE_CSR, "Send instances as a sparse CSR matrix"),
+            new Tag(INSTANCE_SENDING_MAPPED_FILE, "Share instances via a memory mapped file")};
 
     /**
      * The current method sending instances
      */
     protected int m_sendingMethod = 1;
 
+    /**
+     * Maximum number of rows per Arrow record batch when sending instances
+     * (0 = send all rows as a single batch)
+     */
+    protected int m_arrowChunkSize = 0;
+
+    /**
+     * True to send every column as float32 when using Arrow IPC, rather than
+     * narrowing integer valued columns
+     */
+    protected boolean m_forceFloat32;
+
+    /**
+     * Codec used to compress Arrow record batches ("none", "lz4" or "zstd")
+     */
+    protected String m_arrowCompression = "none";
+
+    /**
+     * Number of threads used to convert instances before sending them (0 = one
+     * per available processor)
+     */
+    protected int m_numConversionThreads = 1;
+
+    /**
+     * Communicate with a newly started server over a Unix domain socket rather
+     * than TCP
+     */
+    protected boolean m_unixDomainSocket;
+
+    /**
+     * Overlap converting instances with sending them (CSV and Arrow IPC)
+     */
+    protected boolean m_pipelinedSend;
+
+    /**
+     * Memory budget (MB) for keeping uploaded training data in the server for
+     * reuse (0 = always upload)
+     */
+    protected int m_frameCacheBudget;
+
     /**
      * Holds info on the different learners available
      */
@@ -228,6 +327,12 @@ public class CuMLDaskClassifier extends AbstractClassifier
      */
     protected boolean m_useSupervisedNominalToBinary;
 
+    /**
+     * True if nominal attributes should be sent as label indexes and one-hot
+     * encoded in python rather than binarized in Weka
+     */
+    protected boolean m_encodeNominalsInPython;
+
     /**
      * The nominal to binary filter
      */
@@ -421,6 +526,37 @@ public class CuMLDaskClassifier extends AbstractClassifier
         m_useSupervisedNominalToBinary = useSupervisedNominalToBinary;
     }
 
+    /**
+     * Get whether to send nominal attributes as label indexes and one-hot
+     * encode them in python, rather than binarizing them in Weka. Only applies
+     * to the CSV and Arrow IPC sending methods.
+     *
+     * @return true if nominal attributes are to be encoded in python
+     */
+    @OptionMetadata(displayName = "Encode nominal attributes in python",
+            description = "Send nominal attributes as label indexes (one column "
+                    + "each) and one-hot encode them in python, rather than "
+                    + "binarizing them in Weka.\nOnly applies to the CSV and "
+                    + "Arrow IPC sending methods.",
+            commandLineParamName = "nominal-in-python",
+            commandLineParamSynopsis = "-nominal-in-python",
+            commandLineParamIsFlag = true, displayOrder = 12)
+    public boolean getEncodeNominalsInPython() {
+        return m_encodeNominalsInPython;
+    }
+
+    /**
+     * Set whether to send nominal attributes as label indexes and one-hot
+     * encode them in python, rather than binarizing them in Weka. Only applies
+     * to the CSV and Arrow IPC sending methods.
+     *
+     * @param encodeNominalsInPython true if nominal attributes are to be encoded
+     *                               in python
+     */
+    public void setEncodeNominalsInPython(boolean encodeNominalsInPython) {
+        m_encodeNominalsInPython = encodeNominalsInPython;
+    }
+
     /**
      * Get the cuML scheme to use
      *
@@ -652,6 +788,8 @@ public class CuMLDaskClassifier extends AbstractClassifier
                     + "CSV\n"
                     + "Arrow IPC\n"
                     + "Shared GPU Memory\n"
+                    + "Sparse CSR matrix (non-zero values only)\n"
+                    + "Memory mapped file (in /dev/shm, CPU-only hosts)\n"
                     + "\n(default = Arrow IPC)",
             commandLineParamName = "M",
             commandLineParamSynopsis = "-M <method number>", displayOrder = 10)
@@ -662,6 +800,186 @@ public class CuMLDaskClassifier extends AbstractClassifier
     }
 
 
+    /**
+     * Set the maximum number of rows to convert and send per Arrow record batch.
+     *
+     * @param chunkSize the maximum number of rows per batch (0 to send all rows
+     *                  as a single batch)
+     */
+    public void setArrowChunkSize(int chunkSize) {
+        m_arrowChunkSize = chunkSize;
+    }
+
+    /**
+     * Get the maximum number of rows to convert and send per Arrow record batch.
+     *
+     * @return the maximum number of rows per batch (0 to send all rows as a
+     * single batch)
+     */
+    @OptionMetadata(displayName = "Arrow chunk size",
+            description = "Maximum number of rows to convert and stream per Arrow record "
+                    + "batch when sending instances via Arrow IPC. Smaller chunks reduce peak "
+                    + "memory use for large data sets (default = 0, i.e. a single batch)",
+            commandLineParamName = "arrow-chunk-size",
+            commandLineParamSynopsis = "-arrow-chunk-size <rows>", displayOrder = 11)
+    public int getArrowChunkSize() {
+        return m_arrowChunkSize;
+    }
+
+    /**
+     * Set whether to send every column as float32 when using Arrow IPC, rather
+     * than narrowing integer valued columns to the smallest lossless integer
+     * type.
+     *
+     * @param forceFloat32 true to send every column as float32
+     */
+    public void setForceFloat32(boolean forceFloat32) {
+        m_forceFloat32 = forceFloat32;
+    }
+
+    /**
+     * Get whether to send every column as float32 when using Arrow IPC.
+     *
+     * @return true if every column is sent as float32
+     */
+    @OptionMetadata(displayName = "Force float32 columns",
+            description = "Send every column as float32 when using Arrow IPC, rather "
+                    + "than narrowing integer valued columns (e.g. binary indicators) "
+                    + "to the smallest lossless integer type.",
+            commandLineParamName = "force-float32",
+            commandLineParamSynopsis = "-force-float32",
+            commandLineParamIsFlag = true, displayOrder = 13)
+    public boolean getForceFloat32() {
+        return m_forceFloat32;
+    }
+
+    /**
+     * Set the codec used to compress Arrow record batches.
+     *
+     * @param compression one of "none", "lz4" or "zstd"
+     */
+    public void setArrowCompression(String compression) {
+        m_arrowCompression = compression;
+    }
+
+    /**
+     * Get the codec used to compress Arrow record batches.
+     *
+     * @return one of "none", "lz4" or "zstd"
+     */
+    @OptionMetadata(displayName = "Arrow compression",
+            description = "Codec used to compress Arrow record batches when sending "
+                    + "instances via Arrow IPC: none, lz4 or zstd. Batches smaller than "
+                    + "64KB are always sent uncompressed (default = none)",
+            commandLineParamName = "arrow-compression",
+            commandLineParamSynopsis = "-arrow-compression <none|lz4|zstd>", displayOrder = 14)
+    public String getArrowCompression() {
+        return m_arrowCompression;
+    }
+
+    /**
+     * Set the number of threads used to convert instances before sending them.
+     *
+     * @param numThreads the number of threads (0 to use one per available
+     *                   processor)
+     */
+    public void setNumConversionThreads(int numThreads) {
+        m_numConversionThreads = numThreads;
+    }
+
+    /**
+     * Get the number of threads used to convert instances before sending them.
+     *
+     * @return the number of threads (0 to use one per available processor)
+     */
+    @OptionMetadata(displayName = "Number of conversion threads",
+            description = "Number of threads used to convert instances to the format of "
+                    + "the sending method (default = 1, i.e. no parallelism; use 0 to "
+                    + "auto-detect the number of cores)",
+            commandLineParamName = "conversion-threads",
+            commandLineParamSynopsis = "-conversion-threads <num>", displayOrder = 15)
+    public int getNumConversionThreads() {
+        return m_numConversionThreads;
+    }
+
+    /**
+     * Set whether to communicate with a newly started server over a Unix domain
+     * socket rather than TCP.
+     *
+     * @param unixDomainSocket true to use a Unix domain socket
+     */
+    public void setUnixDomainSocket(boolean unixDomainSocket) {
+        m_unixDomainSocket = unixDomainSocket;
+    }
+
+    /**
+     * Get whether to communicate with a newly started server over a Unix domain
+     * socket rather than TCP.
+     *
+     * @return true if a Unix domain socket is used
+     */
+    @OptionMetadata(displayName = "Use Unix domain socket",
+            description = "Communicate with the python server over a Unix domain socket "
+                    + "rather than loopback TCP, when the server is started. Falls back "
+                    + "to TCP on Windows and JVMs older than Java 16.",
+            commandLineParamName = "unix-socket",
+            commandLineParamSynopsis = "-unix-socket",
+            commandLineParamIsFlag = true, displayOrder = 16)
+    public boolean getUnixDomainSocket() {
+        return m_unixDomainSocket;
+    }
+
+    /**
+     * Set whether to overlap converting instances with sending them.
+     *
+     * @param pipelinedSend true to pipeline sending
+     */
+    public void setPipelinedSend(boolean pipelinedSend) {
+        m_pipelinedSend = pipelinedSend;
+    }
+
+    /**
+     * Get whether to overlap converting instances with sending them.
+     *
+     * @return true if sending is pipelined
+     */
+    @OptionMetadata(displayName = "Pipelined send",
+            description = "Convert instances in chunks while a separate thread sends the "
+                    + "previous chunks to the server, rather than converting everything "
+                    + "before sending (CSV and Arrow IPC sending methods only).",
+            commandLineParamName = "pipelined-send",
+            commandLineParamSynopsis = "-pipelined-send",
+            commandLineParamIsFlag = true, displayOrder = 17)
+    public boolean getPipelinedSend() {
+        return m_pipelinedSend;
+    }
+
+    /**
+     * Set the memory budget for keeping uploaded training data in the server.
+     *
+     * @param budget the budget in MB (0 to always upload)
+     */
+    public void setFrameCacheBudget(int budget) {
+        m_frameCacheBudget = budget;
+    }
+
+    /**
+     * Get the memory budget for keeping uploaded training data in the server.
+     *
+     * @return the budget in MB (0 to always upload)
+     */
+    @OptionMetadata(displayName = "Frame cache budget (MB)",
+            description = "Memory budget for keeping uploaded training data in the python "
+                    + "server. Training data identical to data that is still held (e.g. "
+                    + "when retraining with different learner options) is not uploaded "
+                    + "again. Least recently used data is dropped first (default = 0, "
+                    + "i.e. always upload)",
+            commandLineParamName = "frame-cache-budget",
+            commandLineParamSynopsis = "-frame-cache-budget <MB>", displayOrder = 18)
+    public int getFrameCacheBudget() {
+        return m_frameCacheBudget;
+    }
+
     /**
      * Gets a python session object to use for interacting with python
      *
@@ -669,6 +987,20 @@ public class CuMLDaskClassifier extends AbstractClassifier
      * @throws WekaException if a problem occurs
      */
     protected RapidsSession getSession() throws WekaException {
+        return getSession(null);
+    }
+
+    /**
+     * Gets a python session object to use for interacting with python, from
+     * the pool of servers for the python command
+     *
+     * @param placement the name of a variable (i.e. the model) that the
+     *                  session's server must hold if it has been placed, or
+     *                  null for any session
+     * @return a PythonSession object
+     * @throws WekaException if a problem occurs
+     */
+    protected RapidsSession getSession(String placement) throws WekaException {
         RapidsSession session = null;
         String pyCommand = m_pyCommand != null && m_pyCommand.length() > 0
                 && !m_pyCommand.equalsIgnoreCase("default") ? m_pyCommand : null;
@@ -680,24 +1012,28 @@ public class CuMLDaskClassifier extends AbstractClassifier
             if (!RapidsSession.pythonAvailable(pyCommand, serverID)) {
                 // try to create this environment/server
                 // System.err.println("Starting server: " + pyCommand + " " + serverID);
-                if (!RapidsSession.initSession(pyCommand, serverID, pyPath, getDebug())) {
+                if (!RapidsSession.initSession(pyCommand, serverID, pyPath, getDebug(),
+                        m_unixDomainSocket)) {
                     String envEvalResults =
                             RapidsSession.getPythonEnvCheckResults(pyCommand, serverID);
                     throw new WekaException("Was unable to start python environment ("
                             + pyCommand + ")\n\n" + envEvalResults);
                 }
             }
-            session = RapidsSession.acquireSession(pyCommand, serverID, this);
+            RapidsSession.configureFrameCache(pyCommand, serverID,
+                    m_frameCacheBudget * 1024L * 1024L);
+            session = RapidsSession.acquireSession(pyCommand, serverID, this, placement);
         } else {
             if (!RapidsSession.pythonAvailable()) {
                 // try initializing
-                if (!RapidsSession.initSession("python", getDebug())) {
+                if (!RapidsSession.initSession("python", getDebug(), m_unixDomainSocket)) {
                     String envEvalResults = RapidsSession.getPythonEnvCheckResults();
                     throw new WekaException(
                             "Was unable to start python environment:\n\n" + envEvalResults);
                 }
             }
-            session = RapidsSession.acquireSession(this);
+            RapidsSession.configureFrameCache(m_frameCacheBudget * 1024L * 1024L);
+            session = RapidsSession.acquireSession(this, placement);
         }
 
         return session;
@@ -775,13 +1111,19 @@ public class CuMLDaskClassifier extends AbstractClassifier
         getCapabilities(true).testWithFail(data);
         m_zeroR = null;
 
-        RapidsSession session = getSession();
-        InstanceSender sender = new InstanceSender(session, m_sendingMethod, getDebug());
-
         if (m_modelHash == null) {
             m_modelHash = "" + hashCode();
         }
 
+        // retrain on the server holding the previous model (if any)
+        RapidsSession session = getSession(MODEL_ID + m_modelHash);
+        InstanceSender sender = new InstanceSender(session, m_sendingMethod, getDebug());
+        sender.setArrowChunkSize(m_arrowChunkSize);
+        sender.setForceFloat32(m_forceFloat32);
+        sender.setArrowCompression(m_arrowCompression);
+        sender.setNumConversionThreads(m_numConversionThreads);
+        sender.setPipelined(m_pipelinedSend);
+
         data = new Instances(data);
         data.deleteWithMissingClass();
         m_zeroR = new ZeroR();
@@ -817,49 +1159,49 @@ public class CuMLDaskClassifier extends AbstractClassifier
         m_replaceMissing.setInputFormat(data);
         data = Filter.useFilter(data, m_replaceMissing);
 
-        if (getUseSupervisedNominalToBinary()) {
+        if (getEncodeNominalsInPython()
+                && (m_sendingMethod == INSTANCE_SENDING_CSV
+                || m_sendingMethod == INSTANCE_SENDING_ARROW_IPC)) {
+            // nominal attributes are sent as label indexes and expanded in python
+            m_nominalToBinary = null;
+        } else if (getUseSupervisedNominalToBinary()) {
             m_nominalToBinary =
                     new weka.filters.supervised.attribute.NominalToBinary();
         } else {
             m_nominalToBinary =
                     new weka.filters.unsupervised.attribute.NominalToBinary();
         }
-        m_nominalToBinary.setInputFormat(data);
-        data = Filter.useFilter(data, m_nominalToBinary);
+        if (m_nominalToBinary != null) {
+            m_nominalToBinary.setInputFormat(data);
+            data = Filter.useFilter(data, m_nominalToBinary);
+        }
 
         try {
-            String learnerModule = m_learner.getModule();
-            String learnerMethod = m_learner.toString();
-
-            // transfer the data over to python
-            sender.sendInstances(data, TRAINING_DATA_ID, getDebug());
-
-            StringBuilder learnScript = new StringBuilder();
-
-            learnScript.append("from cuml.dask import ").append(learnerModule).append("\n");
-
-            learnScript.append("import cudf\n");
-            learnScript.append("import dask_cudf\n");
-
-            learnScript.append(MODEL_ID + m_modelHash + " = " + learnerModule + "."
-                    + learnerMethod + "(client=dask_client,"
-                    + (getLearnerOpts().length() > 0 ? getLearnerOpts() : "") + ")").append("\n");
-            learnScript.append("X, Y = cudf.from_pandas(X), cudf.from_pandas(Y)\n");
-            learnScript.append("X, Y = dask_cudf.from_cudf(X, npartitions=len(dask_cluster.workers))"
-                    + " ,dask_cudf.from_cudf(Y, npartitions=len(dask_cluster.workers))\n");
-            if (m_learner == Learner.MultinomialNB) {
-                learnScript.append("X, Y = X.to_dask_array(), Y.to_dask_array()\n");
-            }
+            String targetType;
             if (m_learner.isClassifier()) {
-                learnScript.append(MODEL_ID + m_modelHash + ".fit(X.astype('float32'), Y.astype('int32'))").append("\n");
+                targetType = "int32";
             } else if (m_learner.isRegressor()) {
-                learnScript.append(MODEL_ID + m_modelHash + ".fit(X.astype('float32'), Y.astype('float32'))").append("\n");
+                targetType = "float32";
             } else {
                 throw new WekaException("The learner " + m_learner.name() + "is not classifier nor regressor!");
             }
-
-            List<String> outAndErr =
-                    session.executeScript(learnScript.toString(), getDebug());
+            session.registerFunction(FIT_FUNCTION, getDebug());
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("model", MODEL_ID + m_modelHash);
+            args.put("module", m_learner.getModule());
+            args.put("learner", m_learner.toString());
+            args.put("options", getLearnerOpts());
+            args.put("target_type", targetType);
+            args.put("sparse_input", m_sendingMethod == INSTANCE_SENDING_SPARSE_CSR);
+            args.put("to_array", m_learner == Learner.MultinomialNB);
+
+            // transfer the data over to python, then fit and fetch the
+            // model's description as part of the same request
+            CompoundCommand train = new CompoundCommand(getDebug());
+            train.addFunctionCall(FIT_FUNCTION, args, null);
+            train.fetchPlainString(MODEL_ID + m_modelHash);
+            sender.sendInstances(data, TRAINING_DATA_ID, true, train, getDebug());
+            List<String> outAndErr = train.getScriptOutAndErr();
             if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
                 if (m_continueOnSysErr) {
                     System.err.println(outAndErr.get(1));
@@ -868,11 +1210,12 @@ public class CuMLDaskClassifier extends AbstractClassifier
                 }
             }
 
-            m_learnerToString = session.getVariableValueFromPythonAsPlainString(
-                    MODEL_ID + m_modelHash, getDebug());
+            m_learnerToString = train.getStringValue();
+            session.setPlacement(MODEL_ID + m_modelHash);
 
             if (m_learner.removeModelFromPythonPostTrainPredict()) {
                 String cleanUp = "del " + MODEL_ID + m_modelHash + "\n";
+                session.clearPlacement(MODEL_ID + m_modelHash);
                 outAndErr = session.executeScript(cleanUp, getDebug());
 
                 if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
@@ -933,7 +1276,9 @@ public class CuMLDaskClassifier extends AbstractClassifier
         }
 
         insts = Filter.useFilter(insts, m_replaceMissing);
-        insts = Filter.useFilter(insts, m_nominalToBinary);
+        if (m_nominalToBinary != null) {
+            insts = Filter.useFilter(insts, m_nominalToBinary);
+        }
         Attribute classAtt = insts.classAttribute();
         // remove the class attribute
         Remove r = new Remove();
@@ -942,41 +1287,36 @@ public class CuMLDaskClassifier extends AbstractClassifier
         insts = Filter.useFilter(insts, r);
         insts.setClassIndex(-1);
 
+        if (insts.numInstances() == 0) {
+            return new double[0][];
+        }
+
         double[][] results = null;
         RapidsSession session = null;
         InstanceSender sender = null;
         try {
-            session = getSession();
+            session = getSession(MODEL_ID + m_modelHash);
             sender = new InstanceSender(session, m_sendingMethod, getDebug());
-            sender.sendInstances(insts, TEST_DATA_ID, getDebug());
-            StringBuilder predictScript = new StringBuilder();
-
-            // check if model exists in python. If not, then transfer it over
-            if (!session.checkIfPythonVariableIsSet(MODEL_ID + m_modelHash,
-                    getDebug())) {
-                throw new Exception("There is no model exist in Python environment!");
-
-            }
-
-            String learnerModule = m_learner.getModule();
-            String learnerMethod = m_learner.toString();
-
-            predictScript.append("from cuml.dask." + learnerModule + " import " + learnerMethod).append("\n");
-            predictScript.append("import cudf\n");
-            predictScript.append("import dask_cudf\n");
-            predictScript.append("X = cudf.from_pandas(X)\n");
-            predictScript.append("X = dask_cudf.from_cudf(X, npartitions=len(dask_cluster.workers))\n");
-            if (m_learner == Learner.MultinomialNB) {
-                predictScript.append("X = X.to_dask_array()\n");
-            }
-            predictScript.append("preds = " + MODEL_ID + m_modelHash + ".predict"
-                    + (m_learner.producesProbabilities(m_learnerOpts) ? "_proba" : "") + "(X)\n");
-            predictScript.append("if type(preds) in (dask_cudf.Series, dask_cudf.DataFrame):\n");
-            predictScript.append("\tpreds = preds.values\n");
-            predictScript.append("preds = preds.compute().tolist()\n");
-
-            List<String> outAndErr =
-                    session.executeScript(predictScript.toString(), getDebug());
+            sender.setArrowChunkSize(m_arrowChunkSize);
+            sender.setForceFloat32(m_forceFloat32);
+            sender.setArrowCompression(m_arrowCompression);
+            sender.setNumConversionThreads(m_numConversionThreads);
+            sender.setPipelined(m_pipelinedSend);
+            session.registerFunction(PREDICT_FUNCTION, getDebug());
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("model", MODEL_ID + m_modelHash);
+            args.put("sparse_input", m_sendingMethod == INSTANCE_SENDING_SPARSE_CSR);
+            args.put("to_array", m_learner == Learner.MultinomialNB);
+            args.put("proba", m_learner.producesProbabilities(m_learnerOpts));
+
+            // upload, check that the model exists in python, predict and
+            // fetch the predictions with a single request
+            CompoundCommand predict = new CompoundCommand(getDebug());
+            predict.requireVariable(MODEL_ID + m_modelHash);
+            predict.addFunctionCall(PREDICT_FUNCTION, args, "preds");
+            predict.fetchNumericArray("preds");
+            sender.sendInstances(insts, TEST_DATA_ID, false, predict, getDebug());
+            List<String> outAndErr = predict.getScriptOutAndErr();
             if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
                 if (m_continueOnSysErr) {
                     System.err.println(outAndErr.get(1));
@@ -985,13 +1325,12 @@ public class CuMLDaskClassifier extends AbstractClassifier
                 }
             }
 
-            List<Object> preds = (List<Object>) session
-                    .getVariableValueFromPythonAsJson("preds", getDebug());
+            double[][] preds = predict.getNumericArray();
             if (preds == null) {
                 throw new Exception("Was unable to retrieve predictions from python");
             }
 
-            if (preds.size() != insts.numInstances()) {
+            if (preds.length != insts.numInstances()) {
                 throw new Exception(
                         "Learner did not return as many predictions as there "
                                 + "are test instances");
@@ -1000,16 +1339,15 @@ public class CuMLDaskClassifier extends AbstractClassifier
             results = new double[insts.numInstances()][];
             if (m_learner.producesProbabilities(m_learnerOpts)
                     && classAtt.isNominal()) {
-                int j = 0;
-                for (Object o : preds) {
-                    List<Number> dist = (List<Number>) o;
+                for (int j = 0; j < preds.length; j++) {
+                    double[] dist = preds[j];
                     double[] newDist = new double[classAtt.numValues()];
                     int k = 0;
                     for (int i = 0; i < newDist.length; i++) {
                         if (m_nominalEmptyClassIndexes[i]) {
                             continue;
                         }
-                        newDist[i] = dist.get(k++).doubleValue();
+                        newDist[i] = dist[k++];
                     }
                     try {
                         Utils.normalize(newDist);
@@ -1018,40 +1356,25 @@ public class CuMLDaskClassifier extends AbstractClassifier
                         System.err.println(
                                 "WARNING: " + e.getMessage() + ". Predicting using class priors");
                     }
-                    results[j++] = newDist;
+                    results[j] = newDist;
                 }
             } else {
                 if (classAtt.isNominal()) {
-                    int j = 0;
-                    for (Object o : preds) {
+                    for (int j = 0; j < preds.length; j++) {
                         double[] dist = new double[classAtt.numValues()];
-                        Number p = null;
-                        if (o instanceof List) {
-                            p = (Number) ((List) o).get(0);
-                        } else {
-                            p = (Number) o;
-                        }
-                        dist[p.intValue()] = 1.0;
-                        results[j++] = dist;
+                        dist[(int) preds[j][0]] = 1.0;
+                        results[j] = dist;
                     }
                 } else {
-                    int j = 0;
-                    for (Object o : preds) {
-                        double[] dist = new double[1];
-                        Number p = null;
-                        if (o instanceof List) {
-                            p = (Number) ((List) o).get(0);
-                        } else {
-                            p = (Number) o;
-                        }
-                        dist[0] = p.doubleValue();
-                        results[j++] = dist;
+                    for (int j = 0; j < preds.length; j++) {
+                        results[j] = new double[]{preds[j][0]};
                     }
                 }
             }
 
             if (m_learner.removeModelFromPythonPostTrainPredict()) {
                 String cleanUp = "del " + MODEL_ID + m_modelHash + "\n";
+                session.clearPlacement(MODEL_ID + m_modelHash);
                 outAndErr = session.executeScript(cleanUp, getDebug());
 
                 if (outAndErr.size() == 2 && outAndErr.get(1).length() > 0) {
@@ -0,0 +1,565 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ArrowIPCReader.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Decodes an Arrow IPC stream straight into a set of Instances. The header is
+ * built from the Arrow schema: integer, floating point and boolean columns
+ * become numeric attributes, timestamp and date columns become date
+ * attributes, and dictionary encoded columns become nominal attributes (with
+ * the dictionary as the labels) unless the field metadata entry "weka_type"
+ * says STRING. Plain utf8 columns become string attributes. Nulls are mapped
+ * to missing values.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ArrowIPCReader {
+
+    /**
+     * Values of the MessageHeader union
+     */
+    protected static final byte HEADER_SCHEMA = 1;
+    protected static final byte HEADER_DICTIONARY_BATCH = 2;
+    protected static final byte HEADER_RECORD_BATCH = 3;
+
+    /**
+     * Values of the Type union that can be decoded
+     */
+    protected static final byte TYPE_INT = 2;
+    protected static final byte TYPE_FLOATING_POINT = 3;
+    protected static final byte TYPE_UTF8 = 5;
+    protected static final byte TYPE_BOOL = 6;
+    protected static final byte TYPE_DATE = 8;
+    protected static final byte TYPE_TIMESTAMP = 10;
+
+    /**
+     * Key of the field metadata entry that holds the Weka attribute type
+     */
+    public static final String WEKA_TYPE_KEY = "weka_type";
+
+    /**
+     * Key of the schema metadata entry that holds the relation name
+     */
+    public static final String RELATION_NAME_KEY = "relation_name";
+
+    /**
+     * Format used for date attributes (same as the CSV based transfer)
+     */
+    protected static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    /**
+     * The IPC stream
+     */
+    protected final ByteBuffer m_stream;
+
+    /**
+     * Constructor
+     *
+     * @param stream the bytes of an Arrow IPC stream
+     */
+    public ArrowIPCReader(ByteBuffer stream) {
+        m_stream = stream.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Decode the stream.
+     *
+     * @param relationName the relation name to use if the schema does not
+     *                     carry one
+     * @return the decoded instances
+     * @throws IOException if the stream is malformed or uses types that can't
+     *                     be represented as Weka attributes
+     */
+    public Instances read(String relationName) throws IOException {
+        List<ArrowField> fields = null;
+        Map<Long, List<String>> dictionaries = new HashMap<Long, List<String>>();
+        List<FlatTable> batches = new ArrayList<FlatTable>();
+        List<ByteBuffer> batchBodies = new ArrayList<ByteBuffer>();
+
+        ByteBuffer stream = m_stream;
+        while (stream.remaining() >= 4) {
+            int metadataLength = stream.getInt();
+            if (metadataLength == -1) {
+                // continuation marker
+                metadataLength = stream.getInt();
+            }
+            if (metadataLength == 0) {
+                // end of stream
+                break;
+            }
+            FlatTable message = FlatTable.root(slice(stream, metadataLength));
+            ByteBuffer body = slice(stream, message.getLong(3, 0));
+            FlatTable header = message.getTable(2);
+            switch (message.getByte(1, (byte) 0)) {
+                case HEADER_SCHEMA:
+                    fields = readSchema(header);
+                    String name = metadataValue(header, 2, RELATION_NAME_KEY);
+                    if (name != null) {
+                        relationName = name;
+                    }
+                    break;
+                case HEADER_DICTIONARY_BATCH:
+                    long id = header.getLong(0, 0);
+                    List<String> values = readStrings(header.getTable(1), body);
+                    if (header.getBoolean(2, false) && dictionaries.containsKey(id)) {
+                        dictionaries.get(id).addAll(values);
+                    } else {
+                        dictionaries.put(id, values);
+                    }
+                    break;
+                case HEADER_RECORD_BATCH:
+                    batches.add(header);
+                    batchBodies.add(body);
+                    break;
+                default:
+                    throw new IOException("Unexpected Arrow IPC message type "
+                            + message.getByte(1, (byte) 0));
+            }
+        }
+        if (fields == null) {
+            throw new IOException("Arrow IPC stream does not contain a schema");
+        }
+
+        ArrayList<Attribute> atts = new ArrayList<Attribute>();
+        for (ArrowField f : fields) {
+            atts.add(f.toAttribute(dictionaries));
+        }
+        int numRows = 0;
+        for (FlatTable batch : batches) {
+            numRows += (int) batch.getLong(0, 0);
+        }
+        Instances result = new Instances(relationName, atts, numRows);
+
+        for (int b = 0; b < batches.size(); b++) {
+            double[][] rows = readRecordBatch(batches.get(b), batchBodies.get(b),
+                    fields, dictionaries, result);
+            for (double[] row : rows) {
+                result.add(new DenseInstance(1.0, row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decode a record batch into rows of Weka values.
+     */
+    protected double[][] readRecordBatch(FlatTable batch, ByteBuffer body,
+                                         List<ArrowField> fields,
+                                         Map<Long, List<String>> dictionaries,
+                                         Instances result) throws IOException {
+        if (batch.getTable(3) != null) {
+            throw new IOException("Compressed Arrow record batches are not supported");
+        }
+        int numRows = (int) batch.getLong(0, 0);
+        double[][] rows = new double[numRows][fields.size()];
+        int node = 0;
+        int buffer = 0;
+        for (int j = 0; j < fields.size(); j++) {
+            ArrowField f = fields.get(j);
+            long nullCount = batch.getStructLong(1, node++, 8);
+            ByteBuffer validity = nullCount > 0 ? buffer(batch, buffer, body) : null;
+            buffer++;
+
+            if (f.m_dictionaryId >= 0) {
+                ByteBuffer indices = buffer(batch, buffer++, body);
+                int bitWidth = f.m_indexType != null ? f.m_indexType.getInt(0, 32) : 32;
+                int[] stringIndexes = null;
+                if (result.attribute(j).isString()) {
+                    List<String> dictionary = dictionaries.get(f.m_dictionaryId);
+                    stringIndexes = new int[dictionary == null ? 0 : dictionary.size()];
+                    for (int k = 0; k < stringIndexes.length; k++) {
+                        stringIndexes[k] = result.attribute(j).addStringValue(dictionary.get(k));
+                    }
+                }
+                for (int i = 0; i < numRows; i++) {
+                    if (isNull(validity, i)) {
+                        rows[i][j] = Utils.missingValue();
+                    } else {
+                        int index = (int) readInteger(indices, i, bitWidth, true);
+                        rows[i][j] = stringIndexes != null ? stringIndexes[index] : index;
+                    }
+                }
+                continue;
+            }
+
+            switch (f.m_typeType) {
+                case TYPE_INT: {
+                    ByteBuffer data = buffer(batch, buffer++, body);
+                    int bitWidth = f.m_type.getInt(0, 32);
+                    boolean signed = f.m_type.getBoolean(1, false);
+                    for (int i = 0; i < numRows; i++) {
+                        rows[i][j] = isNull(validity, i) ? Utils.missingValue()
+                                : readInteger(data, i, bitWidth, signed);
+                    }
+                    break;
+                }
+                case TYPE_FLOATING_POINT: {
+                    ByteBuffer data = buffer(batch, buffer++, body);
+                    boolean single = f.m_type.getShort(0, (short) 0) == 1;
+                    for (int i = 0; i < numRows; i++) {
+                        if (isNull(validity, i)) {
+                            rows[i][j] = Utils.missingValue();
+                        } else {
+                            rows[i][j] = single ? data.getFloat(i * 4) : data.getDouble(i * 8);
+                        }
+                    }
+                    break;
+                }
+                case TYPE_BOOL: {
+                    ByteBuffer data = buffer(batch, buffer++, body);
+                    for (int i = 0; i < numRows; i++) {
+                        rows[i][j] = isNull(validity, i) ? Utils.missingValue()
+                                : (bit(data, i) ? 1 : 0);
+                    }
+                    break;
+                }
+                case TYPE_UTF8: {
+                    ByteBuffer offsets = buffer(batch, buffer++, body);
+                    ByteBuffer data = buffer(batch, buffer++, body);
+                    for (int i = 0; i < numRows; i++) {
+                        rows[i][j] = isNull(validity, i) ? Utils.missingValue()
+                                : result.attribute(j).addStringValue(utf8(offsets, data, i));
+                    }
+                    break;
+                }
+                case TYPE_TIMESTAMP:
+                case TYPE_DATE: {
+                    ByteBuffer data = buffer(batch, buffer++, body);
+                    for (int i = 0; i < numRows; i++) {
+                        rows[i][j] = isNull(validity, i) ? Utils.missingValue()
+                                : f.toMillis(data, i);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unsupported Arrow type " + f.m_typeType
+                            + " for column " + f.m_name);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Read the fields of a Schema table.
+     */
+    protected List<ArrowField> readSchema(FlatTable schema) throws IOException {
+        List<ArrowField> fields = new ArrayList<ArrowField>();
+        int numFields = schema.getVectorLength(1);
+        for (int i = 0; i < numFields; i++) {
+            FlatTable field = schema.getTableElement(1, i);
+            ArrowField f = new ArrowField();
+            f.m_name = field.getString(0);
+            f.m_typeType = field.getByte(2, (byte) 0);
+            f.m_type = field.getTable(3);
+            FlatTable dictionary = field.getTable(4);
+            if (dictionary != null) {
+                f.m_dictionaryId = dictionary.getLong(0, 0);
+                f.m_indexType = dictionary.getTable(1);
+            }
+            f.m_wekaType = metadataValue(field, 6, WEKA_TYPE_KEY);
+            if (field.getVectorLength(5) > 0) {
+                throw new IOException("Nested Arrow type for column " + f.m_name
+                        + " is not supported");
+            }
+            fields.add(f);
+        }
+        return fields;
+    }
+
+    /**
+     * Read the values of a single utf8 column record batch (i.e. the data of a
+     * dictionary batch).
+     */
+    protected List<String> readStrings(FlatTable batch, ByteBuffer body) throws IOException {
+        if (batch.getTable(3) != null) {
+            throw new IOException("Compressed Arrow record batches are not supported");
+        }
+        int length = (int) batch.getLong(0, 0);
+        long nullCount = batch.getStructLong(1, 0, 8);
+        ByteBuffer validity = nullCount > 0 ? buffer(batch, 0, body) : null;
+        ByteBuffer offsets = buffer(batch, 1, body);
+        ByteBuffer data = buffer(batch, 2, body);
+        List<String> values = new ArrayList<String>(length);
+        for (int i = 0; i < length; i++) {
+            values.add(isNull(validity, i) ? "?" : utf8(offsets, data, i));
+        }
+        return values;
+    }
+
+    /**
+     * Look up an entry in the custom_metadata (a vector of KeyValue tables) of
+     * a Schema or Field.
+     */
+    protected static String metadataValue(FlatTable table, int field, String key) {
+        int n = table.getVectorLength(field);
+        for (int i = 0; i < n; i++) {
+            FlatTable kv = table.getTableElement(field, i);
+            if (key.equals(kv.getString(0))) {
+                return kv.getString(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a view of one of the buffers of a record batch.
+     */
+    protected static ByteBuffer buffer(FlatTable batch, int index, ByteBuffer body) {
+        long offset = batch.getStructLong(2, index, 0);
+        long length = batch.getStructLong(2, index, 8);
+        ByteBuffer view = body.duplicate();
+        ((Buffer) view).position((int) offset);
+        ((Buffer) view).limit((int) (offset + length));
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Take the next length bytes of the stream as a little endian view.
+     */
+    protected static ByteBuffer slice(ByteBuffer stream, long length) throws IOException {
+        if (length > stream.remaining()) {
+            throw new IOException("Truncated Arrow IPC stream");
+        }
+        ByteBuffer view = stream.duplicate();
+        ((Buffer) view).limit(view.position() + (int) length);
+        ((Buffer) stream).position(stream.position() + (int) length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    protected static boolean bit(ByteBuffer bitmap, int i) {
+        return (bitmap.get(i >> 3) & (1 << (i & 7))) != 0;
+    }
+
+    protected static boolean isNull(ByteBuffer validity, int i) {
+        return validity != null && validity.limit() > 0 && !bit(validity, i);
+    }
+
+    protected static long readInteger(ByteBuffer data, int i, int bitWidth, boolean signed) {
+        switch (bitWidth) {
+            case 8:
+                return signed ? data.get(i) : data.get(i) & 0xFFL;
+            case 16:
+                return signed ? data.getShort(i * 2) : data.getShort(i * 2) & 0xFFFFL;
+            case 32:
+                return signed ? data.getInt(i * 4) : data.getInt(i * 4) & 0xFFFFFFFFL;
+            default:
+                return data.getLong(i * 8);
+        }
+    }
+
+    protected static String utf8(ByteBuffer offsets, ByteBuffer data, int i) {
+        int start = offsets.getInt(i * 4);
+        int end = offsets.getInt((i + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = data.duplicate();
+        ((Buffer) view).position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A column of the schema
+     */
+    protected static class ArrowField {
+        protected String m_name;
+        protected byte m_typeType;
+        protected FlatTable m_type;
+        protected long m_dictionaryId = -1;
+        protected FlatTable m_indexType;
+        protected String m_wekaType;
+
+        protected Attribute toAttribute(Map<Long, List<String>> dictionaries)
+                throws IOException {
+            if (m_dictionaryId >= 0) {
+                if ("STRING".equals(m_wekaType)) {
+                    return new Attribute(m_name, (List<String>) null);
+                }
+                List<String> labels = dictionaries.get(m_dictionaryId);
+                return new Attribute(m_name, labels != null ? labels
+                        : new ArrayList<String>());
+            }
+            switch (m_typeType) {
+                case TYPE_INT:
+                case TYPE_BOOL:
+                    return new Attribute(m_name);
+                case TYPE_FLOATING_POINT:
+                    if (m_type.getShort(0, (short) 0) == 0) {
+                        throw new IOException("Half precision column " + m_name
+                                + " is not supported");
+                    }
+                    return new Attribute(m_name);
+                case TYPE_UTF8:
+                    return new Attribute(m_name, (List<String>) null);
+                case TYPE_TIMESTAMP:
+                case TYPE_DATE:
+                    return new Attribute(m_name, DATE_FORMAT);
+                default:
+                    throw new IOException("Unsupported Arrow type " + m_typeType
+                            + " for column " + m_name);
+            }
+        }
+
+        /**
+         * Convert a timestamp or date value to milliseconds since the epoch.
+         * Timestamps without a time zone hold wall clock time, so are
+         * interpreted in the local time zone (as the CSV transfer does).
+         */
+        protected double toMillis(ByteBuffer data, int i) {
+            short unit = m_type.getShort(0, (short) (m_typeType == TYPE_DATE ? 1 : 0));
+            long millis;
+            if (m_typeType == TYPE_DATE) {
+                millis = unit == 0 ? data.getInt(i * 4) * 86400000L : data.getLong(i * 8);
+            } else {
+                long value = data.getLong(i * 8);
+                switch (unit) {
+                    case 0:
+                        millis = value * 1000L;
+                        break;
+                    case 1:
+                        millis = value;
+                        break;
+                    case 2:
+                        millis = Math.floorDiv(value, 1000L);
+                        break;
+                    default:
+                        millis = Math.floorDiv(value, 1000000L);
+                        break;
+                }
+                if (m_type.getString(1) == null) {
+                    millis -= TimeZone.getDefault().getOffset(millis);
+                }
+            }
+            return millis;
+        }
+    }
+
+    /**
+     * Read access to a table in a FlatBuffers encoded buffer
+     */
+    protected static final class FlatTable {
+        private final ByteBuffer m_bb;
+        private final int m_pos;
+        private final int m_vtable;
+        private final int m_vtableSize;
+
+        FlatTable(ByteBuffer bb, int pos) {
+            m_bb = bb;
+            m_pos = pos;
+            m_vtable = pos - bb.getInt(pos);
+            m_vtableSize = bb.getShort(m_vtable) & 0xFFFF;
+        }
+
+        static FlatTable root(ByteBuffer bb) {
+            return new FlatTable(bb, bb.getInt(0));
+        }
+
+        private int fieldOffset(int field) {
+            int o = 4 + 2 * field;
+            return o < m_vtableSize ? m_bb.getShort(m_vtable + o) & 0xFFFF : 0;
+        }
+
+        byte getByte(int field, byte defaultValue) {
+            int o = fieldOffset(field);
+            return o != 0 ? m_bb.get(m_pos + o) : defaultValue;
+        }
+
+        boolean getBoolean(int field, boolean defaultValue) {
+            return getByte(field, (byte) (defaultValue ? 1 : 0)) != 0;
+        }
+
+        short getShort(int field, short defaultValue) {
+            int o = fieldOffset(field);
+            return o != 0 ? m_bb.getShort(m_pos + o) : defaultValue;
+        }
+
+        int getInt(int field, int defaultValue) {
+            int o = fieldOffset(field);
+            return o != 0 ? m_bb.getInt(m_pos + o) : defaultValue;
+        }
+
+        long getLong(int field, long defaultValue) {
+            int o = fieldOffset(field);
+            return o != 0 ? m_bb.getLong(m_pos + o) : defaultValue;
+        }
+
+        private int indirect(int field) {
+            int o = fieldOffset(field);
+            if (o == 0) {
+                return -1;
+            }
+            int p = m_pos + o;
+            return p + m_bb.getInt(p);
+        }
+
+        FlatTable getTable(int field) {
+            int p = indirect(field);
+            return p < 0 ? null : new FlatTable(m_bb, p);
+        }
+
+        String getString(int field) {
+            int p = indirect(field);
+            if (p < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[m_bb.getInt(p)];
+            ByteBuffer view = m_bb.duplicate();
+            ((Buffer) view).position(p + 4);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int getVectorLength(int field) {
+            int p = indirect(field);
+            return p < 0 ? 0 : m_bb.getInt(p);
+        }
+
+        FlatTable getTableElement(int field, int i) {
+            int e = indirect(field) + 4 + 4 * i;
+            return new FlatTable(m_bb, e + m_bb.getInt(e));
+        }
+
+        /**
+         * Read a long member of an element of a vector of 16 byte structs
+         * (FieldNode or Buffer).
+         */
+        long getStructLong(int field, int i, int memberOffset) {
+            return m_bb.getLong(indirect(field) + 4 + 16 * i + memberOffset);
+        }
+    }
+}
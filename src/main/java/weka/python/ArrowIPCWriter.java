@@ -0,0 +1,611 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ArrowIPCWriter.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writes Instances in the Arrow IPC streaming format without needing the cuDF
+ * native libraries. Numeric attributes (and the class) become float32 columns,
+ * which matches what the cuDF based writer produces. Other nominal attributes
+ * become signed integer columns holding the label index (-1 for missing), to
+ * be decoded on the server using the labels in the header. If
+ * {@link #narrowColumnTypes(Instances)} is called before writing, then numeric
+ * columns that only hold small integers (e.g. the 0/1 indicators produced by
+ * NominalToBinary) are written using the narrowest integer type that
+ * represents them exactly. Each encapsulated IPC message (schema,
+ * record batches and end of stream marker) is written to the channel as its
+ * own length delimited frame, and the sequence is terminated by an empty
+ * frame, i.e. the chunked framing that the server's ipc_instances handler
+ * reads. Record batch bodies can optionally be compressed with LZ4 (frame
+ * format) or ZSTD, using the buffer level body compression of the IPC format,
+ * which pyarrow undoes transparently when reading.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ArrowIPCWriter implements Closeable {
+
+    /**
+     * MetadataVersion.V5
+     */
+    protected static final short METADATA_VERSION = 4;
+
+    /**
+     * Values of the MessageHeader union
+     */
+    protected static final byte HEADER_SCHEMA = 1;
+    protected static final byte HEADER_RECORD_BATCH = 3;
+
+    /**
+     * Values of the Type union
+     */
+    protected static final byte TYPE_INT = 2;
+    protected static final byte TYPE_FLOATING_POINT = 3;
+
+    /**
+     * Precision.SINGLE
+     */
+    protected static final short PRECISION_SINGLE = 1;
+
+    /**
+     * Marks the start of an encapsulated message
+     */
+    protected static final int CONTINUATION = 0xFFFFFFFF;
+
+    /**
+     * Values of the CompressionType enum (-1 for no compression)
+     */
+    public static final byte CODEC_NONE = -1;
+    public static final byte CODEC_LZ4_FRAME = 0;
+    public static final byte CODEC_ZSTD = 1;
+
+    /**
+     * Default size (in bytes) below which a record batch body is sent
+     * uncompressed
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 64 * 1024;
+
+    /**
+     * ZSTD level - favour speed, as this is on the critical path of every
+     * transfer
+     */
+    protected static final int ZSTD_LEVEL = 1;
+
+    /**
+     * The structure of the data being written
+     */
+    protected final Instances m_header;
+
+    /**
+     * Where frames are written to
+     */
+    protected final WritableByteChannel m_channel;
+
+    /**
+     * Holds the frame length, message prefix and metadata
+     */
+    protected ByteBuffer m_prefixBuffer;
+
+    /**
+     * Provides the buffers that hold the body (and compressed body) of the
+     * current record batch. Reused across batches, and across writers if the
+     * staging buffers are shared.
+     */
+    protected StagingBuffers m_staging = new StagingBuffers();
+
+    protected boolean m_schemaWritten;
+
+    /**
+     * The codec used to compress record batch bodies
+     */
+    protected byte m_codec = CODEC_NONE;
+
+    /**
+     * Bodies smaller than this many bytes are not compressed
+     */
+    protected int m_compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Converts the rows of each batch into the body buffer
+     */
+    protected ColumnExtractor m_extractor = new ColumnExtractor(1);
+
+    /**
+     * The Arrow type (TYPE_INT or TYPE_FLOATING_POINT) of each column
+     */
+    protected final byte[] m_columnTypes;
+
+    /**
+     * The width in bytes of the values in each column
+     */
+    protected final int[] m_columnWidths;
+
+    /**
+     * Whether each integer column is signed
+     */
+    protected final boolean[] m_columnSigned;
+
+    /**
+     * Constructor
+     *
+     * @param header  the structure of the instances to be written
+     * @param channel the channel to write frames to
+     */
+    public ArrowIPCWriter(Instances header, WritableByteChannel channel) {
+        m_header = header;
+        m_channel = channel;
+        m_columnTypes = new byte[header.numAttributes()];
+        m_columnWidths = new int[header.numAttributes()];
+        m_columnSigned = new boolean[header.numAttributes()];
+        for (int j = 0; j < m_columnTypes.length; j++) {
+            if (header.attribute(j).isNominal() && j != header.classIndex()) {
+                // label indexes, with -1 for missing
+                int numValues = header.attribute(j).numValues();
+                m_columnTypes[j] = TYPE_INT;
+                m_columnWidths[j] = numValues <= Byte.MAX_VALUE ? 1
+                        : numValues <= Short.MAX_VALUE ? 2 : 4;
+                m_columnSigned[j] = true;
+            } else {
+                m_columnTypes[j] = TYPE_FLOATING_POINT;
+                m_columnWidths[j] = 4;
+            }
+        }
+    }
+
+    /**
+     * Get the codec for a name.
+     *
+     * @param name one of "none", "lz4" or "zstd" (case insensitive); null is
+     *             treated as "none"
+     * @return one of CODEC_NONE, CODEC_LZ4_FRAME or CODEC_ZSTD
+     * @throws IllegalArgumentException if the name is not recognised
+     */
+    public static byte codecForName(String name) {
+        if (name == null || name.length() == 0 || name.equalsIgnoreCase("none")) {
+            return CODEC_NONE;
+        }
+        if (name.equalsIgnoreCase("lz4")) {
+            return CODEC_LZ4_FRAME;
+        }
+        if (name.equalsIgnoreCase("zstd")) {
+            return CODEC_ZSTD;
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + name);
+    }
+
+    /**
+     * Set the codec used to compress record batch bodies.
+     *
+     * @param codec     one of CODEC_NONE, CODEC_LZ4_FRAME or CODEC_ZSTD
+     * @param threshold bodies smaller than this number of bytes are sent
+     *                  uncompressed, as the saving does not pay for the cost
+     *                  of compressing
+     */
+    public void setCompression(byte codec, int threshold) {
+        m_codec = codec;
+        m_compressionThreshold = threshold;
+    }
+
+    /**
+     * Set the staging buffers that record batch bodies are assembled in.
+     *
+     * @param staging the staging buffers to use
+     */
+    public void setStagingBuffers(StagingBuffers staging) {
+        m_staging = staging;
+    }
+
+    /**
+     * Set the extractor used to convert rows into columns, which determines
+     * how many threads are used.
+     *
+     * @param extractor the extractor to use
+     */
+    public void setColumnExtractor(ColumnExtractor extractor) {
+        m_extractor = extractor;
+    }
+
+    /**
+     * Profile the values of each float column in the data to be written and
+     * switch those that only contain integers to the narrowest (lossless)
+     * integer type. Columns containing missing values, fractions or values
+     * outside of the int32 range stay as float32. Must be called before the
+     * schema is written, with all the data that will be written.
+     *
+     * @param data the instances that will be written
+     */
+    public void narrowColumnTypes(Instances data) {
+        if (m_schemaWritten) {
+            throw new IllegalStateException("Schema has already been written");
+        }
+        int numCols = m_header.numAttributes();
+        boolean[] integral = new boolean[numCols];
+        double[] min = new double[numCols];
+        double[] max = new double[numCols];
+        for (int j = 0; j < numCols; j++) {
+            integral[j] = m_columnTypes[j] == TYPE_FLOATING_POINT;
+            min[j] = Double.POSITIVE_INFINITY;
+            max[j] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance current = data.instance(i);
+            for (int j = 0; j < numCols; j++) {
+                if (!integral[j]) {
+                    continue;
+                }
+                double value = current.value(j);
+                if (value != Math.rint(value) || value < Integer.MIN_VALUE
+                        || value > Integer.MAX_VALUE) {
+                    // also catches NaN (missing) and infinity
+                    integral[j] = false;
+                } else {
+                    min[j] = Math.min(min[j], value);
+                    max[j] = Math.max(max[j], value);
+                }
+            }
+        }
+        for (int j = 0; j < numCols; j++) {
+            if (!integral[j] || data.numInstances() == 0) {
+                continue;
+            }
+            m_columnTypes[j] = TYPE_INT;
+            if (min[j] >= 0 && max[j] <= 0xFF) {
+                m_columnWidths[j] = 1;
+                m_columnSigned[j] = false;
+            } else if (min[j] >= Byte.MIN_VALUE && max[j] <= Byte.MAX_VALUE) {
+                m_columnWidths[j] = 1;
+                m_columnSigned[j] = true;
+            } else if (min[j] >= 0 && max[j] <= 0xFFFF) {
+                m_columnWidths[j] = 2;
+                m_columnSigned[j] = false;
+            } else if (min[j] >= Short.MIN_VALUE && max[j] <= Short.MAX_VALUE) {
+                m_columnWidths[j] = 2;
+                m_columnSigned[j] = true;
+            } else {
+                m_columnWidths[j] = 4;
+                m_columnSigned[j] = true;
+            }
+        }
+    }
+
+    /**
+     * Write the schema message. Called automatically by the first call to
+     * {@link #writeBatch(Instances, int, int)} if not called explicitly.
+     *
+     * @throws IOException if a problem occurs
+     */
+    public void writeSchema() throws IOException {
+        FlatBufferBuilder fbb = new FlatBufferBuilder(1024);
+        int[] fields = new int[m_header.numAttributes()];
+        for (int i = 0; i < fields.length; i++) {
+            int name = fbb.createString(m_header.attribute(i).name());
+
+            int type;
+            if (m_columnTypes[i] == TYPE_INT) {
+                fbb.startTable(2);
+                fbb.addFieldInt(0, m_columnWidths[i] * 8);
+                fbb.addFieldBoolean(1, m_columnSigned[i]);
+                type = fbb.endTable();
+            } else {
+                fbb.startTable(1);
+                fbb.addFieldShort(0, PRECISION_SINGLE);
+                type = fbb.endTable();
+            }
+
+            int children = fbb.createOffsetVector(new int[0]);
+
+            fbb.startTable(7);
+            fbb.addFieldOffset(0, name);
+            fbb.addFieldBoolean(1, true);
+            fbb.addFieldByte(2, m_columnTypes[i]);
+            fbb.addFieldOffset(3, type);
+            fbb.addFieldOffset(5, children);
+            fields[i] = fbb.endTable();
+        }
+        int fieldVector = fbb.createOffsetVector(fields);
+
+        fbb.startTable(4);
+        // endianness - little
+        fbb.addFieldShort(0, (short) 0);
+        fbb.addFieldOffset(1, fieldVector);
+        int schema = fbb.endTable();
+
+        writeMessage(finishMessage(fbb, HEADER_SCHEMA, schema, 0), null);
+        m_schemaWritten = true;
+    }
+
+    /**
+     * Convert a range of rows to columns and write them as a single record
+     * batch.
+     *
+     * @param data  the instances to write (must have the same structure as the
+     *              header supplied at construction time)
+     * @param start the index of the first row (inclusive)
+     * @param end   the index of the last row (exclusive)
+     * @throws IOException if a problem occurs
+     */
+    public void writeBatch(final Instances data, final int start, int end) throws IOException {
+        if (!m_schemaWritten) {
+            writeSchema();
+        }
+        int numRows = end - start;
+        final int numCols = m_header.numAttributes();
+        final long[] columnOffsets = new long[numCols];
+        long bodyLength = 0;
+        for (int j = 0; j < numCols; j++) {
+            columnOffsets[j] = bodyLength;
+            bodyLength += padded((long) numRows * m_columnWidths[j]);
+        }
+        if (bodyLength > Integer.MAX_VALUE) {
+            throw new IOException("Record batch of " + bodyLength
+                    + " bytes is too large - use a smaller chunk size");
+        }
+
+        final ByteBuffer body = m_staging.getBuffer("arrow_body", bodyLength);
+        // zero the padding at the end of each column
+        for (int j = 0; j < numCols; j++) {
+            long columnEnd = j + 1 < numCols ? columnOffsets[j + 1] : bodyLength;
+            for (long p = columnOffsets[j] + (long) numRows * m_columnWidths[j]; p < columnEnd; p++) {
+                body.put((int) p, (byte) 0);
+            }
+        }
+        // blocks of rows are converted in parallel - each writes to its own
+        // view of the body, at positions that no other block touches
+        m_extractor.forEachRowBlock(start, end, new ColumnExtractor.RowBlockTask() {
+            @Override
+            public void process(int blockStart, int blockEnd) {
+                ByteBuffer view = body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = blockStart; i < blockEnd; i++) {
+                    Instance current = data.instance(i);
+                    int row = i - start;
+                    for (int j = 0; j < numCols; j++) {
+                        double value = current.value(j);
+                        int pos = (int) columnOffsets[j] + row * m_columnWidths[j];
+                        if (m_columnTypes[j] == TYPE_FLOATING_POINT) {
+                            view.putFloat(pos, (float) value);
+                            continue;
+                        }
+                        int intValue = Utils.isMissingValue(value) ? -1 : (int) value;
+                        switch (m_columnWidths[j]) {
+                            case 1:
+                                view.put(pos, (byte) intValue);
+                                break;
+                            case 2:
+                                view.putShort(pos, (short) intValue);
+                                break;
+                            default:
+                                view.putInt(pos, intValue);
+                        }
+                    }
+                }
+            }
+        });
+        ((Buffer) body).limit((int) bodyLength);
+
+        // two buffers per column: an empty validity bitmap (no nulls) and the
+        // values
+        long[] nodeLengths = new long[numCols];
+        long[] nodeNullCounts = new long[numCols];
+        long[] bufferOffsets = new long[numCols * 2];
+        long[] bufferLengths = new long[numCols * 2];
+        for (int j = 0; j < numCols; j++) {
+            nodeLengths[j] = numRows;
+            bufferOffsets[2 * j] = columnOffsets[j];
+            bufferOffsets[2 * j + 1] = columnOffsets[j];
+            bufferLengths[2 * j + 1] = (long) numRows * m_columnWidths[j];
+        }
+
+        boolean compress = m_codec != CODEC_NONE && bodyLength >= m_compressionThreshold;
+        ByteBuffer toWrite = body;
+        if (compress) {
+            toWrite = compressBody(body, bufferOffsets, bufferLengths);
+            bodyLength = toWrite.remaining();
+        }
+
+        FlatBufferBuilder fbb = new FlatBufferBuilder(256 + numCols * 48);
+        int compression = 0;
+        if (compress) {
+            // BodyCompression - method BUFFER
+            fbb.startTable(2);
+            fbb.addFieldByte(0, m_codec);
+            fbb.addFieldByte(1, (byte) 0);
+            compression = fbb.endTable();
+        }
+        int nodes = fbb.createLongPairVector(nodeLengths, nodeNullCounts);
+        int buffers = fbb.createLongPairVector(bufferOffsets, bufferLengths);
+        fbb.startTable(5);
+        fbb.addFieldLong(0, numRows);
+        fbb.addFieldOffset(1, nodes);
+        fbb.addFieldOffset(2, buffers);
+        if (compress) {
+            fbb.addFieldOffset(3, compression);
+        }
+        int recordBatch = fbb.endTable();
+
+        writeMessage(finishMessage(fbb, HEADER_RECORD_BATCH, recordBatch, bodyLength), toWrite);
+    }
+
+    /**
+     * Compress each non-empty buffer of a record batch body. Every compressed
+     * buffer is prefixed by its uncompressed length (int64) and padded to a
+     * multiple of 8 bytes. The supplied buffer offsets and lengths are
+     * updated to describe the new body.
+     *
+     * @param body          the uncompressed body
+     * @param bufferOffsets the offset of each buffer in the body
+     * @param bufferLengths the length of each buffer
+     * @return the compressed body, ready to be written
+     * @throws IOException if a problem occurs
+     */
+    protected ByteBuffer compressBody(ByteBuffer body, long[] bufferOffsets,
+                                      long[] bufferLengths) throws IOException {
+        byte[][] compressed = new byte[bufferOffsets.length][];
+        long compressedLength = 0;
+        byte[] raw = null;
+        for (int b = 0; b < bufferOffsets.length; b++) {
+            int length = (int) bufferLengths[b];
+            if (length == 0) {
+                continue;
+            }
+            if (raw == null || raw.length < length) {
+                raw = new byte[length];
+            }
+            ByteBuffer source = body.duplicate();
+            ((Buffer) source).position((int) bufferOffsets[b]);
+            source.get(raw, 0, length);
+            compressed[b] = compress(raw, length);
+            compressedLength += padded(8 + compressed[b].length);
+        }
+        if (compressedLength > Integer.MAX_VALUE) {
+            throw new IOException("Compressed record batch of " + compressedLength
+                    + " bytes is too large - use a smaller chunk size");
+        }
+
+        ByteBuffer result = m_staging.getBuffer("arrow_compressed", compressedLength);
+        for (int b = 0; b < bufferOffsets.length; b++) {
+            bufferOffsets[b] = result.position();
+            if (compressed[b] == null) {
+                continue;
+            }
+            result.putLong(bufferLengths[b]);
+            result.put(compressed[b]);
+            while ((result.position() & 7) != 0) {
+                result.put((byte) 0);
+            }
+            bufferLengths[b] = 8 + compressed[b].length;
+        }
+        ((Buffer) result).flip();
+        return result;
+    }
+
+    /**
+     * Compress a single buffer with the current codec.
+     *
+     * @param raw    holds the data to compress
+     * @param length the number of bytes of raw to compress
+     * @return the compressed bytes
+     * @throws IOException if a problem occurs
+     */
+    protected byte[] compress(byte[] raw, int length) throws IOException {
+        if (m_codec == CODEC_ZSTD) {
+            byte[] src = raw.length == length ? raw : Arrays.copyOf(raw, length);
+            return Zstd.compress(src, ZSTD_LEVEL);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+        try (LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(bos)) {
+            lz4.write(raw, 0, length);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Write the end of stream marker, followed by the empty frame that
+     * terminates the transfer. Does not close the underlying channel.
+     *
+     * @throws IOException if a problem occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (!m_schemaWritten) {
+            writeSchema();
+        }
+        ByteBuffer eos = ByteBuffer.allocate(12);
+        eos.putInt(8).order(ByteOrder.LITTLE_ENDIAN).putInt(CONTINUATION).putInt(0);
+        ((Buffer) eos).flip();
+        writeFully(eos);
+
+        ByteBuffer terminator = ByteBuffer.allocate(4);
+        writeFully(terminator);
+    }
+
+    /**
+     * Wrap a header table in a Message table and finish the buffer.
+     */
+    protected static byte[] finishMessage(FlatBufferBuilder fbb, byte headerType,
+                                          int header, long bodyLength) {
+        fbb.startTable(5);
+        fbb.addFieldShort(0, METADATA_VERSION);
+        fbb.addFieldByte(1, headerType);
+        fbb.addFieldOffset(2, header);
+        fbb.addFieldLong(3, bodyLength);
+        return fbb.finish(fbb.endTable());
+    }
+
+    /**
+     * Write an encapsulated message (continuation marker, metadata length,
+     * padded metadata, then the body) as a single length delimited frame.
+     *
+     * @param metadata the flatbuffer encoded Message
+     * @param body     the message body (may be null)
+     * @throws IOException if a problem occurs
+     */
+    protected void writeMessage(byte[] metadata, ByteBuffer body) throws IOException {
+        int paddedMetadata = (int) padded(metadata.length);
+        int bodyLength = body != null ? body.remaining() : 0;
+        int prefixSize = 4 + 8 + paddedMetadata;
+        if (m_prefixBuffer == null || m_prefixBuffer.capacity() < prefixSize) {
+            m_prefixBuffer = ByteBuffer.allocate(Math.max(prefixSize, 1024));
+        }
+        ByteBuffer prefix = m_prefixBuffer;
+        ((Buffer) prefix).clear();
+        prefix.order(ByteOrder.BIG_ENDIAN).putInt(8 + paddedMetadata + bodyLength);
+        prefix.order(ByteOrder.LITTLE_ENDIAN).putInt(CONTINUATION).putInt(paddedMetadata);
+        prefix.put(metadata);
+        for (int i = metadata.length; i < paddedMetadata; i++) {
+            prefix.put((byte) 0);
+        }
+        ((Buffer) prefix).flip();
+        writeFully(prefix);
+        if (body != null) {
+            writeFully(body);
+        }
+    }
+
+    protected void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            m_channel.write(src);
+        }
+    }
+
+    /**
+     * Round up to a multiple of 8, as required for the alignment of metadata
+     * and body buffers.
+     */
+    protected static long padded(long length) {
+        return (length + 7) & ~7L;
+    }
+}
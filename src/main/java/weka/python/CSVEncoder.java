@@ -0,0 +1,254 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CSVEncoder.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Formats CSV directly as UTF-8 bytes into a growable byte array that is kept
+ * between uses, so that formatting rows does not allocate. Numbers are written
+ * without going through Double.toString(): integral values and values with up
+ * to 15 decimal places are written as digits, such that parsing the text gives
+ * back exactly the same double. Only the remaining values (e.g. ones that need
+ * an exponent, NaN and infinities) fall back to Double.toString().
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class CSVEncoder {
+
+    /**
+     * Maximum number of decimal places written without Double.toString()
+     */
+    protected static final int MAX_FRACTION_DIGITS = 15;
+
+    /**
+     * Largest magnitude below which every long is exactly representable as a
+     * double (2^53)
+     */
+    protected static final double EXACT_LONG_LIMIT = 9007199254740992.0;
+
+    protected static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    protected byte[] m_bytes;
+
+    protected int m_length;
+
+    /**
+     * Digits of the number being written, least significant first
+     */
+    protected final byte[] m_digits = new byte[20];
+
+    /**
+     * Constructor
+     */
+    public CSVEncoder() {
+        this(8192);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity the initial capacity in bytes
+     */
+    public CSVEncoder(int capacity) {
+        m_bytes = new byte[Math.max(capacity, 64)];
+    }
+
+    /**
+     * Discard the contents (the capacity is kept).
+     */
+    public void reset() {
+        m_length = 0;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int length() {
+        return m_length;
+    }
+
+    /**
+     * @return the capacity in bytes
+     */
+    public int capacity() {
+        return m_bytes.length;
+    }
+
+    /**
+     * Get the contents as a filled buffer (positioned after the contents, as
+     * expected by RapidsUtils.writeDelimitedToChannel()), which is only valid
+     * until the next write or reset.
+     *
+     * @return a buffer wrapping the contents
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(m_bytes);
+        ((Buffer) buffer).position(m_length);
+        return buffer;
+    }
+
+    /**
+     * Write an ASCII character (e.g. a separator).
+     *
+     * @param c the character
+     */
+    public void writeChar(char c) {
+        ensureCapacity(1);
+        m_bytes[m_length++] = (byte) c;
+    }
+
+    /**
+     * Write text, encoded as UTF-8.
+     *
+     * @param text the text
+     */
+    public void writeString(CharSequence text) {
+        ensureCapacity(text.length() * 3);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                m_bytes[m_length++] = (byte) c;
+            } else if (c < 0x800) {
+                m_bytes[m_length++] = (byte) (0xC0 | (c >> 6));
+                m_bytes[m_length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                m_bytes[m_length++] = (byte) (0xF0 | (codePoint >> 18));
+                m_bytes[m_length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                m_bytes[m_length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                m_bytes[m_length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate - as replaced by String.getBytes()
+                m_bytes[m_length++] = '?';
+            } else {
+                m_bytes[m_length++] = (byte) (0xE0 | (c >> 12));
+                m_bytes[m_length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                m_bytes[m_length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Write an integer.
+     *
+     * @param value the value
+     */
+    public void writeLong(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            m_bytes[m_length++] = '-';
+        }
+        writeDigits(value, 0);
+    }
+
+    /**
+     * Write a double, such that parsing the text gives back the same value.
+     * Integral values are written with a trailing ".0" (as by
+     * Double.toString()) so that their column is still parsed as floating
+     * point.
+     *
+     * @param value the value
+     */
+    public void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeString(Double.toString(value));
+            return;
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude < EXACT_LONG_LIMIT && value == Math.rint(value)) {
+            ensureCapacity(22);
+            if (value < 0 || (value == 0 && 1 / value < 0)) {
+                m_bytes[m_length++] = '-';
+            }
+            writeDigits((long) value, 0);
+            m_bytes[m_length++] = '.';
+            m_bytes[m_length++] = '0';
+            return;
+        }
+        // find the fewest decimal places that represent the value exactly,
+        // i.e. m / 10^k rounds to the value (m and 10^k are exact doubles, so
+        // the division is correctly rounded, as is parsing the decimal)
+        for (int k = 1; k <= MAX_FRACTION_DIGITS; k++) {
+            double scaled = magnitude * POWERS_OF_TEN[k];
+            if (scaled >= EXACT_LONG_LIMIT) {
+                break;
+            }
+            long digits = Math.round(scaled);
+            if (digits / POWERS_OF_TEN[k] == magnitude) {
+                ensureCapacity(MAX_FRACTION_DIGITS + 20);
+                if (value < 0) {
+                    m_bytes[m_length++] = '-';
+                }
+                writeDigits(digits, k);
+                return;
+            }
+        }
+        writeString(Double.toString(value));
+    }
+
+    /**
+     * Write the digits of a value, with a decimal point before the given
+     * number of trailing digits. Assumes the capacity has been ensured.
+     */
+    protected void writeDigits(long value, int fractionDigits) {
+        int count = 0;
+        do {
+            // negative remainders handle Long.MIN_VALUE
+            m_digits[count++] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (fractionDigits > 0) {
+            while (count <= fractionDigits) {
+                m_digits[count++] = '0';
+            }
+        }
+        while (count > 0) {
+            if (count == fractionDigits) {
+                m_bytes[m_length++] = '.';
+            }
+            m_bytes[m_length++] = m_digits[--count];
+        }
+    }
+
+    protected void ensureCapacity(int extra) {
+        if (m_length + extra > m_bytes.length) {
+            long capacity = Math.max((long) m_bytes.length * 2, (long) m_length + extra);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("CSV chunk is too large");
+            }
+            byte[] bytes = new byte[(int) capacity];
+            System.arraycopy(m_bytes, 0, bytes, 0, m_length);
+            m_bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ColumnExtractor.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts the row oriented values of Instances into preallocated primitive
+ * arrays or buffers, splitting the rows into blocks that are processed in
+ * parallel on a fork-join pool. Used by all the instance sending strategies.
+ * Blocks always start at a multiple of {@link #blockSize(int)} rows from the
+ * start of the range, so that callers can keep per block results (e.g. CSV
+ * text) in order. The time spent converting is accumulated so that it can be
+ * reported separately from the time spent transferring.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ColumnExtractor {
+
+    /**
+     * Ranges with fewer rows than this are not split
+     */
+    protected static final int MIN_BLOCK_ROWS = 1024;
+
+    /**
+     * Number of blocks to aim for per thread, to balance the load
+     */
+    protected static final int BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Processes a block of rows
+     */
+    public interface RowBlockTask {
+
+        /**
+         * Process the rows in the given range.
+         *
+         * @param start the index of the first row (inclusive)
+         * @param end   the index of the last row (exclusive)
+         */
+        void process(int start, int end);
+    }
+
+    /**
+     * Number of threads to use
+     */
+    protected final int m_numThreads;
+
+    /**
+     * The pool - only created when more than one thread is used
+     */
+    protected ForkJoinPool m_pool;
+
+    /**
+     * Total time spent converting (nanoseconds)
+     */
+    protected long m_conversionTime;
+
+    /**
+     * Constructor
+     *
+     * @param numThreads the number of threads to use (0 or less to use one per
+     *                   available processor)
+     */
+    public ColumnExtractor(int numThreads) {
+        m_numThreads = numThreads > 0 ? numThreads
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the number of threads used
+     */
+    public int getNumThreads() {
+        return m_numThreads;
+    }
+
+    /**
+     * Get the number of rows per block when processing a range of the given
+     * size.
+     *
+     * @param numRows the number of rows in the range
+     * @return the number of rows per block
+     */
+    public int blockSize(int numRows) {
+        if (m_numThreads == 1) {
+            return Math.max(numRows, 1);
+        }
+        int blocks = m_numThreads * BLOCKS_PER_THREAD;
+        return Math.max(MIN_BLOCK_ROWS, (numRows + blocks - 1) / blocks);
+    }
+
+    /**
+     * Process a range of rows, in parallel blocks if more than one thread is
+     * used. Returns when all blocks have been processed.
+     *
+     * @param start the index of the first row (inclusive)
+     * @param end   the index of the last row (exclusive)
+     * @param task  the task to apply to each block
+     */
+    public void forEachRowBlock(int start, int end, RowBlockTask task) {
+        long begin = System.nanoTime();
+        int blockSize = blockSize(end - start);
+        if (end - start <= blockSize) {
+            if (end > start) {
+                task.process(start, end);
+            }
+        } else {
+            pool().invoke(new BlockAction(task, start, end, blockSize));
+        }
+        m_conversionTime += System.nanoTime() - begin;
+    }
+
+    /**
+     * Extract a range of rows into one float array per attribute.
+     *
+     * @param data    the instances to extract from
+     * @param start   the index of the first row (inclusive)
+     * @param end     the index of the last row (exclusive)
+     * @param columns the destination arrays (one per attribute, each with at
+     *                least end - start elements)
+     */
+    public void extractColumns(final Instances data, final int start, int end,
+                               final float[][] columns) {
+        forEachRowBlock(start, end, new RowBlockTask() {
+            @Override
+            public void process(int blockStart, int blockEnd) {
+                for (int i = blockStart; i < blockEnd; i++) {
+                    Instance current = data.instance(i);
+                    for (int j = 0; j < columns.length; j++) {
+                        columns[j][i - start] = (float) current.value(j);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Extract a range of rows into a buffer, as row-major float32 values in
+     * the byte order of the buffer, starting at index 0.
+     *
+     * @param data  the instances to extract from
+     * @param start the index of the first row (inclusive)
+     * @param end   the index of the last row (exclusive)
+     * @param dest  the destination buffer (with room for at least (end -
+     *              start) x numAttributes floats)
+     */
+    public void extractRowMajor(final Instances data, final int start, int end,
+                                final ByteBuffer dest) {
+        final int numAttributes = data.numAttributes();
+        forEachRowBlock(start, end, new RowBlockTask() {
+            @Override
+            public void process(int blockStart, int blockEnd) {
+                ByteBuffer view = dest.duplicate().order(dest.order());
+                for (int i = blockStart; i < blockEnd; i++) {
+                    Instance current = data.instance(i);
+                    int offset = (i - start) * numAttributes * Float.BYTES;
+                    for (int j = 0; j < numAttributes; j++) {
+                        view.putFloat(offset + j * Float.BYTES, (float) current.value(j));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Extract a range of rows into a segmented buffer, as column-major float32
+     * values (all the values of the first attribute, then the second, and so
+     * on), starting at element 0. Element indexes are longs, so the
+     * destination may be larger than a single buffer allows.
+     *
+     * @param data  the instances to extract from
+     * @param start the index of the first row (inclusive)
+     * @param end   the index of the last row (exclusive)
+     * @param dest  the destination (with room for at least (end - start) x
+     *              numAttributes floats)
+     */
+    public void extractColumnMajor(final Instances data, final int start, int end,
+                                   final SegmentedBuffer dest) {
+        final int numAttributes = data.numAttributes();
+        final long numRows = end - start;
+        forEachRowBlock(start, end, new RowBlockTask() {
+            @Override
+            public void process(int blockStart, int blockEnd) {
+                for (int i = blockStart; i < blockEnd; i++) {
+                    Instance current = data.instance(i);
+                    long row = i - start;
+                    for (int j = 0; j < numAttributes; j++) {
+                        dest.putFloat(row + j * numRows, (float) current.value(j));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the total time spent converting, in milliseconds
+     */
+    public long getConversionTime() {
+        return m_conversionTime / 1000000L;
+    }
+
+    /**
+     * Reset the accumulated conversion time.
+     */
+    public void resetConversionTime() {
+        m_conversionTime = 0;
+    }
+
+    /**
+     * Shut down the pool (if one has been created). The extractor can still
+     * be used afterwards, in which case a new pool is created.
+     */
+    public synchronized void shutdown() {
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_pool = null;
+        }
+    }
+
+    protected synchronized ForkJoinPool pool() {
+        if (m_pool == null) {
+            m_pool = new ForkJoinPool(m_numThreads);
+        }
+        return m_pool;
+    }
+
+    /**
+     * Splits a range of rows in two (on a block boundary) until it is no
+     * larger than a block.
+     */
+    protected static class BlockAction extends RecursiveAction {
+
+        private static final long serialVersionUID = -2587463728115306283L;
+
+        protected final RowBlockTask m_task;
+        protected final int m_start;
+        protected final int m_end;
+        protected final int m_blockSize;
+
+        protected BlockAction(RowBlockTask task, int start, int end, int blockSize) {
+            m_task = task;
+            m_start = start;
+            m_end = end;
+            m_blockSize = blockSize;
+        }
+
+        @Override
+        protected void compute() {
+            int numBlocks = (m_end - m_start + m_blockSize - 1) / m_blockSize;
+            if (numBlocks <= 1) {
+                m_task.process(m_start, m_end);
+                return;
+            }
+            int mid = m_start + (numBlocks / 2) * m_blockSize;
+            invokeAll(new BlockAction(m_task, m_start, mid, m_blockSize),
+                    new BlockAction(m_task, mid, m_end, m_blockSize));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CommandPipeline.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lets several requests be in flight on the connection to the server at once.
+ * A request is written by the calling thread, which returns as soon as it is
+ * on the wire, and its reply is received by a reader thread that completes
+ * the future returned for it. Replies are matched to requests by the request
+ * id that the server echoes in every ack. The server still runs requests one
+ * at a time, in the order they were written, so e.g. the next batch of
+ * instances can be uploaded while the server is predicting the previous one.
+ * <p>
+ * The reader thread only reads from the connection while requests are
+ * outstanding. Lock-step exchanges (the synchronous methods of RapidsSession
+ * and RapidsUtils) must call {@link #awaitIdle()} first, so that they don't
+ * read a reply that belongs to an earlier request. A session (and hence its
+ * pipeline) is meant to be used by one thread at a time.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class CommandPipeline {
+
+    /**
+     * A request sent through the pipeline
+     *
+     * @param <T> the type of the result of the request
+     */
+    public abstract static class Request<T> {
+
+        /**
+         * Write the request (and any data following it). The command message
+         * must carry the given request id. Lock-step exchanges may be made
+         * before the command message is written, but not after.
+         *
+         * @param requestId the id of the request
+         * @throws Exception if a problem occurs
+         */
+        protected abstract void write(long requestId) throws Exception;
+
+        /**
+         * Receive the rest of the reply (e.g. a buffer following the ack) and
+         * turn it into the result. Called on the reader thread.
+         *
+         * @param ack         the ack to the request
+         * @param inputStream the input stream to read the rest of the reply
+         *                    from
+         * @return the result
+         * @throws Exception if a problem occurs, or the request failed
+         */
+        protected abstract T reply(ServerAck ack, InputStream inputStream) throws Exception;
+    }
+
+    /**
+     * A request waiting for its reply
+     */
+    protected static class Pending<T> {
+
+        protected final Request<T> m_request;
+
+        protected final CompletableFuture<T> m_future;
+
+        protected Pending(Request<T> request, CompletableFuture<T> future) {
+            m_request = request;
+            m_future = future;
+        }
+
+        /**
+         * Receive the reply and complete the future with its result.
+         *
+         * @throws IOException if the connection failed, i.e. no further replies
+         *                     can be received
+         */
+        protected void complete(ServerAck ack, InputStream inputStream) throws IOException {
+            try {
+                m_future.complete(m_request.reply(ack, inputStream));
+            } catch (IOException ex) {
+                m_future.completeExceptionally(ex);
+                throw ex;
+            } catch (Exception ex) {
+                m_future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    protected final OutputStream m_outputStream;
+
+    protected final InputStream m_inputStream;
+
+    /**
+     * Held while writing a request
+     */
+    protected final Object m_writeLock = new Object();
+
+    /**
+     * Requests waiting for their replies, keyed by request id
+     */
+    protected final Map<Long, Pending<?>> m_pending = new ConcurrentHashMap<Long, Pending<?>>();
+
+    /**
+     * One permit for each reply that the reader thread has yet to receive
+     */
+    protected final Semaphore m_replies = new Semaphore(0);
+
+    protected Thread m_reader;
+
+    /**
+     * The reason that the pipeline can no longer be used (null while it can)
+     */
+    protected volatile IOException m_failure;
+
+    /**
+     * Constructor
+     *
+     * @param outputStream the output stream of the connection
+     * @param inputStream  the input stream of the connection
+     */
+    public CommandPipeline(OutputStream outputStream, InputStream inputStream) {
+        if (!(outputStream instanceof ServerTransport.CommandStream)) {
+            throw new IllegalArgumentException("Requests can only be pipelined over the "
+                    + "streams of a connection");
+        }
+        m_outputStream = outputStream;
+        m_inputStream = inputStream;
+    }
+
+    /**
+     * Write a request, and return without waiting for its reply.
+     *
+     * @param request the request
+     * @param <T>     the type of the result of the request
+     * @return a future that is completed with the result of the request once
+     * its reply has been received (or exceptionally, if the request failed)
+     */
+    public <T> CompletableFuture<T> submit(Request<T> request) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        synchronized (m_writeLock) {
+            if (m_failure != null) {
+                future.completeExceptionally(m_failure);
+                return future;
+            }
+            long requestId = ((ServerTransport.CommandStream) m_outputStream).nextRequestId();
+            try {
+                request.write(requestId);
+                m_outputStream.flush();
+            } catch (Exception ex) {
+                IOException cause = ioCause(ex);
+                if (cause != null) {
+                    // the request may be partly written
+                    fail(cause);
+                }
+                future.completeExceptionally(ex);
+                return future;
+            }
+            // the reply can't be read before the permit for it is released
+            m_pending.put(requestId, new Pending<T>(request, future));
+            startReader();
+            m_replies.release();
+        }
+        return future;
+    }
+
+    /**
+     * Wait until the replies to all the requests written so far have been
+     * received. Must be called before a lock-step exchange with the server.
+     *
+     * @throws IOException if the connection failed while receiving replies
+     */
+    public void awaitIdle() throws IOException {
+        synchronized (this) {
+            while (!m_pending.isEmpty() && m_failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting for "
+                            + "replies from the server");
+                }
+            }
+        }
+        if (m_failure != null) {
+            throw new IOException("Connection to the server failed", m_failure);
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for their replies
+     */
+    public int numPending() {
+        return m_pending.size();
+    }
+
+    /**
+     * Stop the reader thread. Requests still waiting for their replies are
+     * failed.
+     */
+    public void close() {
+        fail(new IOException("Connection to the server has been closed"));
+        synchronized (m_writeLock) {
+            if (m_reader != null) {
+                m_reader.interrupt();
+            }
+        }
+    }
+
+    protected void startReader() {
+        if (m_reader != null) {
+            return;
+        }
+        m_reader = new Thread("Rapids server reply reader") {
+            @Override
+            public void run() {
+                receiveReplies();
+            }
+        };
+        m_reader.setDaemon(true);
+        m_reader.start();
+    }
+
+    protected void receiveReplies() {
+        try {
+            while (m_failure == null) {
+                m_replies.acquire();
+                ServerAck ack = RapidsUtils.readAckFromInputStream(m_inputStream);
+                Long requestId = ack.getRequestId();
+                Pending<?> pending = requestId == null ? null : m_pending.get(requestId);
+                if (pending == null) {
+                    throw new IOException("Received a reply to an unknown request ("
+                            + requestId + ")");
+                }
+                try {
+                    pending.complete(ack, m_inputStream);
+                } finally {
+                    // only now is the rest of the reply consumed
+                    synchronized (this) {
+                        m_pending.remove(requestId);
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            fail(new InterruptedIOException("Reader thread was interrupted"));
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Get the I/O failure (if any) that caused an exception, as a failed write
+     * is usually wrapped in a WekaException.
+     */
+    protected static IOException ioCause(Throwable ex) {
+        while (ex != null) {
+            if (ex instanceof IOException) {
+                return (IOException) ex;
+            }
+            ex = ex.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * Mark the pipeline as unusable, failing the requests that are still
+     * waiting for their replies.
+     */
+    protected void fail(IOException failure) {
+        List<Pending<?>> failed;
+        synchronized (this) {
+            if (m_failure == null) {
+                m_failure = failure;
+            }
+            failed = new ArrayList<Pending<?>>(m_pending.values());
+            m_pending.clear();
+            notifyAll();
+        }
+        for (Pending<?> pending : failed) {
+            pending.m_future.completeExceptionally(m_failure);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CompoundCommand.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sequence of commands that the server runs from a single request, sending
+ * back a single reply. Used to collapse the round trips of a train or predict
+ * call (scripts, checking for the model and fetching the result) into one,
+ * optionally together with the upload of the instances that precede them
+ * (see InstanceSender.sendInstances()). The server holds back the acks of all
+ * but the last step, and stops at the first step that fails (or at a
+ * required variable that is not set), replying with its error. Output of the
+ * scripts run along the way is collected and returned with the reply.
+ * <p>
+ * The result of at most one fetch is returned, and the fetch must be the last
+ * step. Once the command has been run, its results are available from
+ * {@link #getScriptOutAndErr()}, {@link #getNumericArray()} and
+ * {@link #getStringValue()}.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class CompoundCommand {
+
+    protected final boolean m_debug;
+
+    protected final List<ServerCommand> m_steps = new ArrayList<ServerCommand>();
+
+    /**
+     * Encoding of the variable fetched by the last step ("binary" or
+     * "string"), or null if there is no fetch
+     */
+    protected String m_fetchEncoding;
+
+    protected String m_scriptOut = "";
+
+    protected String m_scriptError = "";
+
+    protected double[][] m_numericArray;
+
+    protected String m_stringValue;
+
+    /**
+     * Id of the request that the command is sent as, while its reply is left
+     * to be received by a CommandPipeline (null otherwise)
+     */
+    protected Long m_requestId;
+
+    /**
+     * Step that has the server cache the instances transferred with the
+     * command, or null
+     */
+    protected Map<String, Object> m_cacheStep;
+
+    /**
+     * Constructor
+     *
+     * @param debug true if the server is to output debugging info
+     */
+    public CompoundCommand(boolean debug) {
+        m_debug = debug;
+    }
+
+    /**
+     * Add a step that executes a script.
+     *
+     * @param script the script
+     */
+    public void addScript(String script) {
+        checkNotFetched();
+        if (!script.endsWith("\n")) {
+            script += "\n";
+        }
+        ServerCommand step = new ServerCommand("execute_script", m_debug);
+        step.setScript(script);
+        m_steps.add(step);
+    }
+
+    /**
+     * Add a step that calls a function. The function must have been
+     * registered with the session (see RapidsSession.registerFunction()).
+     *
+     * @param function       the function
+     * @param args           the arguments to call it with, by name (values
+     *                       must be serializable, e.g. strings, numbers and
+     *                       booleans)
+     * @param resultVariable the variable to store the result of the call in,
+     *                       or null
+     */
+    public void addFunctionCall(ServerFunction function, Map<String, Object> args,
+                                String resultVariable) {
+        checkNotFetched();
+        ServerCommand step = new ServerCommand("call_function", m_debug);
+        step.setFunction(function);
+        step.setArgs(args);
+        step.setResultVariable(resultVariable);
+        m_steps.add(step);
+    }
+
+    /**
+     * Add a step that fails the command if a variable is not set.
+     *
+     * @param varName the name of the variable
+     */
+    public void requireVariable(String varName) {
+        checkNotFetched();
+        ServerCommand step = new ServerCommand("variable_is_set", m_debug);
+        step.setVariableName(varName);
+        m_steps.add(step);
+    }
+
+    /**
+     * Add a final step that fetches a numeric array variable (as by
+     * RapidsSession.getNumericArrayFromPython()).
+     *
+     * @param varName the name of the variable
+     */
+    public void fetchNumericArray(String varName) {
+        addFetch(varName, "binary");
+    }
+
+    /**
+     * Add a final step that fetches a variable as a plain string (as by
+     * RapidsSession.getVariableValueFromPythonAsPlainString()).
+     *
+     * @param varName the name of the variable
+     */
+    public void fetchPlainString(String varName) {
+        addFetch(varName, "string");
+    }
+
+    protected void addFetch(String varName, String encoding) {
+        checkNotFetched();
+        ServerCommand step = new ServerCommand("get_variable_value", m_debug);
+        step.setVariableName(varName);
+        step.setVariableEncoding(encoding);
+        m_steps.add(step);
+        m_fetchEncoding = encoding;
+    }
+
+    /**
+     * Have the server hold on to the instances transferred with the command
+     * (the frame, X and Y) in its frame cache. They are cached as soon as
+     * they are in place, before any of the steps run, as the steps may
+     * replace X and Y (e.g. with the input the learner needs). Has no effect
+     * if the command doesn't follow a transfer of instances.
+     *
+     * @param fingerprint the fingerprint to hold the instances under
+     * @param frameName   the name of the frame in python
+     */
+    protected void cacheTransferredFrame(String fingerprint, String frameName) {
+        m_cacheStep = new HashMap<String, Object>();
+        m_cacheStep.put("command", "cache_frame");
+        m_cacheStep.put("fingerprints", Collections.singletonList(fingerprint));
+        m_cacheStep.put("frame_name", frameName);
+        m_cacheStep.put("debug", m_debug);
+    }
+
+    protected void checkNotFetched() {
+        if (m_fetchEncoding != null) {
+            throw new IllegalStateException("A fetch must be the last step");
+        }
+    }
+
+    /**
+     * Build the message for the server.
+     *
+     * @param first       a command to run before the steps (e.g. an upload of
+     *                    instances, whose data follows the message), or null
+     * @param firstScript a script to run straight after the first command
+     *                    (e.g. to create X and Y), or null. The instances are
+     *                    cached after it, if requested (see
+     *                    {@link #cacheTransferredFrame})
+     * @return the message
+     */
+    protected Map<String, Object> toMessage(Object first, String firstScript) {
+        List<Object> steps = new ArrayList<Object>();
+        if (first != null) {
+            steps.add(first);
+        }
+        if (firstScript != null) {
+            ServerCommand step = new ServerCommand("execute_script", m_debug);
+            step.setScript(firstScript);
+            steps.add(step);
+        }
+        if (first != null && m_cacheStep != null) {
+            steps.add(m_cacheStep);
+        }
+        steps.addAll(m_steps);
+        Map<String, Object> message = new HashMap<String, Object>();
+        message.put("command", "compound");
+        message.put("steps", steps);
+        message.put("debug", m_debug);
+        if (m_requestId != null) {
+            message.put("request_id", m_requestId);
+        }
+        return message;
+    }
+
+    /**
+     * Set the id of the request that the command is sent as, leaving its reply
+     * to be received by a CommandPipeline rather than by the sender.
+     *
+     * @param requestId the request id (null to receive the reply as usual)
+     */
+    protected void setRequestId(Long requestId) {
+        m_requestId = requestId;
+    }
+
+    /**
+     * @return true if the reply is received by a CommandPipeline rather than
+     * by the sender
+     */
+    protected boolean isReplyDeferred() {
+        return m_requestId != null;
+    }
+
+    /**
+     * @return the name of the variable fetched by the last step, or null
+     */
+    protected String getFetchVariable() {
+        return m_fetchEncoding == null ? null
+                : m_steps.get(m_steps.size() - 1).m_variableName;
+    }
+
+    protected String getFetchEncoding() {
+        return m_fetchEncoding;
+    }
+
+    protected void setScriptOutAndErr(String out, String error) {
+        m_scriptOut = out == null ? "" : out.trim();
+        m_scriptError = error == null ? "" : error.trim();
+    }
+
+    protected void setNumericArray(double[][] array) {
+        m_numericArray = array;
+    }
+
+    protected void setStringValue(String value) {
+        m_stringValue = value;
+    }
+
+    /**
+     * Get the output of the scripts run by the command.
+     *
+     * @return a two element list - std out and std err of the scripts
+     */
+    public List<String> getScriptOutAndErr() {
+        return Arrays.asList(m_scriptOut, m_scriptError);
+    }
+
+    /**
+     * @return the numeric array fetched by the last step (null if none)
+     */
+    public double[][] getNumericArray() {
+        return m_numericArray;
+    }
+
+    /**
+     * @return the string value fetched by the last step (null if none)
+     */
+    public String getStringValue() {
+        return m_stringValue;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    FlatBufferBuilder.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal builder for the FlatBuffers binary format - just enough to encode
+ * the Arrow IPC metadata (tables, unions, strings, vectors of offsets and
+ * vectors of structs). Like the reference implementation, the buffer is
+ * filled from the back so that every offset points forward.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+class FlatBufferBuilder {
+
+    private ByteBuffer m_bb;
+
+    /**
+     * Remaining free space at the front of the buffer
+     */
+    private int m_space;
+
+    private int m_minAlign = 1;
+
+    /**
+     * Offsets of the fields of the table currently being built
+     */
+    private int[] m_vtable;
+
+    private int m_objectStart;
+
+    private int m_vectorNumElems;
+
+    FlatBufferBuilder(int initialSize) {
+        m_bb = ByteBuffer.allocate(Math.max(initialSize, 16)).order(ByteOrder.LITTLE_ENDIAN);
+        m_space = m_bb.capacity();
+    }
+
+    /**
+     * @return the current position measured from the end of the buffer
+     */
+    int offset() {
+        return m_bb.capacity() - m_space;
+    }
+
+    private void grow() {
+        int oldCapacity = m_bb.capacity();
+        ByteBuffer grown = ByteBuffer.allocate(oldCapacity * 2).order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) grown).position(oldCapacity);
+        ((Buffer) m_bb).position(0);
+        grown.put(m_bb);
+        m_bb = grown;
+        m_space += oldCapacity;
+    }
+
+    private void pad(int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            m_bb.put(--m_space, (byte) 0);
+        }
+    }
+
+    /**
+     * Prepare to write an element of the given size, after additionalBytes
+     * have been written, such that the element ends up aligned.
+     */
+    private void prep(int size, int additionalBytes) {
+        if (size > m_minAlign) {
+            m_minAlign = size;
+        }
+        int alignSize = (~(m_bb.capacity() - m_space + additionalBytes) + 1) & (size - 1);
+        while (m_space < alignSize + size + additionalBytes) {
+            grow();
+        }
+        pad(alignSize);
+    }
+
+    void addByte(byte x) {
+        prep(1, 0);
+        m_bb.put(--m_space, x);
+    }
+
+    void addShort(short x) {
+        prep(2, 0);
+        m_space -= 2;
+        m_bb.putShort(m_space, x);
+    }
+
+    void addInt(int x) {
+        prep(4, 0);
+        m_space -= 4;
+        m_bb.putInt(m_space, x);
+    }
+
+    void addLong(long x) {
+        prep(8, 0);
+        m_space -= 8;
+        m_bb.putLong(m_space, x);
+    }
+
+    /**
+     * Add a reference to an object (table, string or vector) that has already
+     * been written.
+     *
+     * @param off the offset of the object, as returned when it was finished
+     */
+    void addOffset(int off) {
+        prep(4, 0);
+        int relative = offset() - off + 4;
+        m_space -= 4;
+        m_bb.putInt(m_space, relative);
+    }
+
+    int createString(String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        addByte((byte) 0);
+        startVector(1, utf8.length, 1);
+        m_space -= utf8.length;
+        for (int i = 0; i < utf8.length; i++) {
+            m_bb.put(m_space + i, utf8[i]);
+        }
+        return endVector();
+    }
+
+    void startVector(int elemSize, int numElems, int alignment) {
+        m_vectorNumElems = numElems;
+        prep(4, elemSize * numElems);
+        prep(alignment, elemSize * numElems);
+    }
+
+    int endVector() {
+        addRawInt(m_vectorNumElems);
+        return offset();
+    }
+
+    private void addRawInt(int x) {
+        prep(4, 0);
+        m_space -= 4;
+        m_bb.putInt(m_space, x);
+    }
+
+    int createOffsetVector(int[] offsets) {
+        startVector(4, offsets.length, 4);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            addOffset(offsets[i]);
+        }
+        return endVector();
+    }
+
+    /**
+     * Create a vector of structs that each consist of two longs (e.g. the Arrow
+     * FieldNode and Buffer structs).
+     *
+     * @param firsts  the first member of each struct
+     * @param seconds the second member of each struct
+     * @return the offset of the vector
+     */
+    int createLongPairVector(long[] firsts, long[] seconds) {
+        startVector(16, firsts.length, 8);
+        for (int i = firsts.length - 1; i >= 0; i--) {
+            prep(8, 16);
+            m_space -= 8;
+            m_bb.putLong(m_space, seconds[i]);
+            m_space -= 8;
+            m_bb.putLong(m_space, firsts[i]);
+        }
+        return endVector();
+    }
+
+    void startTable(int numFields) {
+        m_vtable = new int[numFields];
+        m_objectStart = offset();
+    }
+
+    private void slot(int field) {
+        m_vtable[field] = offset();
+    }
+
+    void addFieldByte(int field, byte x) {
+        addByte(x);
+        slot(field);
+    }
+
+    void addFieldBoolean(int field, boolean x) {
+        addFieldByte(field, (byte) (x ? 1 : 0));
+    }
+
+    void addFieldShort(int field, short x) {
+        addShort(x);
+        slot(field);
+    }
+
+    void addFieldInt(int field, int x) {
+        addInt(x);
+        slot(field);
+    }
+
+    void addFieldLong(int field, long x) {
+        addLong(x);
+        slot(field);
+    }
+
+    void addFieldOffset(int field, int off) {
+        addOffset(off);
+        slot(field);
+    }
+
+    int endTable() {
+        // placeholder for the offset to the vtable
+        addRawInt(0);
+        int tableLoc = offset();
+        int i = m_vtable.length - 1;
+        while (i >= 0 && m_vtable[i] == 0) {
+            i--;
+        }
+        int trimmedSize = i + 1;
+        for (; i >= 0; i--) {
+            addShort((short) (m_vtable[i] != 0 ? tableLoc - m_vtable[i] : 0));
+        }
+        addShort((short) (tableLoc - m_objectStart));
+        addShort((short) ((trimmedSize + 2) * 2));
+        int vtableLoc = offset();
+        m_bb.putInt(m_bb.capacity() - tableLoc, vtableLoc - tableLoc);
+        m_vtable = null;
+        return tableLoc;
+    }
+
+    /**
+     * Finish the buffer by writing the reference to the root table.
+     *
+     * @param rootTable the offset of the root table
+     * @return the finished buffer contents
+     */
+    byte[] finish(int rootTable) {
+        prep(m_minAlign, 4);
+        addOffset(rootTable);
+        return Arrays.copyOfRange(m_bb.array(), m_space, m_bb.capacity());
+    }
+}
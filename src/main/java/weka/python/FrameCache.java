@@ -0,0 +1,269 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    FrameCache.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which sets of instances are resident in the python server, by
+ * fingerprint, so that uploading the same data again (e.g. when retraining
+ * with different learner options) can be skipped. The server holds on to the
+ * frame (and X and Y) of each cached fingerprint; entries are evicted in
+ * least recently used order once their estimated size exceeds the memory
+ * budget. A budget of zero disables the cache.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class FrameCache {
+
+    /**
+     * Estimated size (bytes) of each value in a frame held by the server
+     */
+    protected static final int BYTES_PER_VALUE = 8;
+
+    /**
+     * Estimated sizes of the cached frames, keyed by fingerprint, in least
+     * recently used order
+     */
+    protected final LinkedHashMap<String, Long> m_entries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * The memory budget (bytes)
+     */
+    protected long m_budget;
+
+    /**
+     * Total estimated size of the cached frames (bytes)
+     */
+    protected long m_size;
+
+    protected long m_hits;
+
+    protected long m_misses;
+
+    protected long m_evictions;
+
+    /**
+     * Compute a fingerprint of a set of instances - a hash of the header, the
+     * class index and every non-zero value (with its position), as a hex
+     * string. Only the stored values of sparse instances are visited, and a
+     * dense instance hashes the same as the equivalent sparse one. Weights are
+     * not included, as they are not sent to the server.
+     *
+     * @param data the instances
+     * @return the fingerprint
+     */
+    public static String fingerprint(Instances data) {
+        // two independently seeded 64 bit lanes
+        long h1 = 0x243F6A8885A308D3L;
+        long h2 = 0x13198A2E03707344L;
+        String header = new Instances(data, 0).toString();
+        for (int i = 0; i < header.length(); i++) {
+            h1 = mix(h1, header.charAt(i));
+            h2 = mix2(h2, header.charAt(i));
+        }
+        h1 = mix(h1, data.classIndex());
+        h2 = mix2(h2, data.classIndex());
+        h1 = mix(h1, data.numInstances());
+        h2 = mix2(h2, data.numInstances());
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance current = data.instance(i);
+            h1 = mix(h1, i);
+            h2 = mix2(h2, i);
+            for (int k = 0; k < current.numValues(); k++) {
+                double value = current.valueSparse(k);
+                if (value != 0) {
+                    long bits = Double.doubleToLongBits(value);
+                    h1 = mix(h1, current.index(k));
+                    h2 = mix2(h2, current.index(k));
+                    h1 = mix(h1, bits);
+                    h2 = mix2(h2, bits);
+                }
+            }
+        }
+        return String.format("%016x%016x", finish(h1), finish(h2));
+    }
+
+    /**
+     * Estimate the size of a set of instances once held by the server.
+     *
+     * @param data the instances
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(Instances data) {
+        return (long) data.numInstances() * data.numAttributes() * BYTES_PER_VALUE;
+    }
+
+    protected static long mix(long h, long v) {
+        h ^= v * 0x9E3779B97F4A7C15L;
+        return Long.rotateLeft(h, 29) * 0xBF58476D1CE4E5B9L;
+    }
+
+    protected static long mix2(long h, long v) {
+        h ^= v * 0xC2B2AE3D27D4EB4FL;
+        return Long.rotateLeft(h, 37) * 0x94D049BB133111EBL;
+    }
+
+    protected static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Set the memory budget. Returns the fingerprints that no longer fit
+     * (which the server should drop).
+     *
+     * @param budget the budget in bytes (0 to disable the cache)
+     * @return the evicted fingerprints
+     */
+    public synchronized List<String> setBudget(long budget) {
+        m_budget = Math.max(budget, 0);
+        return evict();
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public synchronized long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * @return true if the budget allows anything to be cached
+     */
+    public synchronized boolean isEnabled() {
+        return m_budget > 0;
+    }
+
+    /**
+     * Look up a fingerprint, counting a hit or a miss.
+     *
+     * @param fingerprint the fingerprint
+     * @return true if the server holds the data with this fingerprint
+     */
+    public synchronized boolean lookup(String fingerprint) {
+        if (m_entries.get(fingerprint) != null) {
+            m_hits++;
+            return true;
+        }
+        m_misses++;
+        return false;
+    }
+
+    /**
+     * Check whether data of the given size can be cached at all.
+     *
+     * @param size the estimated size in bytes
+     * @return true if it fits in the budget
+     */
+    public synchronized boolean fits(long size) {
+        return size <= m_budget;
+    }
+
+    /**
+     * Record that the server now holds the data with the given fingerprint.
+     * Returns the fingerprints that had to be evicted to make room.
+     *
+     * @param fingerprint the fingerprint
+     * @param size        the estimated size in bytes
+     * @return the evicted fingerprints
+     */
+    public synchronized List<String> add(String fingerprint, long size) {
+        Long previous = m_entries.put(fingerprint, size);
+        if (previous != null) {
+            m_size -= previous;
+        }
+        m_size += size;
+        return evict();
+    }
+
+    /**
+     * Forget an entry (e.g. one the server turned out not to hold).
+     *
+     * @param fingerprint the fingerprint
+     */
+    public synchronized void remove(String fingerprint) {
+        Long size = m_entries.remove(fingerprint);
+        if (size != null) {
+            m_size -= size;
+        }
+    }
+
+    /**
+     * Forget all entries (e.g. when the server has been restarted).
+     */
+    public synchronized void clear() {
+        m_entries.clear();
+        m_size = 0;
+    }
+
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    /**
+     * @return the total estimated size of the cached frames, in bytes
+     */
+    public synchronized long getSize() {
+        return m_size;
+    }
+
+    protected List<String> evict() {
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while (m_size > m_budget && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            m_size -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            it.remove();
+            m_evictions++;
+        }
+        return evicted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Frame cache: " + m_entries.size() + " frame(s), " + m_size + "/" + m_budget
+                + " bytes, " + m_hits + " hit(s), " + m_misses + " miss(es), " + m_evictions
+                + " eviction(s)";
+    }
+}
@@ -4,6 +4,10 @@ import org.bytedeco.javacpp.FloatPointer;
 import weka.core.Instances;
 import weka.core.WekaException;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
 public class InstanceSender {
     /**
      * instance sending method: CSV
@@ -17,6 +21,14 @@ public class InstanceSender {
      * instance sending method: Shared GPU Memory
      */
     public static final int INSTANCE_SENDING_SHARED_GPU_MEMORY = 2;
+    /**
+     * instance sending method: Sparse CSR matrix (non-zero values only)
+     */
+    public static final int INSTANCE_SENDING_SPARSE_CSR = 3;
+    /**
+     * instance sending method: Memory mapped file (in /dev/shm where available)
+     */
+    public static final int INSTANCE_SENDING_MAPPED_FILE = 4;
     private final boolean m_Debug;
 
     /**
@@ -24,8 +36,55 @@ public class InstanceSender {
      */
     protected int m_SendingMethod;
 
+    /**
+     * Maximum number of rows per Arrow record batch (0 = single batch)
+     */
+    protected int m_ArrowChunkSize;
+
+    /**
+     * Send every Arrow column as float32, rather than narrowing integer valued
+     * columns
+     */
+    protected boolean m_ForceFloat32;
+
+    /**
+     * Codec used to compress Arrow record batches ("none", "lz4" or "zstd")
+     */
+    protected String m_ArrowCompression = "none";
+
+    /**
+     * Arrow record batches with bodies smaller than this many bytes are sent
+     * uncompressed
+     */
+    protected int m_ArrowCompressionThreshold = ArrowIPCWriter.DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Overlap converting chunks of instances with writing them to the socket
+     * (CSV and Arrow IPC only)
+     */
+    protected boolean m_Pipelined;
+
+    /**
+     * Memory budget (bytes) of the session's frame cache (0 = no caching)
+     */
+    protected long m_FrameCacheBudget;
+
+    /**
+     * Converts rows to the format of the sending method (possibly using
+     * several threads)
+     */
+    protected ColumnExtractor m_Extractor = new ColumnExtractor(1);
+
+    /**
+     * Staging areas that instances are converted into. Kept (at their high
+     * water mark) across calls to sendInstances, and dropped by release()
+     */
+    protected StagingBuffers m_Staging = new StagingBuffers();
+
     private FloatPointer m_DataPtr = null;
 
+    private File m_MappedFile = null;
+
     private final RapidsSession m_Session;
 
     public InstanceSender(RapidsSession session, int method, boolean debug) {
@@ -34,33 +93,345 @@ public class InstanceSender {
         m_Debug = debug;
     }
 
+    /**
+     * Set the maximum number of rows to convert and send per Arrow record batch.
+     * Values less than or equal to zero send all rows as a single batch.
+     *
+     * @param chunkSize the maximum number of rows per record batch
+     */
+    public void setArrowChunkSize(int chunkSize) {
+        m_ArrowChunkSize = chunkSize;
+    }
+
+    /**
+     * Get the maximum number of rows to convert and send per Arrow record batch.
+     *
+     * @return the maximum number of rows per record batch
+     */
+    public int getArrowChunkSize() {
+        return m_ArrowChunkSize;
+    }
+
+    /**
+     * Set whether to send every column as float32 when using Arrow IPC, rather
+     * than narrowing integer valued columns (e.g. binary indicators) to the
+     * smallest lossless integer type.
+     *
+     * @param forceFloat32 true to send every column as float32
+     */
+    public void setForceFloat32(boolean forceFloat32) {
+        m_ForceFloat32 = forceFloat32;
+    }
+
+    /**
+     * Get whether every column is sent as float32 when using Arrow IPC.
+     *
+     * @return true if every column is sent as float32
+     */
+    public boolean getForceFloat32() {
+        return m_ForceFloat32;
+    }
+
+    /**
+     * Set the codec used to compress Arrow record batches.
+     *
+     * @param compression one of "none", "lz4" or "zstd"
+     */
+    public void setArrowCompression(String compression) {
+        m_ArrowCompression = compression;
+    }
+
+    /**
+     * Get the codec used to compress Arrow record batches.
+     *
+     * @return one of "none", "lz4" or "zstd"
+     */
+    public String getArrowCompression() {
+        return m_ArrowCompression;
+    }
+
+    /**
+     * Set the size (in bytes) below which Arrow record batches are sent
+     * uncompressed.
+     *
+     * @param threshold the minimum body size to compress
+     */
+    public void setArrowCompressionThreshold(int threshold) {
+        m_ArrowCompressionThreshold = threshold;
+    }
+
+    /**
+     * Get the size (in bytes) below which Arrow record batches are sent
+     * uncompressed.
+     *
+     * @return the minimum body size to compress
+     */
+    public int getArrowCompressionThreshold() {
+        return m_ArrowCompressionThreshold;
+    }
+
+    /**
+     * Set whether to pipeline sending, i.e. convert instances in chunks on
+     * this thread while a writer thread sends the previous chunks (CSV and
+     * Arrow IPC only).
+     *
+     * @param pipelined true to pipeline sending
+     */
+    public void setPipelined(boolean pipelined) {
+        m_Pipelined = pipelined;
+    }
+
+    /**
+     * Get whether sending is pipelined.
+     *
+     * @return true if sending is pipelined
+     */
+    public boolean getPipelined() {
+        return m_Pipelined;
+    }
+
+    /**
+     * Set the memory budget of the session's frame cache. Instances sent as
+     * cacheable are fingerprinted, and not sent again while the server still
+     * holds instances with the same fingerprint. The budget applies to the
+     * whole session (i.e. to every sender using it).
+     *
+     * @param budget the budget in bytes (0 to disable caching)
+     * @throws WekaException if frames that no longer fit can't be dropped
+     */
+    public void setFrameCacheBudget(long budget) throws WekaException {
+        m_FrameCacheBudget = budget;
+        m_Session.setFrameCacheBudget(budget, m_Debug);
+    }
+
+    /**
+     * Get the memory budget of the session's frame cache.
+     *
+     * @return the budget in bytes
+     */
+    public long getFrameCacheBudget() {
+        return m_FrameCacheBudget;
+    }
+
+    /**
+     * Set the number of threads used to convert instances to the format of the
+     * sending method.
+     *
+     * @param numThreads the number of threads (0 or less to use one per
+     *                   available processor)
+     */
+    public void setNumConversionThreads(int numThreads) {
+        m_Extractor.shutdown();
+        m_Extractor = new ColumnExtractor(numThreads);
+    }
+
+    /**
+     * Get the number of threads used to convert instances.
+     *
+     * @return the number of threads
+     */
+    public int getNumConversionThreads() {
+        return m_Extractor.getNumThreads();
+    }
+
     public void sendInstances(Instances instances, String pythonFrameName, boolean debug) throws WekaException {
+        sendInstances(instances, pythonFrameName, false, debug);
+    }
+
+    /**
+     * Send instances to python. If cacheable (and the frame cache has a
+     * budget), then the instances are not sent if the server still holds an
+     * identical set from an earlier call; instead, the held frame, X and Y are
+     * made current again. Instances shared via GPU memory are never cached, as
+     * the memory is released by the next send.
+     *
+     * @param instances       the instances to send
+     * @param pythonFrameName the name of the frame in python
+     * @param cacheable       true if the instances are likely to be sent again
+     *                        (e.g. training data)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void sendInstances(Instances instances, String pythonFrameName, boolean cacheable,
+                              boolean debug) throws WekaException {
+        sendInstances(instances, pythonFrameName, cacheable, null, debug);
+    }
+
+    /**
+     * Send instances to python, followed by a compound command (e.g. to train
+     * or predict and fetch the result) that the server runs as part of the
+     * same request, so that the whole sequence takes a single round trip. If
+     * the instances don't need to be sent (they are held in the frame cache)
+     * then the compound command is run on its own. Its results are stored in
+     * it.
+     *
+     * @param instances       the instances to send
+     * @param pythonFrameName the name of the frame in python
+     * @param cacheable       true if the instances are likely to be sent again
+     *                        (e.g. training data)
+     * @param compound        the compound command to run once the instances
+     *                        are in place (may be null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs, or a step of the compound
+     *                       command failed
+     */
+    public void sendInstances(Instances instances, String pythonFrameName, boolean cacheable,
+                              CompoundCommand compound, boolean debug) throws WekaException {
         reset();
+        String fingerprint = null;
+        if (cacheable && m_SendingMethod != INSTANCE_SENDING_SHARED_GPU_MEMORY
+                && m_Session.getFrameCache().isEnabled()) {
+            long begin = System.currentTimeMillis();
+            fingerprint = FrameCache.fingerprint(instances) + fingerprintSuffix();
+            boolean hit = m_Session.restoreCachedFrame(fingerprint, pythonFrameName, debug);
+            if (m_Debug) {
+                System.out.println("Time taken to fingerprint instances: "
+                        + (System.currentTimeMillis() - begin) + "ms");
+                System.out.println(m_Session.getFrameCache());
+            }
+            if (hit) {
+                if (compound != null) {
+                    m_Session.executeCompound(compound, debug);
+                }
+                return;
+            }
+        }
         if (m_Debug) {
             System.out.println("Sending instances via method: " + m_SendingMethod);
         }
 
+        // the instances are cached by the compound command before its steps
+        // run, as these may replace X and Y
+        boolean cachedByCompound = fingerprint != null && compound != null
+                && m_Session.cacheFrameWith(compound, fingerprint, pythonFrameName,
+                FrameCache.estimateSize(instances));
+
         //Start time
         long begin = System.currentTimeMillis();
+        m_Extractor.resetConversionTime();
+
+        try {
+            send(instances, pythonFrameName, compound, debug);
+        } catch (WekaException ex) {
+            if (cachedByCompound) {
+                // the server may have cached them before a step failed
+                try {
+                    m_Session.evictFrames(Collections.singletonList(fingerprint), debug);
+                } catch (WekaException evictEx) {
+                    ex.addSuppressed(evictEx);
+                }
+            }
+            throw ex;
+        }
+
+        //End time
+        long end = System.currentTimeMillis();
+
+        if (m_Debug) {
+            System.out.println("Time taken to convert instances: " + m_Extractor.getConversionTime()
+                    + "ms (" + m_Extractor.getNumThreads() + " thread(s))");
+            System.out.println("Time taken to send instances: " + (end - begin) + "ms");
+            System.out.println("Staging buffers: " + m_Staging.getDirectBytes() + " bytes");
+        }
+
+        if (cachedByCompound) {
+            m_Session.frameCached(fingerprint, FrameCache.estimateSize(instances), debug);
+        } else if (fingerprint != null && compound == null) {
+            m_Session.cacheFrame(fingerprint, pythonFrameName, FrameCache.estimateSize(instances),
+                    debug);
+        }
+    }
 
+    /**
+     * Get the suffix that makes the fingerprint of instances specific to the
+     * way they are sent, as that determines what the server holds: the type
+     * of X, whether nominal values are one-hot encoded from label indexes by
+     * the server, and whether numeric values are narrowed to float32.
+     *
+     * @return the suffix
+     */
+    protected String fingerprintSuffix() {
+        boolean nominalIndexes = m_SendingMethod != INSTANCE_SENDING_SPARSE_CSR
+                && m_SendingMethod != INSTANCE_SENDING_SHARED_GPU_MEMORY;
+        return "-" + m_SendingMethod + (nominalIndexes ? "-indexes" : "-values")
+                + (m_ForceFloat32 ? "-float32" : "-float64");
+    }
+
+    /**
+     * Send instances via the sending method, followed by the compound command
+     * (if any).
+     *
+     * @param instances       the instances to send
+     * @param pythonFrameName the name of the frame in python
+     * @param compound        the compound command (may be null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    protected void send(Instances instances, String pythonFrameName, CompoundCommand compound,
+                        boolean debug) throws WekaException {
         switch (m_SendingMethod) {
             case INSTANCE_SENDING_CSV:
-                m_Session.instancesToPythonAsScikitLearn(instances, pythonFrameName, debug);
+                m_Session.instancesToPythonAsScikitLearn(instances, pythonFrameName, m_Pipelined,
+                        m_Extractor, m_Staging, compound, debug);
                 break;
             case INSTANCE_SENDING_SHARED_GPU_MEMORY:
                 m_DataPtr = new FloatPointer();
-                m_Session.instancesToPythonAsCuda(instances, m_DataPtr, pythonFrameName, debug);
+                m_Session.instancesToPythonAsCuda(instances, m_DataPtr, pythonFrameName, m_Extractor,
+                        m_Staging, compound, debug);
+                break;
+            case INSTANCE_SENDING_MAPPED_FILE:
+                m_MappedFile = RapidsUtils.newSharedMemoryFile();
+                try {
+                    m_Session.instancesToPythonAsMappedFile(instances, m_MappedFile,
+                            pythonFrameName, m_Extractor, compound, debug);
+                } finally {
+                    // the server keeps its own mapping - unless the transfer
+                    // is pipelined, in which case it may not have been mapped
+                    // yet (it is deleted by reset() instead)
+                    if (compound == null || !compound.isReplyDeferred()) {
+                        m_MappedFile.delete();
+                    }
+                }
+                break;
+            case INSTANCE_SENDING_SPARSE_CSR:
+                m_Session.instancesToPythonAsSparse(instances, pythonFrameName, m_Extractor,
+                        m_Staging, compound, debug);
                 break;
             default: // INSTANCE_SENDING_ARROW_IPC
-                m_Session.instancesToPythonAsArrow(instances, pythonFrameName, debug);
+                m_Session.instancesToPythonAsArrow(instances, pythonFrameName, m_ArrowChunkSize,
+                        m_ForceFloat32, m_ArrowCompression, m_ArrowCompressionThreshold, m_Pipelined,
+                        m_Extractor, m_Staging, compound, debug);
         }
+    }
 
-        //End time
-        long end = System.currentTimeMillis();
-
-        if (m_Debug) {
-            System.out.println("Time taken to send instances: " + (end - begin) + "ms");
-        }
+    /**
+     * Send instances to python as a pipelined request, followed by a compound
+     * command (e.g. to predict and fetch the predictions) that the server runs
+     * as part of the same request. This returns once the request has been
+     * written, without waiting for the server, so that the next batch can be
+     * converted and sent while the server is still working on this one. The
+     * instances are not cached. Instances shared via GPU memory or a memory
+     * mapped file are only released once the server is done with them, so
+     * with those methods the next send waits for this request to complete.
+     *
+     * @param instances       the instances to send
+     * @param pythonFrameName the name of the frame in python
+     * @param compound        the compound command to run once the instances
+     *                        are in place (may be null)
+     * @param debug           true for debugging output
+     * @return a future that is completed with the compound command, holding
+     * its results, once the reply has been received
+     */
+    public CompletableFuture<CompoundCommand> sendInstancesAsync(final Instances instances,
+                                                                 final String pythonFrameName,
+                                                                 CompoundCommand compound,
+                                                                 final boolean debug) {
+        return m_Session.instancesToPythonAsync(new RapidsSession.Transfer() {
+            @Override
+            public void send(CompoundCommand compound) throws WekaException {
+                sendInstances(instances, pythonFrameName, false, compound, debug);
+            }
+        }, compound != null ? compound : new CompoundCommand(debug));
     }
 
     @Override
@@ -74,9 +445,16 @@ public class InstanceSender {
             m_Session.freeMemory(m_DataPtr);
             m_DataPtr = null;
         }
+        if (m_MappedFile != null) {
+            m_Session.closeMappedFile(m_Debug);
+            m_MappedFile.delete();
+            m_MappedFile = null;
+        }
     }
 
     public void release() throws WekaException {
         reset();
+        m_Extractor.shutdown();
+        m_Staging.release();
     }
 }
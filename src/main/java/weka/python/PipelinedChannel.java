@@ -0,0 +1,248 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    PipelinedChannel.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A channel that hands the bytes written to it over to a writer thread, which
+ * drains them to an underlying channel (i.e. the socket to the python server).
+ * Writes are copied into a small, fixed number of buffers that cycle between
+ * the two threads through bounded queues, so the thread converting instances
+ * can carry on with the next chunk while the previous one is on the wire, and
+ * blocks when it gets more than a few buffers ahead. Closing this channel
+ * flushes the remaining bytes and waits for the writer thread, but does not
+ * close the underlying channel. An error on the writer thread is rethrown by
+ * the next write (or close).
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class PipelinedChannel implements WritableByteChannel {
+
+    /**
+     * Size of each buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Number of buffers
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * Queued to stop the writer thread
+     */
+    protected static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * The channel written to by the writer thread
+     */
+    protected final WritableByteChannel m_channel;
+
+    /**
+     * Buffers waiting to be written
+     */
+    protected final BlockingQueue<ByteBuffer> m_full;
+
+    /**
+     * Buffers available to be filled
+     */
+    protected final BlockingQueue<ByteBuffer> m_free;
+
+    /**
+     * The buffer being filled
+     */
+    protected ByteBuffer m_current;
+
+    /**
+     * Drains m_full
+     */
+    protected final Thread m_writer;
+
+    /**
+     * The first error on the writer thread
+     */
+    protected volatile IOException m_error;
+
+    /**
+     * Time the writing thread spent waiting for a free buffer (nanoseconds)
+     */
+    protected long m_stallTime;
+
+    protected boolean m_open = true;
+
+    /**
+     * Constructor. Uses the default buffer size and depth.
+     *
+     * @param channel the channel to write to
+     * @param staging the staging buffers to take the buffers from
+     */
+    public PipelinedChannel(WritableByteChannel channel, StagingBuffers staging) {
+        this(channel, staging, DEFAULT_BUFFER_SIZE, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param channel    the channel to write to
+     * @param staging    the staging buffers to take the buffers from
+     * @param bufferSize the size of each buffer
+     * @param depth      the number of buffers (at least two)
+     */
+    public PipelinedChannel(WritableByteChannel channel, StagingBuffers staging,
+                            int bufferSize, int depth) {
+        m_channel = channel;
+        depth = Math.max(depth, 2);
+        m_full = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+        m_free = new ArrayBlockingQueue<ByteBuffer>(depth);
+        m_current = staging.getBuffer("pipeline_0", bufferSize);
+        for (int i = 1; i < depth; i++) {
+            m_free.add(staging.getBuffer("pipeline_" + i, bufferSize));
+        }
+        m_writer = new Thread("wekaRAPIDS pipelined writer") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    protected void drain() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = m_full.take()) != END) {
+                if (m_error == null) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            m_channel.write(buffer);
+                        }
+                    } catch (IOException ex) {
+                        // keep recycling buffers so that the producer doesn't
+                        // block - it picks the error up on its next write
+                        m_error = ex;
+                    }
+                }
+                ((Buffer) buffer).clear();
+                m_free.put(buffer);
+            }
+        } catch (InterruptedException ex) {
+            m_error = new InterruptedIOException("Pipelined writer interrupted");
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!m_open) {
+            throw new ClosedChannelException();
+        }
+        checkError();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (!m_current.hasRemaining()) {
+                handOff();
+                m_current = take();
+            }
+            int count = Math.min(src.remaining(), m_current.remaining());
+            ByteBuffer slice = src.duplicate();
+            ((Buffer) slice).limit(slice.position() + count);
+            m_current.put(slice);
+            ((Buffer) src).position(src.position() + count);
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return m_open;
+    }
+
+    /**
+     * Write out any buffered bytes and wait for the writer thread to finish.
+     *
+     * @throws IOException if writing to the underlying channel failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!m_open) {
+            return;
+        }
+        m_open = false;
+        try {
+            if (m_current.position() > 0) {
+                handOff();
+            }
+            m_current = null;
+            m_full.put(END);
+            m_writer.join();
+        } catch (InterruptedException ex) {
+            m_writer.interrupt();
+            throw new InterruptedIOException("Interrupted while flushing pipelined writes");
+        }
+        checkError();
+    }
+
+    /**
+     * @return the time the writing thread spent waiting for the writer thread
+     * to free a buffer, in milliseconds (i.e. how much longer transmitting
+     * took than converting)
+     */
+    public long getStallTime() {
+        return m_stallTime / 1000000L;
+    }
+
+    protected void handOff() throws IOException {
+        ((Buffer) m_current).flip();
+        try {
+            m_full.put(m_current);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while queueing pipelined writes");
+        }
+    }
+
+    protected ByteBuffer take() throws IOException {
+        long begin = System.nanoTime();
+        try {
+            return m_free.take();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for pipelined writes");
+        } finally {
+            m_stallTime += System.nanoTime() - begin;
+            checkError();
+        }
+    }
+
+    protected void checkError() throws IOException {
+        if (m_error != null) {
+            throw new IOException("Writing to the python server failed", m_error);
+        }
+    }
+}
@@ -34,13 +34,19 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.bytedeco.cuda.global.cudart.cudaFree;
 
@@ -88,9 +94,22 @@ public class RapidsSession {
     private String m_sessionKey;
 
     /**
-     * the current session holder
+     * Entries to prepend to the PATH when launching the server (null if the
+     * server is launched directly)
      */
-    private Object m_sessionHolder;
+    private String m_pathEntries;
+
+    /**
+     * The pool that this session belongs to
+     */
+    protected RapidsSessionPool m_pool;
+
+    /**
+     * the current session holders. There is more than one only when the
+     * thread holding the session shares it between several of its requesters
+     */
+    private final Set<Object> m_sessionHolders =
+            Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
 
     /**
      * For locking
@@ -98,14 +117,14 @@ public class RapidsSession {
     protected RapidsSessionMutex m_mutex = new RapidsSessionMutex();
 
     /**
-     * Server socket
+     * Transport (TCP or Unix domain socket) for comms with the python server
      */
-    protected ServerSocket m_serverSocket;
+    protected ServerTransport m_transport;
 
     /**
-     * Local socket for comms with the python server
+     * True to use a Unix domain socket (if available) rather than TCP
      */
-    protected Socket m_localSocket;
+    protected boolean m_unixDomainSocket;
 
     /**
      * The process executing the server
@@ -137,6 +156,63 @@ public class RapidsSession {
      */
     protected Logger m_log;
 
+    /**
+     * The maximum number of schemas registered with the server at a time. The
+     * least recently used schema is unregistered to make room for a new one
+     */
+    protected static final int MAX_SCHEMAS = 32;
+
+    /**
+     * Headers of the schemas registered with the server, keyed by schema id
+     * (in order of use, least recently used first)
+     */
+    protected Map<Integer, Instances> m_schemas =
+            new LinkedHashMap<Integer, Instances>(16, 0.75f, true);
+
+    /**
+     * Ids of the registered schemas, keyed by the hash of their header (see
+     * {@link RapidsUtils#headerHash}), so that only headers that are likely
+     * to be equal are compared in full
+     */
+    protected Map<Integer, List<Integer>> m_schemaIds = new HashMap<Integer, List<Integer>>();
+
+    /**
+     * The id to register the next schema under
+     */
+    protected int m_nextSchemaId;
+
+    /**
+     * Fingerprints of the instances held by the server for reuse
+     */
+    protected FrameCache m_frameCache = new FrameCache();
+
+    /**
+     * Ids of the functions installed in the server
+     */
+    protected Set<String> m_functions = new HashSet<String>();
+
+    /**
+     * Lets requests be written without waiting for the replies to earlier
+     * ones (created once connected)
+     */
+    protected CommandPipeline m_pipeline;
+
+    /**
+     * Transfers instances as part of a pipelined request (see
+     * instancesToPythonAsync())
+     */
+    public interface Transfer {
+
+        /**
+         * Transfer the instances by calling one of the instancesToPython
+         * methods that take a compound command, passing it the supplied one.
+         *
+         * @param compound the compound command to pass on
+         * @throws WekaException if a problem occurs
+         */
+        void send(CompoundCommand compound) throws WekaException;
+    }
+
     /**
      * Acquire the default session for the requester
      *
@@ -146,12 +222,29 @@ public class RapidsSession {
      */
     public static RapidsSession acquireSession(Object requester)
             throws WekaException {
+        return acquireSession(requester, null);
+    }
+
+    /**
+     * Acquire a session of the default pool for the requester
+     *
+     * @param requester the object requesting the session
+     * @param placement the name of a variable (e.g. a fitted model) that the
+     *                  requester needs (may be null). If the variable has been
+     *                  placed on a session (see setPlacement()), then that
+     *                  session is returned
+     * @return a session of the default pool
+     * @throws WekaException if python is not available
+     */
+    public static RapidsSession acquireSession(Object requester, String placement)
+            throws WekaException {
 
-        if (s_sessionSingleton == null) {
+        RapidsSession singleton = s_sessionSingleton;
+        if (singleton == null) {
             throw new WekaException("Python not available!");
         }
 
-        return s_sessionSingleton.getSession(requester);
+        return singleton.m_pool.acquire(requester, placement).adoptPoolSettings(requester);
     }
 
     /**
@@ -168,13 +261,36 @@ public class RapidsSession {
      */
     public static RapidsSession acquireSession(String pythonCommand,
                                                String ownerID, Object requester) throws WekaException {
+        return acquireSession(pythonCommand, ownerID, requester, null);
+    }
+
+    /**
+     * @param pythonCommand command (either fully qualified path or that which is
+     *                      in the PATH). This, plus the optional ownerID is used to lookup
+     *                      and return a session/server.
+     * @param ownerID       an optional ownerID string for acquiring the session. This
+     *                      can be used to restrict the session/server to one (or more)
+     *                      clients (i.e. those with the ID "ownerID").
+     * @param requester     the object requesting the session/server
+     * @param placement     the name of a variable (e.g. a fitted model) that the
+     *                      requester needs (may be null). If the variable has been
+     *                      placed on a session (see setPlacement()), then that
+     *                      session is returned
+     * @return a session
+     * @throws WekaException if the requested session/server is not available (or
+     *                       does not exist).
+     */
+    public static RapidsSession acquireSession(String pythonCommand,
+                                               String ownerID, Object requester, String placement)
+            throws WekaException {
         String key =
                 pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
-        if (!m_pythonServers.containsKey(key)) {
+        RapidsSession primary = m_pythonServers.get(key);
+        if (primary == null) {
             throw new WekaException(
                     "Python session " + key + " does not seem to exist!");
         }
-        return m_pythonServers.get(key).getSession(requester);
+        return primary.m_pool.acquire(requester, placement).adoptPoolSettings(requester);
     }
 
     /**
@@ -184,7 +300,7 @@ public class RapidsSession {
      * @param requester the session holder
      */
     public static void releaseSession(Object requester) {
-        s_sessionSingleton.dropSession(requester);
+        s_sessionSingleton.m_pool.release(requester);
     }
 
     /**
@@ -204,11 +320,12 @@ public class RapidsSession {
                                       Object requester) throws WekaException {
         String key =
                 pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
-        if (!m_pythonServers.containsKey(key)) {
+        RapidsSession primary = m_pythonServers.get(key);
+        if (primary == null) {
             throw new WekaException(
                     "Python session " + key + " does not seem to exist!");
         }
-        m_pythonServers.get(key).dropSession(requester);
+        primary.m_pool.release(requester);
     }
 
     /**
@@ -249,12 +366,16 @@ public class RapidsSession {
      * @param debug         true for debugging output
      * @param defaultServer true if the default (i.e. python in the system PATH)
      *                      server is to be used
+     * @param unixDomainSocket true to communicate with the server over a Unix
+     *                      domain socket (falls back to TCP if unavailable)
      * @throws IOException if a problem occurs
      */
     private RapidsSession(String pythonCommand, String ownerID,
-                          String pathEntries, boolean debug, boolean defaultServer)
+                          String pathEntries, boolean debug, boolean defaultServer,
+                          boolean unixDomainSocket)
             throws IOException {
         m_debug = debug;
+        m_unixDomainSocket = unixDomainSocket;
 
         m_pythonCommand = pythonCommand;
         m_sessionKey = pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
@@ -262,10 +383,12 @@ public class RapidsSession {
             throw new IOException(
                     "A server session for " + m_sessionKey + " Already exists!");
         }
+        m_pool = new RapidsSessionPool(this);
 
         if (!defaultServer && pathEntries != null && pathEntries.length() > 0) {
             // use a shell/batch script to launch the server (so that we can
             // set the path so that the python server works correctly)
+            m_pathEntries = pathEntries;
             String envCheckResults = writeAndLaunchPyCheck(pathEntries);
             m_pythonEnvCheckResults.put(m_sessionKey, envCheckResults);
             if (envCheckResults.length() < 5) {
@@ -304,44 +427,174 @@ public class RapidsSession {
      *
      * @param pythonCommand the command used to start python
      * @param debug         true for debugging output
+     * @param unixDomainSocket true to communicate with the server over a Unix
+     *                      domain socket (falls back to TCP if unavailable)
      * @throws IOException if a problem occurs
      */
-    private RapidsSession(String pythonCommand, boolean debug)
+    private RapidsSession(String pythonCommand, boolean debug, boolean unixDomainSocket)
             throws IOException {
-        this(pythonCommand, null, null, debug, true);
+        this(pythonCommand, null, null, debug, true, unixDomainSocket);
+    }
+
+    /**
+     * Constructor for a session that is not connected to a server and belongs
+     * to no pool (e.g. for testing how a pool hands out its sessions).
+     */
+    protected RapidsSession() {
+    }
+
+    /**
+     * Private constructor for a further session of a pool. Launches another
+     * server in the same way as the first session of the pool (whose
+     * environment has already been checked).
+     *
+     * @param first the first session of the pool
+     * @param index the index of the new session in the pool
+     * @throws IOException if a problem occurs
+     */
+    private RapidsSession(RapidsSession first, int index) throws IOException {
+        m_debug = first.m_debug;
+        m_unixDomainSocket = first.m_unixDomainSocket;
+        m_log = first.m_log;
+        m_pythonCommand = first.m_pythonCommand;
+        m_pathEntries = first.m_pathEntries;
+        m_sessionKey = first.m_sessionKey + "#" + index;
+        m_pool = first.m_pool;
+
+        if (m_pathEntries != null) {
+            launchServerScript(m_pathEntries);
+        } else {
+            launchServer(true);
+        }
+        m_pool.add(this);
     }
 
     /**
-     * Gets the access to python for a requester. Handles locking.
+     * Gets the access to python for a requester. Handles locking. Called by
+     * the pool once it has chosen this session for the requester.
      *
      * @param requester the requesting object
      * @return the session
      * @throws WekaException if python is not available
      */
-    private synchronized RapidsSession getSession(Object requester)
+    protected RapidsSession getSession(Object requester)
             throws WekaException {
 
-        if (m_sessionHolder == requester) {
-            return this;
+        synchronized (this) {
+            if (m_sessionHolders.contains(requester)) {
+                return this;
+            }
+            if (!m_sessionHolders.isEmpty() && m_mutex.isLockedByCurrentThread()) {
+                // shared with another requester of the current thread
+                m_sessionHolders.add(requester);
+                return this;
+            }
         }
 
+        // wait for the lock without holding this session's monitor
         m_mutex.safeLock();
-        m_sessionHolder = requester;
+        synchronized (this) {
+            m_sessionHolders.add(requester);
+        }
         return this;
     }
 
     /**
-     * Release the session for a requester
+     * Release the session for a requester. The session is unlocked once the
+     * last of its holders has released it.
      *
      * @param requester the requesting object
      */
-    private void dropSession(Object requester) {
-        if (requester == m_sessionHolder) {
-            m_sessionHolder = null;
+    protected synchronized void dropSession(Object requester) {
+        if (m_sessionHolders.remove(requester) && m_sessionHolders.isEmpty()) {
             m_mutex.unlock();
         }
     }
 
+    /**
+     * @return true if the session is currently held by a requester
+     */
+    protected synchronized boolean isHeld() {
+        return !m_sessionHolders.isEmpty();
+    }
+
+    /**
+     * @return true if the session is currently held by a requester on the
+     * current thread
+     */
+    protected synchronized boolean isHeldByCurrentThread() {
+        return !m_sessionHolders.isEmpty() && m_mutex.isLockedByCurrentThread();
+    }
+
+    /**
+     * Bring this session (just acquired by the requester) in line with the
+     * settings of its pool - i.e. adopt the pool's frame cache budget if it
+     * has been configured and differs from the session's. The session is
+     * released again if this fails.
+     *
+     * @param requester the requester holding the session
+     * @return this session
+     * @throws WekaException if a problem occurs
+     */
+    protected RapidsSession adoptPoolSettings(Object requester) throws WekaException {
+        long budget = m_pool.getFrameCacheBudget();
+        if (budget >= 0 && budget != m_frameCache.getBudget()) {
+            try {
+                setFrameCacheBudget(budget, m_debug);
+            } catch (WekaException ex) {
+                m_pool.release(requester);
+                throw ex;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Record that a variable (e.g. a fitted model) is held by the server of
+     * this session, so that requesters acquiring a session for the variable
+     * are given this one.
+     *
+     * @param name the name of the variable
+     */
+    public void setPlacement(String name) {
+        m_pool.place(name, this);
+    }
+
+    /**
+     * Forget where a variable is held (e.g. because it has been deleted).
+     *
+     * @param name the name of the variable
+     */
+    public void clearPlacement(String name) {
+        m_pool.unplace(name);
+    }
+
+    /**
+     * Get the pool that this session belongs to.
+     *
+     * @return the pool
+     */
+    public RapidsSessionPool getPool() {
+        return m_pool;
+    }
+
+    /**
+     * Start further servers for this session's pool until it has the given
+     * number of sessions. The pool is never shrunk.
+     *
+     * @param size the number of sessions required
+     * @throws WekaException if a server could not be started
+     */
+    protected void growPool(int size) throws WekaException {
+        for (int i = m_pool.size(); i < size; i++) {
+            try {
+                new RapidsSession(this, i);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        }
+    }
+
     /**
      * Executes the python environment check script via a wrapping shell/batch script.
      *
@@ -441,16 +694,18 @@ public class RapidsSession {
         if (m_debug) {
             System.err.println("Launching server socket...");
         }
-        m_serverSocket = new ServerSocket(0);
-        m_serverSocket.setSoTimeout(12000);
+        m_transport = ServerTransport.open(m_unixDomainSocket, m_debug);
+        if (m_debug) {
+            System.err.println("Server transport: " + m_transport.getAddress());
+        }
 
         Thread acceptThread = new Thread() {
             @Override
             public void run() {
                 try {
-                    m_localSocket = m_serverSocket.accept();
+                    m_transport.accept(12000);
                 } catch (IOException e) {
-                    m_localSocket = null;
+                    // checked by checkLocalSocketAndCreateShutdownHook()
                 }
             }
         };
@@ -467,12 +722,15 @@ public class RapidsSession {
      * @throws IOException if a problem occurs
      */
     private void checkLocalSocketAndCreateShutdownHook() throws IOException {
-        if (m_localSocket == null) {
+        if (!m_transport.isConnected()) {
             shutdown();
             throw new IOException("Was unable to start python server");
         } else {
             m_pythonPID =
-                    RapidsUtils.receiveServerPIDAck(m_localSocket.getInputStream());
+                    RapidsUtils.receiveServerPIDAck(m_transport.getOutputStream(),
+                            m_transport.getInputStream());
+            m_pipeline = new CommandPipeline(m_transport.getOutputStream(),
+                    m_transport.getInputStream());
 
             m_shutdownHook = new Thread() {
                 @Override
@@ -496,14 +754,13 @@ public class RapidsSession {
      */
     private void launchServer(boolean startPython) throws IOException {
         Thread acceptThread = startServerSocket();
-        int localPort = m_serverSocket.getLocalPort();
 
         if (startPython) {
             String serverScript = WekaPackageManager.PACKAGES_DIR.getAbsolutePath()
                     + File.separator + "wekaRAPIDS" + File.separator + "resources"
                     + File.separator + "py" + File.separator + "pyRapidsServer.py";
             ProcessBuilder processBuilder = new ProcessBuilder(m_pythonCommand,
-                    serverScript, "" + localPort, m_debug ? "debug" : "");
+                    serverScript, m_transport.getAddress(), m_debug ? "debug" : "");
             m_serverProcess = processBuilder.start();
         }
         try {
@@ -529,7 +786,7 @@ public class RapidsSession {
 
         Thread acceptThread = startServerSocket();
         String script = getLaunchScript(pathEntries, "pyRapidsServer.py", windows,
-                m_serverSocket.getLocalPort(), m_debug ? "debug" : "");
+                m_transport.getAddress(), m_debug ? "debug" : "");
         if (m_debug) {
             System.err.println("Executing server launch script:\n\n" + script);
         }
@@ -582,7 +839,7 @@ public class RapidsSession {
 
         try {
             return RapidsUtils.getPythonVariableType(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
+                    outputStream(), m_transport.getInputStream(), m_log,
                     debug);
         } catch (Exception ex) {
             throw new WekaException(ex);
@@ -590,188 +847,822 @@ public class RapidsSession {
     }
 
     /**
-     * Transfer Weka instances into python as a named pandas data frame
+     * Get the output stream of the connection for a lock-step exchange with the
+     * server, once the replies to any pipelined requests have been received.
      *
-     * @param instances       the instances to transfer
-     * @param pythonFrameName the name of the data frame to use in python
-     * @param debug           true for debugging output
-     * @throws WekaException if a problem occurs
+     * @return the output stream
+     * @throws IOException if a problem occurs
      */
-    public void instancesToPython(Instances instances, String pythonFrameName,
-                                  boolean debug) throws WekaException {
-        try {
-            RapidsUtils.sendInstances(instances, pythonFrameName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (Exception ex) {
-            throw new WekaException(ex);
+    protected OutputStream outputStream() throws IOException {
+        if (m_pipeline != null) {
+            m_pipeline.awaitIdle();
         }
+        return m_transport.getOutputStream();
     }
 
     /**
-     * Transfer Weka instances into python as a pandas data frame and then extract
-     * out numpy arrays of input and target features/columns. These arrays are
-     * named X and Y respectively in python. If there is no class set in the
-     * instances then only an X array is extracted.
+     * Get the output stream of the connection for a transfer of instances.
+     * There is no need to wait for the replies to pipelined requests if the
+     * reply to the transfer is received by the pipeline too.
      *
-     * @param instances       the instances to transfer
-     * @param pythonFrameName the name of the pandas data frame to use in python
-     * @param debug           true for debugging output
-     * @throws WekaException if a problem occurs
+     * @param compound the compound command sent with the transfer (may be
+     *                 null)
+     * @return the output stream
+     * @throws IOException if a problem occurs
      */
-    public void instancesToPythonAsScikitLearn(Instances instances,
-                                               String pythonFrameName, boolean debug) throws WekaException {
-        try {
-            RapidsUtils.sendInstancesScikitLearn(instances, pythonFrameName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (Exception ex) {
-            throw new WekaException(ex);
-        }
-    }
-
-    public void instancesToPythonAsArrow(Instances instances,
-                                         String pythonFrameName, boolean debug) throws WekaException {
-        try {
-            RapidsUtils.sendInstancesArrow(instances, pythonFrameName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (Exception ex) {
-            throw new WekaException(ex);
+    protected OutputStream outputStream(CompoundCommand compound) throws IOException {
+        if (compound != null && compound.isReplyDeferred()) {
+            return m_transport.getOutputStream();
         }
+        return outputStream();
     }
 
     /**
-     * Transfer Weka instances into cuda array. And share it with python via GPU memory.
+     * Get the id of the schema for the supplied instances, registering the
+     * schema with the server if no schema with equal headers has been
+     * registered in this session yet. Once {@link #MAX_SCHEMAS} schemas are
+     * registered, the least recently used one is unregistered first.
      *
-     * @param instances       the instances to transfer
-     * @param pythonFrameName the name of the pandas data frame to use in python
-     * @param debug           true for debugging output
+     * @param instances the instances to get the schema id for
+     * @param debug     true for debugging output
+     * @return the schema id
      * @throws WekaException if a problem occurs
      */
-    public void instancesToPythonAsCuda(Instances instances, FloatPointer dstPtr,
-                                        String pythonFrameName, boolean debug) throws WekaException {
-        try {
-            RapidsUtils.sendInstancesCuda(instances, dstPtr, pythonFrameName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (Exception ex) {
-            throw new WekaException(ex);
+    protected int schemaId(Instances instances, boolean debug) throws WekaException {
+        int hash = RapidsUtils.headerHash(instances);
+        List<Integer> candidates = m_schemaIds.get(hash);
+        if (candidates != null) {
+            for (Integer id : candidates) {
+                // get() marks the schema as used
+                if (m_schemas.get(id).equalHeaders(instances)) {
+                    return id;
+                }
+            }
         }
-    }
-
-    public void freeMemory(Pointer ptr) {
-        cudaFree(ptr);
-    }
 
-    public void closeIPCHandle(boolean debug) throws WekaException {
         try {
-            RapidsUtils.sendCloseIPCHandle(m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log, debug);
-        } catch (Exception ex) {
+            if (m_schemas.size() >= MAX_SCHEMAS) {
+                Integer eldest = m_schemas.keySet().iterator().next();
+                Instances header = m_schemas.remove(eldest);
+                int eldestHash = RapidsUtils.headerHash(header);
+                m_schemaIds.get(eldestHash).remove(eldest);
+                if (m_schemaIds.get(eldestHash).isEmpty()) {
+                    m_schemaIds.remove(eldestHash);
+                }
+                RapidsUtils.unregisterSchema(eldest, outputStream(),
+                        m_transport.getInputStream(), m_log, debug);
+            }
+            int id = m_nextSchemaId++;
+            RapidsUtils.registerSchema(instances, id, outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
+            m_schemas.put(id, new Instances(instances, 0));
+            candidates = m_schemaIds.get(hash);
+            if (candidates == null) {
+                candidates = new ArrayList<Integer>(1);
+                m_schemaIds.put(hash, candidates);
+            }
+            candidates.add(id);
+            return id;
+        } catch (IOException ex) {
             throw new WekaException(ex);
         }
     }
 
+    /**
+     * Get the cache of instances held by the server (for its statistics).
+     *
+     * @return the frame cache
+     */
+    public FrameCache getFrameCache() {
+        return m_frameCache;
+    }
 
     /**
-     * Retrieve a pandas data frame from Python and convert it to a set of
-     * instances. The resulting set of instances will not have a class index set.
+     * Set the memory budget of the frame cache, dropping frames that no longer
+     * fit.
      *
-     * @param frameName the name of the pandas data frame to extract and convert
-     *                  to instances
-     * @param debug     true for debugging output
-     * @return an Instances object
-     * @throws WekaException if the named data frame does not exist in python or
-     *                       is not a pandas data frame
+     * @param budget the budget in bytes (0 to disable caching)
+     * @param debug  true for debugging output
+     * @throws WekaException if a problem occurs
      */
-    public Instances getDataFrameAsInstances(String frameName, boolean debug)
-            throws WekaException {
-        try {
-            return RapidsUtils.receiveInstances(frameName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (IOException ex) {
-            throw new WekaException(ex);
-        }
+    public void setFrameCacheBudget(long budget, boolean debug) throws WekaException {
+        evictFrames(m_frameCache.setBudget(budget), debug);
     }
 
     /**
-     * Execute an arbitrary script in python
+     * Make instances that are held by the server the current frame (and X and
+     * Y), instead of transferring them again.
      *
-     * @param pyScript the script to execute
-     * @param debug    true for debugging output
-     * @return a List of strings - index 0 contains std out from the script and
-     * index 1 contains std err
+     * @param fingerprint     the fingerprint of the instances
+     * @param pythonFrameName the name of the data frame to use in python
+     * @param debug           true for debugging output
+     * @return true if the server held the instances, false if they need to be
+     * transferred
      * @throws WekaException if a problem occurs
      */
-    public List<String> executeScript(String pyScript, boolean debug)
-            throws WekaException {
+    public boolean restoreCachedFrame(String fingerprint, String pythonFrameName,
+                                      boolean debug) throws WekaException {
+        if (!m_frameCache.lookup(fingerprint)) {
+            return false;
+        }
         try {
-            return RapidsUtils.executeUserScript(pyScript,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
+            String error = RapidsUtils.sendFrameCacheCommand("restore_frame",
+                    Collections.singletonList(fingerprint), pythonFrameName,
+                    outputStream(), m_transport.getInputStream(), m_log, debug);
+            if (error != null) {
+                // the server no longer has it - transfer the instances instead
+                m_frameCache.remove(fingerprint);
+                return false;
+            }
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
+        return true;
     }
 
     /**
-     * Check if a named variable is set/exists in the python environment
+     * Ask the server to hold on to the instances just transferred (the current
+     * frame, X and Y), if they fit in the frame cache budget.
      *
-     * @param varName the name of the variable to check
-     * @param debug   true for debugging output
-     * @return true if the variable is set in python
+     * @param fingerprint     the fingerprint of the instances
+     * @param pythonFrameName the name of the data frame in python
+     * @param size            the estimated size of the instances in bytes
+     * @param debug           true for debugging output
      * @throws WekaException if a problem occurs
      */
-    public boolean checkIfPythonVariableIsSet(String varName, boolean debug)
-            throws WekaException {
+    public void cacheFrame(String fingerprint, String pythonFrameName, long size,
+                           boolean debug) throws WekaException {
+        if (!m_frameCache.fits(size)) {
+            return;
+        }
         try {
-            return RapidsUtils.checkIfPythonVariableIsSet(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
+            String error = RapidsUtils.sendFrameCacheCommand("cache_frame",
+                    Collections.singletonList(fingerprint), pythonFrameName,
+                    outputStream(), m_transport.getInputStream(), m_log, debug);
+            if (error != null) {
+                throw new WekaException(error);
+            }
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
+        frameCached(fingerprint, size, debug);
     }
 
     /**
-     * Attempt to retrieve the value of a variable in python using serialization
-     * to Json. If successful, then the resulting Object is either a Map or List
-     * containing more Maps and Lists that represent the Json structure of the
-     * serialized variable
+     * Have a compound command that follows a transfer of instances ask the
+     * server to hold on to them, if they fit in the frame cache budget. The
+     * server caches them before the steps of the command run (see
+     * CompoundCommand.cacheTransferredFrame()). Once the command has been
+     * run, frameCached() records them as held.
      *
-     * @param varName the name of the variable to retrieve
-     * @param debug   true for debugging output
-     * @return a Map/List based structure
-     * @throws WekaException if a problem occurs
+     * @param compound        the compound command sent with the transfer
+     * @param fingerprint     the fingerprint of the instances
+     * @param pythonFrameName the name of the data frame in python
+     * @param size            the estimated size of the instances in bytes
+     * @return true if the compound command caches the instances
      */
-    public Object getVariableValueFromPythonAsJson(String varName, boolean debug)
-            throws WekaException {
-        try {
-            return RapidsUtils.receiveJsonVariableValue(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
-                    debug);
-        } catch (IOException ex) {
-            throw new WekaException(ex);
+    public boolean cacheFrameWith(CompoundCommand compound, String fingerprint,
+                                  String pythonFrameName, long size) {
+        if (!m_frameCache.fits(size)) {
+            return false;
         }
+        compound.cacheTransferredFrame(fingerprint, pythonFrameName);
+        return true;
     }
 
     /**
-     * Attempt to retrieve the value of a variable in python using pickle
-     * serialization. If successful, then the result is a string containing the
-     * pickled object.
+     * Record instances as held by the server, dropping the frames that no
+     * longer fit in the budget.
      *
-     * @param varName the name of the variable to retrieve
-     * @param debug   true for debugging output
-     * @return a string containing the pickled variable value
+     * @param fingerprint the fingerprint of the instances
+     * @param size        the estimated size of the instances in bytes
+     * @param debug       true for debugging output
      * @throws WekaException if a problem occurs
      */
-    public String getVariableValueFromPythonAsPickledObject(String varName,
-                                                            boolean debug) throws WekaException {
+    public void frameCached(String fingerprint, long size, boolean debug) throws WekaException {
+        evictFrames(m_frameCache.add(fingerprint, size), debug);
+    }
+
+    protected void evictFrames(List<String> fingerprints, boolean debug) throws WekaException {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
         try {
-            return RapidsUtils.receivePickledVariableValue(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), false,
-                    m_log, debug);
+            String error = RapidsUtils.sendFrameCacheCommand("evict_frames", fingerprints, null,
+                    outputStream(), m_transport.getInputStream(), m_log, debug);
+            if (error != null) {
+                throw new WekaException(error);
+            }
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into python as a named pandas data frame
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the data frame to use in python
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPython(Instances instances, String pythonFrameName,
+                                  boolean debug) throws WekaException {
+        try {
+            RapidsUtils.sendInstances(instances, pythonFrameName,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame and then extract
+     * out numpy arrays of input and target features/columns. These arrays are
+     * named X and Y respectively in python. If there is no class set in the
+     * instances then only an X array is extracted.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsScikitLearn(Instances instances,
+                                               String pythonFrameName, boolean debug) throws WekaException {
+        instancesToPythonAsScikitLearn(instances, pythonFrameName, new ColumnExtractor(1),
+                new StagingBuffers(), debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame and then extract
+     * out numpy arrays of input and target features/columns, formatting the
+     * rows with the supplied extractor.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param extractor       the extractor used to convert the rows
+     * @param staging         the staging buffers to convert the rows into
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsScikitLearn(Instances instances,
+                                               String pythonFrameName, ColumnExtractor extractor,
+                                               StagingBuffers staging, boolean debug)
+            throws WekaException {
+        instancesToPythonAsScikitLearn(instances, pythonFrameName, false, extractor, staging,
+                null, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame and then extract
+     * out numpy arrays of input and target features/columns, formatting the
+     * rows with the supplied extractor. If pipelined, the CSV is formatted and
+     * sent in chunks, with formatting overlapping transmission.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param pipelined       true to overlap formatting with sending
+     * @param extractor       the extractor used to convert the rows
+     * @param staging         the staging buffers to convert the rows into
+     * @param compound        a compound command to run straight after the
+     *                        transfer, as part of the same request (may be
+     *                        null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsScikitLearn(Instances instances,
+                                               String pythonFrameName, boolean pipelined,
+                                               ColumnExtractor extractor, StagingBuffers staging,
+                                               CompoundCommand compound, boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.sendInstancesScikitLearn(instances, pythonFrameName,
+                    schemaId(instances, debug), pipelined, extractor, staging, compound,
+                    outputStream(compound),
+                    m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format and then extract out arrays of input and target
+     * features/columns (X and Y respectively).
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, boolean debug) throws WekaException {
+        instancesToPythonAsArrow(instances, pythonFrameName, 0, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format, streaming the data as a sequence of record batches of at most
+     * chunkSize rows.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param chunkSize       the maximum number of rows per record batch (0 to
+     *                        send the instances as a single batch)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, int chunkSize, boolean debug) throws WekaException {
+        instancesToPythonAsArrow(instances, pythonFrameName, chunkSize, false, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format, streaming the data as a sequence of record batches of at most
+     * chunkSize rows. Integer valued columns are narrowed to the smallest
+     * lossless integer type unless forceFloat32 is set.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param chunkSize       the maximum number of rows per record batch (0 to
+     *                        send the instances as a single batch)
+     * @param forceFloat32    true to send every column as float32
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, int chunkSize, boolean forceFloat32,
+                                         boolean debug) throws WekaException {
+        instancesToPythonAsArrow(instances, pythonFrameName, chunkSize, forceFloat32,
+                "none", ArrowIPCWriter.DEFAULT_COMPRESSION_THRESHOLD, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format, streaming the data as a sequence of record batches of at most
+     * chunkSize rows, each of which is optionally compressed.
+     *
+     * @param instances            the instances to transfer
+     * @param pythonFrameName      the name of the pandas data frame to use in
+     *                             python
+     * @param chunkSize            the maximum number of rows per record batch
+     *                             (0 to send the instances as a single batch)
+     * @param forceFloat32         true to send every column as float32
+     * @param compression          the codec to compress record batches with
+     *                             ("none", "lz4" or "zstd")
+     * @param compressionThreshold record batches with bodies smaller than this
+     *                             number of bytes are sent uncompressed
+     * @param debug                true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, int chunkSize, boolean forceFloat32,
+                                         String compression, int compressionThreshold,
+                                         boolean debug) throws WekaException {
+        instancesToPythonAsArrow(instances, pythonFrameName, chunkSize, forceFloat32,
+                compression, compressionThreshold, new ColumnExtractor(1),
+                new StagingBuffers(), debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format, streaming the data as a sequence of record batches of at most
+     * chunkSize rows, each of which is optionally compressed. Rows are
+     * converted to columns with the supplied extractor.
+     *
+     * @param instances            the instances to transfer
+     * @param pythonFrameName      the name of the pandas data frame to use in
+     *                             python
+     * @param chunkSize            the maximum number of rows per record batch
+     *                             (0 to send the instances as a single batch)
+     * @param forceFloat32         true to send every column as float32
+     * @param compression          the codec to compress record batches with
+     *                             ("none", "lz4" or "zstd")
+     * @param compressionThreshold record batches with bodies smaller than this
+     *                             number of bytes are sent uncompressed
+     * @param extractor            the extractor used to convert the rows
+     * @param staging              the staging buffers to convert the rows into
+     * @param debug                true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, int chunkSize, boolean forceFloat32,
+                                         String compression, int compressionThreshold,
+                                         ColumnExtractor extractor, StagingBuffers staging, boolean debug)
+            throws WekaException {
+        instancesToPythonAsArrow(instances, pythonFrameName, chunkSize, forceFloat32,
+                compression, compressionThreshold, false, extractor, staging, null, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a pandas data frame using the Arrow
+     * IPC format, streaming the data as a sequence of record batches of at most
+     * chunkSize rows, each of which is optionally compressed. Rows are
+     * converted to columns with the supplied extractor. If pipelined, each
+     * batch is converted while the previous one is being sent.
+     *
+     * @param instances            the instances to transfer
+     * @param pythonFrameName      the name of the pandas data frame to use in
+     *                             python
+     * @param chunkSize            the maximum number of rows per record batch
+     *                             (0 to send the instances as a single batch,
+     *                             or in default sized chunks if pipelined)
+     * @param forceFloat32         true to send every column as float32
+     * @param compression          the codec to compress record batches with
+     *                             ("none", "lz4" or "zstd")
+     * @param compressionThreshold record batches with bodies smaller than this
+     *                             number of bytes are sent uncompressed
+     * @param pipelined            true to overlap conversion with sending
+     * @param extractor            the extractor used to convert the rows
+     * @param staging              the staging buffers to convert the rows into
+     * @param compound             a compound command to run straight after the
+     *                             transfer, as part of the same request (may
+     *                             be null)
+     * @param debug                true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsArrow(Instances instances,
+                                         String pythonFrameName, int chunkSize, boolean forceFloat32,
+                                         String compression, int compressionThreshold, boolean pipelined,
+                                         ColumnExtractor extractor, StagingBuffers staging,
+                                         CompoundCommand compound, boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.sendInstancesArrow(instances, pythonFrameName,
+                    schemaId(instances, debug), chunkSize,
+                    forceFloat32, compression, compressionThreshold, pipelined, extractor, staging,
+                    compound, outputStream(compound),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into python as a sparse CSR matrix (named X), and
+     * the target column (if the class is set) as Y. Only non-zero values are
+     * transferred, so sparse instances are never densified.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the CSR matrix to use in python
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsSparse(Instances instances,
+                                          String pythonFrameName, boolean debug) throws WekaException {
+        instancesToPythonAsSparse(instances, pythonFrameName, new ColumnExtractor(1),
+                new StagingBuffers(), null, debug);
+    }
+
+    /**
+     * Transfer Weka instances into python as a sparse CSR matrix (named X), and
+     * the target column (if the class is set) as Y, converting the rows with
+     * the supplied extractor.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the CSR matrix to use in python
+     * @param extractor       the extractor used to convert the rows
+     * @param staging         the staging buffers to convert the rows into
+     * @param compound        a compound command to run straight after the
+     *                        transfer, as part of the same request (may be
+     *                        null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsSparse(Instances instances,
+                                          String pythonFrameName, ColumnExtractor extractor,
+                                          StagingBuffers staging, CompoundCommand compound,
+                                          boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.sendInstancesSparse(instances, pythonFrameName,
+                    schemaId(instances, debug), extractor, staging, compound,
+                    outputStream(compound),
+                    m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into cuda array. And share it with python via GPU memory.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsCuda(Instances instances, FloatPointer dstPtr,
+                                        String pythonFrameName, boolean debug) throws WekaException {
+        instancesToPythonAsCuda(instances, dstPtr, pythonFrameName, new ColumnExtractor(1),
+                new StagingBuffers(), null, debug);
+    }
+
+    /**
+     * Transfer Weka instances into cuda array, converting the rows with the
+     * supplied extractor. And share it with python via GPU memory.
+     *
+     * @param instances       the instances to transfer
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param extractor       the extractor used to convert the rows
+     * @param staging         the staging buffers to convert the rows into
+     * @param compound        a compound command to run straight after the
+     *                        transfer, as part of the same request (may be
+     *                        null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsCuda(Instances instances, FloatPointer dstPtr,
+                                        String pythonFrameName, ColumnExtractor extractor,
+                                        StagingBuffers staging, CompoundCommand compound,
+                                        boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.sendInstancesCuda(instances, dstPtr, pythonFrameName,
+                    schemaId(instances, debug), extractor, staging, compound,
+                    outputStream(compound),
+                    m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Transfer Weka instances into a pandas data frame in python via a memory
+     * mapped file, converting the rows with the supplied extractor. Only the
+     * location and shape of the data travel over the socket.
+     *
+     * @param instances       the instances to transfer
+     * @param file            the file to share the instances through (created
+     *                        by this method)
+     * @param pythonFrameName the name of the pandas data frame to use in python
+     * @param extractor       the extractor used to convert the rows
+     * @param compound        a compound command to run straight after the
+     *                        transfer, as part of the same request (may be
+     *                        null)
+     * @param debug           true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void instancesToPythonAsMappedFile(Instances instances, File file,
+                                              String pythonFrameName, ColumnExtractor extractor,
+                                              CompoundCommand compound, boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.sendInstancesMapped(instances, file, pythonFrameName,
+                    schemaId(instances, debug), extractor, compound, outputStream(compound),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Tell the server to drop its mapping of the file that instances were
+     * last shared through.
+     *
+     * @param debug true for debugging output
+     * @throws WekaException if a problem occurs
+     */
+    public void closeMappedFile(boolean debug) throws WekaException {
+        try {
+            RapidsUtils.sendCloseMappedFile(outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    public void freeMemory(Pointer ptr) {
+        cudaFree(ptr);
+    }
+
+    public void closeIPCHandle(boolean debug) throws WekaException {
+        try {
+            RapidsUtils.sendCloseIPCHandle(outputStream(), m_transport.getInputStream(), m_log, debug);
+        } catch (Exception ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+
+    /**
+     * Retrieve a pandas data frame from Python and convert it to a set of
+     * instances. The resulting set of instances will not have a class index set.
+     * The frame is transferred as CSV - use
+     * {@link #getDataFrameAsInstances(String, boolean, boolean)} to transfer it
+     * as an Arrow IPC stream instead.
+     *
+     * @param frameName the name of the pandas data frame to extract and convert
+     *                  to instances
+     * @param debug     true for debugging output
+     * @return an Instances object
+     * @throws WekaException if the named data frame does not exist in python or
+     *                       is not a pandas data frame
+     */
+    public Instances getDataFrameAsInstances(String frameName, boolean debug)
+            throws WekaException {
+        return getDataFrameAsInstances(frameName, false, debug);
+    }
+
+    /**
+     * Retrieve a pandas data frame from Python and convert it to a set of
+     * instances. The resulting set of instances will not have a class index set.
+     *
+     * @param frameName the name of the pandas data frame to extract and convert
+     *                  to instances
+     * @param arrow     true to transfer the frame as an Arrow IPC stream, false
+     *                  to transfer it as CSV
+     * @param debug     true for debugging output
+     * @return an Instances object
+     * @throws WekaException if the named data frame does not exist in python or
+     *                       is not a pandas data frame
+     */
+    public Instances getDataFrameAsInstances(String frameName, boolean arrow,
+                                             boolean debug) throws WekaException {
+        try {
+            if (arrow) {
+                return RapidsUtils.receiveInstancesArrow(frameName,
+                        outputStream(), m_transport.getInputStream(),
+                        m_log, debug);
+            }
+            return RapidsUtils.receiveInstances(frameName,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Execute an arbitrary script in python
+     *
+     * @param pyScript the script to execute
+     * @param debug    true for debugging output
+     * @return a List of strings - index 0 contains std out from the script and
+     * index 1 contains std err
+     * @throws WekaException if a problem occurs
+     */
+    public List<String> executeScript(String pyScript, boolean debug)
+            throws WekaException {
+        try {
+            return RapidsUtils.executeUserScript(pyScript,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Run a compound command (a sequence of scripts, checks and a fetch) from a
+     * single request. Its results are stored in the command.
+     *
+     * @param compound the command to run
+     * @param debug    true for debugging output
+     * @throws WekaException if a problem occurs, or a step of the command
+     *                       failed
+     */
+    public void executeCompound(CompoundCommand compound, boolean debug)
+            throws WekaException {
+        try {
+            RapidsUtils.executeCompound(compound, outputStream(compound),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Install a function in the server, so that it can be called by id (e.g.
+     * as a step of a compound command). Does nothing if the function has
+     * been installed already in this session.
+     *
+     * @param function the function
+     * @param debug    true for debugging output
+     * @throws WekaException if a problem occurs, or the source could not be
+     *                       run
+     */
+    public void registerFunction(ServerFunction function, boolean debug)
+            throws WekaException {
+        if (m_functions.contains(function.getId())) {
+            return;
+        }
+        try {
+            RapidsUtils.registerFunction(function, outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+        m_functions.add(function.getId());
+    }
+
+    /**
+     * Call a function in python, installing it first if necessary.
+     *
+     * @param function       the function
+     * @param args           the arguments to call it with, by name
+     * @param resultVariable the variable to store the result of the call in,
+     *                       or null
+     * @param debug          true for debugging output
+     * @return a List of strings - index 0 contains std out from the call and
+     * index 1 contains std err
+     * @throws WekaException if a problem occurs
+     */
+    public List<String> callFunction(ServerFunction function, Map<String, Object> args,
+                                     String resultVariable, boolean debug) throws WekaException {
+        registerFunction(function, debug);
+        try {
+            return RapidsUtils.callFunction(function, args, resultVariable, outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Check if a named variable is set/exists in the python environment
+     *
+     * @param varName the name of the variable to check
+     * @param debug   true for debugging output
+     * @return true if the variable is set in python
+     * @throws WekaException if a problem occurs
+     */
+    public boolean checkIfPythonVariableIsSet(String varName, boolean debug)
+            throws WekaException {
+        try {
+            return RapidsUtils.checkIfPythonVariableIsSet(varName,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Attempt to retrieve the value of a variable in python using serialization
+     * to Json. If successful, then the resulting Object is either a Map or List
+     * containing more Maps and Lists that represent the Json structure of the
+     * serialized variable
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return a Map/List based structure
+     * @throws WekaException if a problem occurs
+     */
+    public Object getVariableValueFromPythonAsJson(String varName, boolean debug)
+            throws WekaException {
+        try {
+            return RapidsUtils.receiveJsonVariableValue(varName,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Retrieve the value of a numeric array variable in python (numpy, cupy,
+     * pandas or cudf) as a packed binary buffer rather than as Json. One
+     * dimensional arrays are returned as a single column.
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return the values of the array, one row per element of the first
+     * dimension
+     * @throws WekaException if a problem occurs
+     */
+    public double[][] getNumericArrayFromPython(String varName, boolean debug)
+            throws WekaException {
+        try {
+            return RapidsUtils.receiveBinaryVariableValue(varName,
+                    outputStream(), m_transport.getInputStream(), m_log,
+                    debug);
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    /**
+     * Attempt to retrieve the value of a variable in python using pickle
+     * serialization. If successful, then the result is a string containing the
+     * pickled object.
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return a string containing the pickled variable value
+     * @throws WekaException if a problem occurs
+     */
+    public String getVariableValueFromPythonAsPickledObject(String varName,
+                                                            boolean debug) throws WekaException {
+        try {
+            return RapidsUtils.receivePickledVariableValue(varName,
+                    outputStream(), m_transport.getInputStream(), false,
+                    m_log, debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
@@ -790,13 +1681,240 @@ public class RapidsSession {
                                                           boolean debug) throws WekaException {
         try {
             return RapidsUtils.receivePickledVariableValue(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), true,
+                    outputStream(), m_transport.getInputStream(), true,
                     m_log, debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
     }
 
+    /**
+     * Transfer instances as part of a pipelined request, i.e. without waiting
+     * for the server to receive them. The transfer is followed by the given
+     * compound command (e.g. to predict and fetch the predictions), which the
+     * server runs as part of the same request. This returns as soon as the
+     * request has been written, so that e.g. the next batch can be converted
+     * and sent while the server is still working on this one.
+     *
+     * @param transfer the transfer (using whichever sending method)
+     * @param compound the compound command to run once the instances are in
+     *                 place
+     * @return a future that is completed with the compound command, holding
+     * its results, once the reply has been received
+     */
+    public CompletableFuture<CompoundCommand> instancesToPythonAsync(final Transfer transfer,
+                                                                     final CompoundCommand compound) {
+        return submit(new CommandPipeline.Request<CompoundCommand>() {
+            @Override
+            protected void write(long requestId) throws WekaException {
+                compound.setRequestId(requestId);
+                try {
+                    transfer.send(compound);
+                } finally {
+                    compound.setRequestId(null);
+                }
+            }
+
+            @Override
+            protected CompoundCommand reply(ServerAck ack, InputStream inputStream)
+                    throws IOException, WekaException {
+                RapidsUtils.receiveCompoundReply(compound, ack, inputStream);
+                return compound;
+            }
+        });
+    }
+
+    /**
+     * Run a compound command as a pipelined request, i.e. without waiting for
+     * its reply.
+     *
+     * @param compound the command to run
+     * @param debug    true for debugging output
+     * @return a future that is completed with the command, holding its
+     * results, once the reply has been received
+     */
+    public CompletableFuture<CompoundCommand> executeCompoundAsync(final CompoundCommand compound,
+                                                                   final boolean debug) {
+        return instancesToPythonAsync(new Transfer() {
+            @Override
+            public void send(CompoundCommand compound) throws WekaException {
+                executeCompound(compound, debug);
+            }
+        }, compound);
+    }
+
+    /**
+     * Execute a script in python as a pipelined request, i.e. without waiting
+     * for it to finish.
+     *
+     * @param pyScript the script to execute
+     * @param debug    true for debugging output
+     * @return a future that is completed with a List of strings - index 0
+     * contains std out from the script and index 1 contains std err
+     */
+    public CompletableFuture<List<String>> executeScriptAsync(String pyScript,
+                                                              final boolean debug) {
+        final ServerCommand command = new ServerCommand("execute_script", debug);
+        command.setScript(pyScript.endsWith("\n") ? pyScript : pyScript + "\n");
+        return submit(new CommandPipeline.Request<List<String>>() {
+            @Override
+            protected void write(long requestId) throws IOException {
+                writeRequest(command, requestId, debug);
+            }
+
+            @Override
+            protected List<String> reply(ServerAck ack, InputStream inputStream)
+                    throws WekaException {
+                return RapidsUtils.scriptOutAndErr(ack, m_log, debug);
+            }
+        });
+    }
+
+    /**
+     * Check if a named variable is set in python, as a pipelined request.
+     *
+     * @param varName the name of the variable to check
+     * @param debug   true for debugging output
+     * @return a future that is completed with true if the variable is set
+     */
+    public CompletableFuture<Boolean> checkIfPythonVariableIsSetAsync(final String varName,
+                                                                      final boolean debug) {
+        final ServerCommand command = new ServerCommand("variable_is_set", debug);
+        command.setVariableName(varName);
+        return submit(new CommandPipeline.Request<Boolean>() {
+            @Override
+            protected void write(long requestId) throws IOException {
+                writeRequest(command, requestId, debug);
+            }
+
+            @Override
+            protected Boolean reply(ServerAck ack, InputStream inputStream)
+                    throws WekaException {
+                RapidsUtils.checkVariableAck(varName, ack);
+                return ack.getVariableExists();
+            }
+        });
+    }
+
+    /**
+     * Retrieve the value of a variable in python in Json form, as a pipelined
+     * request.
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return a future that is completed with a Map/List based structure
+     */
+    public CompletableFuture<Object> getVariableValueFromPythonAsJsonAsync(final String varName,
+                                                                           final boolean debug) {
+        final ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding("json");
+        return submit(new CommandPipeline.Request<Object>() {
+            @Override
+            protected void write(long requestId) throws IOException {
+                writeRequest(command, requestId, debug);
+            }
+
+            @Override
+            protected Object reply(ServerAck ack, InputStream inputStream)
+                    throws WekaException {
+                return RapidsUtils.jsonVariableValue(varName, ack);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the value of a numeric array variable in python as a packed
+     * binary buffer, as a pipelined request.
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return a future that is completed with the values of the array, one row
+     * per element of the first dimension
+     */
+    public CompletableFuture<double[][]> getNumericArrayFromPythonAsync(final String varName,
+                                                                        final boolean debug) {
+        final ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding("binary");
+        return submit(new CommandPipeline.Request<double[][]>() {
+            @Override
+            protected void write(long requestId) throws IOException {
+                writeRequest(command, requestId, debug);
+            }
+
+            @Override
+            protected double[][] reply(ServerAck ack, InputStream inputStream)
+                    throws IOException, WekaException {
+                RapidsUtils.checkVariableAck(varName, ack);
+                return RapidsUtils.readBinaryArray(varName, ack, inputStream);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the value of a variable in python as a plain string, as a
+     * pipelined request.
+     *
+     * @param varName the name of the variable to retrieve
+     * @param debug   true for debugging output
+     * @return a future that is completed with the value of the variable as a
+     * plain string
+     */
+    public CompletableFuture<String> getVariableValueFromPythonAsPlainStringAsync(
+            final String varName, final boolean debug) {
+        final ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding("string");
+        return submit(new CommandPipeline.Request<String>() {
+            @Override
+            protected void write(long requestId) throws IOException {
+                writeRequest(command, requestId, debug);
+            }
+
+            @Override
+            protected String reply(ServerAck ack, InputStream inputStream)
+                    throws WekaException {
+                RapidsUtils.checkVariableAck(varName, ack);
+                return ack.getVariableValue().toString();
+            }
+        });
+    }
+
+    /**
+     * Wait until the replies to all pipelined requests have been received.
+     *
+     * @throws WekaException if the connection failed while receiving them
+     */
+    public void awaitPipelinedRequests() throws WekaException {
+        try {
+            if (m_pipeline != null) {
+                m_pipeline.awaitIdle();
+            }
+        } catch (IOException ex) {
+            throw new WekaException(ex);
+        }
+    }
+
+    protected <T> CompletableFuture<T> submit(CommandPipeline.Request<T> request) {
+        if (m_pipeline == null) {
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            future.completeExceptionally(new WekaException("Not connected to the "
+                    + "python server"));
+            return future;
+        }
+        return m_pipeline.submit(request);
+    }
+
+    /**
+     * Write a command as the given request (for a pipelined request).
+     */
+    protected void writeRequest(ServerCommand command, long requestId, boolean debug)
+            throws IOException {
+        command.setRequestId(requestId);
+        RapidsUtils.writeCommand(command, m_transport.getOutputStream(), m_log, debug);
+    }
+
     /**
      * Get a list of variables that are set in python. Returns a list of two
      * element string arrays. Each entry in the list is a variable. The first
@@ -810,8 +1928,8 @@ public class RapidsSession {
     public List<String[]> getVariableListFromPython(boolean debug)
             throws WekaException {
         try {
-            return RapidsUtils.receiveVariableList(m_localSocket.getOutputStream(),
-                    m_localSocket.getInputStream(), m_log, debug);
+            return RapidsUtils.receiveVariableList(outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
@@ -831,7 +1949,7 @@ public class RapidsSession {
                                               boolean debug) throws WekaException {
         try {
             RapidsUtils.sendPickledVariableValue(varName, varValue,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
+                    outputStream(), m_transport.getInputStream(), m_log,
                     debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
@@ -854,8 +1972,8 @@ public class RapidsSession {
      */
     public List<String> getPythonDebugBuffer(boolean debug) throws WekaException {
         try {
-            return RapidsUtils.receiveDebugBuffer(m_localSocket.getOutputStream(),
-                    m_localSocket.getInputStream(), m_log, debug);
+            return RapidsUtils.receiveDebugBuffer(outputStream(),
+                    m_transport.getInputStream(), m_log, debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
         }
@@ -876,7 +1994,7 @@ public class RapidsSession {
             throws WekaException {
         try {
             return RapidsUtils.getPNGImageFromPython(varName,
-                    m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log,
+                    outputStream(), m_transport.getInputStream(), m_log,
                     debug);
         } catch (IOException ex) {
             throw new WekaException(ex);
@@ -890,14 +2008,21 @@ public class RapidsSession {
         if (!m_shutdown) {
             try {
                 m_shutdown = true;
-                if (m_localSocket != null) {
+                if (m_transport != null && m_transport.isConnected()) {
                     if (m_debug) {
                         System.err.println("Sending shutdown command...");
                     }
+                    if (m_pipeline != null) {
+                        try {
+                            m_pipeline.awaitIdle();
+                        } catch (IOException ex) {
+                            // the server can still be told to shut down
+                        }
+                    }
                     if (m_debug) {
                         List<String> outAndErr =
-                                RapidsUtils.receiveDebugBuffer(m_localSocket.getOutputStream(),
-                                        m_localSocket.getInputStream(), m_log, m_debug);
+                                RapidsUtils.receiveDebugBuffer(m_transport.getOutputStream(),
+                                        m_transport.getInputStream(), m_log, m_debug);
                         if (outAndErr.get(0).length() > 0) {
                             System.err
                                     .println("Python debug std out:\n" + outAndErr.get(0) + "\n");
@@ -907,17 +2032,24 @@ public class RapidsSession {
                                     .println("Python debug std err:\n" + outAndErr.get(1) + "\n");
                         }
                     }
-                    RapidsUtils.sendServerShutdown(m_localSocket.getOutputStream());
-                    m_localSocket.close();
+                    RapidsUtils.sendServerShutdown(m_transport.getOutputStream());
                     if (m_serverProcess != null) {
                         m_serverProcess.destroy();
                     }
                 }
 
-                if (m_serverSocket != null) {
-                    m_serverSocket.close();
+                if (m_transport != null) {
+                    m_transport.close();
+                }
+                if (m_pipeline != null) {
+                    m_pipeline.close();
+                }
+                if (m_pool != null) {
+                    m_pool.remove(this);
+                }
+                if (s_sessionSingleton == this) {
+                    s_sessionSingleton = null;
                 }
-                s_sessionSingleton = null;
                 m_pythonServers.remove(m_sessionKey);
                 m_pythonEnvCheckResults.remove(m_sessionKey);
             } catch (Exception ex) {
@@ -938,10 +2070,28 @@ public class RapidsSession {
      */
     public static synchronized boolean initSession(String pythonCommand,
                                                    boolean debug) throws WekaException {
+        return initSession(pythonCommand, debug, false);
+    }
+
+    /**
+     * Initialize the default session. This needs to be called exactly once in
+     * order to run checks and launch the server. Creates a session singleton.
+     *
+     * @param pythonCommand    the python command
+     * @param debug            true for debugging output
+     * @param unixDomainSocket true to communicate with the server over a Unix
+     *                         domain socket (falls back to TCP if unavailable).
+     *                         Only takes effect when the session is created
+     * @return true if the server launched successfully
+     * @throws WekaException if there was a problem - missing packages in python,
+     *                       or python could not be started for some reason
+     */
+    public static synchronized boolean initSession(String pythonCommand,
+                                                   boolean debug, boolean unixDomainSocket) throws WekaException {
 
         if (s_sessionSingleton == null) {
             try {
-                new RapidsSession(pythonCommand, debug);
+                new RapidsSession(pythonCommand, debug, unixDomainSocket);
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -969,12 +2119,38 @@ public class RapidsSession {
      */
     public static synchronized boolean initSession(String pythonCommand,
                                                    String ownerID, String pathEntries, boolean debug) throws WekaException {
+        return initSession(pythonCommand, ownerID, pathEntries, debug, false);
+    }
+
+    /**
+     * Initialize a server/session for a user-supplied python path and (optional)
+     * ownerID.
+     *
+     * @param pythonCommand    command (either fully qualified path or that which
+     *                         is in the PATH). This, plus the optional ownerID is
+     *                         used to lookup and return a session/server.
+     * @param ownerID          an optional ownerID string for acquiring the
+     *                         session
+     * @param pathEntries      optional entries that need to be in the PATH in
+     *                         order for the python environment to work correctly
+     * @param debug            true for debugging info
+     * @param unixDomainSocket true to communicate with the server over a Unix
+     *                         domain socket (falls back to TCP if unavailable).
+     *                         Only takes effect when the session is created
+     * @return true if the server launched successfully
+     * @throws WekaException if the requested session/server is not available (or
+     *                       does not exist).
+     */
+    public static synchronized boolean initSession(String pythonCommand,
+                                                   String ownerID, String pathEntries, boolean debug,
+                                                   boolean unixDomainSocket) throws WekaException {
         String key =
                 pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
 
         if (!m_pythonServers.containsKey(key)) {
             try {
-                new RapidsSession(pythonCommand, ownerID, pathEntries, debug, false);
+                new RapidsSession(pythonCommand, ownerID, pathEntries, debug, false,
+                        unixDomainSocket);
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -983,6 +2159,109 @@ public class RapidsSession {
         return m_pythonEnvCheckResults.get(key).length() < 5;
     }
 
+    /**
+     * Configure the pool of the default session. Further servers are started
+     * until the pool has the given number of sessions, so that that many
+     * requesters can use python at the same time.
+     *
+     * @param size            the number of sessions (servers) in the pool
+     * @param roundRobin      true to hand the sessions out in turn, rather than
+     *                        to give out the least busy one
+     * @param frameCacheBudget the memory budget (bytes) of each session's frame
+     *                        cache (0 to disable caching)
+     * @throws WekaException if the default session has not been initialized, or
+     *                       a server could not be started
+     */
+    public static synchronized void configurePool(int size, boolean roundRobin,
+                                                  long frameCacheBudget) throws WekaException {
+        if (s_sessionSingleton == null) {
+            throw new WekaException("Python not available!");
+        }
+        if (s_sessionSingleton.m_pool.isConfigured(size, roundRobin, frameCacheBudget)) {
+            return;
+        }
+        s_sessionSingleton.m_pool.setRoundRobin(roundRobin);
+        s_sessionSingleton.m_pool.setFrameCacheBudget(frameCacheBudget);
+        s_sessionSingleton.growPool(size);
+    }
+
+    /**
+     * Set the memory budget of the frame cache of each session in the pool of
+     * the default session (without changing the rest of the pool's
+     * configuration).
+     *
+     * @param frameCacheBudget the budget in bytes (0 to disable caching)
+     * @throws WekaException if the default session has not been initialized
+     */
+    public static synchronized void configureFrameCache(long frameCacheBudget)
+            throws WekaException {
+        if (s_sessionSingleton == null) {
+            throw new WekaException("Python not available!");
+        }
+        s_sessionSingleton.m_pool.setFrameCacheBudget(frameCacheBudget);
+    }
+
+    /**
+     * Configure the pool of a server/session for a user-supplied python path and
+     * (optional) ownerID. Further servers are started until the pool has the
+     * given number of sessions, so that that many requesters can use python at
+     * the same time.
+     *
+     * @param pythonCommand command (either fully qualified path or that which is
+     *                      in the PATH). This, plus the optional ownerID is used to lookup
+     *                      the session/server.
+     * @param ownerID       an optional ownerID string for identifying the session
+     * @param size          the number of sessions (servers) in the pool
+     * @param roundRobin    true to hand the sessions out in turn, rather than to
+     *                      give out the least busy one
+     * @param frameCacheBudget the memory budget (bytes) of each session's frame
+     *                      cache (0 to disable caching)
+     * @throws WekaException if the session has not been initialized, or a server
+     *                       could not be started
+     */
+    public static synchronized void configurePool(String pythonCommand, String ownerID,
+                                                  int size, boolean roundRobin, long frameCacheBudget)
+            throws WekaException {
+        String key =
+                pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
+        RapidsSession primary = m_pythonServers.get(key);
+        if (primary == null) {
+            throw new WekaException(
+                    "Python session " + key + " does not seem to exist!");
+        }
+        if (primary.m_pool.isConfigured(size, roundRobin, frameCacheBudget)) {
+            return;
+        }
+        primary.m_pool.setRoundRobin(roundRobin);
+        primary.m_pool.setFrameCacheBudget(frameCacheBudget);
+        primary.growPool(size);
+    }
+
+    /**
+     * Set the memory budget of the frame cache of each session in the pool of
+     * a server/session for a user-supplied python path and (optional) ownerID
+     * (without changing the rest of the pool's configuration).
+     *
+     * @param pythonCommand    command (either fully qualified path or that which
+     *                         is in the PATH). This, plus the optional ownerID is
+     *                         used to lookup the session/server.
+     * @param ownerID          an optional ownerID string for identifying the
+     *                         session
+     * @param frameCacheBudget the budget in bytes (0 to disable caching)
+     * @throws WekaException if the session has not been initialized
+     */
+    public static synchronized void configureFrameCache(String pythonCommand, String ownerID,
+                                                        long frameCacheBudget) throws WekaException {
+        String key =
+                pythonCommand + (ownerID != null && ownerID.length() > 0 ? ownerID : "");
+        RapidsSession primary = m_pythonServers.get(key);
+        if (primary == null) {
+            throw new WekaException(
+                    "Python session " + key + " does not seem to exist!");
+        }
+        primary.m_pool.setFrameCacheBudget(frameCacheBudget);
+    }
+
     /**
      * Gets the result of running the checks in python
      *
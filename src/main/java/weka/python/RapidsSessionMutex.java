@@ -86,6 +86,13 @@ public class RapidsSessionMutex {
         return true;
     }
 
+    /**
+     * @return true if the mutex is locked by the current thread
+     */
+    public synchronized boolean isLockedByCurrentThread() {
+        return m_locked && m_lockedBy == Thread.currentThread();
+    }
+
     public synchronized void unlock() {
         if (m_locked && m_lockedBy != Thread.currentThread()) {
             System.err
@@ -0,0 +1,372 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    RapidsSessionPool.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import weka.core.WekaException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sessions (one per server process) that are started for a python
+ * command and owner ID. A requester is given a session of its own, so that
+ * several requesters (e.g. classifiers being trained by different threads)
+ * can use the servers at the same time; requesters only have to wait for
+ * each other once all the sessions are taken.
+ * <p>
+ * Variables that must stay with the server that created them (e.g. fitted
+ * models) can be placed on a session. A requester asking for a placed
+ * variable is always given the session holding it, waiting for the session
+ * if necessary.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class RapidsSessionPool {
+
+    /**
+     * The sessions of the pool. The first one is the session that the pool
+     * was created for.
+     */
+    protected final List<RapidsSession> m_sessions = new ArrayList<RapidsSession>();
+
+    /**
+     * The session held (or about to be held) by each requester
+     */
+    protected final Map<Object, RapidsSession> m_holders =
+            new IdentityHashMap<Object, RapidsSession>();
+
+    /**
+     * The session holding each placed variable, keyed by variable name
+     */
+    protected final Map<String, RapidsSession> m_placements =
+            new HashMap<String, RapidsSession>();
+
+    /**
+     * When each session was last handed out (in terms of m_acquisitions)
+     */
+    protected final Map<RapidsSession, Long> m_lastAcquired =
+            new IdentityHashMap<RapidsSession, Long>();
+
+    /**
+     * The number of times a session has been handed out
+     */
+    protected long m_acquisitions;
+
+    /**
+     * The index of the session to try first when handing sessions out in turn
+     */
+    protected int m_next;
+
+    /**
+     * True to hand the sessions out in turn, rather than to give out the
+     * least busy one
+     */
+    protected boolean m_roundRobin;
+
+    /**
+     * The memory budget (bytes) of the frame cache of each session in the
+     * pool, or -1 if it has not been configured
+     */
+    protected long m_frameCacheBudget = -1;
+
+    /**
+     * Constructor
+     *
+     * @param session the first session of the pool
+     */
+    public RapidsSessionPool(RapidsSession session) {
+        add(session);
+    }
+
+    /**
+     * Add a session to the pool.
+     *
+     * @param session the session to add
+     */
+    public synchronized void add(RapidsSession session) {
+        m_sessions.add(session);
+        m_lastAcquired.put(session, -1L);
+        notifyAll();
+    }
+
+    /**
+     * Remove a session (e.g. one whose server has been shut down) from the
+     * pool, along with the variables placed on it.
+     *
+     * @param session the session to remove
+     */
+    public synchronized void remove(RapidsSession session) {
+        m_sessions.remove(session);
+        m_lastAcquired.remove(session);
+        for (Iterator<RapidsSession> i = m_placements.values().iterator(); i.hasNext(); ) {
+            if (i.next() == session) {
+                i.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of sessions in the pool
+     */
+    public synchronized int size() {
+        return m_sessions.size();
+    }
+
+    /**
+     * Set whether sessions are handed out in turn. Otherwise the free session
+     * with the fewest variables placed on it (and then the one that has been
+     * idle the longest) is handed out, which spreads the fitted models (and
+     * hence GPU memory) over the servers.
+     *
+     * @param roundRobin true to hand sessions out in turn
+     */
+    public synchronized void setRoundRobin(boolean roundRobin) {
+        m_roundRobin = roundRobin;
+    }
+
+    /**
+     * @return true if sessions are handed out in turn
+     */
+    public synchronized boolean getRoundRobin() {
+        return m_roundRobin;
+    }
+
+    /**
+     * Set the memory budget of the frame cache of each session in the pool.
+     * Each session adopts it the next time that it is acquired.
+     *
+     * @param budget the budget in bytes (0 to disable caching)
+     */
+    public synchronized void setFrameCacheBudget(long budget) {
+        m_frameCacheBudget = Math.max(budget, 0);
+    }
+
+    /**
+     * @return the memory budget of the frame cache of each session in the
+     * pool, or -1 if it has not been configured
+     */
+    public synchronized long getFrameCacheBudget() {
+        return m_frameCacheBudget;
+    }
+
+    /**
+     * Check whether the pool already has (at least) the given number of
+     * sessions and the given settings, i.e. whether configuring it again would
+     * change nothing.
+     *
+     * @param size             the number of sessions
+     * @param roundRobin       true if sessions are handed out in turn
+     * @param frameCacheBudget the memory budget of each session's frame cache
+     * @return true if the pool is configured that way
+     */
+    public synchronized boolean isConfigured(int size, boolean roundRobin,
+                                             long frameCacheBudget) {
+        return m_sessions.size() >= size && m_roundRobin == roundRobin
+                && m_frameCacheBudget == Math.max(frameCacheBudget, 0);
+    }
+
+    /**
+     * Get a session for a requester, waiting until one is free. A requester
+     * that already holds a session is given the same one again, provided that
+     * the variable it needs (if any) has not been placed on another session.
+     * The session
+     * is reserved for the requester while the pool is locked, and then locked
+     * for the requester without holding the pool's lock (so that releasing
+     * sessions is never held up by a requester waiting for one).
+     *
+     * @param requester the requesting object
+     * @param placement the name of a variable that the requester needs (may
+     *                  be null). If the variable has been placed on a session,
+     *                  then the requester is given that session
+     * @return the session
+     * @throws WekaException if the pool has no sessions, or the requester
+     *                       holds a session other than the one the variable
+     *                       has been placed on
+     */
+    public RapidsSession acquire(Object requester, String placement)
+            throws WekaException {
+        RapidsSession session = reserve(requester, placement);
+        try {
+            return session.getSession(requester);
+        } catch (WekaException ex) {
+            synchronized (this) {
+                m_holders.remove(requester);
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Choose a session for a requester and record it as the requester's,
+     * waiting until one is free.
+     *
+     * @param requester the requesting object
+     * @param placement the name of a variable that the requester needs (may
+     *                  be null)
+     * @return the session
+     * @throws WekaException if the pool has no sessions, or the requester
+     *                       holds a session other than the one the variable
+     *                       has been placed on
+     */
+    protected synchronized RapidsSession reserve(Object requester, String placement)
+            throws WekaException {
+        RapidsSession held = m_holders.get(requester);
+        if (held != null && m_sessions.contains(held)) {
+            RapidsSession placed = placement != null ? m_placements.get(placement) : null;
+            if (placed != null && placed != held) {
+                // waiting for the other session while holding this one could
+                // deadlock
+                throw new WekaException("Variable " + placement + " is held by a different "
+                        + "python session than the one the requester already holds");
+            }
+            return held;
+        }
+
+        while (true) {
+            if (m_sessions.isEmpty()) {
+                throw new WekaException("Python session has been shut down!");
+            }
+            RapidsSession placed = placement != null ? m_placements.get(placement) : null;
+            RapidsSession session = placed != null ? (isTaken(placed) ? null : placed)
+                    : choose();
+            if (session == null) {
+                // a session that the current thread holds for another
+                // requester is shared, as waiting for it would never end
+                session = placed != null ? (placed.isHeldByCurrentThread() ? placed : null)
+                        : heldByCurrentThread();
+            }
+            if (session != null) {
+                m_holders.put(requester, session);
+                m_lastAcquired.put(session, m_acquisitions++);
+                return session;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new WekaException("Interrupted while waiting for a python session");
+            }
+        }
+    }
+
+    /**
+     * Release the session held by a requester. Does nothing if the requester
+     * does not hold a session.
+     *
+     * @param requester the session holder
+     */
+    public synchronized void release(Object requester) {
+        RapidsSession session = m_holders.remove(requester);
+        if (session != null) {
+            session.dropSession(requester);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record that a variable is held by the server of a session.
+     *
+     * @param name    the name of the variable
+     * @param session the session
+     */
+    public synchronized void place(String name, RapidsSession session) {
+        if (m_sessions.contains(session)) {
+            m_placements.put(name, session);
+        }
+    }
+
+    /**
+     * Forget the placement of a variable (e.g. because it has been deleted).
+     *
+     * @param name the name of the variable
+     */
+    public synchronized void unplace(String name) {
+        m_placements.remove(name);
+    }
+
+    /**
+     * Choose a free session according to the acquisition policy.
+     *
+     * @return the session, or null if all sessions are held
+     */
+    protected RapidsSession choose() {
+        RapidsSession best = null;
+        int bestPlaced = 0;
+        for (int i = 0; i < m_sessions.size(); i++) {
+            int index = (m_next + i) % m_sessions.size();
+            RapidsSession session = m_sessions.get(index);
+            if (isTaken(session)) {
+                continue;
+            }
+            if (m_roundRobin) {
+                m_next = index + 1;
+                return session;
+            }
+            int placed = numPlaced(session);
+            if (best == null || placed < bestPlaced || placed == bestPlaced
+                    && m_lastAcquired.get(session) < m_lastAcquired.get(best)) {
+                best = session;
+                bestPlaced = placed;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return true if a session is held, or has been reserved for a requester
+     * that is about to hold it
+     */
+    protected boolean isTaken(RapidsSession session) {
+        return session.isHeld() || m_holders.containsValue(session);
+    }
+
+    /**
+     * @return a session held by the current thread, or null if there is none
+     */
+    protected RapidsSession heldByCurrentThread() {
+        for (RapidsSession session : m_sessions) {
+            if (session.isHeldByCurrentThread()) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of variables placed on a session
+     */
+    protected int numPlaced(RapidsSession session) {
+        int count = 0;
+        for (RapidsSession placed : m_placements.values()) {
+            if (placed == session) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
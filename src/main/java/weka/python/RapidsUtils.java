@@ -23,18 +23,22 @@ package weka.python;
 
 import ai.rapids.cudf.ArrowIPCWriterOptions;
 import ai.rapids.cudf.ColumnVector;
+import ai.rapids.cudf.NativeDepsLoader;
 import ai.rapids.cudf.Table;
 import ai.rapids.cudf.TableWriter;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 import org.apache.commons.codec.binary.Base64;
 import org.bytedeco.cuda.cudart.CUipcMemHandle_v1;
 import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Pointer;
 import weka.core.*;
 import weka.core.converters.CSVSaver;
 import weka.gui.Logger;
@@ -42,11 +46,19 @@ import weka.gui.Logger;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY;
 import static com.fasterxml.jackson.annotation.PropertyAccessor.FIELD;
@@ -60,16 +72,94 @@ import static org.bytedeco.cuda.global.cudart.*;
  */
 public class RapidsUtils {
 
-    public static final ObjectMapper MAPPER = new ObjectMapper() {
-        {
-            this.registerModule(new ParameterNamesModule());
-            this.setVisibility(FIELD, ANY);
-            this.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-            this.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            this.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-            this.configure(SerializationFeature.WRITE_DURATIONS_AS_TIMESTAMPS, false);
+    public static final ObjectMapper MAPPER = configureMapper(new ObjectMapper());
+
+    /**
+     * Mapper for command messages in CBOR, a binary encoding of the JSON data
+     * model. Used for a connection once the server has agreed to it (see
+     * {@link #receiveServerPIDAck(OutputStream, InputStream)})
+     */
+    public static final ObjectMapper CBOR_MAPPER = configureMapper(new ObjectMapper(new CBORFactory()));
+
+    /**
+     * Encodings of command messages
+     */
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_CBOR = "cbor";
+
+    protected static ObjectMapper configureMapper(ObjectMapper mapper) {
+        mapper.registerModule(new ParameterNamesModule());
+        mapper.setVisibility(FIELD, ANY);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        mapper.configure(SerializationFeature.WRITE_DURATIONS_AS_TIMESTAMPS, false);
+        return mapper;
+    }
+
+    /**
+     * Get the mapper that command messages sent (or replies received) over the
+     * given stream are encoded with: the one negotiated for its connection,
+     * or JSON for streams that don't belong to a connection.
+     *
+     * @param stream the input or output stream of a connection
+     * @return the mapper
+     */
+    protected static ObjectMapper commandMapper(Object stream) {
+        if (stream instanceof ServerTransport.CommandStream) {
+            return ((ServerTransport.CommandStream) stream).getCommandMapper();
         }
-    };
+        return MAPPER;
+    }
+
+    /**
+     * Encode a command message for sending over the given stream, tagging it
+     * with the next request id of the stream's connection (unless it already
+     * has one). The server echoes the id in its reply, which lets replies be
+     * matched to requests when several are in flight (see CommandPipeline).
+     *
+     * @param command      the command (a map of fields or a ServerCommand)
+     * @param outputStream the output stream the command is to be written to
+     * @return the encoded command
+     * @throws IOException if a problem occurs
+     */
+    @SuppressWarnings("unchecked")
+    protected static byte[] encodeCommand(Object command, OutputStream outputStream)
+            throws IOException {
+        if (outputStream instanceof ServerTransport.CommandStream) {
+            ServerTransport.CommandStream stream = (ServerTransport.CommandStream) outputStream;
+            if (command instanceof ServerCommand) {
+                ServerCommand serverCommand = (ServerCommand) command;
+                if (serverCommand.getRequestId() == null) {
+                    serverCommand.setRequestId(stream.nextRequestId());
+                }
+            } else if (command instanceof Map) {
+                Map<String, Object> fields = (Map<String, Object>) command;
+                if (!fields.containsKey("request_id")) {
+                    fields.put("request_id", stream.nextRequestId());
+                }
+            }
+        }
+        return commandMapper(outputStream).writeValueAsBytes(command);
+    }
+
+    /**
+     * Encode and write a command message.
+     *
+     * @param command      the command
+     * @param outputStream the output stream to write to
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws IOException if a problem occurs
+     */
+    protected static void writeCommand(Object command, OutputStream outputStream, Logger log,
+                                       boolean debug) throws IOException {
+        byte[] bytes = encodeCommand(command, outputStream);
+        if (debug) {
+            outputCommandDebug(command, log);
+        }
+        writeDelimitedToOutputStream(bytes, outputStream);
+    }
 
     /**
      * Create a simple header definition to transfer as json to the server
@@ -81,6 +171,22 @@ public class RapidsUtils {
      */
     protected static Map<String, Object> createSimpleHeader(Instances header,
                                                             String frameName) {
+        return createSimpleHeader(header, frameName, false);
+    }
+
+    /**
+     * Create a simple header definition to transfer as json to the server
+     *
+     * @param header         the Instances header to convert
+     * @param frameName      the name of the pandas data frame that this header
+     *                       will refer to
+     * @param nominalIndexes true if nominal inputs are sent as label indexes
+     *                       (rather than as labels), in which case the header
+     *                       carries the labels for the server to decode them
+     * @return A map with key values that define the header
+     */
+    protected static Map<String, Object> createSimpleHeader(Instances header,
+                                                            String frameName, boolean nominalIndexes) {
         Map<String, Object> result = new HashMap<String, Object>();
         result.put("relation_name", header.relationName());
         result.put("frame_name", frameName);
@@ -106,9 +212,406 @@ public class RapidsUtils {
             result.put("date_atts", dateAtts);
         }
 
+        // nominal inputs (i.e. ones that have not been binarized) travel as
+        // label indexes - the labels allow the server to decode them
+        if (nominalIndexes && hasNominalInputs(header)) {
+            List<Integer> nominalAtts = new ArrayList<Integer>();
+            List<List<String>> nominalValues = new ArrayList<List<String>>();
+            for (int i = 0; i < header.numAttributes(); i++) {
+                if (header.attribute(i).isNominal() && i != header.classIndex()) {
+                    List<String> labels = new ArrayList<String>();
+                    for (int j = 0; j < header.attribute(i).numValues(); j++) {
+                        labels.add(header.attribute(i).value(j));
+                    }
+                    nominalAtts.add(i);
+                    nominalValues.add(labels);
+                }
+            }
+            result.put("nominal_atts", nominalAtts);
+            result.put("nominal_values", nominalValues);
+        }
+
         return result;
     }
 
+    /**
+     * Compute a hash of the structure of a header (attribute names, types and
+     * numbers of values, and the class index). Headers that are equal (in
+     * the sense of Instances.equalHeaders()) have the same hash.
+     *
+     * @param header the header
+     * @return the hash
+     */
+    protected static int headerHash(Instances header) {
+        int hash = header.classIndex();
+        for (int i = 0; i < header.numAttributes(); i++) {
+            Attribute attribute = header.attribute(i);
+            hash = 31 * hash + attribute.name().hashCode();
+            hash = 31 * hash + attribute.type();
+            hash = 31 * hash + attribute.numValues();
+        }
+        return hash;
+    }
+
+    /**
+     * Check whether there are nominal attributes, other than the class, in the
+     * supplied header. Such attributes are sent as label indexes and one-hot
+     * encoded on the server.
+     *
+     * @param header the header to check
+     * @return true if there are nominal input attributes
+     */
+    protected static boolean hasNominalInputs(Instances header) {
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (header.attribute(i).isNominal() && i != header.classIndex()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the script that one-hot encodes the nominal inputs in X (which the
+     * server has decoded into pandas categoricals). Categories are fixed by the
+     * header, so training and test data expand to the same columns.
+     *
+     * @param instances the instances that were sent
+     * @return the script, or an empty string if there are no nominal inputs
+     */
+    protected static String nominalExpansionScript(Instances instances) {
+        if (!hasNominalInputs(instances)) {
+            return "";
+        }
+        return "import pandas as pd\nX = pd.get_dummies(X, dtype='float32')\n";
+    }
+
+    /**
+     * Add the description of the structure of the instances being transferred
+     * to a command. This is either the full header, or just the frame name and
+     * the id of a schema that has previously been registered with the server
+     * (see {@link #registerSchema}).
+     *
+     * @param command   the command to add to
+     * @param instances the instances being transferred
+     * @param frameName the name of the frame to create in python
+     * @param schemaId  the id of the registered schema, or -1 to send the full
+     *                  header
+     * @param nominalIndexes true if nominal inputs are sent as label indexes
+     */
+    protected static void putHeader(Map<String, Object> command,
+                                    Instances instances, String frameName, int schemaId,
+                                    boolean nominalIndexes) {
+        if (schemaId >= 0) {
+            command.put("schema_id", schemaId);
+            command.put("frame_name", frameName);
+        } else {
+            command.put("header", createSimpleHeader(instances, frameName, nominalIndexes));
+        }
+    }
+
+    /**
+     * Register a schema with the server. The server keeps the header, the
+     * column names and the plan for selecting X and Y, so that subsequent
+     * transfers of instances with the same structure only need to reference
+     * the schema id and carry the column data. Such transfers also create X
+     * and Y on the server, without a separate script execution.
+     *
+     * @param header       the structure of the instances
+     * @param schemaId     the id to register the schema under
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void registerSchema(Instances header, int schemaId,
+                                         OutputStream outputStream, InputStream inputStream, Logger log,
+                                         boolean debug) throws WekaException {
+        List<String> columnNames = new ArrayList<String>();
+        List<Integer> xColumns = new ArrayList<Integer>();
+        for (int i = 0; i < header.numAttributes(); i++) {
+            columnNames.add(header.attribute(i).name());
+            if (i != header.classIndex()) {
+                xColumns.add(i);
+            }
+        }
+        Map<String, Object> schema = new HashMap<String, Object>();
+        schema.put("header", createSimpleHeader(header, null, true));
+        schema.put("column_names", columnNames);
+        schema.put("x_columns", xColumns);
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "register_schema");
+        command.put("schema_id", schemaId);
+        command.put("schema", schema);
+        command.put("debug", debug);
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+                writeDelimitedToOutputStream(bytes, outputStream);
+                String serverAck = receiveServerAck(inputStream);
+                if (serverAck != null) {
+                    throw new WekaException("Registration of schema failed: "
+                            + serverAck);
+                }
+            } catch (IOException e) {
+                throw new WekaException(e);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
+
+    /**
+     * Unregister a schema, so that the server no longer holds on to it.
+     *
+     * @param schemaId     the id of the schema
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void unregisterSchema(int schemaId, OutputStream outputStream,
+                                           InputStream inputStream, Logger log, boolean debug)
+            throws WekaException {
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "unregister_schema");
+        command.put("schema_id", schemaId);
+        command.put("debug", debug);
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+                writeDelimitedToOutputStream(bytes, outputStream);
+                String serverAck = receiveServerAck(inputStream);
+                if (serverAck != null) {
+                    throw new WekaException("Unregistration of schema failed: "
+                            + serverAck);
+                }
+            } catch (IOException e) {
+                throw new WekaException(e);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
+
+    /**
+     * Execute the script that creates the X (and Y) arrays from a transferred
+     * frame. Not needed when the transfer referenced a registered schema, as
+     * the server does this itself.
+     *
+     * @param instances    the instances that were transferred
+     * @param frameName    the name of the frame in python
+     * @param dataFrame    true if the frame is a pandas data frame, false if it
+     *                     is an array
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void createXAndY(Instances instances, String frameName,
+                                      boolean dataFrame, OutputStream outputStream, InputStream inputStream,
+                                      Logger log, boolean debug) throws WekaException {
+        String script = xAndYScript(instances, frameName, dataFrame);
+
+        if (debug) {
+            if (log != null) {
+                log.logMessage("Executing python script:\n\n" + script);
+            } else {
+                System.err.println("Executing python script:\n\n" + script);
+            }
+        }
+
+        List<String> outErr =
+                executeUserScript(script, outputStream, inputStream,
+                        log, debug);
+
+        if (outErr.size() == 2 && outErr.get(1).length() > 0) {
+            throw new WekaException(outErr.get(1));
+        }
+    }
+
+    /**
+     * Get the script that creates the X (and Y) arrays from a transferred
+     * frame.
+     *
+     * @param instances the instances that were transferred
+     * @param frameName the name of the frame in python
+     * @param dataFrame true if the frame is a pandas data frame, false if it is
+     *                  an array
+     * @return the script
+     */
+    protected static String xAndYScript(Instances instances, String frameName,
+                                        boolean dataFrame) {
+        String select = dataFrame ? ".iloc[:," : "[:,";
+        int classIndex = instances.classIndex();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < instances.numAttributes(); i++) {
+            if (i != classIndex) {
+                builder.append(i).append(",");
+            }
+        }
+        String xList = builder.substring(0, builder.length() - 1);
+        builder = new StringBuilder();
+        builder.append("X = " + frameName + select + "[" + xList
+                + "]]\n");
+        if (dataFrame) {
+            builder.append(nominalExpansionScript(instances));
+        }
+        if (classIndex >= 0) {
+            builder.append("Y = " + frameName + select + classIndex
+                    + "]\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get the message that starts a transfer of instances: the transfer
+     * command itself, or, if the transfer is part of a compound command, the
+     * compound command with the transfer as its first step.
+     *
+     * @param command     the transfer command
+     * @param compound    the compound command (may be null)
+     * @param xAndYScript the script that creates X (and Y) after the transfer,
+     *                    or null if the server does so itself
+     * @return the message
+     */
+    protected static Object transferMessage(Map<String, Object> command,
+                                            CompoundCommand compound, String xAndYScript) {
+        return compound == null ? command : compound.toMessage(command, xAndYScript);
+    }
+
+    /**
+     * Complete a transfer of instances once the data has been sent: receive
+     * the ack and create X (and Y) - or, if the transfer is part of a compound
+     * command, receive the reply to the whole compound command (unless it is
+     * left to a CommandPipeline).
+     *
+     * @param instances    the instances that were transferred
+     * @param frameName    the name of the frame in python
+     * @param dataFrame    true if the frame is a pandas data frame, false if it
+     *                     is an array
+     * @param xAndY        true if X (and Y) need to be created from the frame
+     * @param compound     the compound command (may be null)
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws IOException   if a problem occurs
+     * @throws WekaException if the transfer (or the compound command) failed
+     */
+    protected static void finishTransfer(Instances instances, String frameName,
+                                         boolean dataFrame, boolean xAndY, CompoundCommand compound,
+                                         OutputStream outputStream, InputStream inputStream, Logger log,
+                                         boolean debug) throws IOException, WekaException {
+        if (compound != null) {
+            if (!compound.isReplyDeferred()) {
+                receiveCompoundReply(compound, inputStream);
+            }
+            return;
+        }
+        String serverAck = receiveServerAck(inputStream);
+        if (serverAck != null) {
+            throw new WekaException("Transfer of instances failed: "
+                    + serverAck);
+        }
+
+        // execute script to create X (and Y) arrays
+        if (xAndY) {
+            createXAndY(instances, frameName, dataFrame, outputStream, inputStream,
+                    log, debug);
+        }
+    }
+
+    /**
+     * Run a compound command on its own (i.e. not following a transfer of
+     * instances).
+     *
+     * @param compound     the compound command
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs, or a step failed
+     */
+    protected static void executeCompound(CompoundCommand compound, OutputStream outputStream,
+                                          InputStream inputStream, Logger log, boolean debug)
+            throws WekaException {
+        Map<String, Object> command = compound.toMessage(null, null);
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+                writeDelimitedToOutputStream(bytes, outputStream);
+                if (!compound.isReplyDeferred()) {
+                    receiveCompoundReply(compound, inputStream);
+                }
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
+
+    /**
+     * Receive the single reply to a compound command, and store the output of
+     * its scripts and the value fetched by its last step (if any) in it.
+     *
+     * @param compound    the compound command
+     * @param inputStream the input stream to listen for server response on
+     * @throws IOException   if a problem occurs
+     * @throws WekaException if a step failed
+     */
+    protected static void receiveCompoundReply(CompoundCommand compound,
+                                               InputStream inputStream) throws IOException, WekaException {
+        receiveCompoundReply(compound, readAckFromInputStream(inputStream), inputStream);
+    }
+
+    /**
+     * Receive the rest of the reply to a compound command, whose ack has been
+     * read already.
+     *
+     * @param compound    the compound command
+     * @param ack         the ack
+     * @param inputStream the input stream to read the rest of the reply from
+     * @throws IOException   if a problem occurs
+     * @throws WekaException if a step failed
+     */
+    protected static void receiveCompoundReply(CompoundCommand compound, ServerAck ack,
+                                               InputStream inputStream) throws IOException, WekaException {
+        compound.setScriptOutAndErr(ack.getScriptOut(), ack.getScriptError());
+        if (!ack.isOk()) {
+            // a script that failed is usually the reason for a later step
+            // failing, so report its error too
+            String scriptError = compound.getScriptOutAndErr().get(1);
+            throw new WekaException(ack.getErrorMessage()
+                    + (scriptError.length() > 0 ? "\n" + scriptError : ""));
+        }
+        String varName = compound.getFetchVariable();
+        if (varName == null) {
+            return;
+        }
+        if (!varName.equals(ack.getVariableName())) {
+            throw new WekaException("Server sent back a value for a different "
+                    + "variable!");
+        }
+        if ("binary".equals(compound.getFetchEncoding())) {
+            compound.setNumericArray(readBinaryArray(varName, ack, inputStream));
+        } else {
+            compound.setStringValue(ack.getVariableValue().toString());
+        }
+    }
+
     /**
      * Converts a header definition read and decoded from json into a structure
      * only set of Instances
@@ -163,7 +666,7 @@ public class RapidsUtils {
         Map<String, Object> command = new HashMap<String, Object>();
         command.put("command", "shutdown");
         try {
-            byte[] bytes = MAPPER.writeValueAsBytes(command);
+            byte[] bytes = encodeCommand(command, outputStream);
             // write the command
             writeDelimitedToOutputStream(bytes, outputStream);
         } catch (IOException ex) {
@@ -190,47 +693,49 @@ public class RapidsUtils {
         if (!script.endsWith("\n")) {
             script += "\n";
         }
-        List<String> outAndErr = new ArrayList<String>();
-
-        Map<String, Object> command = new HashMap<String, Object>();
-        command.put("command", "execute_script");
-        command.put("script", script);
-        command.put("debug", debug);
+        ServerCommand command = new ServerCommand("execute_script", debug);
+        command.setScript(script);
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
                 writeDelimitedToOutputStream(bytes, outputStream);
 
                 // get the result of execution
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                // mapper.readValue(bytes, Map.class);
-                if (!ack.get("response").toString().equals("ok")) {
-                    // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
-                }
-                // get the script out and err
-                outAndErr.add(ack.get("script_out").toString().trim());
-                outAndErr.add(ack.get("script_error").toString().trim());
-                if (debug && (!outAndErr.get(0).isEmpty() || !outAndErr.get(1).isEmpty())) {
-                    if (log != null) {
-                        log.logMessage("Script output:\n" + outAndErr.get(0));
-                        log.logMessage("\nScript error:\n" + outAndErr.get(1));
-                    } else {
-                        System.err.println("Script output:\n" + outAndErr.get(0));
-                        System.err.println("\nScript error:\n" + outAndErr.get(1));
-                    }
-                }
+                return scriptOutAndErr(readAckFromInputStream(inputStream), log, debug);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+
+        return new ArrayList<String>();
+    }
 
-                if (outAndErr.get(1).contains("Warning:")) {
-                    // clear warnings - we really just want to know if there
-                    // are major errors
-                    outAndErr.set(1, "");
+    /**
+     * Install a function in the server, so that it can be called by id.
+     *
+     * @param function     the function
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to read responses from
+     * @param log          optional log to write to
+     * @param debug        true to output debugging info from both java and the server
+     * @throws WekaException if a problem occurs, or the source could not be run
+     */
+    protected static void registerFunction(ServerFunction function,
+                                           OutputStream outputStream, InputStream inputStream, Logger log,
+                                           boolean debug) throws WekaException {
+        ServerCommand command = new ServerCommand("register_function", debug);
+        command.setFunction(function);
+        if (inputStream != null && outputStream != null) {
+            try {
+                writeCommand(command, outputStream, log, debug);
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
+                    throw new WekaException(ack.getErrorMessage());
                 }
             } catch (IOException ex) {
                 throw new WekaException(ex);
@@ -238,7 +743,80 @@ public class RapidsUtils {
         } else if (debug) {
             outputCommandDebug(command, log);
         }
+    }
 
+    /**
+     * Call a function that has been installed in the server.
+     *
+     * @param function       the function
+     * @param args           the arguments to call it with, by name
+     * @param resultVariable the variable to store the result of the call in, or
+     *                       null
+     * @param outputStream   the output stream to write to
+     * @param inputStream    the input stream to read responses from
+     * @param log            optional log to write to
+     * @param debug          true to output debugging info from both java and the server
+     * @return a two element list that contains the sys out and sys error from the
+     * call
+     * @throws WekaException if a problem occurs
+     */
+    protected static List<String> callFunction(ServerFunction function,
+                                               Map<String, Object> args, String resultVariable,
+                                               OutputStream outputStream, InputStream inputStream,
+                                               Logger log, boolean debug) throws WekaException {
+        ServerCommand command = new ServerCommand("call_function", debug);
+        command.setFunction(function);
+        command.setArgs(args);
+        command.setResultVariable(resultVariable);
+        if (inputStream != null && outputStream != null) {
+            try {
+                writeCommand(command, outputStream, log, debug);
+                return scriptOutAndErr(readAckFromInputStream(inputStream), log, debug);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Get the output of a script from the ack to its execution.
+     *
+     * @param ack   the ack
+     * @param log   optional log to write to
+     * @param debug true to output debugging info
+     * @return a two element list that contains the sys out and sys error from the
+     * script execution
+     * @throws WekaException if the script could not be executed
+     */
+    protected static List<String> scriptOutAndErr(ServerAck ack, Logger log, boolean debug)
+            throws WekaException {
+        if (!ack.isOk()) {
+            // fatal error
+            throw new WekaException(ack.getErrorMessage());
+        }
+        // get the script out and err
+        List<String> outAndErr = new ArrayList<String>();
+        outAndErr.add(ack.getScriptOut().trim());
+        outAndErr.add(ack.getScriptError().trim());
+        if (debug && (!outAndErr.get(0).isEmpty() || !outAndErr.get(1).isEmpty())) {
+            if (log != null) {
+                log.logMessage("Script output:\n" + outAndErr.get(0));
+                log.logMessage("\nScript error:\n" + outAndErr.get(1));
+            } else {
+                System.err.println("Script output:\n" + outAndErr.get(0));
+                System.err.println("\nScript error:\n" + outAndErr.get(1));
+            }
+        }
+
+        if (outAndErr.get(1).contains("Warning:")) {
+            // clear warnings - we really just want to know if there
+            // are major errors
+            outAndErr.set(1, "");
+        }
         return outAndErr;
     }
 
@@ -246,10 +824,27 @@ public class RapidsUtils {
      * Sends instances to a pandas dataframe in python. Assumes data has been
      * binarized (as scikit-learn algorithms take only numeric data) and have had
      * missing values replaced. Creates up to two numpy arrays in python called X
-     * and Y: input columns and target (if class is set) respectively
+     * and Y: input columns and target (if class is set) respectively.
+     * Nominal input attributes that have not been binarized are sent as label
+     * indexes and one-hot encoded in python.
+     * <p>
+     * The CSV is formatted straight to bytes by {@link CSVEncoder}s, in chunks
+     * of {@link #PIPELINE_CHUNK_ROWS} rows, and streamed as a sequence of
+     * length delimited frames (terminated by an empty frame) that the server
+     * parses as they arrive. So only one chunk is held in memory at a time.
+     * If pipelined is set, then the frames are written through a
+     * {@link PipelinedChannel}, so that each chunk is formatted while the
+     * previous one is being transmitted.
      *
      * @param instances    the instances to transfer
      * @param frameName    the name of the pandas dataframe
+     * @param schemaId     the id of a schema registered with the server, or -1
+     *                     to send the full header
+     * @param pipelined    true to overlap formatting chunks with writing them
+     * @param extractor    the extractor used to convert the rows
+     * @param staging      the staging buffers to convert the rows into
+     * @param compound     a compound command to run straight after the
+     *                     transfer, as part of the same request (may be null)
      * @param outputStream the output stream to write to
      * @param inputStream  the input stream to listen for server response on
      * @param log          the log (if any) to use
@@ -257,147 +852,225 @@ public class RapidsUtils {
      * @throws WekaException if a problem occurs
      */
     protected static void sendInstancesScikitLearn(Instances instances,
-                                                   String frameName, OutputStream outputStream, InputStream inputStream,
-                                                   Logger log, boolean debug) throws WekaException {
+                                                   String frameName, int schemaId, boolean pipelined,
+                                                   ColumnExtractor extractor, StagingBuffers staging,
+                                                   CompoundCommand compound, OutputStream outputStream, InputStream inputStream, Logger log,
+                                                   boolean debug) throws WekaException {
         // iris.iloc[:,[0,2,4]] (slice columns to array)
         // pd.get_dummies(iris) (binarize/one hot)
 
         // Assumes that data has had nominals (except the class) converted
         // to binary indicators and all missing values replaced
         // ObjectMapper mapper = JsonFactory.create();
-        Map<String, Object> simpleHeader = createSimpleHeader(instances, frameName);
         Map<String, Object> command = new HashMap<String, Object>();
         command.put("command", "put_instances");
         command.put("num_instances", instances.numInstances());
-        command.put("header", simpleHeader);
+        putHeader(command, instances, frameName, schemaId, true);
+        command.put("chunked", true);
         command.put("debug", debug);
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                Object message = transferMessage(command, compound, schemaId < 0 ? xAndYScript(instances, frameName, true) : null);
+                byte[] bytes = encodeCommand(message, outputStream);
                 if (debug) {
-                    outputCommandDebug(command, log);
+                    outputCommandDebug(message, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
                 if (instances.numInstances() > 0) {
-                    StringBuilder builder = new StringBuilder();
-
-                    // header row
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        builder.append(Utils.quote(instances.attribute(i).name()));
-                        if (i < instances.numAttributes() - 1) {
-                            builder.append(",");
-                        } else {
-                            builder.append("\n");
+                    WritableByteChannel channel = openChannel(outputStream, pipelined, staging);
+                    long numBytes = 0;
+                    try {
+                        // header row (a registered schema holds the column names)
+                        if (schemaId < 0) {
+                            CSVEncoder header = staging.getEncoders(1)[0];
+                            for (int i = 0; i < instances.numAttributes(); i++) {
+                                header.writeString(Utils.quote(instances.attribute(i).name()));
+                                header.writeChar(i < instances.numAttributes() - 1 ? ',' : '\n');
+                            }
+                            numBytes += header.length();
+                            writeDelimitedToChannel(header.toByteBuffer(), channel);
                         }
-                    }
-
-                    // instances
-                    for (int i = 0; i < instances.numInstances(); i++) {
-                        Instance current = instances.instance(i);
-                        for (int j = 0; j < instances.numAttributes(); j++) {
-                            builder.append(current.value(j));
-                            if (j < instances.numAttributes() - 1) {
-                                builder.append(",");
-                            } else {
-                                builder.append("\n");
+                        for (int start = 0; start < instances.numInstances();
+                             start += PIPELINE_CHUNK_ROWS) {
+                            int end = Math.min(start + PIPELINE_CHUNK_ROWS, instances.numInstances());
+                            // each block of rows goes out as its own frame
+                            for (CSVEncoder block : formatCSVRows(instances, start, end, extractor,
+                                    staging)) {
+                                if (block.length() > 0) {
+                                    numBytes += block.length();
+                                    writeDelimitedToChannel(block.toByteBuffer(), channel);
+                                }
                             }
                         }
+                        // empty frame terminates the chunks
+                        writeDelimitedToChannel(ByteBuffer.allocate(0), channel);
+                    } finally {
+                        closeChannel(channel, log, debug);
                     }
                     if (debug) {
-                        System.err.println(builder.toString());
+                        String msg = "Sent " + numBytes + " bytes of CSV";
+                        if (log != null) {
+                            log.logMessage(msg);
+                        } else {
+                            System.err.println(msg);
+                        }
                     }
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(bos));
-                    bw.write(builder.toString());
-                    bw.flush();
-                    bytes = bos.toByteArray();
-                    writeDelimitedToOutputStream(bytes, outputStream);
 
-                    String serverAck = receiveServerAck(inputStream);
-                    if (serverAck != null) {
-                        throw new WekaException("Transfer of instances failed: "
-                                + serverAck);
-                    }
+                    finishTransfer(instances, frameName, true, schemaId < 0, compound,
+                            outputStream, inputStream, log, debug);
+                }
+            } catch (IOException e) {
+                throw new WekaException(e);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
 
-                    // execute script to create X (and Y) arrays
-                    int classIndex = instances.classIndex();
-                    builder = new StringBuilder();
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        if (i != classIndex) {
-                            builder.append(i).append(",");
+    /**
+     * Format a range of rows as CSV (nominal inputs as label indexes). Blocks
+     * of rows are formatted in parallel, each into its own encoder.
+     *
+     * @param instances the instances to format
+     * @param start     the index of the first row (inclusive)
+     * @param end       the index of the last row (exclusive)
+     * @param extractor the extractor used to format the blocks
+     * @param staging   the staging buffers holding the block encoders
+     * @return the encoders holding the blocks, in row order (valid until the
+     * staging buffers are next asked for encoders)
+     */
+    protected static CSVEncoder[] formatCSVRows(final Instances instances, final int start,
+                                                int end, ColumnExtractor extractor,
+                                                StagingBuffers staging) {
+        final int classIndex = instances.classIndex();
+        final int numAttributes = instances.numAttributes();
+        final boolean[] labelIndexes = new boolean[numAttributes];
+        for (int j = 0; j < numAttributes; j++) {
+            labelIndexes[j] = instances.attribute(j).isNominal() && j != classIndex;
+        }
+        final int blockSize = extractor.blockSize(end - start);
+        final CSVEncoder[] blocks =
+                staging.getEncoders((end - start + blockSize - 1) / blockSize);
+        extractor.forEachRowBlock(start, end,
+                new ColumnExtractor.RowBlockTask() {
+                    @Override
+                    public void process(int blockStart, int blockEnd) {
+                        CSVEncoder block = blocks[(blockStart - start) / blockSize];
+                        for (int i = blockStart; i < blockEnd; i++) {
+                            Instance current = instances.instance(i);
+                            for (int j = 0; j < numAttributes; j++) {
+                                if (labelIndexes[j]) {
+                                    block.writeLong(current.isMissing(j) ? -1 : (int) current.value(j));
+                                } else {
+                                    block.writeDouble(current.value(j));
+                                }
+                                block.writeChar(j < numAttributes - 1 ? ',' : '\n');
+                            }
                         }
                     }
-                    String xList = builder.substring(0, builder.length() - 1);
-                    builder = new StringBuilder();
-                    builder.append("X = " + frameName + ".iloc[:,[" + xList
-                            + "]]\n");
-                    if (classIndex >= 0) {
-                        builder.append("Y = " + frameName + ".iloc[:," + classIndex
-                                + "]\n");
-                    }
+                });
+        return blocks;
+    }
 
-                    if (debug) {
-                        if (log != null) {
-                            log.logMessage("Executing python script:\n\n"
-                                    + builder.toString());
-                        } else {
-                            System.err.println("Executing python script:\n\n"
-                                    + builder.toString());
-                        }
-                    }
+    /**
+     * Get a channel for writing instance data to the server - either the
+     * output stream itself or, if pipelined, a {@link PipelinedChannel} that
+     * writes to it on another thread. Must be passed to
+     * {@link #closeChannel} when done.
+     *
+     * @param outputStream the output stream to the server
+     * @param pipelined    true to pipeline writes
+     * @param staging      the staging buffers for the pipeline
+     * @return the channel
+     */
+    protected static WritableByteChannel openChannel(OutputStream outputStream,
+                                                     boolean pipelined, StagingBuffers staging) {
+        WritableByteChannel channel = channelOf(outputStream);
+        return pipelined ? new PipelinedChannel(channel, staging) : channel;
+    }
 
-                    List<String> outErr =
-                            executeUserScript(builder.toString(), outputStream, inputStream,
-                                    log, debug);
+    /**
+     * Get a channel that writes to an output stream. The output stream of a
+     * connection to the server is a channel itself, which takes (direct)
+     * buffers without copying them onto the heap first.
+     *
+     * @param outputStream the output stream
+     * @return the channel
+     */
+    protected static WritableByteChannel channelOf(OutputStream outputStream) {
+        if (outputStream instanceof WritableByteChannel) {
+            return (WritableByteChannel) outputStream;
+        }
+        return Channels.newChannel(outputStream);
+    }
 
-                    if (outErr.size() == 2 && outErr.get(1).length() > 0) {
-                        throw new WekaException(outErr.get(1));
-                    }
+    /**
+     * Finish with a channel from {@link #openChannel}, flushing a pipeline (the
+     * output stream itself is left open).
+     *
+     * @param channel the channel
+     * @param log     the log (if any) to use
+     * @param debug   true if debugging info is to be output
+     * @throws IOException if pipelined writes failed
+     */
+    protected static void closeChannel(WritableByteChannel channel, Logger log, boolean debug)
+            throws IOException {
+        if (channel instanceof PipelinedChannel) {
+            channel.close();
+            if (debug) {
+                String msg = "Pipelined send stalled for "
+                        + ((PipelinedChannel) channel).getStallTime() + "ms waiting for the socket";
+                if (log != null) {
+                    log.logMessage(msg);
+                } else {
+                    System.err.println(msg);
                 }
-            } catch (IOException e) {
-                throw new WekaException(e);
             }
-        } else if (debug) {
-            outputCommandDebug(command, log);
         }
     }
 
     protected static void sendInstancesCuda(Instances instances, FloatPointer dstPtr,
-                                            String frameName, OutputStream outputStream, InputStream inputStream,
-                                            Logger log, boolean debug) throws WekaException {
+                                            String frameName, int schemaId, ColumnExtractor extractor,
+                                            StagingBuffers staging, CompoundCommand compound,
+                                            OutputStream outputStream, InputStream inputStream, Logger log,
+                                            boolean debug) throws WekaException {
         // iris.iloc[:,[0,2,4]] (slice columns to array)
         // pd.get_dummies(iris) (binarize/one hot)
 
         // Assumes that data has had nominals (except the class) converted
         // to binary indicators and all missing values replaced
         // ObjectMapper mapper = JsonFactory.create();
-        Map<String, Object> simpleHeader = createSimpleHeader(instances, frameName);
         Map<String, Object> command = new HashMap<String, Object>();
         long num_instacnes = instances.numInstances();
         long num_attrs = instances.numAttributes();
         command.put("command", "share_instances");
         command.put("data_type", "float32");
         command.put("data_shape", String.format("(%d, %d)", num_instacnes, num_attrs));
-        command.put("header", simpleHeader);
+        putHeader(command, instances, frameName, schemaId, false);
         command.put("debug", debug);
         if (inputStream != null && outputStream != null) {
 
             try (CUipcMemHandle_v1 handle = new CUipcMemHandle_v1(64)) {
                 // instances
-                float[] arr = new float[instances.numInstances() * instances.numAttributes()];
-                for (int i = 0; i < instances.numInstances(); i++) {
-                    Instance current = instances.instance(i);
-                    for (int j = 0; j < instances.numAttributes(); j++) {
-                        arr[i * instances.numAttributes() + j] = (float) current.value(j);
-                    }
+                // the host copy is staged in native byte order, ready for the
+                // device, a bounded number of rows at a time (so the total
+                // can exceed the 2GB a single buffer can hold)
+                long rowBytes = Math.max(num_attrs * Float.BYTES, 1);
+                int chunkRows = (int) Math.max(1, Math.min(num_instacnes, CUDA_STAGING_SIZE / rowBytes));
+                ByteBuffer rows = staging.getBuffer("cuda_rows", chunkRows * rowBytes)
+                        .order(ByteOrder.nativeOrder());
+                cudaMalloc(dstPtr, num_instacnes * rowBytes);
+                for (int start = 0; start < instances.numInstances(); start += chunkRows) {
+                    int end = Math.min(start + chunkRows, instances.numInstances());
+                    extractor.extractRowMajor(instances, start, end, rows);
+                    FloatPointer srcPtr = new FloatPointer(rows.asFloatBuffer());
+                    // the position of a pointer argument offsets its address
+                    // (in bytes, for a plain Pointer)
+                    Pointer chunkPtr = new Pointer(dstPtr).position(start * rowBytes);
+                    cudaMemcpy(chunkPtr, srcPtr, (end - start) * rowBytes, cudaMemcpyHostToDevice);
                 }
-
-                FloatPointer srcPtr = new FloatPointer(arr);
-                cudaMalloc(dstPtr, num_instacnes * num_attrs * Float.BYTES);
-                cudaMemcpy(dstPtr, srcPtr, num_instacnes * num_attrs * Float.BYTES, cudaMemcpyHostToDevice);
                 cuIpcGetMemHandle(handle, dstPtr.address());
-                srcPtr.deallocate();
 
                 byte[] handle_buf = new byte[64];
                 for (int i = 0; i < 64; i++) {
@@ -406,54 +1079,106 @@ public class RapidsUtils {
                 String handle_string = new String(Base64.encodeBase64(handle_buf));
                 command.put("data_handle", handle_string);
 
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                Object message = transferMessage(command, compound, schemaId < 0 ? xAndYScript(instances, frameName, false) : null);
+                byte[] bytes = encodeCommand(message, outputStream);
                 if (debug) {
-                    outputCommandDebug(command, log);
+                    outputCommandDebug(message, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                String serverAck = receiveServerAck(inputStream);
-                if (serverAck != null) {
-                    throw new WekaException("Transfer of instances failed: "
-                            + serverAck);
-                }
-                StringBuilder builder;
-                // execute script to create X (and Y) arrays
-                int classIndex = instances.classIndex();
-                builder = new StringBuilder();
-                for (int i = 0; i < instances.numAttributes(); i++) {
-                    if (i != classIndex) {
-                        builder.append(i).append(",");
-                    }
-                }
-                String xList = builder.substring(0, builder.length() - 1);
-                builder = new StringBuilder();
-                builder.append("X = " + frameName + "[:,[" + xList
-                        + "]]\n");
-                if (classIndex >= 0) {
-                    builder.append("Y = " + frameName + "[:," + classIndex
-                            + "]\n");
-                }
+                finishTransfer(instances, frameName, false, schemaId < 0, compound,
+                        outputStream, inputStream, log, debug);
 
-                if (debug) {
-                    if (log != null) {
-                        log.logMessage("Executing python script:\n\n"
-                                + builder.toString());
-                    } else {
-                        System.err.println("Executing python script:\n\n"
-                                + builder.toString());
-                    }
-                }
+            } catch (IOException e) {
+                throw new WekaException(e);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
+
+    /**
+     * Create a new (not yet existing) file for sharing instances with the
+     * server via a memory mapping. The file is placed in /dev/shm if that
+     * exists, so that it lives in memory only, and in the temp directory
+     * otherwise.
+     *
+     * @return the file
+     */
+    protected static File newSharedMemoryFile() {
+        File dir = new File("/dev/shm");
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            dir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new File(dir, "wekaRAPIDS-" + UUID.randomUUID() + ".bin");
+    }
 
-                List<String> outErr =
-                        executeUserScript(builder.toString(), outputStream, inputStream,
-                                log, debug);
+    /**
+     * Sends instances to a pandas dataframe in python via a memory mapped
+     * file. The values are written to the file as column-major float32 and
+     * only the location of the file, the data offset and shape and the header
+     * (or schema id) travel over the socket. The server maps the file and
+     * wraps it in a dataframe without copying. Assumes that data has had
+     * nominals (except the class) converted to binary indicators and all
+     * missing values replaced. The file can be deleted once this method
+     * returns, as the server keeps its mapping until the instances are
+     * released with {@link #sendCloseMappedFile}.
+     *
+     * @param instances    the instances to transfer
+     * @param file         the file to write (created by this method)
+     * @param frameName    the name of the pandas dataframe
+     * @param schemaId     the id of a schema registered with the server, or -1
+     *                     to send the full header
+     * @param extractor    the extractor used to convert the rows
+     * @param compound     a compound command to run straight after the
+     *                     transfer, as part of the same request (may be null)
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void sendInstancesMapped(Instances instances, File file,
+                                              String frameName, int schemaId, ColumnExtractor extractor,
+                                              CompoundCommand compound, OutputStream outputStream, InputStream inputStream, Logger log,
+                                              boolean debug) throws WekaException {
+        int numInstances = instances.numInstances();
+        int numAttributes = instances.numAttributes();
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "mapped_instances");
+        command.put("path", file.getAbsolutePath());
+        command.put("data_offset", 0);
+        command.put("num_instances", numInstances);
+        command.put("num_columns", numAttributes);
+        putHeader(command, instances, frameName, schemaId, true);
+        if (schemaId < 0) {
+            List<String> columnNames = new ArrayList<String>();
+            for (int i = 0; i < numAttributes; i++) {
+                columnNames.add(instances.attribute(i).name());
+            }
+            command.put("column_names", columnNames);
+        }
+        command.put("debug", debug);
+        if (inputStream != null && outputStream != null) {
+            try {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                     FileChannel channel = raf.getChannel()) {
+                    SegmentedBuffer mapped = mapFloats(channel, file,
+                            (long) numInstances * numAttributes);
+                    extractor.extractColumnMajor(instances, 0, numInstances, mapped);
+                }
 
-                if (outErr.size() == 2 && outErr.get(1).length() > 0) {
-                    throw new WekaException(outErr.get(1));
+                Object message = transferMessage(command, compound, schemaId < 0 ? xAndYScript(instances, frameName, true) : null);
+                byte[] bytes = encodeCommand(message, outputStream);
+                if (debug) {
+                    outputCommandDebug(message, log);
                 }
+                // write the command
+                writeDelimitedToOutputStream(bytes, outputStream);
 
+                finishTransfer(instances, frameName, true, schemaId < 0, compound,
+                        outputStream, inputStream, log, debug);
             } catch (IOException e) {
                 throw new WekaException(e);
             }
@@ -462,121 +1187,328 @@ public class RapidsUtils {
         }
     }
 
-    protected static void sendInstancesArrow(Instances instances,
-                                             String frameName, OutputStream outputStream, InputStream inputStream,
-                                             Logger log, boolean debug) throws WekaException {
-        // iris.iloc[:,[0,2,4]] (slice columns to array)
-        // pd.get_dummies(iris) (binarize/one hot)
+    /**
+     * Map a file as an array of little endian float32 values. A single mapping
+     * is limited to 2GB, so the file is mapped as a number of windows of at
+     * most {@link SegmentedBuffer#MAX_SEGMENT_SIZE} bytes each.
+     *
+     * @param channel     the channel of the file to map (read/write)
+     * @param file        the file (for error messages)
+     * @param numElements the number of floats to map
+     * @return the mapped windows
+     * @throws WekaException if the file can't be mapped
+     */
+    protected static SegmentedBuffer mapFloats(FileChannel channel, File file,
+                                               long numElements) throws WekaException {
+        int perWindow = SegmentedBuffer.elementsPerSegment(Float.BYTES);
+        int numWindows = (int) Math.max(1, (numElements + perWindow - 1) / perWindow);
+        ByteBuffer[] windows = new ByteBuffer[numWindows];
+        try {
+            for (int i = 0; i < numWindows; i++) {
+                long first = (long) i * perWindow;
+                long count = Math.min(perWindow, numElements - first);
+                windows[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        first * Float.BYTES, count * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            throw new WekaException("Unable to map " + numElements * Float.BYTES
+                    + " bytes of " + file + " (in windows of at most "
+                    + SegmentedBuffer.MAX_SEGMENT_SIZE + " bytes): " + e.getMessage(), e);
+        }
+        return new SegmentedBuffer(windows, numElements, Float.BYTES, perWindow);
+    }
 
+    /**
+     * Sends instances to a pandas dataframe in python using the Arrow IPC
+     * stream format. Assumes data has been binarized and have had missing
+     * values replaced. Creates up to two arrays in python called X and Y: input
+     * columns and target (if class is set) respectively. Nominal input
+     * attributes that have not been binarized are sent as int32 label indexes
+     * and one-hot encoded in python.
+     * <p>
+     * If chunkSize is greater than zero and there are more instances than this,
+     * then the instances are converted and written to the socket as a sequence
+     * of Arrow record batches of at most chunkSize rows each. In this case each
+     * IPC buffer produced by the writer travels as its own length delimited
+     * frame (terminated by an empty frame), so only one chunk's worth of column
+     * data is held in the JVM at any one time.
+     * <p>
+     * Unless forceFloat32 is set, integer valued columns (e.g. binary
+     * indicators) are sent using the narrowest integer type that holds them
+     * exactly; the learner scripts cast to the dtype they need. The stream is
+     * produced by the pure Java {@link ArrowIPCWriter} (which always uses the
+     * chunked framing), unless all columns are float32 and the cuDF native
+     * libraries can be loaded in this JVM.
+     * <p>
+     * If a compression codec ("lz4" or "zstd") is given, then the bodies of
+     * record batches of at least compressionThreshold bytes are compressed by
+     * the Java encoder; pyarrow decompresses them transparently on the server.
+     * <p>
+     * If pipelined is set, then the stream is always chunked (in chunks of
+     * {@link #PIPELINE_CHUNK_ROWS} rows if no chunk size is given) and written
+     * through a {@link PipelinedChannel}, so that each chunk is converted while
+     * the previous one is being transmitted.
+     *
+     * @param instances    the instances to transfer
+     * @param frameName    the name of the pandas dataframe
+     * @param schemaId     the id of a schema registered with the server, or -1
+     *                     to send the full header
+     * @param chunkSize    maximum number of rows per record batch (0 to send
+     *                     all rows as a single batch)
+     * @param forceFloat32 true to send every column as float32, rather than
+     *                     narrowing integer valued columns to the smallest
+     *                     lossless integer type
+     * @param compression  the codec to compress record batches with ("none",
+     *                     "lz4" or "zstd")
+     * @param compressionThreshold record batch bodies smaller than this number
+     *                     of bytes are sent uncompressed
+     * @param pipelined    true to overlap converting chunks with writing them
+     * @param extractor    the extractor used to convert the rows
+     * @param staging      the staging buffers to convert the rows into
+     * @param compound     a compound command to run straight after the
+     *                     transfer, as part of the same request (may be null)
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void sendInstancesArrow(Instances instances,
+                                             String frameName, int schemaId, int chunkSize, boolean forceFloat32,
+                                             String compression, int compressionThreshold, boolean pipelined,
+                                             ColumnExtractor extractor, StagingBuffers staging,
+                                             CompoundCommand compound, OutputStream outputStream, InputStream inputStream, Logger log,
+                                             boolean debug) throws WekaException {
         // Assumes that data has had nominals (except the class) converted
         // to binary indicators and all missing values replaced
-        // ObjectMapper mapper = JsonFactory.create();
-        Map<String, Object> simpleHeader = createSimpleHeader(instances, frameName);
+        // the cuDF writer only produces float columns, so narrowed columns and
+        // nominal inputs (sent as label indexes) always go through the Java
+        // encoder, as does body compression
+        byte codec;
+        try {
+            codec = ArrowIPCWriter.codecForName(compression);
+        } catch (IllegalArgumentException ex) {
+            throw new WekaException(ex.getMessage());
+        }
+        boolean nativeEncoder = cudfAvailable() && forceFloat32
+                && codec == ArrowIPCWriter.CODEC_NONE && !hasNominalInputs(instances);
+        int batchSize = chunkSize > 0 ? chunkSize
+                : pipelined ? PIPELINE_CHUNK_ROWS : instances.numInstances();
+        boolean chunked = !nativeEncoder || instances.numInstances() > batchSize;
         Map<String, Object> command = new HashMap<String, Object>();
         command.put("command", "ipc_instances");
         command.put("num_instances", instances.numInstances());
-        command.put("header", simpleHeader);
+        putHeader(command, instances, frameName, schemaId, true);
+        command.put("chunked", chunked);
         command.put("debug", debug);
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                Object message = transferMessage(command, compound, schemaId < 0 ? xAndYScript(instances, frameName, true) : null);
+                byte[] bytes = encodeCommand(message, outputStream);
                 if (debug) {
-                    outputCommandDebug(command, log);
+                    outputCommandDebug(message, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
-                if (instances.numInstances() > 0) {
-                    StringBuilder builder = new StringBuilder();
-
-                    String[] columnNames = new String[instances.numAttributes()];
-                    // header row
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        builder.append(Utils.quote(instances.attribute(i).name()));
-                        if (i < instances.numAttributes() - 1) {
-                            builder.append(",");
-                        } else {
-                            builder.append("\n");
+                if (instances.numInstances() > 0 && !nativeEncoder) {
+                    WritableByteChannel channel = openChannel(outputStream, pipelined, staging);
+                    try {
+                        ArrowIPCWriter writer = new ArrowIPCWriter(instances, channel);
+                        writer.setCompression(codec, compressionThreshold);
+                        writer.setColumnExtractor(extractor);
+                        writer.setStagingBuffers(staging);
+                        if (!forceFloat32) {
+                            writer.narrowColumnTypes(instances);
                         }
-                        columnNames[i] = instances.attribute(i).name();
-                    }
-
-                    ArrayList<float[]> columnList = new ArrayList<>(instances.numAttributes());
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        columnList.add(new float[instances.numInstances()]);
-                    }
-
-                    // instances
-                    for (int i = 0; i < instances.numInstances(); i++) {
-                        Instance current = instances.instance(i);
-                        for (int j = 0; j < instances.numAttributes(); j++) {
-                            columnList.get(j)[i] = (float) current.value(j);
+                        writer.writeSchema();
+                        for (int start = 0; start < instances.numInstances(); start += batchSize) {
+                            int end = Math.min(start + batchSize, instances.numInstances());
+                            writer.writeBatch(instances, start, end);
                         }
+                        writer.close();
+                    } finally {
+                        closeChannel(channel, log, debug);
                     }
-
-                    ColumnVector[] vectors = new ColumnVector[instances.numAttributes()];
+                } else if (instances.numInstances() > 0) {
+                    String[] columnNames = new String[instances.numAttributes()];
                     for (int i = 0; i < instances.numAttributes(); i++) {
-                        ColumnVector v = ColumnVector.fromFloats(columnList.get(i));
-                        vectors[i] = v;
-
+                        columnNames[i] = instances.attribute(i).name();
                     }
-
-                    try (Table table = new Table(vectors)) {
-                        ArrowIPCWriterOptions ipcWriterOpts =
-                                ArrowIPCWriterOptions
-                                        .builder()
-                                        .withColumnNames(columnNames)
-                                        .build();
+                    ArrowIPCWriterOptions ipcWriterOpts =
+                            ArrowIPCWriterOptions
+                                    .builder()
+                                    .withColumnNames(columnNames)
+                                    .build();
+
+                    if (chunked) {
+                        WritableByteChannel channel = openChannel(outputStream, pipelined, staging);
+                        try {
+                            TableBuffer tb = new TableBuffer(channel);
+                            try {
+                                try (TableWriter writer = Table.writeArrowIPCChunked(ipcWriterOpts, tb)) {
+                                    for (int start = 0; start < instances.numInstances(); start += batchSize) {
+                                        int end = Math.min(start + batchSize, instances.numInstances());
+                                        writeArrowBatch(instances, start, end, extractor, staging, writer);
+                                    }
+                                }
+                                tb.finish();
+                            } finally {
+                                // the server reads frames until the terminator
+                                tb.endStream();
+                            }
+                        } finally {
+                            closeChannel(channel, log, debug);
+                        }
+                    } else {
+                        WritableByteChannel channel = channelOf(outputStream);
                         TableBuffer tb = new TableBuffer();
                         try (TableWriter writer = Table.writeArrowIPCChunked(ipcWriterOpts, tb)) {
-                            writer.write(table);
+                            writeArrowBatch(instances, 0, instances.numInstances(), extractor, staging,
+                                    writer);
                         }
-                        writeDelimitedToOutputStream(tb.toByteArray(), outputStream);
-                        String serverAck = receiveServerAck(inputStream);
-                        if (serverAck != null) {
-                            throw new WekaException("Transfer of instances failed: "
-                                    + serverAck);
-                        }
-                    }
-
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        vectors[i].close();
+                        tb.writeDelimitedTo(channel);
                     }
+                }
+                if (instances.numInstances() > 0) {
+                    finishTransfer(instances, frameName, true, schemaId < 0, compound,
+                            outputStream, inputStream, log, debug);
+                }
+            } catch (IOException e) {
+                throw new WekaException(e);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
 
-                    // execute script to create X (and Y) arrays
-                    int classIndex = instances.classIndex();
-                    builder = new StringBuilder();
-                    for (int i = 0; i < instances.numAttributes(); i++) {
-                        if (i != classIndex) {
-                            builder.append(i).append(",");
+    /**
+     * Sends instances to python as a compressed sparse row (CSR) matrix, without
+     * densifying sparse instances. Only the non-zero values of the input
+     * attributes are transferred (as indptr, indices and values arrays), so
+     * the size on the wire is proportional to the number of non-zero values
+     * rather than rows x attributes. Assumes data has been binarized and have
+     * had missing values replaced. Creates a scipy CSR matrix called X (and a
+     * pandas Series called Y for the target, if the class is set) in python.
+     * The arrays are staged in segmented buffers, so there can be more than
+     * 2GB of non-zero values; indptr is sent as int64 if the number of
+     * non-zero values doesn't fit in an int.
+     *
+     * @param instances    the instances to transfer
+     * @param frameName    the name of the CSR matrix in python
+     * @param schemaId     the id of a schema registered with the server, or -1
+     *                     to send the full header
+     * @param extractor    the extractor used to convert the rows
+     * @param staging      the staging buffers to convert the rows into
+     * @param compound     a compound command to run straight after the
+     *                     transfer, as part of the same request (may be null)
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    protected static void sendInstancesSparse(Instances instances,
+                                              String frameName, int schemaId, ColumnExtractor extractor,
+                                              StagingBuffers staging, CompoundCommand compound,
+                                              OutputStream outputStream, InputStream inputStream, Logger log,
+                                              boolean debug) throws WekaException {
+        final int classIndex = instances.classIndex();
+        // count the non-zero values of each row (in parallel)
+        final long[] rowStarts = new long[instances.numInstances() + 1];
+        extractor.forEachRowBlock(0, instances.numInstances(), new ColumnExtractor.RowBlockTask() {
+            @Override
+            public void process(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    Instance current = instances.instance(i);
+                    int count = 0;
+                    for (int p = 0; p < current.numValues(); p++) {
+                        if (current.index(p) != classIndex && current.valueSparse(p) != 0) {
+                            count++;
                         }
                     }
-                    String xList = builder.substring(0, builder.length() - 1);
-                    builder = new StringBuilder();
-                    builder.append("X = " + frameName + ".iloc[:,[" + xList
-                            + "]]\n");
-                    if (classIndex >= 0) {
-                        builder.append("Y = " + frameName + ".iloc[:," + classIndex
-                                + "]\n");
-                    }
+                    rowStarts[i + 1] = count;
+                }
+            }
+        });
+        long nnz = 0;
+        for (int i = 1; i < rowStarts.length; i++) {
+            nnz += rowStarts[i];
+            rowStarts[i] = nnz;
+        }
+        boolean longIndptr = nnz > Integer.MAX_VALUE;
 
-                    if (debug) {
-                        if (log != null) {
-                            log.logMessage("Executing python script:\n\n"
-                                    + builder.toString());
-                        } else {
-                            System.err.println("Executing python script:\n\n"
-                                    + builder.toString());
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "csr_instances");
+        command.put("num_instances", instances.numInstances());
+        command.put("num_columns", instances.numAttributes() - (classIndex >= 0 ? 1 : 0));
+        command.put("nnz", nnz);
+        command.put("indptr_dtype", longIndptr ? "int64" : "int32");
+        command.put("has_class", classIndex >= 0);
+        putHeader(command, instances, frameName, schemaId, false);
+        command.put("debug", debug);
+        if (inputStream != null && outputStream != null) {
+            try {
+                SegmentedBuffer indptr = staging.getSegmented("csr_indptr", rowStarts.length,
+                        longIndptr ? Long.BYTES : Integer.BYTES);
+                final SegmentedBuffer indices =
+                        staging.getSegmented("csr_indices", nnz, Integer.BYTES);
+                final SegmentedBuffer values = staging.getSegmented("csr_values", nnz, Float.BYTES);
+                final SegmentedBuffer target = classIndex >= 0
+                        ? staging.getSegmented("csr_target", instances.numInstances(), Float.BYTES)
+                        : null;
+
+                for (int i = 0; i < rowStarts.length; i++) {
+                    if (longIndptr) {
+                        indptr.putLong(i, rowStarts[i]);
+                    } else {
+                        indptr.putInt(i, (int) rowStarts[i]);
+                    }
+                }
+                // each row's values go at its offset in the arrays, so blocks
+                // of rows can be filled in parallel
+                extractor.forEachRowBlock(0, instances.numInstances(), new ColumnExtractor.RowBlockTask() {
+                    @Override
+                    public void process(int start, int end) {
+                        for (int i = start; i < end; i++) {
+                            Instance current = instances.instance(i);
+                            long pos = rowStarts[i];
+                            for (int p = 0; p < current.numValues(); p++) {
+                                int index = current.index(p);
+                                double value = current.valueSparse(p);
+                                if (index == classIndex || value == 0) {
+                                    continue;
+                                }
+                                // column position in X (the class is not part of it)
+                                indices.putInt(pos,
+                                        classIndex >= 0 && index > classIndex ? index - 1 : index);
+                                values.putFloat(pos, (float) value);
+                                pos++;
+                            }
+                            if (target != null) {
+                                target.putFloat(i, (float) current.classValue());
+                            }
                         }
                     }
+                });
 
-                    List<String> outErr =
-                            executeUserScript(builder.toString(), outputStream, inputStream,
-                                    log, debug);
-
-                    if (outErr.size() == 2 && outErr.get(1).length() > 0) {
-                        throw new WekaException(outErr.get(1));
-                    }
+                Object message = transferMessage(command, compound, null);
+                byte[] bytes = encodeCommand(message, outputStream);
+                if (debug) {
+                    outputCommandDebug(message, log);
+                }
+                // write the command, followed by one frame per array
+                writeDelimitedToOutputStream(bytes, outputStream);
+                WritableByteChannel channel = channelOf(outputStream);
+                writeDelimitedToChannel(indptr.filledSegments(), channel);
+                writeDelimitedToChannel(indices.filledSegments(), channel);
+                writeDelimitedToChannel(values.filledSegments(), channel);
+                if (target != null) {
+                    writeDelimitedToChannel(target.filledSegments(), channel);
                 }
+
+                // the server creates X (and Y) itself
+                finishTransfer(instances, frameName, false, false, compound, outputStream,
+                        inputStream, log, debug);
             } catch (IOException e) {
                 throw new WekaException(e);
             }
@@ -585,6 +1517,175 @@ public class RapidsUtils {
         }
     }
 
+    /**
+     * Write the contents of a filled buffer to a channel as a length delimited
+     * frame.
+     *
+     * @param buffer  the buffer to write (flipped by this method)
+     * @param channel the channel to write to
+     * @throws IOException if a problem occurs
+     */
+    protected static void writeDelimitedToChannel(ByteBuffer buffer,
+                                                  WritableByteChannel channel) throws IOException {
+        writeDelimitedToChannel(new ByteBuffer[]{buffer}, channel);
+    }
+
+    /**
+     * Write the contents of a number of filled buffers to a channel as one
+     * length delimited message. A message of up to {@link #MAX_FRAME_SIZE}
+     * bytes is written as a single frame. A larger one is announced by
+     * {@link #EXTENDED_LENGTH_MARKER} and its 64 bit total length, and then
+     * written as continuation frames of at most {@link #MAX_FRAME_SIZE} bytes
+     * each.
+     *
+     * @param buffers the buffers to write, in order (flipped by this method)
+     * @param channel the channel to write to
+     * @throws IOException if a problem occurs
+     */
+    protected static void writeDelimitedToChannel(ByteBuffer[] buffers,
+                                                  WritableByteChannel channel) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            ((Buffer) buffer).flip();
+            total += buffer.remaining();
+        }
+        if (total <= MAX_FRAME_SIZE) {
+            writeFully((ByteBuffer) ((Buffer) ByteBuffer.allocate(4).putInt((int) total)).flip(), channel);
+            for (ByteBuffer buffer : buffers) {
+                writeFully(buffer, channel);
+            }
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(12).putInt(EXTENDED_LENGTH_MARKER).putLong(total);
+        writeFully((ByteBuffer) ((Buffer) header).flip(), channel);
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                int frameLength = Math.min(buffer.remaining(), MAX_FRAME_SIZE);
+                ByteBuffer frame = buffer.duplicate();
+                ((Buffer) frame).limit(frame.position() + frameLength);
+                writeFully((ByteBuffer) ((Buffer) ByteBuffer.allocate(4).putInt(frameLength)).flip(), channel);
+                writeFully(frame, channel);
+                ((Buffer) buffer).position(buffer.position() + frameLength);
+            }
+        }
+    }
+
+    /**
+     * Write the remaining bytes of a buffer to a channel.
+     */
+    protected static void writeFully(ByteBuffer buffer, WritableByteChannel channel)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Converts a range of rows to float columns on the device and writes them
+     * to the supplied table writer as a single record batch.
+     *
+     * @param instances the instances to convert
+     * @param start     the index of the first row (inclusive)
+     * @param end       the index of the last row (exclusive)
+     * @param writer    the writer to write the batch to
+     */
+    private static void writeArrowBatch(Instances instances, int start, int end,
+                                        ColumnExtractor extractor, StagingBuffers staging,
+                                        TableWriter writer) {
+        int numRows = end - start;
+        float[][] columns = new float[instances.numAttributes()][];
+        for (int j = 0; j < columns.length; j++) {
+            columns[j] = staging.getFloatArray("arrow_column_" + j, numRows);
+        }
+        extractor.extractColumns(instances, start, end, columns);
+
+        ColumnVector[] vectors = new ColumnVector[instances.numAttributes()];
+        try {
+            for (int j = 0; j < instances.numAttributes(); j++) {
+                vectors[j] = ColumnVector.fromFloats(columns[j]);
+            }
+            try (Table table = new Table(vectors)) {
+                writer.write(table);
+            }
+        } finally {
+            for (ColumnVector v : vectors) {
+                if (v != null) {
+                    v.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the cuDF native libraries are available (result is cached after
+     * the first check)
+     */
+    private static Boolean s_cudfAvailable;
+
+    /**
+     * Number of rows per chunk when pipelining a transfer without a chunk size
+     */
+    protected static final int PIPELINE_CHUNK_ROWS = 32768;
+
+    /**
+     * Largest message sent as a single frame, and largest continuation frame
+     */
+    protected static final int MAX_FRAME_SIZE = SegmentedBuffer.MAX_SEGMENT_SIZE;
+
+    /**
+     * Frame length announcing an extended message: an 8 byte total length
+     * follows, and then the message as a sequence of continuation frames
+     */
+    protected static final int EXTENDED_LENGTH_MARKER = 0xFFFFFFFF;
+
+    /**
+     * Largest message that can be read into a single array
+     */
+    protected static final long MAX_ARRAY_MESSAGE_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Largest message read into the pooled receive buffer
+     */
+    protected static final int POOLED_RECEIVE_SIZE = 1024 * 1024;
+
+    /**
+     * Pooled receive buffer of each thread, for small replies
+     */
+    private static final ThreadLocal<byte[]> s_receiveBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    protected static final TypeReference<Map<String, Object>> JSON_MAP_TYPE =
+            new TypeReference<Map<String, Object>>() {
+            };
+
+    /**
+     * Maximum size (bytes) of the host staging area used when copying
+     * instances to the GPU
+     */
+    protected static final long CUDA_STAGING_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Check whether the cuDF native libraries can be loaded in this JVM. If not,
+     * Arrow IPC streams are encoded in pure Java.
+     *
+     * @return true if cuDF can be used to encode Arrow IPC streams
+     */
+    protected static synchronized boolean cudfAvailable() {
+        if (s_cudfAvailable == null) {
+            try {
+                NativeDepsLoader.loadNativeDeps();
+                s_cudfAvailable = NativeDepsLoader.libraryLoaded();
+            } catch (Throwable t) {
+                s_cudfAvailable = false;
+            }
+        }
+        return s_cudfAvailable;
+    }
+
     /**
      * Sends instances to a pandas dataframe in python.
      *
@@ -631,7 +1732,7 @@ public class RapidsUtils {
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -670,20 +1771,14 @@ public class RapidsUtils {
      * @return a non-null string if there was an error returned by the server
      * @throws IOException if a problem occurs
      */
-    @SuppressWarnings("unchecked")
     protected static String receiveServerAck(InputStream inputStream)
             throws IOException {
-        byte[] bytes = readDelimitedFromInputStream(inputStream);
-        Map<String, Object> ack =
-                MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                });
-
-        String response = ack.get("response").toString();
-        if (response.equals("ok")) {
+        ServerAck ack = readAckFromInputStream(inputStream);
+        if (ack.isOk()) {
             return null;
         }
 
-        return ack.get("error_message").toString();
+        return ack.getErrorMessage();
     }
 
     /**
@@ -693,20 +1788,49 @@ public class RapidsUtils {
      * @return the process ID of the server
      * @throws IOException if a problem occurs
      */
-    @SuppressWarnings("unchecked")
     protected static int receiveServerPIDAck(InputStream inputStream)
             throws IOException {
-        byte[] bytes = readDelimitedFromInputStream(inputStream);
-        Map<String, Object> ack =
-                MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                });
+        return receiveServerPIDAck(null, inputStream);
+    }
 
-        String response = ack.get("response").toString();
-        if (response.equals("pid_response")) {
-            return (Integer) ack.get("pid");
-        } else {
+    /**
+     * Receives a PID ack from the server, and then negotiates the encoding of
+     * command messages for the rest of the session. If the server lists CBOR
+     * among its encodings (it does when the cbor2 module is available to it)
+     * then it is asked to switch to CBOR, and once it has agreed then so do
+     * the streams. Otherwise (or if the streams are not those of a
+     * connection, or no output stream is given) commands stay in JSON.
+     *
+     * @param outputStream the output stream to talk to the server on (may be
+     *                     null, to skip the negotiation)
+     * @param inputStream  the input stream to read from
+     * @return the process ID of the server
+     * @throws IOException if a problem occurs
+     */
+    protected static int receiveServerPIDAck(OutputStream outputStream,
+                                             InputStream inputStream) throws IOException {
+        ServerAck ack = readAckFromInputStream(inputStream);
+        if (!"pid_response".equals(ack.getResponse()) || ack.getPid() == null) {
             throw new IOException("Server did not send a pid_response");
         }
+
+        if (outputStream instanceof ServerTransport.CommandStream
+                && inputStream instanceof ServerTransport.CommandStream
+                && ack.getEncodings() != null && ack.getEncodings().contains(ENCODING_CBOR)) {
+            // the request and its ack are still in JSON
+            ServerCommand command = new ServerCommand("set_encoding", false);
+            command.setEncoding(ENCODING_CBOR);
+            writeDelimitedToOutputStream(encodeCommand(command, outputStream),
+                    outputStream);
+            String serverAck = receiveServerAck(inputStream);
+            if (serverAck != null) {
+                throw new IOException("Server could not switch to " + ENCODING_CBOR
+                        + " commands: " + serverAck);
+            }
+            ((ServerTransport.CommandStream) outputStream).setCommandMapper(CBOR_MAPPER);
+            ((ServerTransport.CommandStream) inputStream).setCommandMapper(CBOR_MAPPER);
+        }
+        return ack.getPid();
     }
 
     /**
@@ -732,7 +1856,7 @@ public class RapidsUtils {
         command.put("debug", debug);
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -740,21 +1864,17 @@ public class RapidsUtils {
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
 
-                Object l = ack.get("variable_list");
-                if (!(l instanceof List)) {
+                List<Map<String, String>> vList = ack.getVariableList();
+                if (vList == null) {
                     throw new WekaException(
                             "Was expecting the variable list to be a List " + "object!");
                 }
-                List<Map<String, String>> vList = (List<Map<String, String>>) l;
                 for (Map<String, String> v : vList) {
                     String[] vEntry = new String[2];
                     vEntry[0] = v.get("name");
@@ -788,14 +1908,12 @@ public class RapidsUtils {
                                                      boolean debug) throws WekaException {
 
         Object variableValue = "";
-        Map<String, Object> command = new HashMap<String, Object>();
-        command.put("command", "get_variable_value");
-        command.put("variable_name", varName);
-        command.put("variable_encoding", "json");
-        command.put("debug", debug);
+        ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding("json");
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -803,23 +1921,8 @@ public class RapidsUtils {
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
-                    // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
-                }
-                if (!ack.get("variable_name").toString().equals(varName)) {
-                    throw new WekaException("Server sent back a value for a different "
-                            + "variable!");
-                }
-                if (!ack.get("variable_encoding").toString().equals("json")) {
-                    throw new WekaException("Encoding of variable value received from "
-                            + "server is not Json!");
-                }
-                variableValue = ack.get("variable_value");
+                variableValue = jsonVariableValue(varName,
+                        readAckFromInputStream(inputStream));
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -830,6 +1933,144 @@ public class RapidsUtils {
         return variableValue;
     }
 
+    /**
+     * Get the value of a variable from the ack to a request for its value in
+     * json form.
+     *
+     * @param varName the name of the variable
+     * @param ack     the ack
+     * @return the value of the variable in json form
+     * @throws WekaException if the request failed
+     */
+    protected static Object jsonVariableValue(String varName, ServerAck ack)
+            throws WekaException {
+        checkVariableAck(varName, ack);
+        if (!"json".equals(ack.getVariableEncoding())) {
+            throw new WekaException("Encoding of variable value received from "
+                    + "server is not Json!");
+        }
+        return ack.getVariableValue();
+    }
+
+    /**
+     * Receive the value of a numeric array variable (numpy, cupy, pandas or
+     * cudf) as a packed little endian float32/float64 buffer. The server sends a
+     * json ack with the dtype and shape of the array, followed by the buffer as
+     * a single frame. One dimensional arrays are returned as a single column.
+     *
+     * @param varName      the name of the variable to get from the server
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to get server responses from
+     * @param log          optional log
+     * @param debug        true if debugging info is to be output
+     * @return the values of the array, one row per element of the first
+     * dimension
+     * @throws WekaException if a problem occurs
+     */
+    @SuppressWarnings("unchecked")
+    protected static double[][] receiveBinaryVariableValue(String varName,
+                                                           OutputStream outputStream, InputStream inputStream, Logger log,
+                                                           boolean debug) throws WekaException {
+
+        ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding("binary");
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+
+                // write the command
+                writeDelimitedToOutputStream(bytes, outputStream);
+
+                ServerAck ack = readAckFromInputStream(inputStream);
+                checkVariableAck(varName, ack);
+                return readBinaryArray(varName, ack, inputStream);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+
+        return null;
+    }
+
+    /**
+     * Check that an ack to a request for the value of a variable is a
+     * successful reply concerning that variable.
+     *
+     * @param varName the name of the variable
+     * @param ack     the ack
+     * @throws WekaException if the request failed, or the ack is for another
+     *                       variable
+     */
+    protected static void checkVariableAck(String varName, ServerAck ack)
+            throws WekaException {
+        if (!ack.isOk()) {
+            // fatal error
+            throw new WekaException(ack.getErrorMessage());
+        }
+        if (!varName.equals(ack.getVariableName())) {
+            throw new WekaException("Server sent back a value for a different "
+                    + "variable!");
+        }
+    }
+
+    /**
+     * Read the buffer holding the values of a numeric array variable, which
+     * follows the ack to a request for its binary value.
+     *
+     * @param varName     the name of the variable
+     * @param ack         the ack (giving the dtype and shape of the array)
+     * @param inputStream the input stream to read from
+     * @return the values of the array, one row per element of the first
+     * dimension
+     * @throws IOException   if a problem occurs
+     * @throws WekaException if the ack or the buffer don't describe a two
+     *                       dimensional numeric array
+     */
+    protected static double[][] readBinaryArray(String varName, ServerAck ack,
+                                                InputStream inputStream)
+            throws IOException, WekaException {
+        if (!"binary".equals(ack.getVariableEncoding())) {
+            throw new WekaException("Encoding of variable value received from "
+                    + "server is not binary!");
+        }
+        List<Number> shape = ack.getShape();
+        if (shape.size() > 2) {
+            throw new WekaException("Variable " + varName + " has "
+                    + shape.size() + " dimensions - expected at most 2");
+        }
+        int numRows = shape.size() > 0 ? shape.get(0).intValue() : 1;
+        int numCols = shape.size() > 1 ? shape.get(1).intValue() : 1;
+        boolean single = "float32".equals(ack.getDtype());
+
+        ByteBuffer data = ByteBuffer.wrap(readDelimitedFromInputStream(inputStream))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() != (long) numRows * numCols * (single ? 4 : 8)) {
+            throw new WekaException("Size of the buffer received for variable "
+                    + varName + " does not match its shape");
+        }
+        double[][] result = new double[numRows][numCols];
+        if (single) {
+            FloatBuffer values = data.asFloatBuffer();
+            for (double[] row : result) {
+                for (int j = 0; j < numCols; j++) {
+                    row[j] = values.get();
+                }
+            }
+        } else {
+            DoubleBuffer values = data.asDoubleBuffer();
+            for (double[] row : result) {
+                values.get(row);
+            }
+        }
+        return result;
+    }
+
     /**
      * Receive the value of a variable in pickled or plain string form. If getting
      * a pickled variable, then in python 2 this is the pickled string; in python
@@ -853,15 +2094,13 @@ public class RapidsUtils {
                                                         Logger log, boolean debug) throws WekaException {
 
         String objectValue = "";
-        Map<String, Object> command = new HashMap<String, Object>();
-        command.put("command", "get_variable_value");
-        command.put("variable_name", varName);
-        command.put("variable_encoding", plainString ? "string" : "pickled");
-        command.put("debug", debug);
+        ServerCommand command = new ServerCommand("get_variable_value", debug);
+        command.setVariableName(varName);
+        command.setVariableEncoding(plainString ? "string" : "pickled");
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -869,19 +2108,9 @@ public class RapidsUtils {
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
-                    // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
-                }
-                if (!ack.get("variable_name").toString().equals(varName)) {
-                    throw new WekaException("Server sent back a value for a different "
-                            + "variable!");
-                }
-                objectValue = ack.get("variable_value").toString();
+                ServerAck ack = readAckFromInputStream(inputStream);
+                checkVariableAck(varName, ack);
+                objectValue = ack.getVariableValue().toString();
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -912,7 +2141,7 @@ public class RapidsUtils {
         command.put("command", "get_debug_buffer");
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -920,18 +2149,13 @@ public class RapidsUtils {
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
-                Object stOut = ack.get("std_out");
-                stdOutStdErr.add(stOut != null ? stOut.toString() : "");
-                Object stdErr = ack.get("std_err");
-                stdOutStdErr.add(stdErr != null ? stdErr.toString() : "");
+                stdOutStdErr.add(ack.getStdOut() != null ? ack.getStdOut() : "");
+                stdOutStdErr.add(ack.getStdErr() != null ? ack.getStdErr() : "");
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -966,7 +2190,7 @@ public class RapidsUtils {
         command.put("debug", debug);
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -1010,29 +2234,30 @@ public class RapidsUtils {
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
 
-                if (!ack.get("variable_name").toString().equals(varName)) {
+                if (!varName.equals(ack.getVariableName())) {
                     throw new WekaException(
                             "Server sent back a response for a different " + "variable!");
                 }
 
-                String encoding = ack.get("encoding").toString();
-                String imageData = ack.get("image_data").toString();
+                String encoding = ack.getEncoding();
+                String imageData = ack.getImageData();
+                if (encoding == null || imageData == null) {
+                    throw new WekaException("Server did not send the image data for "
+                            + varName);
+                }
                 byte[] imageBytes;
                 if (encoding.equals("base64")) {
                     imageBytes = Base64.decodeBase64(imageData.getBytes());
@@ -1066,35 +2291,30 @@ public class RapidsUtils {
             String varName, OutputStream outputStream, InputStream inputStream,
             Logger log, boolean debug) throws WekaException {
 
-        Map<String, Object> command = new HashMap<String, Object>();
-        command.put("command", "get_variable_type");
-        command.put("variable_name", varName);
-        command.put("debug", debug);
+        ServerCommand command = new ServerCommand("get_variable_type", debug);
+        command.setVariableName(varName);
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
 
-                if (!ack.get("variable_name").toString().equals(varName)) {
+                if (!varName.equals(ack.getVariableName())) {
                     throw new WekaException(
                             "Server sent back a response for a different " + "variable!");
                 }
 
-                String varType = ack.get("type").toString();
+                String varType = ack.getType();
                 RapidsSession.PythonVariableType pvt =
                         RapidsSession.PythonVariableType.Unknown;
                 for (RapidsSession.PythonVariableType t : RapidsSession.PythonVariableType
@@ -1131,35 +2351,30 @@ public class RapidsUtils {
                                                         OutputStream outputStream, InputStream inputStream, Logger log,
                                                         boolean debug) throws WekaException {
 
-        Map<String, Object> command = new HashMap<String, Object>();
-        command.put("command", "variable_is_set");
-        command.put("variable_name", varName);
-        command.put("debug", debug);
+        ServerCommand command = new ServerCommand("variable_is_set", debug);
+        command.setVariableName(varName);
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
 
-                if (!ack.get("variable_name").toString().equals(varName)) {
+                if (!varName.equals(ack.getVariableName())) {
                     throw new WekaException(
                             "Server sent back a response for a different " + "variable!");
                 }
 
-                return (Boolean) ack.get("variable_exists");
+                return ack.getVariableExists();
             } catch (IOException ex) {
                 throw new WekaException(ex);
             }
@@ -1195,7 +2410,7 @@ public class RapidsUtils {
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
@@ -1208,31 +2423,23 @@ public class RapidsUtils {
                 }
 
                 // read the header
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> headerResponse =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (headerResponse == null) {
-                    throw new WekaException("Map is null!");
-                }
-                if (headerResponse.get("response").toString()
-                        .equals("instances_header")) {
+                ServerAck headerResponse = readAckFromInputStream(inputStream);
+                if ("instances_header".equals(headerResponse.getResponse())
+                        && headerResponse.getHeader() != null) {
                     if (debug) {
                         if (log != null) {
                             log.logMessage("Received header response command with "
-                                    + headerResponse.get("num_instances") + " instances");
+                                    + headerResponse.getNumInstances() + " instances");
                         } else {
                             System.err.println("Received header response command with "
-                                    + headerResponse.get("num_instances") + " instances");
+                                    + headerResponse.getNumInstances() + " instances");
                         }
                     }
                 } else {
                     throw new WekaException("Unknown response type from server");
                 }
 
-                Instances header =
-                        jsonToInstancesHeader((Map<String, Object>) headerResponse
-                                .get("header"));
+                Instances header = jsonToInstancesHeader(headerResponse.getHeader());
 
                 // receive the CSV data, append with header, and then create
                 // instances
@@ -1252,6 +2459,69 @@ public class RapidsUtils {
         return null;
     }
 
+    /**
+     * Retrieve a pandas data frame from python as an Arrow IPC stream. The
+     * server sends a json response with the number of instances, followed by
+     * the stream as a single frame. Columns are decoded directly into instance
+     * values and the header is built from the Arrow schema (see
+     * {@link ArrowIPCReader}).
+     *
+     * @param frameName    the name of the pandas data frame to get from the server
+     * @param outputStream the output stream to talk to the server on
+     * @param inputStream  the input stream to receive responses on
+     * @param log          optional log
+     * @param debug        true if debugging info is to be output
+     * @return the pandas data frame as a set of Instances
+     * @throws WekaException if a problem occurs
+     */
+    protected static Instances receiveInstancesArrow(String frameName,
+                                                     OutputStream outputStream, InputStream inputStream, Logger log,
+                                                     boolean debug) throws WekaException {
+
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "get_instances_arrow");
+        command.put("frame_name", frameName);
+        command.put("debug", debug);
+
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+
+                // write the command
+                writeDelimitedToOutputStream(bytes, outputStream);
+                String serverAck = receiveServerAck(inputStream);
+                if (serverAck != null) {
+                    throw new WekaException(serverAck);
+                }
+
+                ServerAck headerResponse = readAckFromInputStream(inputStream);
+                if (!"instances_arrow".equals(headerResponse.getResponse())) {
+                    throw new WekaException("Unknown response type from server");
+                }
+                if (debug) {
+                    if (log != null) {
+                        log.logMessage("Received arrow response command with "
+                                + headerResponse.getNumInstances() + " instances");
+                    } else {
+                        System.err.println("Received arrow response command with "
+                                + headerResponse.getNumInstances() + " instances");
+                    }
+                }
+
+                bytes = readDelimitedFromInputStream(inputStream);
+                return new ArrowIPCReader(ByteBuffer.wrap(bytes)).read(frameName);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+        return null;
+    }
+
     /**
      * Write length delimited data to the output stream
      *
@@ -1265,12 +2535,15 @@ public class RapidsUtils {
         // write the message length as a fixed size integer
         outputStream.write(ByteBuffer.allocate(4).putInt(bytes.length).array());
 
-        // write the message itself
+        // write the message itself - a buffered stream sends both together
         outputStream.write(bytes);
+        outputStream.flush();
     }
 
     /**
-     * Read length delimited data from the input stream
+     * Read length delimited data from the input stream. Extended messages
+     * (sent as continuation frames) are reassembled, as long as they fit in
+     * an array.
      *
      * @param inputStream the input stream to read from
      * @return the bytes read
@@ -1278,38 +2551,172 @@ public class RapidsUtils {
      */
     protected static byte[] readDelimitedFromInputStream(InputStream inputStream)
             throws IOException {
-        byte[] sizeBytes = new byte[4];
-        int numRead = inputStream.read(sizeBytes, 0, 4);
-        if (numRead < 4) {
-            throw new IOException(
-                    "Failed to read the message size from the input stream! Num bytes read: "
-                            + numRead);
-        }
-
-        int messageLength = ByteBuffer.wrap(sizeBytes).getInt();
-        byte[] messageData = new byte[messageLength];
-        // for (numRead = 0; numRead < messageLength; numRead +=
-        // inputStream.read(messageData, numRead, messageLength - numRead));
-        for (numRead = 0; numRead < messageLength; ) {
-            int currentNumRead =
-                    inputStream.read(messageData, numRead, messageLength - numRead);
-            if (currentNumRead < 0) {
-                throw new IOException("Unexpected end of stream!");
+        return readMessageBody(inputStream, readInt(inputStream));
+    }
+
+    /**
+     * Read a length delimited command message (e.g. an ack) from the input
+     * stream and parse it as a map, in the encoding negotiated for the
+     * connection (JSON unless the server agreed to CBOR).
+     *
+     * @param inputStream the input stream to read from
+     * @return the parsed message
+     * @throws IOException if a problem occurs
+     */
+    protected static Map<String, Object> readJSONFromInputStream(InputStream inputStream)
+            throws IOException {
+        return readCommandMessage(inputStream, commandMapper(inputStream).getTypeFactory()
+                .constructType(JSON_MAP_TYPE));
+    }
+
+    /**
+     * Read a length delimited ack from the input stream, in the encoding
+     * negotiated for the connection.
+     *
+     * @param inputStream the input stream to read from
+     * @return the ack
+     * @throws IOException if a problem occurs
+     */
+    protected static ServerAck readAckFromInputStream(InputStream inputStream)
+            throws IOException {
+        return readCommandMessage(inputStream, commandMapper(inputStream).getTypeFactory()
+                .constructType(ServerAck.class));
+    }
+
+    /**
+     * Read a length delimited command message and parse it as the given type.
+     * Messages of up to {@link #POOLED_RECEIVE_SIZE} bytes are read into a
+     * buffer that is reused by the calling thread, rather than a new array.
+     */
+    protected static <T> T readCommandMessage(InputStream inputStream, JavaType type)
+            throws IOException {
+        ObjectMapper mapper = commandMapper(inputStream);
+        int frameLength = readInt(inputStream);
+        if (frameLength >= 0 && frameLength <= POOLED_RECEIVE_SIZE) {
+            byte[] buffer = s_receiveBuffer.get();
+            if (buffer.length < frameLength) {
+                buffer = new byte[Math.min(Math.max(frameLength, buffer.length * 2),
+                        POOLED_RECEIVE_SIZE)];
+                s_receiveBuffer.set(buffer);
             }
-            numRead += currentNumRead;
+            readFully(inputStream, buffer, 0, frameLength);
+            return mapper.readValue(buffer, 0, frameLength, type);
         }
+        return mapper.readValue(readMessageBody(inputStream, frameLength), type);
+    }
 
+    /**
+     * Read the rest of a message whose frame length has been read.
+     */
+    protected static byte[] readMessageBody(InputStream inputStream, int frameLength)
+            throws IOException {
+        if (frameLength != EXTENDED_LENGTH_MARKER) {
+            checkFrameLength(frameLength, Long.MAX_VALUE);
+            byte[] messageData = new byte[frameLength];
+            readFully(inputStream, messageData, 0, frameLength);
+            return messageData;
+        }
+        long total = readLong(inputStream);
+        if (total < 0 || total > MAX_ARRAY_MESSAGE_SIZE) {
+            throw new IOException("Message of " + total + " bytes is too large for a "
+                    + "single array - it needs to be read into a sink");
+        }
+        byte[] messageData = new byte[(int) total];
+        int numRead = 0;
+        while (numRead < total) {
+            frameLength = readInt(inputStream);
+            checkFrameLength(frameLength, total - numRead);
+            readFully(inputStream, messageData, numRead, frameLength);
+            numRead += frameLength;
+        }
         return messageData;
     }
 
+    /**
+     * Read a length delimited message from the input stream, of any size, and
+     * pass it on to a sink in chunks of at most the size of the supplied
+     * buffer (so that the message doesn't need to fit in memory as a whole).
+     *
+     * @param inputStream the input stream to read from
+     * @param sink        the sink to write the message to
+     * @param buffer      the buffer to read chunks into
+     * @return the size of the message in bytes
+     * @throws IOException if a problem occurs
+     */
+    protected static long readDelimitedToSink(InputStream inputStream, OutputStream sink,
+                                              byte[] buffer) throws IOException {
+        int frameLength = readInt(inputStream);
+        if (frameLength != EXTENDED_LENGTH_MARKER) {
+            checkFrameLength(frameLength, Long.MAX_VALUE);
+            copyToSink(inputStream, frameLength, sink, buffer);
+            return frameLength;
+        }
+        long total = readLong(inputStream);
+        if (total < 0) {
+            throw new IOException("Invalid message length: " + total);
+        }
+        long numRead = 0;
+        while (numRead < total) {
+            frameLength = readInt(inputStream);
+            checkFrameLength(frameLength, total - numRead);
+            copyToSink(inputStream, frameLength, sink, buffer);
+            numRead += frameLength;
+        }
+        return total;
+    }
+
+    protected static void copyToSink(InputStream inputStream, int length, OutputStream sink,
+                                     byte[] buffer) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, buffer.length);
+            readFully(inputStream, buffer, 0, count);
+            sink.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    protected static void checkFrameLength(int frameLength, long remaining) throws IOException {
+        if (frameLength < 0 || frameLength > remaining) {
+            throw new IOException("Invalid frame length: " + (frameLength & 0xFFFFFFFFL));
+        }
+    }
+
+    protected static int readInt(InputStream inputStream) throws IOException {
+        byte[] bytes = s_receiveBuffer.get();
+        readFully(inputStream, bytes, 0, 4);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8
+                | (bytes[3] & 0xFF);
+    }
+
+    protected static long readLong(InputStream inputStream) throws IOException {
+        long high = readInt(inputStream) & 0xFFFFFFFFL;
+        return high << 32 | (readInt(inputStream) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Read exactly the given number of bytes (a read may return fewer, more
+     * likely with channel streams).
+     */
+    protected static void readFully(InputStream inputStream, byte[] bytes, int offset,
+                                    int length) throws IOException {
+        int numRead = 0;
+        while (numRead < length) {
+            int currentNumRead = inputStream.read(bytes, offset + numRead, length - numRead);
+            if (currentNumRead < 0) {
+                throw new IOException("Unexpected end of stream! Num bytes read: " + numRead
+                        + " of " + length);
+            }
+            numRead += currentNumRead;
+        }
+    }
+
     /**
      * Prints out a json command for debugging purposes
      *
      * @param command the command to print out
      * @param log     optional log
      */
-    protected static void outputCommandDebug(Map<String, Object> command,
-                                             Logger log) {
+    protected static void outputCommandDebug(Object command, Logger log) {
         try {
             String serialized = MAPPER.writeValueAsString(command);
             if (log != null) {
@@ -1336,6 +2743,88 @@ public class RapidsUtils {
         }
     }
 
+    /**
+     * Send a frame cache command to the server: "cache_frame" (hold on to the
+     * named frame, X and Y under a fingerprint), "restore_frame" (make the
+     * frame, X and Y held under a fingerprint current again, with the given
+     * frame name) or "evict_frames" (drop the frames held under the given
+     * fingerprints).
+     *
+     * @param commandName  the command
+     * @param fingerprints the fingerprint(s) the command applies to
+     * @param frameName    the name of the frame (null for evict_frames)
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @return null if the command succeeded, otherwise the error from the
+     * server
+     * @throws WekaException if a problem occurs
+     */
+    protected static String sendFrameCacheCommand(String commandName, List<String> fingerprints,
+                                                  String frameName, OutputStream outputStream,
+                                                  InputStream inputStream, Logger log, boolean debug)
+            throws WekaException {
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", commandName);
+        command.put("fingerprints", fingerprints);
+        if (frameName != null) {
+            command.put("frame_name", frameName);
+        }
+        command.put("debug", debug);
+
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+                writeDelimitedToOutputStream(bytes, outputStream);
+                return receiveServerAck(inputStream);
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+        return null;
+    }
+
+    /**
+     * Tell the server to drop its mapping of the file that instances were last
+     * shared through (see {@link #sendInstancesMapped}).
+     *
+     * @param outputStream the output stream to write to
+     * @param inputStream  the input stream to listen for server response on
+     * @param log          the log (if any) to use
+     * @param debug        true if debugging info is to be output
+     * @throws WekaException if a problem occurs
+     */
+    public static void sendCloseMappedFile(OutputStream outputStream, InputStream inputStream,
+                                           Logger log, boolean debug) throws WekaException {
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "close_mapped_instances");
+        command.put("debug", debug);
+
+        if (inputStream != null && outputStream != null) {
+            try {
+                byte[] bytes = encodeCommand(command, outputStream);
+                if (debug) {
+                    outputCommandDebug(command, log);
+                }
+                writeDelimitedToOutputStream(bytes, outputStream);
+                String serverAck = receiveServerAck(inputStream);
+                if (serverAck != null) {
+                    throw new WekaException(serverAck);
+                }
+            } catch (IOException ex) {
+                throw new WekaException(ex);
+            }
+        } else if (debug) {
+            outputCommandDebug(command, log);
+        }
+    }
+
     public static void sendCloseIPCHandle(OutputStream outputStream, InputStream inputStream, Logger log, boolean debug) throws WekaException {
         Map<String, Object> command = new HashMap<String, Object>();
         command.put("command", "close_shared_instances");
@@ -1343,20 +2832,17 @@ public class RapidsUtils {
 
         if (inputStream != null && outputStream != null) {
             try {
-                byte[] bytes = MAPPER.writeValueAsBytes(command);
+                byte[] bytes = encodeCommand(command, outputStream);
                 if (debug) {
                     outputCommandDebug(command, log);
                 }
                 // write the command
                 writeDelimitedToOutputStream(bytes, outputStream);
 
-                bytes = readDelimitedFromInputStream(inputStream);
-                Map<String, Object> ack =
-                        MAPPER.readValue(bytes, new TypeReference<Map<String, Object>>() {
-                        });
-                if (!ack.get("response").toString().equals("ok")) {
+                ServerAck ack = readAckFromInputStream(inputStream);
+                if (!ack.isOk()) {
                     // fatal error
-                    throw new WekaException(ack.get("error_message").toString());
+                    throw new WekaException(ack.getErrorMessage());
                 }
 
             } catch (IOException ex) {
@@ -0,0 +1,128 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SegmentedBuffer.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * An array of fixed size elements, indexed by long, that is held in a number
+ * of direct buffers (segments) so that it can be larger than a single buffer
+ * allows (2GB). Each segment holds a whole number of elements. Elements are
+ * written with absolute puts, so different threads can fill different
+ * elements at the same time. Once filled, the segments are written to the
+ * server as one message with RapidsUtils.writeDelimitedToChannel().
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class SegmentedBuffer {
+
+    /**
+     * Largest size (bytes) of a segment
+     */
+    public static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    protected final ByteBuffer[] m_segments;
+
+    protected final int m_elementSize;
+
+    protected final int m_elementsPerSegment;
+
+    protected final long m_numElements;
+
+    /**
+     * Constructor. Use StagingBuffers.getSegmented() to get one whose segments
+     * are reused.
+     *
+     * @param segments           the segments (little endian, each with its
+     *                           limit set to its size)
+     * @param numElements        the number of elements
+     * @param elementSize        the size of an element in bytes
+     * @param elementsPerSegment the number of elements in each (but the last)
+     *                           segment
+     */
+    public SegmentedBuffer(ByteBuffer[] segments, long numElements, int elementSize,
+                           int elementsPerSegment) {
+        m_segments = segments;
+        m_numElements = numElements;
+        m_elementSize = elementSize;
+        m_elementsPerSegment = elementsPerSegment;
+    }
+
+    /**
+     * Get the number of elements that fit in a segment.
+     *
+     * @param elementSize the size of an element in bytes
+     * @return the number of elements per segment
+     */
+    public static int elementsPerSegment(int elementSize) {
+        return MAX_SEGMENT_SIZE / elementSize;
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public long numElements() {
+        return m_numElements;
+    }
+
+    /**
+     * @return the size in bytes
+     */
+    public long size() {
+        return m_numElements * m_elementSize;
+    }
+
+    public void putInt(long index, int value) {
+        segment(index).putInt(offset(index), value);
+    }
+
+    public void putLong(long index, long value) {
+        segment(index).putLong(offset(index), value);
+    }
+
+    public void putFloat(long index, float value) {
+        segment(index).putFloat(offset(index), value);
+    }
+
+    /**
+     * Mark every segment as filled (positioned at its limit), ready to be
+     * written.
+     *
+     * @return the segments
+     */
+    public ByteBuffer[] filledSegments() {
+        for (ByteBuffer segment : m_segments) {
+            ((Buffer) segment).position(segment.limit());
+        }
+        return m_segments;
+    }
+
+    protected ByteBuffer segment(long index) {
+        return m_segments[(int) (index / m_elementsPerSegment)];
+    }
+
+    protected int offset(long index) {
+        return (int) (index % m_elementsPerSegment) * m_elementSize;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ServerAck.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typed reply from the server. Holds the fields of the acks to the commands
+ * sent as {@link ServerCommand}s (and of the pid_response sent when the server
+ * connects); fields that a reply doesn't contain are null.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ServerAck {
+
+    @JsonProperty("response")
+    protected String m_response;
+
+    @JsonProperty("error_message")
+    protected String m_errorMessage;
+
+    @JsonProperty("pid")
+    protected Integer m_pid;
+
+    /**
+     * Encodings of command messages that the server supports (pid_response
+     * only)
+     */
+    @JsonProperty("encodings")
+    protected List<String> m_encodings;
+
+    @JsonProperty("script_out")
+    protected String m_scriptOut;
+
+    @JsonProperty("script_error")
+    protected String m_scriptError;
+
+    /**
+     * Output captured while executing scripts (get_debug_buffer only)
+     */
+    @JsonProperty("std_out")
+    protected String m_stdOut;
+
+    @JsonProperty("std_err")
+    protected String m_stdErr;
+
+    /**
+     * The name and type of each variable in the session (get_variable_list
+     * only)
+     */
+    @JsonProperty("variable_list")
+    protected List<Map<String, String>> m_variableList;
+
+    @JsonProperty("variable_name")
+    protected String m_variableName;
+
+    @JsonProperty("variable_exists")
+    protected Boolean m_variableExists;
+
+    @JsonProperty("variable_encoding")
+    protected String m_variableEncoding;
+
+    @JsonProperty("variable_value")
+    protected Object m_variableValue;
+
+    @JsonProperty("type")
+    protected String m_type;
+
+    @JsonProperty("dtype")
+    protected String m_dtype;
+
+    @JsonProperty("shape")
+    protected List<Number> m_shape;
+
+    /**
+     * The encoding of the image data (get_image only)
+     */
+    @JsonProperty("encoding")
+    protected String m_encoding;
+
+    @JsonProperty("image_data")
+    protected String m_imageData;
+
+    /**
+     * The number of rows in a frame (instances_header and instances_arrow
+     * responses)
+     */
+    @JsonProperty("num_instances")
+    protected Long m_numInstances;
+
+    /**
+     * The header of a frame (instances_header responses only)
+     */
+    @JsonProperty("header")
+    protected Map<String, Object> m_header;
+
+    /**
+     * The id of the request that this is the reply to
+     */
+    @JsonProperty("request_id")
+    protected Long m_requestId;
+
+    /**
+     * @return true if the response is "ok"
+     */
+    public boolean isOk() {
+        return "ok".equals(m_response);
+    }
+
+    public String getResponse() {
+        return m_response;
+    }
+
+    public String getErrorMessage() {
+        return m_errorMessage;
+    }
+
+    public Integer getPid() {
+        return m_pid;
+    }
+
+    public List<String> getEncodings() {
+        return m_encodings;
+    }
+
+    public String getScriptOut() {
+        return m_scriptOut;
+    }
+
+    public String getScriptError() {
+        return m_scriptError;
+    }
+
+    public String getStdOut() {
+        return m_stdOut;
+    }
+
+    public String getStdErr() {
+        return m_stdErr;
+    }
+
+    public List<Map<String, String>> getVariableList() {
+        return m_variableList;
+    }
+
+    public String getVariableName() {
+        return m_variableName;
+    }
+
+    public Boolean getVariableExists() {
+        return m_variableExists;
+    }
+
+    public String getVariableEncoding() {
+        return m_variableEncoding;
+    }
+
+    public Object getVariableValue() {
+        return m_variableValue;
+    }
+
+    public String getType() {
+        return m_type;
+    }
+
+    public String getDtype() {
+        return m_dtype;
+    }
+
+    public List<Number> getShape() {
+        return m_shape;
+    }
+
+    public String getEncoding() {
+        return m_encoding;
+    }
+
+    public String getImageData() {
+        return m_imageData;
+    }
+
+    public Long getNumInstances() {
+        return m_numInstances;
+    }
+
+    public Map<String, Object> getHeader() {
+        return m_header;
+    }
+
+    public Long getRequestId() {
+        return m_requestId;
+    }
+}
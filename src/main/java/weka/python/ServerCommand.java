@@ -0,0 +1,136 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ServerCommand.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+/**
+ * A typed command for the server, for the small commands that are sent many
+ * times per batch (executing scripts, calling functions and getting
+ * variables). Serializes to the same message as the equivalent map of fields
+ * (unset fields are left out), with whichever mapper was negotiated for the
+ * connection.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ServerCommand {
+
+    @JsonProperty("command")
+    protected String m_command;
+
+    @JsonProperty("debug")
+    protected Boolean m_debug;
+
+    @JsonProperty("script")
+    protected String m_script;
+
+    @JsonProperty("variable_name")
+    protected String m_variableName;
+
+    @JsonProperty("variable_encoding")
+    protected String m_variableEncoding;
+
+    @JsonProperty("encoding")
+    protected String m_encoding;
+
+    @JsonProperty("request_id")
+    protected Long m_requestId;
+
+    @JsonProperty("function_id")
+    protected String m_functionId;
+
+    @JsonProperty("function_name")
+    protected String m_functionName;
+
+    @JsonProperty("source")
+    protected String m_source;
+
+    @JsonProperty("args")
+    protected Map<String, Object> m_args;
+
+    @JsonProperty("result_variable")
+    protected String m_resultVariable;
+
+    /**
+     * Constructor
+     *
+     * @param command the name of the command
+     * @param debug   true if the server is to output debugging info
+     */
+    public ServerCommand(String command, boolean debug) {
+        m_command = command;
+        m_debug = debug;
+    }
+
+    public String getCommand() {
+        return m_command;
+    }
+
+    public void setScript(String script) {
+        m_script = script;
+    }
+
+    public void setVariableName(String variableName) {
+        m_variableName = variableName;
+    }
+
+    public void setVariableEncoding(String variableEncoding) {
+        m_variableEncoding = variableEncoding;
+    }
+
+    public void setEncoding(String encoding) {
+        m_encoding = encoding;
+    }
+
+    /**
+     * Set the function to register (register_function) or call
+     * (call_function). The source and name are only sent when registering.
+     *
+     * @param function the function
+     */
+    public void setFunction(ServerFunction function) {
+        m_functionId = function.getId();
+        if ("register_function".equals(m_command)) {
+            m_functionName = function.getName();
+            m_source = function.getSource();
+        }
+    }
+
+    public void setArgs(Map<String, Object> args) {
+        m_args = args;
+    }
+
+    public void setResultVariable(String resultVariable) {
+        m_resultVariable = resultVariable;
+    }
+
+    public Long getRequestId() {
+        return m_requestId;
+    }
+
+    public void setRequestId(Long requestId) {
+        m_requestId = requestId;
+    }
+}
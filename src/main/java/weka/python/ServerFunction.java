@@ -0,0 +1,85 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ServerFunction.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+/**
+ * A python function that is installed in the server once per session (see
+ * RapidsSession.registerFunction()) and then called by id, with only its
+ * arguments travelling with each call - rather than sending (and having the
+ * server compile) the text of a script every time.
+ * <p>
+ * The source is run once, in a namespace of its own, and must define a
+ * function of the given name whose first parameter receives the variables
+ * of the session (a dict, e.g. env['X']); the remaining parameters are
+ * passed by name. Anything else the source does (e.g. imports) is only done
+ * at registration. The id includes a hash of the source, so a changed
+ * function is registered afresh.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ServerFunction {
+
+    protected final String m_name;
+
+    protected final String m_source;
+
+    protected final String m_id;
+
+    /**
+     * Constructor
+     *
+     * @param name   the name of the function defined by the source
+     * @param source the source
+     */
+    public ServerFunction(String name, String source) {
+        m_name = name;
+        m_source = source;
+        m_id = name + "_" + Integer.toHexString(source.hashCode());
+    }
+
+    /**
+     * @return the id that the function is registered under
+     */
+    public String getId() {
+        return m_id;
+    }
+
+    /**
+     * @return the name of the function defined by the source
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * @return the source
+     */
+    public String getSource() {
+        return m_source;
+    }
+
+    @Override
+    public String toString() {
+        return m_id;
+    }
+}
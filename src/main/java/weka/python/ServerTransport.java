@@ -0,0 +1,608 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ServerTransport.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The listening end of the connection between the JVM and the python server.
+ * The server is launched with the address returned by {@link #getAddress()}
+ * and connects back, after which commands and data flow over the streams of
+ * the accepted connection. Two transports are available: TCP on the loopback
+ * interface, and Unix domain sockets. The latter avoids the loopback TCP
+ * stack, but needs Java 16 or later (it is accessed reflectively, as the code
+ * base targets Java 8) and is not used on Windows. If a Unix domain socket
+ * can't be opened then TCP is used instead.
+ * <p>
+ * Both transports are socket channels, whose streams are buffered in direct
+ * buffers that are reused for the life of the connection: a small command is
+ * written (length prefix and payload together) with a single system call, and
+ * a reply is usually picked up in one read. Buffered output is flushed
+ * whenever the input stream is read, so a request is always on the wire
+ * before waiting for its reply.
+ * <p>
+ * The streams of a connection also carry the encoding of its command
+ * messages (see {@link CommandStream}), which starts as JSON and may be
+ * switched to a binary encoding once negotiated with the server.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public abstract class ServerTransport implements Closeable {
+
+    /**
+     * Prefix of the address of a Unix domain socket transport (the address of
+     * a TCP transport is just the port number)
+     */
+    public static final String UNIX_ADDRESS_PREFIX = "unix:";
+
+    /**
+     * The accepted connection (null until a client has connected)
+     */
+    protected Connection m_connection;
+
+    /**
+     * Open a transport, ready to accept a connection.
+     *
+     * @param unixDomain true to use a Unix domain socket if possible
+     * @param debug      true to report a fall back to TCP
+     * @return the transport
+     * @throws IOException if a problem occurs
+     */
+    public static ServerTransport open(boolean unixDomain, boolean debug) throws IOException {
+        if (unixDomain) {
+            try {
+                return new UnixDomainTransport();
+            } catch (Exception ex) {
+                if (debug) {
+                    System.err.println("Unix domain sockets are not available ("
+                            + ex + ") - falling back to TCP");
+                }
+            }
+        }
+        return new TcpTransport();
+    }
+
+    /**
+     * Connect to a transport (as the python server does).
+     *
+     * @param address the address of the transport
+     * @return the connection
+     * @throws IOException if a problem occurs
+     */
+    public static Connection connect(String address) throws IOException {
+        if (address.startsWith(UNIX_ADDRESS_PREFIX)) {
+            SocketAddress socketAddress =
+                    unixDomainAddress(address.substring(UNIX_ADDRESS_PREFIX.length()));
+            SocketChannel channel = (SocketChannel) invokeOpen(SocketChannel.class);
+            channel.connect(socketAddress);
+            return new ChannelConnection(channel, false);
+        }
+        SocketChannel channel =
+                SocketChannel.open(new InetSocketAddress("localhost", Integer.parseInt(address)));
+        return new ChannelConnection(channel, true);
+    }
+
+    /**
+     * @return the address to give to the python server
+     */
+    public abstract String getAddress();
+
+    /**
+     * @return true if this transport uses a Unix domain socket
+     */
+    public abstract boolean isUnixDomain();
+
+    /**
+     * Wait for the python server to connect.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @throws IOException if no connection is made in time, or a problem
+     *                     occurs
+     */
+    public abstract void accept(int timeoutMillis) throws IOException;
+
+    /**
+     * @return true if the python server has connected
+     */
+    public boolean isConnected() {
+        return m_connection != null;
+    }
+
+    /**
+     * @return the stream for reading from the python server
+     * @throws IOException if not connected
+     */
+    public InputStream getInputStream() throws IOException {
+        return connection().getInputStream();
+    }
+
+    /**
+     * @return the stream for writing to the python server
+     * @throws IOException if not connected
+     */
+    public OutputStream getOutputStream() throws IOException {
+        return connection().getOutputStream();
+    }
+
+    protected Connection connection() throws IOException {
+        if (m_connection == null) {
+            throw new IOException("The python server is not connected");
+        }
+        return m_connection;
+    }
+
+    /**
+     * Close the connection (if any) and stop listening.
+     *
+     * @throws IOException if a problem occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_connection != null) {
+            m_connection.close();
+        }
+    }
+
+    protected static SocketAddress unixDomainAddress(String path) throws IOException {
+        try {
+            Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            return (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets are not supported by this JVM", ex);
+        }
+    }
+
+    /**
+     * Call the static open(ProtocolFamily) method of a channel class with the
+     * UNIX protocol family.
+     */
+    protected static Object invokeOpen(Class<?> channelClass) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException ex) {
+            throw new IOException(ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets are not supported by this JVM", ex);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unix domain sockets are not supported by this JVM", ex);
+        }
+    }
+
+    /**
+     * Implemented by the streams of a connection, to give the mapper that
+     * command messages sent (and replies received) over the connection are
+     * encoded with, and the ids that command messages are tagged with (which
+     * the server echoes in its replies). Both streams of a connection share
+     * the same mapper and ids.
+     */
+    public interface CommandStream {
+
+        ObjectMapper getCommandMapper();
+
+        void setCommandMapper(ObjectMapper mapper);
+
+        long nextRequestId();
+    }
+
+    /**
+     * The streams of an established connection
+     */
+    public abstract static class Connection implements Closeable {
+
+        /**
+         * The mapper for command messages (JSON until another encoding is
+         * negotiated)
+         */
+        protected volatile ObjectMapper m_commandMapper = RapidsUtils.MAPPER;
+
+        /**
+         * The id of the last request sent over the connection
+         */
+        protected final AtomicLong m_requestIds = new AtomicLong();
+
+        public abstract InputStream getInputStream() throws IOException;
+
+        public abstract OutputStream getOutputStream() throws IOException;
+    }
+
+    /**
+     * A connection over a socket channel, with buffered streams. The streams
+     * read and write the channel directly (unlike those from
+     * java.nio.channels.Channels, which lock the channel so that reading and
+     * writing can't overlap).
+     */
+    protected static class ChannelConnection extends Connection {
+
+        /**
+         * Size of the read and write buffers
+         */
+        public static final int BUFFER_SIZE = 64 * 1024;
+
+        protected final SocketChannel m_channel;
+
+        /**
+         * Bytes received but not yet read (kept flipped, i.e. ready to read)
+         */
+        protected final ByteBuffer m_readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Bytes written but not yet sent
+         */
+        protected final ByteBuffer m_writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Held while writing to the channel
+         */
+        protected final ReentrantLock m_writeLock = new ReentrantLock();
+
+        protected final InputStream m_inputStream;
+
+        protected final OutputStream m_outputStream;
+
+        protected ChannelConnection(final SocketChannel channel, boolean tcp) throws IOException {
+            m_channel = channel;
+            if (tcp) {
+                // small writes (e.g. a flush of buffered output) would
+                // otherwise be held back by Nagle's algorithm
+                m_channel.socket().setTcpNoDelay(true);
+            }
+            ((Buffer) m_readBuffer).flip();
+            m_inputStream = new ChannelInputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    flushIfIdle();
+                    if (!m_readBuffer.hasRemaining()) {
+                        if (len >= BUFFER_SIZE) {
+                            // large reads go straight into the caller's array
+                            return channel.read(ByteBuffer.wrap(b, off, len));
+                        }
+                        ((Buffer) m_readBuffer).clear();
+                        int numRead = channel.read(m_readBuffer);
+                        ((Buffer) m_readBuffer).flip();
+                        if (numRead < 0) {
+                            return -1;
+                        }
+                    }
+                    int count = Math.min(len, m_readBuffer.remaining());
+                    m_readBuffer.get(b, off, count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return m_readBuffer.remaining();
+                }
+            };
+            m_outputStream = new ChannelOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    m_writeLock.lock();
+                    try {
+                        if (len <= m_writeBuffer.remaining()) {
+                            m_writeBuffer.put(b, off, len);
+                            return;
+                        }
+                        // gather what is buffered (e.g. a length prefix) and
+                        // the payload into one write
+                        ((Buffer) m_writeBuffer).flip();
+                        ByteBuffer payload = ByteBuffer.wrap(b, off, len);
+                        ByteBuffer[] buffers = {m_writeBuffer, payload};
+                        while (payload.hasRemaining()) {
+                            channel.write(buffers);
+                        }
+                        ((Buffer) m_writeBuffer).clear();
+                    } finally {
+                        m_writeLock.unlock();
+                    }
+                }
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int count = src.remaining();
+                    m_writeLock.lock();
+                    try {
+                        if (count <= m_writeBuffer.remaining()) {
+                            m_writeBuffer.put(src);
+                            return count;
+                        }
+                        ((Buffer) m_writeBuffer).flip();
+                        ByteBuffer[] buffers = {m_writeBuffer, src};
+                        while (src.hasRemaining()) {
+                            channel.write(buffers);
+                        }
+                        ((Buffer) m_writeBuffer).clear();
+                    } finally {
+                        m_writeLock.unlock();
+                    }
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    ChannelConnection.this.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // abandons the connection (e.g. when a transfer can't be
+                    // completed) - the server sees the end of the stream
+                    ChannelConnection.this.close();
+                }
+            };
+        }
+
+        /**
+         * Input stream sharing the command mapper and request ids of the connection
+         */
+        protected abstract class ChannelInputStream extends InputStream
+                implements CommandStream {
+
+            @Override
+            public ObjectMapper getCommandMapper() {
+                return m_commandMapper;
+            }
+
+            @Override
+            public void setCommandMapper(ObjectMapper mapper) {
+                m_commandMapper = mapper;
+            }
+
+            @Override
+            public long nextRequestId() {
+                return m_requestIds.incrementAndGet();
+            }
+        }
+
+        /**
+         * Output stream sharing the command mapper and request ids of the
+         * connection. Also a channel, so that buffers can be written without
+         * copying them into an array first.
+         */
+        protected abstract class ChannelOutputStream extends OutputStream
+                implements CommandStream, WritableByteChannel {
+
+            @Override
+            public ObjectMapper getCommandMapper() {
+                return m_commandMapper;
+            }
+
+            @Override
+            public void setCommandMapper(ObjectMapper mapper) {
+                m_commandMapper = mapper;
+            }
+
+            @Override
+            public long nextRequestId() {
+                return m_requestIds.incrementAndGet();
+            }
+        }
+
+        /**
+         * Send any buffered output.
+         *
+         * @throws IOException if a problem occurs
+         */
+        protected void flush() throws IOException {
+            m_writeLock.lock();
+            try {
+                if (m_writeBuffer.position() == 0) {
+                    return;
+                }
+                ((Buffer) m_writeBuffer).flip();
+                while (m_writeBuffer.hasRemaining()) {
+                    m_channel.write(m_writeBuffer);
+                }
+                ((Buffer) m_writeBuffer).clear();
+            } finally {
+                m_writeLock.unlock();
+            }
+        }
+
+        /**
+         * Send any buffered output before reading, unless another thread is
+         * writing (when requests are pipelined, see CommandPipeline). Waiting
+         * for that thread could deadlock: its write may be blocked until the
+         * server has sent the reply that this thread is about to read. A
+         * thread that writes while replies are read elsewhere flushes its own
+         * requests.
+         *
+         * @throws IOException if a problem occurs
+         */
+        protected void flushIfIdle() throws IOException {
+            if (m_writeLock.tryLock()) {
+                try {
+                    flush();
+                } finally {
+                    m_writeLock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return m_inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return m_outputStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                m_channel.close();
+            }
+        }
+    }
+
+    /**
+     * Loopback TCP
+     */
+    protected static class TcpTransport extends ServerTransport {
+
+        protected final ServerSocketChannel m_serverChannel;
+
+        protected TcpTransport() throws IOException {
+            m_serverChannel = ServerSocketChannel.open();
+            m_serverChannel.socket().bind(new InetSocketAddress(0));
+        }
+
+        @Override
+        public String getAddress() {
+            return "" + m_serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public boolean isUnixDomain() {
+            return false;
+        }
+
+        @Override
+        public void accept(int timeoutMillis) throws IOException {
+            // the socket adaptor supports an accept timeout
+            ServerSocket serverSocket = m_serverChannel.socket();
+            serverSocket.setSoTimeout(timeoutMillis);
+            Socket socket = serverSocket.accept();
+            m_connection = new ChannelConnection(socket.getChannel(), true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            m_serverChannel.close();
+        }
+    }
+
+    /**
+     * A Unix domain socket, bound to a file in the temp directory
+     */
+    protected static class UnixDomainTransport extends ServerTransport {
+
+        protected final File m_socketFile;
+
+        protected final ServerSocketChannel m_serverChannel;
+
+        protected UnixDomainTransport() throws IOException {
+            String osType = System.getProperty("os.name");
+            if (osType != null && osType.toLowerCase().contains("windows")) {
+                throw new IOException("Not supported on Windows");
+            }
+            m_socketFile = new File(System.getProperty("java.io.tmpdir"),
+                    "wekaRAPIDS-" + UUID.randomUUID() + ".sock");
+            SocketAddress address = unixDomainAddress(m_socketFile.getAbsolutePath());
+            m_serverChannel = (ServerSocketChannel) invokeOpen(ServerSocketChannel.class);
+            try {
+                m_serverChannel.bind(address);
+            } catch (IOException ex) {
+                m_serverChannel.close();
+                throw ex;
+            }
+            m_socketFile.deleteOnExit();
+        }
+
+        @Override
+        public String getAddress() {
+            return UNIX_ADDRESS_PREFIX + m_socketFile.getAbsolutePath();
+        }
+
+        @Override
+        public boolean isUnixDomain() {
+            return true;
+        }
+
+        @Override
+        public void accept(int timeoutMillis) throws IOException {
+            // server socket channels have no accept timeout, so poll
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            m_serverChannel.configureBlocking(false);
+            SocketChannel channel;
+            while ((channel = m_serverChannel.accept()) == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("Timed out waiting for the python server");
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            channel.configureBlocking(true);
+            m_connection = new ChannelConnection(channel, false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+                m_serverChannel.close();
+            } finally {
+                m_socketFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    StagingBuffers.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of named staging areas (direct buffers, float arrays and CSV
+ * encoders) that instances are converted into before being sent. Areas grow
+ * to the largest size requested and are then reused, so that repeatedly
+ * sending batches of a similar size (e.g. batch prediction) does not allocate
+ * large objects on every call. Everything is dropped by {@link #release()}.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class StagingBuffers {
+
+    /**
+     * Direct buffers, keyed by name
+     */
+    protected final Map<String, ByteBuffer> m_buffers = new HashMap<String, ByteBuffer>();
+
+    /**
+     * Float arrays, keyed by name
+     */
+    protected final Map<String, float[]> m_floatArrays = new HashMap<String, float[]>();
+
+    /**
+     * CSV encoders (used for formatting blocks of rows)
+     */
+    protected final List<CSVEncoder> m_encoders = new ArrayList<CSVEncoder>();
+
+    /**
+     * Get a little endian direct buffer of at least the given size. The buffer
+     * is cleared, with its limit set to the requested size. The contents are
+     * undefined.
+     *
+     * @param name the name of the staging area
+     * @param size the number of bytes required
+     * @return the buffer
+     * @throws IllegalArgumentException if the size is too large for a buffer
+     */
+    public synchronized ByteBuffer getBuffer(String name, long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Staging area " + name + " of " + size
+                    + " bytes is too large");
+        }
+        ByteBuffer buffer = m_buffers.get(name);
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect((int) size);
+            m_buffers.put(name, buffer);
+        }
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit((int) size);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get a segmented buffer for the given number of elements, which may be
+     * larger than a single buffer allows. The segments are staging areas named
+     * after the given name (suffixed by their number).
+     *
+     * @param name        the name of the staging area
+     * @param numElements the number of elements required
+     * @param elementSize the size of an element in bytes
+     * @return the buffer
+     */
+    public synchronized SegmentedBuffer getSegmented(String name, long numElements,
+                                                     int elementSize) {
+        int perSegment = SegmentedBuffer.elementsPerSegment(elementSize);
+        int numSegments = (int) Math.max(1, (numElements + perSegment - 1) / perSegment);
+        ByteBuffer[] segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long count = Math.min(perSegment, numElements - (long) i * perSegment);
+            segments[i] = getBuffer(i == 0 ? name : name + "_" + i, count * elementSize);
+        }
+        return new SegmentedBuffer(segments, numElements, elementSize, perSegment);
+    }
+
+    /**
+     * Get a float array of exactly the given length (for APIs that take the
+     * length from the array). The array is reused as long as the same length
+     * is requested, as happens when sending equally sized chunks or batches.
+     *
+     * @param name   the name of the staging area
+     * @param length the number of elements required
+     * @return the array
+     */
+    public synchronized float[] getFloatArray(String name, int length) {
+        float[] array = m_floatArrays.get(name);
+        if (array == null || array.length != length) {
+            array = new float[length];
+            m_floatArrays.put(name, array);
+        }
+        return array;
+    }
+
+    /**
+     * Get a number of empty CSV encoders.
+     *
+     * @param count the number of encoders required
+     * @return the encoders
+     */
+    public synchronized CSVEncoder[] getEncoders(int count) {
+        while (m_encoders.size() < count) {
+            m_encoders.add(new CSVEncoder());
+        }
+        CSVEncoder[] result = new CSVEncoder[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = m_encoders.get(i);
+            result[i].reset();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bytes held in direct buffers
+     */
+    public synchronized long getDirectBytes() {
+        long total = 0;
+        for (ByteBuffer buffer : m_buffers.values()) {
+            total += buffer.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * Drop all staging areas, so that their memory can be reclaimed.
+     */
+    public synchronized void release() {
+        m_buffers.clear();
+        m_floatArrays.clear();
+        m_encoders.clear();
+    }
+}
@@ -4,9 +4,86 @@ import ai.rapids.cudf.HostBufferConsumer;
 import ai.rapids.cudf.HostMemoryBuffer;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Consumes the host buffers produced by the cuDF Arrow IPC writer. Buffers are
+ * drained in bulk (via ByteBuffer views of the host memory) either into a
+ * list of fixed size direct chunks, or straight to a channel as length
+ * delimited frames.
+ */
 public class TableBuffer implements HostBufferConsumer {
-    ByteArrayOutputStream tableBuffer = new ByteArrayOutputStream();
+
+    /**
+     * Size of each chunk of the accumulated IPC stream
+     */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Accumulate the IPC stream when not streaming (filled up to their
+     * position). Chunks are added as needed, so nothing is copied as the
+     * stream grows.
+     */
+    private final List<ByteBuffer> m_chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * The number of bytes accumulated
+     */
+    private long m_size;
+
+    /**
+     * If non-null, buffers are written straight to this channel as length
+     * delimited frames rather than being accumulated in memory
+     */
+    private final WritableByteChannel m_channel;
+
+    /**
+     * Reused for writing frame lengths
+     */
+    private final ByteBuffer m_lengthBuffer =
+            ByteBuffer.allocateDirect(4).order(ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Holds the first problem encountered while streaming (handleBuffer()
+     * is not allowed to throw checked exceptions)
+     */
+    private IOException m_streamError;
+
+    /**
+     * True while a frame's length has been written but not all of its bytes
+     */
+    private boolean m_frameOpen;
+
+    /**
+     * True once the end of a streamed transfer has been written
+     */
+    private boolean m_ended;
+
+    /**
+     * Constructor for a buffer that accumulates the IPC stream in memory
+     */
+    public TableBuffer() {
+        m_channel = null;
+    }
+
+    /**
+     * Constructor for a buffer that writes each host buffer produced by the
+     * table writer to the supplied channel as a length delimited frame.
+     * Call {@link #finish()} once the table writer has been closed in order to
+     * write the end of stream marker.
+     *
+     * @param channel the channel to write frames to
+     */
+    public TableBuffer(WritableByteChannel channel) {
+        m_channel = channel;
+    }
 
     /**
      * Consume a buffer.
@@ -17,22 +94,180 @@ public class TableBuffer implements HostBufferConsumer {
      */
     @Override
     public void handleBuffer(HostMemoryBuffer buffer, long len) {
-        for (long i = 0; i < len; i++) {
-            byte b = buffer.getByte(i);
-            tableBuffer.write(b);
+        try {
+            if (m_channel != null) {
+                streamBuffer(buffer, len);
+            } else {
+                append(buffer, len);
+            }
+        } finally {
+            buffer.close();
+        }
+    }
+
+    /**
+     * Copy a host buffer onto the end of the accumulated stream, adding chunks
+     * as they fill up.
+     *
+     * @param buffer the buffer to copy
+     * @param len    the number of valid bytes in the buffer
+     */
+    private void append(HostMemoryBuffer buffer, long len) {
+        long pos = 0;
+        while (pos < len) {
+            ByteBuffer chunk = m_chunks.isEmpty() ? null : m_chunks.get(m_chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                m_chunks.add(chunk);
+            }
+            int count = (int) Math.min(chunk.remaining(), len - pos);
+            chunk.put(buffer.asByteBuffer(pos, count));
+            pos += count;
+            m_size += count;
+        }
+    }
+
+    /**
+     * Write a host buffer to the channel as a single length delimited frame.
+     *
+     * @param buffer the buffer to write
+     * @param len    the number of valid bytes in the buffer
+     */
+    private void streamBuffer(HostMemoryBuffer buffer, long len) {
+        if (m_streamError != null || len == 0) {
+            return;
+        }
+        if (len > Integer.MAX_VALUE) {
+            m_streamError = new IOException("Arrow IPC buffer of " + len
+                    + " bytes is too large for a single frame - use a smaller chunk size");
+            return;
+        }
+        try {
+            writeLength((int) len);
+            m_frameOpen = true;
+            writeFully(buffer.asByteBuffer(0, (int) len));
+            m_frameOpen = false;
+        } catch (IOException e) {
+            m_streamError = e;
+        }
+    }
+
+    private void writeLength(int len) throws IOException {
+        ((Buffer) m_lengthBuffer).clear();
+        ((Buffer) m_lengthBuffer.putInt(len)).flip();
+        writeFully(m_lengthBuffer);
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            m_channel.write(src);
+        }
+    }
+
+    /**
+     * Finish a streamed transfer by writing a zero length frame. Rethrows any
+     * problem that occurred while streaming (once the end of the transfer has
+     * been written).
+     *
+     * @throws IOException if a problem occurred
+     */
+    public void finish() throws IOException {
+        endStream();
+        if (m_streamError != null) {
+            throw m_streamError;
+        }
+    }
+
+    /**
+     * End a streamed transfer, whether or not it succeeded, so that the server
+     * does not wait for further frames: a zero length frame is written, or
+     * the channel is closed if a frame was only partly written (the server
+     * can't find the end of the transfer in that case). Does nothing if the
+     * transfer has already been ended. Problems are kept for finish().
+     */
+    public void endStream() {
+        if (m_channel == null || m_ended) {
+            return;
+        }
+        m_ended = true;
+        try {
+            if (m_frameOpen) {
+                m_channel.close();
+            } else {
+                writeLength(0);
+            }
+        } catch (IOException e) {
+            if (m_streamError == null) {
+                m_streamError = e;
+            }
         }
-        buffer.close();
+    }
+
+    /**
+     * @return the number of bytes accumulated
+     */
+    public long size() {
+        return m_size;
+    }
+
+    /**
+     * Get read-only views of the chunks of the accumulated IPC stream.
+     *
+     * @return the chunks, each ready to read
+     */
+    private ByteBuffer[] chunks() {
+        ByteBuffer[] result = new ByteBuffer[m_chunks.size()];
+        for (int i = 0; i < result.length; i++) {
+            ByteBuffer view = m_chunks.get(i).duplicate();
+            ((Buffer) view).flip();
+            result[i] = view.asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    /**
+     * Write the accumulated IPC stream to a channel as one length delimited
+     * message (using extended framing if it is larger than a frame), draining
+     * the chunks to the channel without copying them.
+     *
+     * @param channel the channel to write to
+     * @throws IOException if a problem occurs
+     */
+    public void writeDelimitedTo(WritableByteChannel channel) throws IOException {
+        // writeDelimitedToChannel() flips what it is given
+        ByteBuffer[] chunks = new ByteBuffer[m_chunks.size()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = m_chunks.get(i).duplicate();
+        }
+        RapidsUtils.writeDelimitedToChannel(chunks, channel);
     }
 
     public void writeToFile(File file) {
-        try (OutputStream outputStream = new FileOutputStream(file)) {
-            tableBuffer.writeTo(outputStream);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer chunk : chunks()) {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     public byte[] toByteArray() {
-        return tableBuffer.toByteArray();
+        if (m_size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Arrow IPC stream of " + m_size
+                    + " bytes is too large for an array");
+        }
+        byte[] result = new byte[(int) m_size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks()) {
+            int count = chunk.remaining();
+            chunk.get(result, offset, count);
+            offset += count;
+        }
+        return result;
     }
 }
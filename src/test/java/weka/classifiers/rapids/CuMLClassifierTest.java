@@ -24,6 +24,17 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import weka.classifiers.AbstractClassifierTest;
 import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.evaluation.Prediction;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.TestInstances;
+import weka.core.Utils;
+import weka.python.InstanceSender;
+import weka.python.RapidsSession;
+
+import java.util.ArrayList;
+import java.util.Random;
 
 
 /**
@@ -53,4 +64,128 @@ public class CuMLClassifierTest extends AbstractClassifierTest {
     protected boolean canPredict(int type) {
         return true;
     }
+
+    /**
+     * Get a classifier whose predictions don't depend on a random seed.
+     */
+    protected CuMLClassifier getDeterministicClassifier() {
+        CuMLClassifier classifier = new CuMLClassifier();
+        classifier.setLearner(new SelectedTag(CuMLClassifier.Learner.LogisticRegression.ordinal(),
+                CuMLClassifier.TAGS_LEARNER));
+        return classifier;
+    }
+
+    /**
+     * Get a dataset with numeric and nominal inputs and a nominal class,
+     * optionally with some input values missing.
+     */
+    protected Instances getCrossValidationData(boolean withMissing) throws Exception {
+        TestInstances generator = new TestInstances();
+        generator.setNumNominal(2);
+        generator.setNumNumeric(3);
+        generator.setNumClasses(2);
+        generator.setNumInstances(120);
+        generator.setSeed(42);
+        Instances data = generator.generate();
+        if (withMissing) {
+            Random random = new Random(7);
+            for (int i = 0; i < data.numInstances(); i += 5) {
+                int index = random.nextInt(data.numAttributes());
+                if (index != data.classIndex()) {
+                    data.instance(i).setValue(index, Utils.missingValue());
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Server-side cross-validation must use the same folds as
+     * Evaluation.crossValidateModel, and (as the preprocessing is fitted to
+     * each training fold in both cases) give essentially the same predictions.
+     */
+    public void testCrossValidateMatchesEvaluation() throws Exception {
+        for (boolean withMissing : new boolean[]{false, true}) {
+            Instances data = getCrossValidationData(withMissing);
+            ArrayList<Prediction> predictions =
+                    getDeterministicClassifier().crossValidate(data, 5, new Random(1));
+
+            Evaluation evaluation = new Evaluation(data);
+            evaluation.crossValidateModel(getDeterministicClassifier(), data, 5, new Random(1));
+            ArrayList<Prediction> expected = evaluation.predictions();
+
+            assertEquals(expected.size(), predictions.size());
+            int agree = 0;
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals("actual value of prediction " + i, expected.get(i).actual(),
+                        predictions.get(i).actual(), 0);
+                assertEquals(expected.get(i).weight(), predictions.get(i).weight(), 0);
+                if (expected.get(i).predicted() == predictions.get(i).predicted()) {
+                    agree++;
+                }
+            }
+            // training rows are shuffled by Evaluation, which may move a
+            // borderline prediction
+            assertTrue("only " + agree + " of " + expected.size() + " predictions agree",
+                    agree >= 0.95 * expected.size());
+        }
+    }
+
+    /**
+     * Building again on the same data restores it from the frame cache, which
+     * must hold the data as it was sent (not X as prepared for the learner by
+     * the first build), and give the same model.
+     */
+    public void testRebuildFromFrameCache() throws Exception {
+        Instances data = getCrossValidationData(false);
+        for (int method : new int[]{InstanceSender.INSTANCE_SENDING_ARROW_IPC,
+                InstanceSender.INSTANCE_SENDING_SPARSE_CSR}) {
+            CuMLClassifier classifier = getDeterministicClassifier();
+            classifier.setInstanceSendingStrategy(new SelectedTag(method,
+                    CuMLClassifier.TAGS_INSTANCE_SENDING));
+            classifier.setFrameCacheBudget(64);
+            classifier.buildClassifier(data);
+            double[][] first = new double[data.numInstances()][];
+            for (int i = 0; i < data.numInstances(); i++) {
+                first[i] = classifier.distributionForInstance(data.instance(i));
+            }
+
+            classifier.buildClassifier(data);
+            for (int i = 0; i < data.numInstances(); i++) {
+                double[] second = classifier.distributionForInstance(data.instance(i));
+                for (int j = 0; j < second.length; j++) {
+                    assertEquals("method " + method + ", instance " + i, first[i][j],
+                            second[j], 1e-6);
+                }
+            }
+        }
+    }
+
+    /**
+     * Instances sent through the generic transfer carry nominal values as
+     * labels, which the server must keep as they are (rather than decode them
+     * as label indexes).
+     */
+    public void testNominalInstancesToPython() throws Exception {
+        CuMLClassifier classifier = new CuMLClassifier();
+        RapidsSession session = classifier.getSession();
+        try {
+            Instances data = getCrossValidationData(true);
+            assertTrue(data.attribute(0).isNominal());
+            int row = 0;
+            while (data.instance(row).isMissing(0)) {
+                row++;
+            }
+            session.instancesToPython(data, "nominal_frame", false);
+            assertTrue(session.checkIfPythonVariableIsSet("nominal_frame", false));
+            session.executeScript("nominal_label = str(nominal_frame.iloc[" + row + ", 0])\n"
+                    + "nominal_rows = str(len(nominal_frame.index))\n", false);
+            assertEquals(data.instance(row).stringValue(0),
+                    session.getVariableValueFromPythonAsPlainString("nominal_label", false));
+            assertEquals("" + data.numInstances(),
+                    session.getVariableValueFromPythonAsPlainString("nominal_rows", false));
+        } finally {
+            classifier.releaseSession();
+        }
+    }
 }
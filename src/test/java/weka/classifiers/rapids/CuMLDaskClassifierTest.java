@@ -23,6 +23,9 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import weka.classifiers.AbstractClassifierTest;
 import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.TestInstances;
 
 /**
  * Tests the CuML LearnClassifier
@@ -46,4 +49,38 @@ public class CuMLDaskClassifierTest extends AbstractClassifierTest {
     public static void main(String[] args) {
         junit.textui.TestRunner.run(suite());
     }
+
+    /**
+     * Building again on the same data restores it from the frame cache, which
+     * must hold the data as it was sent (not the dask collections that the
+     * first build distributed it as), and give the same model.
+     */
+    public void testRebuildFromFrameCache() throws Exception {
+        TestInstances generator = new TestInstances();
+        generator.setNumNominal(0);
+        generator.setNumNumeric(4);
+        generator.setNumClasses(2);
+        generator.setNumInstances(100);
+        generator.setSeed(42);
+        Instances data = generator.generate();
+
+        CuMLDaskClassifier classifier = new CuMLDaskClassifier();
+        classifier.setLearner(new SelectedTag(
+                CuMLDaskClassifier.Learner.KNeighborsClassifier.ordinal(),
+                CuMLDaskClassifier.TAGS_LEARNER));
+        classifier.setFrameCacheBudget(64);
+        classifier.buildClassifier(data);
+        double[][] first = new double[data.numInstances()][];
+        for (int i = 0; i < data.numInstances(); i++) {
+            first[i] = classifier.distributionForInstance(data.instance(i));
+        }
+
+        classifier.buildClassifier(data);
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] second = classifier.distributionForInstance(data.instance(i));
+            for (int j = 0; j < second.length; j++) {
+                assertEquals("instance " + i, first[i][j], second[j], 1e-6);
+            }
+        }
+    }
 }
@@ -0,0 +1,429 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ArrowIPCTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests the pure-Java Arrow IPC encoder and decoder (no GPU required):
+ * instances written by ArrowIPCWriter must decode to the same values with
+ * ArrowIPCReader, and streams using the types that the server sends back
+ * (utf8, dictionary encoded and nullable columns) must decode correctly.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class ArrowIPCTest extends TestCase {
+
+    public ArrowIPCTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Numeric columns (with fractions, large values and missing values) and a
+     * nominal attribute, written as float32 and label index columns.
+     */
+    protected static Instances mixedData() {
+        ArrayList<Attribute> atts = new ArrayList<Attribute>();
+        atts.add(new Attribute("small"));
+        atts.add(new Attribute("signed"));
+        atts.add(new Attribute("wide"));
+        atts.add(new Attribute("fraction"));
+        atts.add(new Attribute("colour", Arrays.asList("red", "green", "blue")));
+        atts.add(new Attribute("class", Arrays.asList("yes", "no")));
+        Instances data = new Instances("mixed", atts, 0);
+        data.setClassIndex(data.numAttributes() - 1);
+        double[][] rows = {
+                {0, -3, 40000, 0.5, 0, 0},
+                {255, 100, -20, 1e6, 2, 1},
+                {7, -128, 65535, Utils.missingValue(), Utils.missingValue(), 0},
+                {1, 0, 123456, -3.25, 1, 1},
+        };
+        for (double[] row : rows) {
+            data.add(new DenseInstance(1.0, row));
+        }
+        return data;
+    }
+
+    /**
+     * Write instances with the IPC writer and strip the length delimited
+     * framing, giving a plain IPC stream.
+     */
+    protected static ByteBuffer write(Instances data, boolean narrow, int batchSize)
+            throws IOException {
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        ArrowIPCWriter writer = new ArrowIPCWriter(data, Channels.newChannel(framed));
+        if (narrow) {
+            writer.narrowColumnTypes(data);
+        }
+        for (int start = 0; start < data.numInstances(); start += batchSize) {
+            writer.writeBatch(data, start, Math.min(start + batchSize, data.numInstances()));
+        }
+        writer.close();
+
+        ByteBuffer frames = ByteBuffer.wrap(framed.toByteArray());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        while (true) {
+            int length = frames.getInt();
+            if (length == 0) {
+                break;
+            }
+            stream.write(frames.array(), frames.position(), length);
+            frames.position(frames.position() + length);
+        }
+        assertFalse("nothing may follow the terminating frame", frames.hasRemaining());
+        return ByteBuffer.wrap(stream.toByteArray());
+    }
+
+    /**
+     * The value expected back for a cell - non-class nominal values travel as
+     * label indexes (-1 for missing), everything else as float32.
+     */
+    protected static double expected(Instances data, int row, int column) {
+        double value = data.instance(row).value(column);
+        if (data.attribute(column).isNominal() && column != data.classIndex()) {
+            return Utils.isMissingValue(value) ? -1 : value;
+        }
+        return Utils.isMissingValue(value) ? value : (float) value;
+    }
+
+    protected void checkRoundTrip(boolean narrow, int batchSize) throws IOException {
+        Instances data = mixedData();
+        Instances decoded = new ArrowIPCReader(write(data, narrow, batchSize)).read("decoded");
+
+        assertEquals(data.numAttributes(), decoded.numAttributes());
+        assertEquals(data.numInstances(), decoded.numInstances());
+        for (int j = 0; j < data.numAttributes(); j++) {
+            assertEquals(data.attribute(j).name(), decoded.attribute(j).name());
+            assertTrue(decoded.attribute(j).isNumeric());
+            for (int i = 0; i < data.numInstances(); i++) {
+                double expected = expected(data, i, j);
+                double actual = decoded.instance(i).value(j);
+                if (Utils.isMissingValue(expected)) {
+                    assertTrue("row " + i + " column " + j + " should be missing",
+                            Utils.isMissingValue(actual));
+                } else {
+                    assertEquals("row " + i + " column " + j, expected, actual, 0);
+                }
+            }
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        checkRoundTrip(false, 100);
+    }
+
+    public void testRoundTripNarrowed() throws IOException {
+        checkRoundTrip(true, 100);
+    }
+
+    public void testRoundTripSeveralBatches() throws IOException {
+        checkRoundTrip(false, 3);
+        checkRoundTrip(true, 1);
+    }
+
+    public void testNarrowingShrinksBatches() throws IOException {
+        Instances data = mixedData();
+        // only the fraction column has to stay float32
+        assertTrue(write(data, true, 100).remaining() < write(data, false, 100).remaining());
+    }
+
+    public void testEmptyStreamHasSchema() throws IOException {
+        Instances data = new Instances(mixedData(), 0);
+        Instances decoded = new ArrowIPCReader(write(data, false, 100)).read("decoded");
+        assertEquals(data.numAttributes(), decoded.numAttributes());
+        assertEquals(0, decoded.numInstances());
+    }
+
+    /**
+     * A stream like those the server sends back: a utf8 column, a dictionary
+     * encoded column (which becomes nominal), an int64 column and a float64
+     * column, with nulls in each, plus the relation name in the schema
+     * metadata.
+     */
+    public void testReaderTypesAndNulls() throws IOException {
+        String[] strings = {"alpha", null, "\u0127ello", ""};
+        String[] dictionary = {"low", "mid", "high"};
+        int[] codes = {2, 0, -1, 1};
+        long[] longs = {5, -7, 0, Long.MAX_VALUE >> 12};
+        boolean[] longNull = {false, false, true, false};
+        double[] doubles = {0.1, Double.NaN, -2.5, 1e300};
+        boolean[] doubleNull = {false, true, false, false};
+        int n = strings.length;
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        // schema
+        FlatBufferBuilder fbb = new FlatBufferBuilder(1024);
+        int[] fields = new int[4];
+        fields[0] = field(fbb, "s", ArrowIPCReader.TYPE_UTF8, emptyTable(fbb), -1);
+        fields[1] = field(fbb, "d", ArrowIPCReader.TYPE_UTF8, emptyTable(fbb), 0);
+        fields[2] = field(fbb, "n", ArrowIPCReader.TYPE_INT, intType(fbb, 64), -1);
+        fbb.startTable(1);
+        fbb.addFieldShort(0, (short) 2);
+        int doubleType = fbb.endTable();
+        fields[3] = field(fbb, "f", ArrowIPCReader.TYPE_FLOATING_POINT, doubleType, -1);
+        int fieldVector = fbb.createOffsetVector(fields);
+        int metadata = fbb.createOffsetVector(new int[]{keyValue(fbb,
+                ArrowIPCReader.RELATION_NAME_KEY, "from_python")});
+        fbb.startTable(4);
+        fbb.addFieldShort(0, (short) 0);
+        fbb.addFieldOffset(1, fieldVector);
+        fbb.addFieldOffset(2, metadata);
+        int schema = fbb.endTable();
+        message(stream, ArrowIPCWriter.finishMessage(fbb, ArrowIPCReader.HEADER_SCHEMA, schema, 0),
+                null);
+
+        // dictionary batch
+        Body dictBody = new Body();
+        dictBody.add(new byte[0]);
+        utf8Buffers(dictBody, dictionary);
+        fbb = new FlatBufferBuilder(256);
+        int dictBatch = recordBatch(fbb, dictionary.length, new long[]{dictionary.length},
+                new long[]{0}, dictBody);
+        fbb.startTable(3);
+        fbb.addFieldLong(0, 0);
+        fbb.addFieldOffset(1, dictBatch);
+        int dictHeader = fbb.endTable();
+        message(stream, ArrowIPCWriter.finishMessage(fbb, ArrowIPCReader.HEADER_DICTIONARY_BATCH,
+                dictHeader, dictBody.length()), dictBody);
+
+        // record batch
+        Body body = new Body();
+        boolean[] stringNull = new boolean[n];
+        boolean[] codeNull = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            stringNull[i] = strings[i] == null;
+            codeNull[i] = codes[i] < 0;
+        }
+        body.add(validity(stringNull));
+        utf8Buffers(body, strings);
+        body.add(validity(codeNull));
+        ByteBuffer indices = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN);
+        for (int code : codes) {
+            indices.putInt(Math.max(code, 0));
+        }
+        body.add(indices.array());
+        body.add(validity(longNull));
+        ByteBuffer longData = ByteBuffer.allocate(8 * n).order(ByteOrder.LITTLE_ENDIAN);
+        for (long l : longs) {
+            longData.putLong(l);
+        }
+        body.add(longData.array());
+        body.add(validity(doubleNull));
+        ByteBuffer doubleData = ByteBuffer.allocate(8 * n).order(ByteOrder.LITTLE_ENDIAN);
+        for (double d : doubles) {
+            doubleData.putDouble(d);
+        }
+        body.add(doubleData.array());
+        fbb = new FlatBufferBuilder(512);
+        int batch = recordBatch(fbb, n, new long[]{n, n, n, n},
+                new long[]{1, 1, 1, 1}, body);
+        message(stream, ArrowIPCWriter.finishMessage(fbb, ArrowIPCReader.HEADER_RECORD_BATCH,
+                batch, body.length()), body);
+
+        // end of stream
+        ByteBuffer eos = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        eos.putInt(-1).putInt(0);
+        stream.write(eos.array());
+
+        Instances decoded = new ArrowIPCReader(ByteBuffer.wrap(stream.toByteArray()))
+                .read("default");
+        assertEquals("from_python", decoded.relationName());
+        assertEquals(n, decoded.numInstances());
+        assertTrue(decoded.attribute("s").isString());
+        assertTrue(decoded.attribute("d").isNominal());
+        assertEquals(Arrays.asList(dictionary), Arrays.asList(
+                decoded.attribute("d").value(0), decoded.attribute("d").value(1),
+                decoded.attribute("d").value(2)));
+        assertTrue(decoded.attribute("n").isNumeric());
+        assertTrue(decoded.attribute("f").isNumeric());
+        for (int i = 0; i < n; i++) {
+            if (strings[i] == null) {
+                assertTrue(decoded.instance(i).isMissing(0));
+            } else {
+                assertEquals(strings[i], decoded.instance(i).stringValue(0));
+            }
+            if (codes[i] < 0) {
+                assertTrue(decoded.instance(i).isMissing(1));
+            } else {
+                assertEquals(dictionary[codes[i]], decoded.instance(i).stringValue(1));
+            }
+            if (longNull[i]) {
+                assertTrue(decoded.instance(i).isMissing(2));
+            } else {
+                assertEquals((double) longs[i], decoded.instance(i).value(2), 0);
+            }
+            if (doubleNull[i]) {
+                assertTrue(decoded.instance(i).isMissing(3));
+            } else {
+                assertEquals(doubles[i], decoded.instance(i).value(3), 0);
+            }
+        }
+    }
+
+    /**
+     * The buffers of a message body, each padded to 8 bytes
+     */
+    protected static class Body {
+        protected final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        protected final ArrayList<long[]> m_buffers = new ArrayList<long[]>();
+
+        protected void add(byte[] buffer) {
+            m_buffers.add(new long[]{m_bytes.size(), buffer.length});
+            m_bytes.write(buffer, 0, buffer.length);
+            while (m_bytes.size() % 8 != 0) {
+                m_bytes.write(0);
+            }
+        }
+
+        protected long length() {
+            return m_bytes.size();
+        }
+    }
+
+    protected static int emptyTable(FlatBufferBuilder fbb) {
+        fbb.startTable(0);
+        return fbb.endTable();
+    }
+
+    protected static int intType(FlatBufferBuilder fbb, int bitWidth) {
+        fbb.startTable(2);
+        fbb.addFieldInt(0, bitWidth);
+        fbb.addFieldBoolean(1, true);
+        return fbb.endTable();
+    }
+
+    protected static int keyValue(FlatBufferBuilder fbb, String key, String value) {
+        int k = fbb.createString(key);
+        int v = fbb.createString(value);
+        fbb.startTable(2);
+        fbb.addFieldOffset(0, k);
+        fbb.addFieldOffset(1, v);
+        return fbb.endTable();
+    }
+
+    protected static int field(FlatBufferBuilder fbb, String name, byte typeType, int type,
+                               long dictionaryId) {
+        int nameOffset = fbb.createString(name);
+        int dictionary = 0;
+        if (dictionaryId >= 0) {
+            int indexType = intType(fbb, 32);
+            fbb.startTable(3);
+            fbb.addFieldLong(0, dictionaryId);
+            fbb.addFieldOffset(1, indexType);
+            dictionary = fbb.endTable();
+        }
+        int children = fbb.createOffsetVector(new int[0]);
+        fbb.startTable(7);
+        fbb.addFieldOffset(0, nameOffset);
+        fbb.addFieldBoolean(1, true);
+        fbb.addFieldByte(2, typeType);
+        fbb.addFieldOffset(3, type);
+        if (dictionaryId >= 0) {
+            fbb.addFieldOffset(4, dictionary);
+        }
+        fbb.addFieldOffset(5, children);
+        return fbb.endTable();
+    }
+
+    protected static int recordBatch(FlatBufferBuilder fbb, long length, long[] nodeLengths,
+                                     long[] nullCounts, Body body) {
+        long[] offsets = new long[body.m_buffers.size()];
+        long[] lengths = new long[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = body.m_buffers.get(i)[0];
+            lengths[i] = body.m_buffers.get(i)[1];
+        }
+        int nodes = fbb.createLongPairVector(nodeLengths, nullCounts);
+        int buffers = fbb.createLongPairVector(offsets, lengths);
+        fbb.startTable(5);
+        fbb.addFieldLong(0, length);
+        fbb.addFieldOffset(1, nodes);
+        fbb.addFieldOffset(2, buffers);
+        return fbb.endTable();
+    }
+
+    protected static void utf8Buffers(Body body, String[] values) {
+        ByteBuffer offsets = ByteBuffer.allocate(4 * (values.length + 1))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        offsets.putInt(0);
+        for (String value : values) {
+            if (value != null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                data.write(bytes, 0, bytes.length);
+            }
+            offsets.putInt(data.size());
+        }
+        body.add(offsets.array());
+        body.add(data.toByteArray());
+    }
+
+    protected static byte[] validity(boolean[] isNull) {
+        byte[] bitmap = new byte[(isNull.length + 7) / 8];
+        for (int i = 0; i < isNull.length; i++) {
+            if (!isNull[i]) {
+                bitmap[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        return bitmap;
+    }
+
+    protected static void message(ByteArrayOutputStream stream, byte[] metadata, Body body) {
+        int padded = (int) ArrowIPCWriter.padded(metadata.length);
+        ByteBuffer prefix = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        prefix.putInt(-1).putInt(padded);
+        stream.write(prefix.array(), 0, 8);
+        stream.write(metadata, 0, metadata.length);
+        for (int i = metadata.length; i < padded; i++) {
+            stream.write(0);
+        }
+        if (body != null) {
+            byte[] bytes = body.m_bytes.toByteArray();
+            stream.write(bytes, 0, bytes.length);
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(ArrowIPCTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
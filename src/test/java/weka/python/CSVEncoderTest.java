@@ -0,0 +1,152 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CSVEncoderTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Tests that CSVEncoder formats values as Double.toString(),
+ * Long.toString() and String.getBytes() would (or, for doubles, as text that
+ * parses back to exactly the same value).
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class CSVEncoderTest extends TestCase {
+
+    public CSVEncoderTest(String name) {
+        super(name);
+    }
+
+    protected static String text(CSVEncoder encoder) {
+        return new String(encoder.toByteBuffer().array(), 0, encoder.length(),
+                StandardCharsets.UTF_8);
+    }
+
+    protected static String formatDouble(double value) {
+        CSVEncoder encoder = new CSVEncoder();
+        encoder.writeDouble(value);
+        return text(encoder);
+    }
+
+    protected static void checkParsesBack(double value) {
+        String text = formatDouble(value);
+        assertEquals(text + " (written for " + Double.toString(value) + ")",
+                Double.doubleToLongBits(value),
+                Double.doubleToLongBits(Double.parseDouble(text)));
+    }
+
+    public void testSameAsDoubleToString() {
+        double[] values = {0, -0.0, 1, -1, 42, 1234567, -123456.5, 0.5, 0.1, -0.25, 3.14159,
+                123.456, 0.001, 99.99, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY};
+        for (double value : values) {
+            assertEquals(Double.toString(value), formatDouble(value));
+        }
+    }
+
+    public void testLargeAndSmallValues() {
+        // Double.toString() switches to an exponent outside [1e-3, 1e7), whereas
+        // integral values and short fractions are still written as digits
+        assertEquals("1000000000000000.0", formatDouble(1e15));
+        assertEquals("-12345678.0", formatDouble(-12345678));
+        assertEquals("0.00015", formatDouble(1.5e-4));
+        double[] values = {1e15, 1e20, 1.5e-9, Double.MAX_VALUE, Double.MIN_VALUE,
+                -Double.MIN_NORMAL};
+        for (double value : values) {
+            checkParsesBack(value);
+        }
+    }
+
+    public void testRandomValuesParseBack() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            checkParsesBack(Double.longBitsToDouble(random.nextLong()));
+            checkParsesBack((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 15));
+            // short decimals, as in typical data
+            checkParsesBack(random.nextInt(2000000) / Math.pow(10, random.nextInt(8)));
+            // float32 values widened to double
+            checkParsesBack(random.nextFloat() * 100);
+        }
+    }
+
+    public void testBoundaryValuesParseBack() {
+        double limit = CSVEncoder.EXACT_LONG_LIMIT;
+        double[] values = {limit, limit - 1, -limit, Math.nextDown(limit), Math.nextUp(limit),
+                Long.MAX_VALUE, Long.MIN_VALUE, 1e-15, 1e-16, 0.1 + 0.2, 1 / 3.0, 2 / 3.0,
+                Math.nextUp(1.0), Math.nextDown(1.0), Math.PI * 1e10};
+        for (double value : values) {
+            checkParsesBack(value);
+        }
+    }
+
+    public void testLongsAndStrings() {
+        CSVEncoder encoder = new CSVEncoder(1);
+        long[] values = {0, 7, -7, Long.MAX_VALUE, Long.MIN_VALUE};
+        StringBuilder expected = new StringBuilder();
+        for (long value : values) {
+            encoder.writeLong(value);
+            encoder.writeChar(',');
+            expected.append(value).append(',');
+        }
+        String text = "plain, \u00fcmlaut, \u20ac, \ud83d\ude00, lone \ud800 surrogate";
+        encoder.writeString(text);
+        expected.append(text);
+        assertEquals(expected.toString().replace('\ud800', '?'), text(encoder));
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        encoder.reset();
+        encoder.writeString(text);
+        assertEquals(bytes.length, encoder.length());
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals("byte " + i, bytes[i], encoder.toByteBuffer().get(i));
+        }
+    }
+
+    public void testResetKeepsCapacity() {
+        CSVEncoder encoder = new CSVEncoder(4);
+        for (int i = 0; i < 1000; i++) {
+            encoder.writeDouble(i + 0.5);
+            encoder.writeChar('\n');
+        }
+        int capacity = encoder.capacity();
+        assertTrue(capacity >= encoder.length());
+        encoder.reset();
+        assertEquals(0, encoder.length());
+        assertEquals(capacity, encoder.capacity());
+        encoder.writeDouble(2.5);
+        assertEquals("2.5", text(encoder));
+    }
+
+    public static Test suite() {
+        return new TestSuite(CSVEncoderTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CommandEncodingBenchmark.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the cost of encoding a small command and decoding its
+ * ack, as done many times per batch when predicting: the JSON maps used
+ * before, the typed ServerCommand / ServerAck classes in JSON, and the typed
+ * classes in CBOR (the encoding negotiated with servers that support it). The
+ * command is a variable_is_set request, and the ack that of an
+ * execute_script. Not run as part of the test suite. Usage:
+ *
+ * <pre>
+ * java weka.python.CommandEncodingBenchmark
+ * </pre>
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandEncodingBenchmark {
+
+    protected Map<String, Object> m_mapCommand;
+
+    protected ServerCommand m_typedCommand;
+
+    protected byte[] m_jsonAck;
+
+    protected byte[] m_cborAck;
+
+    @Setup
+    public void setup() throws Exception {
+        m_mapCommand = new HashMap<String, Object>();
+        m_mapCommand.put("command", "variable_is_set");
+        m_mapCommand.put("variable_name", "cuml_classifier_predictions");
+        m_mapCommand.put("debug", false);
+
+        m_typedCommand = new ServerCommand("variable_is_set", false);
+        m_typedCommand.setVariableName("cuml_classifier_predictions");
+
+        Map<String, Object> ack = new HashMap<String, Object>();
+        ack.put("response", "ok");
+        ack.put("script_out", "");
+        ack.put("script_error", "");
+        m_jsonAck = RapidsUtils.MAPPER.writeValueAsBytes(ack);
+        m_cborAck = RapidsUtils.CBOR_MAPPER.writeValueAsBytes(ack);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonMap() throws Exception {
+        return RapidsUtils.MAPPER.writeValueAsBytes(m_mapCommand);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonTyped() throws Exception {
+        return RapidsUtils.MAPPER.writeValueAsBytes(m_typedCommand);
+    }
+
+    @Benchmark
+    public byte[] encodeCborTyped() throws Exception {
+        return RapidsUtils.CBOR_MAPPER.writeValueAsBytes(m_typedCommand);
+    }
+
+    @Benchmark
+    public Object decodeJsonMap() throws Exception {
+        Map<String, Object> ack = RapidsUtils.MAPPER.readValue(m_jsonAck, RapidsUtils.JSON_MAP_TYPE);
+        return ack.get("response").toString();
+    }
+
+    @Benchmark
+    public Object decodeJsonTyped() throws Exception {
+        return RapidsUtils.MAPPER.readValue(m_jsonAck, ServerAck.class).getResponse();
+    }
+
+    @Benchmark
+    public Object decodeCborTyped() throws Exception {
+        return RapidsUtils.CBOR_MAPPER.readValue(m_cborAck, ServerAck.class).getResponse();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(CommandEncodingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
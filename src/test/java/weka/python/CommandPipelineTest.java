@@ -0,0 +1,313 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CommandPipelineTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.WekaException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests CommandPipeline against a fake server, which runs in a thread at the
+ * other end of a TCP transport and replies to the requests as scripted by
+ * each test.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class CommandPipelineTest extends TestCase {
+
+    protected ServerTransport m_transport;
+
+    protected ServerTransport.Connection m_server;
+
+    protected CommandPipeline m_pipeline;
+
+    protected Thread m_serverThread;
+
+    /**
+     * The first error raised by the fake server (if any)
+     */
+    protected volatile Throwable m_serverError;
+
+    public CommandPipelineTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        m_transport = ServerTransport.open(false, false);
+        Thread acceptThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    m_transport.accept(12000);
+                } catch (IOException ex) {
+                    m_serverError = ex;
+                }
+            }
+        };
+        acceptThread.start();
+        m_server = ServerTransport.connect(m_transport.getAddress());
+        acceptThread.join();
+        m_pipeline = new CommandPipeline(m_transport.getOutputStream(),
+                m_transport.getInputStream());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_pipeline.close();
+        if (m_serverThread != null) {
+            m_serverThread.join(10000);
+        }
+        m_server.close();
+        m_transport.close();
+        if (m_serverError != null) {
+            throw new Exception("Fake server failed", m_serverError);
+        }
+    }
+
+    /**
+     * Script of the fake server
+     */
+    protected abstract class FakeServer extends Thread {
+
+        protected abstract void serve(InputStream in, OutputStream out) throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                serve(m_server.getInputStream(), m_server.getOutputStream());
+            } catch (Throwable ex) {
+                m_serverError = ex;
+            }
+        }
+    }
+
+    protected void startServer(FakeServer server) {
+        m_serverThread = server;
+        m_serverThread.start();
+    }
+
+    /**
+     * Read a command and return its request id.
+     */
+    protected static long readRequestId(InputStream in) throws IOException {
+        Map<String, Object> command = RapidsUtils.readJSONFromInputStream(in);
+        return ((Number) command.get("request_id")).longValue();
+    }
+
+    /**
+     * Write an ack, which passes the value back in its script_out field.
+     */
+    protected static void writeAck(long requestId, String response, String value,
+                                   OutputStream out) throws IOException {
+        Map<String, Object> ack = new HashMap<String, Object>();
+        ack.put("response", response);
+        ack.put("request_id", requestId);
+        ack.put("script_out", value);
+        ack.put("error_message", value);
+        RapidsUtils.writeDelimitedToOutputStream(RapidsUtils.MAPPER.writeValueAsBytes(ack), out);
+        out.flush();
+    }
+
+    /**
+     * A request whose result is the value passed back in the ack, followed
+     * by the given number of bytes of data.
+     */
+    protected CommandPipeline.Request<String> request(final int trailingBytes) {
+        return new CommandPipeline.Request<String>() {
+            @Override
+            protected void write(long requestId) throws Exception {
+                Map<String, Object> command = new HashMap<String, Object>();
+                command.put("command", "echo");
+                command.put("request_id", requestId);
+                RapidsUtils.writeDelimitedToOutputStream(RapidsUtils.MAPPER
+                        .writeValueAsBytes(command), m_transport.getOutputStream());
+            }
+
+            @Override
+            protected String reply(ServerAck ack, InputStream inputStream) throws Exception {
+                if (!ack.isOk()) {
+                    throw new WekaException(ack.getErrorMessage());
+                }
+                if (trailingBytes > 0) {
+                    byte[] data = RapidsUtils.readDelimitedFromInputStream(inputStream);
+                    assertEquals(trailingBytes, data.length);
+                }
+                return ack.getScriptOut();
+            }
+        };
+    }
+
+    protected static <T> T result(CompletableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    public void testRequestsAreWrittenBeforeTheirReplies() throws Exception {
+        final int n = 20;
+        startServer(new FakeServer() {
+            @Override
+            protected void serve(InputStream in, OutputStream out) throws Exception {
+                // all the requests arrive without the client waiting for a reply
+                long[] ids = new long[n];
+                for (int i = 0; i < n; i++) {
+                    ids[i] = readRequestId(in);
+                }
+                for (int i = 0; i < n; i++) {
+                    writeAck(ids[i], "ok", "result " + i, out);
+                }
+            }
+        });
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < n; i++) {
+            futures.add(m_pipeline.submit(request(0)));
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals("result " + i, result(futures.get(i)));
+        }
+        m_pipeline.awaitIdle();
+        assertEquals(0, m_pipeline.numPending());
+    }
+
+    public void testRepliesAreMatchedByRequestId() throws Exception {
+        final int n = 5;
+        startServer(new FakeServer() {
+            @Override
+            protected void serve(InputStream in, OutputStream out) throws Exception {
+                long[] ids = new long[n];
+                for (int i = 0; i < n; i++) {
+                    ids[i] = readRequestId(in);
+                }
+                for (int i = n - 1; i >= 0; i--) {
+                    writeAck(ids[i], "ok", "" + ids[i], out);
+                }
+            }
+        });
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < n; i++) {
+            futures.add(m_pipeline.submit(request(0)));
+        }
+        m_pipeline.awaitIdle();
+        for (int i = 1; i < n; i++) {
+            assertTrue(Long.parseLong(result(futures.get(i)))
+                    > Long.parseLong(result(futures.get(i - 1))));
+        }
+    }
+
+    public void testDataFollowingTheAckIsConsumed() throws Exception {
+        startServer(new FakeServer() {
+            @Override
+            protected void serve(InputStream in, OutputStream out) throws Exception {
+                for (int i = 0; i < 3; i++) {
+                    writeAck(readRequestId(in), "ok", "with data", out);
+                    RapidsUtils.writeDelimitedToOutputStream(new byte[1000 * (i + 1)], out);
+                    out.flush();
+                }
+            }
+        });
+        CompletableFuture<String> first = m_pipeline.submit(request(1000));
+        CompletableFuture<String> second = m_pipeline.submit(request(2000));
+        CompletableFuture<String> third = m_pipeline.submit(request(3000));
+        assertEquals("with data", result(first));
+        assertEquals("with data", result(second));
+        assertEquals("with data", result(third));
+    }
+
+    public void testFailedRequestDoesNotFailTheOthers() throws Exception {
+        startServer(new FakeServer() {
+            @Override
+            protected void serve(InputStream in, OutputStream out) throws Exception {
+                writeAck(readRequestId(in), "error", "no such variable", out);
+                writeAck(readRequestId(in), "ok", "fine", out);
+            }
+        });
+        CompletableFuture<String> failed = m_pipeline.submit(request(0));
+        CompletableFuture<String> next = m_pipeline.submit(request(0));
+        try {
+            result(failed);
+            fail("expected the request to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof WekaException);
+            assertEquals("no such variable", ex.getCause().getMessage());
+        }
+        assertEquals("fine", result(next));
+        m_pipeline.awaitIdle();
+    }
+
+    public void testLostConnectionFailsPendingRequests() throws Exception {
+        startServer(new FakeServer() {
+            @Override
+            protected void serve(InputStream in, OutputStream out) throws Exception {
+                writeAck(readRequestId(in), "ok", "answered", out);
+                readRequestId(in);
+                m_server.close();
+            }
+        });
+        CompletableFuture<String> answered = m_pipeline.submit(request(0));
+        CompletableFuture<String> lost = m_pipeline.submit(request(0));
+        assertEquals("answered", result(answered));
+        try {
+            result(lost);
+            fail("expected the request to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        try {
+            m_pipeline.awaitIdle();
+            fail("expected an IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertTrue(m_pipeline.submit(request(0)).isCompletedExceptionally());
+    }
+
+    public void testOnlyConnectionStreamsArePipelined() {
+        try {
+            new CommandPipeline(new ByteArrayOutputStream(), new ByteArrayInputStream(new byte[0]));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(CommandPipelineTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    RapidsSessionPoolTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.WekaException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how RapidsSessionPool hands out and releases its sessions, using
+ * sessions that are not connected to servers.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class RapidsSessionPoolTest extends TestCase {
+
+    public RapidsSessionPoolTest(String name) {
+        super(name);
+    }
+
+    protected static RapidsSessionPool pool(int size) {
+        RapidsSessionPool pool = new RapidsSessionPool(new RapidsSession());
+        for (int i = 1; i < size; i++) {
+            pool.add(new RapidsSession());
+        }
+        return pool;
+    }
+
+    /**
+     * A thread that acquires a session (for itself as the requester), and
+     * holds it until told to release it.
+     */
+    protected static class Requester extends Thread {
+
+        protected final RapidsSessionPool m_pool;
+
+        protected final String m_placement;
+
+        protected final CountDownLatch m_acquired = new CountDownLatch(1);
+
+        protected final CountDownLatch m_release = new CountDownLatch(1);
+
+        protected volatile RapidsSession m_session;
+
+        protected volatile Exception m_error;
+
+        protected Requester(RapidsSessionPool pool, String placement) {
+            m_pool = pool;
+            m_placement = placement;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                m_session = m_pool.acquire(this, m_placement);
+                m_acquired.countDown();
+                m_release.await();
+                m_pool.release(this);
+            } catch (Exception ex) {
+                m_error = ex;
+                m_acquired.countDown();
+            }
+        }
+
+        protected boolean awaitAcquired(long millis) throws InterruptedException {
+            return m_acquired.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        protected void release() throws InterruptedException {
+            m_release.countDown();
+            join(10000);
+            assertFalse(isAlive());
+        }
+    }
+
+    protected static Requester start(RapidsSessionPool pool, String placement) {
+        Requester requester = new Requester(pool, placement);
+        requester.start();
+        return requester;
+    }
+
+    public void testSharedSessionIsUnlockedByTheLastHolder() throws Exception {
+        for (boolean firstReleasedFirst : new boolean[]{true, false}) {
+            RapidsSessionPool pool = pool(1);
+            Object first = new Object();
+            Object second = new Object();
+            RapidsSession session = pool.acquire(first, null);
+            // the only session is shared between the thread's requesters
+            assertSame(session, pool.acquire(second, null));
+            assertSame(session, pool.acquire(second, null));
+
+            pool.release(firstReleasedFirst ? first : second);
+            assertTrue(session.isHeld());
+            Requester other = start(pool, null);
+            assertFalse(other.awaitAcquired(200));
+
+            pool.release(firstReleasedFirst ? second : first);
+            assertTrue(other.awaitAcquired(10000));
+            assertNull(other.m_error);
+            assertSame(session, other.m_session);
+            other.release();
+            assertFalse(session.isHeld());
+        }
+    }
+
+    public void testReleaseOfAnotherRequesterIsIgnored() throws Exception {
+        RapidsSessionPool pool = pool(1);
+        Object requester = new Object();
+        RapidsSession session = pool.acquire(requester, null);
+        pool.release(new Object());
+        assertTrue(session.isHeld());
+        pool.release(requester);
+        pool.release(requester);
+        assertFalse(session.isHeld());
+    }
+
+    public void testRequestersAreGivenFreeSessions() throws Exception {
+        RapidsSessionPool pool = pool(2);
+        Requester first = start(pool, null);
+        Requester second = start(pool, null);
+        assertTrue(first.awaitAcquired(10000));
+        assertTrue(second.awaitAcquired(10000));
+        assertNotSame(first.m_session, second.m_session);
+
+        // a third requester waits for one of them
+        Requester third = start(pool, null);
+        assertFalse(third.awaitAcquired(200));
+        second.release();
+        assertTrue(third.awaitAcquired(10000));
+        assertSame(second.m_session, third.m_session);
+        first.release();
+        third.release();
+    }
+
+    public void testPlacedVariableWaitsForItsSession() throws Exception {
+        RapidsSessionPool pool = pool(2);
+        Requester holder = start(pool, null);
+        assertTrue(holder.awaitAcquired(10000));
+        pool.place("model", holder.m_session);
+
+        Requester predictor = start(pool, "model");
+        assertFalse(predictor.awaitAcquired(200));
+        holder.release();
+        assertTrue(predictor.awaitAcquired(10000));
+        assertSame(holder.m_session, predictor.m_session);
+        predictor.release();
+
+        pool.unplace("model");
+        Object requester = new Object();
+        assertNotNull(pool.acquire(requester, "model"));
+        pool.release(requester);
+    }
+
+    public void testHeldSessionMustHoldThePlacedVariable() throws Exception {
+        RapidsSessionPool pool = pool(2);
+        Object requester = new Object();
+        RapidsSession held = pool.acquire(requester, null);
+        Requester other = start(pool, null);
+        assertTrue(other.awaitAcquired(10000));
+        assertNotSame(held, other.m_session);
+        pool.place("mine", held);
+        pool.place("theirs", other.m_session);
+
+        assertSame(held, pool.acquire(requester, "mine"));
+        assertSame(held, pool.acquire(requester, "unplaced"));
+        try {
+            pool.acquire(requester, "theirs");
+            fail("expected a WekaException");
+        } catch (WekaException ex) {
+            assertTrue(ex.getMessage().contains("theirs"));
+        }
+        // the held session is kept
+        assertTrue(held.isHeld());
+        pool.release(requester);
+        assertFalse(held.isHeld());
+        other.release();
+    }
+
+    public void testLeastPlacedSessionFirst() throws Exception {
+        RapidsSessionPool pool = pool(2);
+        Object requester = new Object();
+        RapidsSession first = pool.acquire(requester, null);
+        pool.release(requester);
+        RapidsSession second = pool.acquire(requester, null);
+        pool.release(requester);
+        assertNotSame(first, second);
+
+        // the first session has been idle the longest, but holds a model
+        pool.place("model", first);
+        assertSame(second, pool.acquire(requester, null));
+        pool.release(requester);
+    }
+
+    public void testRoundRobin() throws Exception {
+        RapidsSessionPool pool = pool(3);
+        pool.setRoundRobin(true);
+        Object requester = new Object();
+        RapidsSession[] order = new RapidsSession[6];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = pool.acquire(requester, null);
+            pool.release(requester);
+        }
+        assertNotSame(order[0], order[1]);
+        assertNotSame(order[1], order[2]);
+        assertNotSame(order[0], order[2]);
+        for (int i = 3; i < order.length; i++) {
+            assertSame(order[i - 3], order[i]);
+        }
+    }
+
+    public void testIsConfigured() {
+        RapidsSessionPool pool = pool(2);
+        assertFalse(pool.isConfigured(2, false, 0));
+        pool.setFrameCacheBudget(-5);
+        assertTrue(pool.isConfigured(1, false, 0));
+        assertTrue(pool.isConfigured(2, false, -1));
+        assertFalse(pool.isConfigured(3, false, 0));
+        assertFalse(pool.isConfigured(2, true, 0));
+        assertFalse(pool.isConfigured(2, false, 1024));
+    }
+
+    public void testEmptyPoolFails() {
+        RapidsSession session = new RapidsSession();
+        RapidsSessionPool pool = new RapidsSessionPool(session);
+        pool.remove(session);
+        try {
+            pool.acquire(new Object(), null);
+            fail("expected a WekaException");
+        } catch (Exception ex) {
+            assertEquals("Python session has been shut down!", ex.getMessage());
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(RapidsSessionPoolTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
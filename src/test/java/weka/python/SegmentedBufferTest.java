@@ -0,0 +1,186 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SegmentedBufferTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+/**
+ * Tests SegmentedBuffer and the length delimited framing of messages that
+ * span several buffers or frames. Segments and frames are kept small, so
+ * that messages larger than 2GB are simulated without allocating them.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class SegmentedBufferTest extends TestCase {
+
+    public SegmentedBufferTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Create a segmented buffer of heap segments holding the given number of
+     * elements each.
+     */
+    protected static SegmentedBuffer segmented(long numElements, int elementSize,
+                                               int perSegment) {
+        int numSegments = (int) ((numElements + perSegment - 1) / perSegment);
+        ByteBuffer[] segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long count = Math.min(perSegment, numElements - (long) i * perSegment);
+            segments[i] = ByteBuffer.allocate((int) count * elementSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new SegmentedBuffer(segments, numElements, elementSize, perSegment);
+    }
+
+    public void testSegmentsHoldWholeElements() {
+        assertEquals(0, SegmentedBuffer.MAX_SEGMENT_SIZE % Float.BYTES);
+        assertEquals(0, SegmentedBuffer.MAX_SEGMENT_SIZE % Long.BYTES);
+        assertEquals(SegmentedBuffer.MAX_SEGMENT_SIZE / Float.BYTES,
+                SegmentedBuffer.elementsPerSegment(Float.BYTES));
+        // e.g. 12 byte elements don't divide a segment exactly
+        assertTrue(SegmentedBuffer.elementsPerSegment(12) * 12L
+                <= SegmentedBuffer.MAX_SEGMENT_SIZE);
+    }
+
+    public void testElementsSpanSegments() {
+        SegmentedBuffer buffer = segmented(10, Float.BYTES, 4);
+        assertEquals(10, buffer.numElements());
+        assertEquals(40, buffer.size());
+        for (long i = 0; i < 10; i++) {
+            buffer.putFloat(i, i + 0.5f);
+        }
+        ByteBuffer[] segments = buffer.filledSegments();
+        assertEquals(3, segments.length);
+        assertEquals(8, segments[2].limit());
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer segment = segments[i / 4];
+            assertEquals(segment.limit(), segment.position());
+            assertEquals(i + 0.5f, segment.getFloat((i % 4) * Float.BYTES), 0);
+        }
+    }
+
+    public void testIntAndLongElements() {
+        SegmentedBuffer ints = segmented(5, Integer.BYTES, 2);
+        SegmentedBuffer longs = segmented(5, Long.BYTES, 2);
+        for (int i = 0; i < 5; i++) {
+            ints.putInt(i, -i);
+            longs.putLong(i, Long.MAX_VALUE - i);
+        }
+        ByteBuffer[] intSegments = ints.filledSegments();
+        ByteBuffer[] longSegments = longs.filledSegments();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(-i, intSegments[i / 2].getInt((i % 2) * Integer.BYTES));
+            assertEquals(Long.MAX_VALUE - i, longSegments[i / 2].getLong((i % 2) * Long.BYTES));
+        }
+    }
+
+    public void testSegmentsAreWrittenAsOneMessage() throws IOException {
+        SegmentedBuffer buffer = segmented(7, Integer.BYTES, 3);
+        byte[] expected = new byte[7 * Integer.BYTES];
+        ByteBuffer expectedView = ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 7; i++) {
+            buffer.putInt(i, i * 1000);
+            expectedView.putInt(i * 1000);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RapidsUtils.writeDelimitedToChannel(buffer.filledSegments(), Channels.newChannel(out));
+
+        byte[] written = out.toByteArray();
+        assertEquals(4 + expected.length, written.length);
+        assertEquals(expected.length, ByteBuffer.wrap(written).getInt());
+        assertTrue(Arrays.equals(expected, RapidsUtils.readDelimitedFromInputStream(
+                new ByteArrayInputStream(written))));
+    }
+
+    /**
+     * Frame a message as a number of continuation frames of at most the
+     * given size (as done for messages larger than a frame).
+     */
+    protected static byte[] extendedMessage(byte[] message, int frameSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(RapidsUtils.EXTENDED_LENGTH_MARKER).putLong(message.length);
+        out.write(header.array(), 0, 12);
+        for (int offset = 0; offset < message.length; offset += frameSize) {
+            int length = Math.min(frameSize, message.length - offset);
+            out.write(ByteBuffer.allocate(4).putInt(length).array(), 0, 4);
+            out.write(message, offset, length);
+        }
+        return out.toByteArray();
+    }
+
+    protected static byte[] message(int size) {
+        byte[] message = new byte[size];
+        for (int i = 0; i < size; i++) {
+            message[i] = (byte) (i * 31);
+        }
+        return message;
+    }
+
+    public void testExtendedMessageIsReassembled() throws IOException {
+        byte[] message = message(1000);
+        byte[] framed = extendedMessage(message, 64);
+        assertTrue(Arrays.equals(message, RapidsUtils.readDelimitedFromInputStream(
+                new ByteArrayInputStream(framed))));
+    }
+
+    public void testExtendedMessageIsStreamedToSink() throws IOException {
+        byte[] message = message(1000);
+        ByteArrayInputStream in = new ByteArrayInputStream(extendedMessage(message, 100));
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        assertEquals(1000, RapidsUtils.readDelimitedToSink(in, sink, new byte[7]));
+        assertTrue(Arrays.equals(message, sink.toByteArray()));
+        assertEquals(0, in.available());
+    }
+
+    public void testOverlongContinuationFrameIsRejected() {
+        byte[] framed = extendedMessage(message(100), 60);
+        // claim a total that is shorter than the frames
+        ByteBuffer.wrap(framed).putLong(4, 50);
+        try {
+            RapidsUtils.readDelimitedFromInputStream(new ByteArrayInputStream(framed));
+            fail("expected an IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("frame length"));
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(SegmentedBufferTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    StagingBuffersTest.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tests the reuse of staging areas by StagingBuffers.
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class StagingBuffersTest extends TestCase {
+
+    public StagingBuffersTest(String name) {
+        super(name);
+    }
+
+    public void testBufferIsReusedUntilItGrows() {
+        StagingBuffers staging = new StagingBuffers();
+        ByteBuffer first = staging.getBuffer("rows", 1024);
+        assertTrue(first.isDirect());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, first.order());
+        assertEquals(0, first.position());
+        assertEquals(1024, first.limit());
+
+        first.putInt(42);
+        ByteBuffer smaller = staging.getBuffer("rows", 100);
+        assertSame(first, smaller);
+        assertEquals(0, smaller.position());
+        assertEquals(100, smaller.limit());
+
+        ByteBuffer larger = staging.getBuffer("rows", 4096);
+        assertNotSame(first, larger);
+        assertEquals(4096, larger.limit());
+        assertSame(larger, staging.getBuffer("rows", 1024));
+        assertEquals(4096, staging.getDirectBytes());
+    }
+
+    public void testAreasAreKeyedByName() {
+        StagingBuffers staging = new StagingBuffers();
+        ByteBuffer rows = staging.getBuffer("rows", 64);
+        ByteBuffer columns = staging.getBuffer("columns", 64);
+        assertNotSame(rows, columns);
+        assertEquals(128, staging.getDirectBytes());
+    }
+
+    public void testTooLargeBufferIsRejected() {
+        try {
+            new StagingBuffers().getBuffer("rows", Integer.MAX_VALUE + 1L);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("rows"));
+        }
+    }
+
+    public void testFloatArrayReusedForTheSameLength() {
+        StagingBuffers staging = new StagingBuffers();
+        float[] first = staging.getFloatArray("chunk", 10);
+        assertEquals(10, first.length);
+        assertSame(first, staging.getFloatArray("chunk", 10));
+        float[] last = staging.getFloatArray("chunk", 3);
+        assertEquals(3, last.length);
+        assertNotSame(first, last);
+    }
+
+    public void testEncodersAreResetAndReused() {
+        StagingBuffers staging = new StagingBuffers();
+        CSVEncoder[] encoders = staging.getEncoders(2);
+        assertEquals(2, encoders.length);
+        encoders[0].writeDouble(1.5);
+        assertTrue(encoders[0].length() > 0);
+
+        CSVEncoder[] again = staging.getEncoders(3);
+        assertEquals(3, again.length);
+        assertSame(encoders[0], again[0]);
+        assertSame(encoders[1], again[1]);
+        assertEquals(0, again[0].length());
+    }
+
+    public void testSmallSegmentedBufferIsOneSegment() {
+        StagingBuffers staging = new StagingBuffers();
+        SegmentedBuffer buffer = staging.getSegmented("columns", 100, Float.BYTES);
+        assertEquals(100, buffer.numElements());
+        assertEquals(400, buffer.size());
+        ByteBuffer[] segments = buffer.filledSegments();
+        assertEquals(1, segments.length);
+        assertSame(staging.getBuffer("columns", 400), segments[0]);
+    }
+
+    public void testReleaseDropsEverything() {
+        StagingBuffers staging = new StagingBuffers();
+        ByteBuffer buffer = staging.getBuffer("rows", 256);
+        float[] array = staging.getFloatArray("chunk", 8);
+        CSVEncoder encoder = staging.getEncoders(1)[0];
+        staging.release();
+        assertEquals(0, staging.getDirectBytes());
+        assertNotSame(buffer, staging.getBuffer("rows", 256));
+        assertNotSame(array, staging.getFloatArray("chunk", 8));
+        assertNotSame(encoder, staging.getEncoders(1)[0]);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StagingBuffersTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
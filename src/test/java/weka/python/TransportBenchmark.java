@@ -0,0 +1,193 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TransportBenchmark.java
+ *    Copyright (C) 2022 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.python;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the round trip time of the length delimited framing used between
+ * the JVM and the python server (RapidsUtils.writeDelimitedToOutputStream /
+ * readDelimitedFromInputStream) over the TCP and Unix domain socket
+ * transports, and over the unbuffered streams of a plain TCP socket (as used
+ * before the transports buffered their streams). Besides messages of
+ * various sizes, it times small commands: a JSON command written and its
+ * JSON reply read and parsed, as done by e.g.
+ * RapidsSession.checkIfPythonVariableIsSet(). The other end of the
+ * connection is an echo thread in the same JVM, so the figures measure the
+ * transport rather than python. Not run as part of the test suite. Usage:
+ *
+ * <pre>
+ * java weka.python.TransportBenchmark [iterations] [message sizes in bytes...]
+ * </pre>
+ *
+ * @author Justin Liu (justin{[dot]}l{[at]}waikato{[dot]}ac{[dot]}nz)
+ * @version $Revision: $
+ */
+public class TransportBenchmark {
+
+    protected static final int[] DEFAULT_SIZES = {64, 4 * 1024, 256 * 1024, 16 * 1024 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        runRaw(iterations, sizes);
+        for (boolean unixDomain : new boolean[]{false, true}) {
+            ServerTransport transport = ServerTransport.open(unixDomain, true);
+            if (unixDomain && !transport.isUnixDomain()) {
+                transport.close();
+                continue;
+            }
+            try {
+                run(transport, iterations, sizes);
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    /**
+     * Run over the raw streams of a plain TCP socket.
+     */
+    protected static void runRaw(int iterations, int[] sizes) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("localhost", serverSocket.getLocalPort());
+        Socket server = serverSocket.accept();
+        client.setTcpNoDelay(true);
+        server.setTcpNoDelay(true);
+        try {
+            run("raw", server.getInputStream(), server.getOutputStream(),
+                    client.getInputStream(), client.getOutputStream(), iterations, sizes);
+        } finally {
+            client.close();
+            server.close();
+            serverSocket.close();
+        }
+    }
+
+    protected static void run(final ServerTransport transport, int iterations, int[] sizes)
+            throws Exception {
+        final ServerTransport.Connection client;
+        Thread acceptThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    transport.accept(12000);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        acceptThread.start();
+        client = ServerTransport.connect(transport.getAddress());
+        acceptThread.join();
+
+        run(transport.isUnixDomain() ? "unix" : "tcp", transport.getInputStream(),
+                transport.getOutputStream(), client.getInputStream(), client.getOutputStream(),
+                iterations, sizes);
+        client.close();
+    }
+
+    protected static void run(String name, InputStream in, OutputStream out,
+                              final InputStream echoIn, final OutputStream echoOut,
+                              int iterations, int[] sizes) throws Exception {
+        Thread echo = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = echoIn;
+                    OutputStream out = echoOut;
+                    while (true) {
+                        byte[] message = RapidsUtils.readDelimitedFromInputStream(in);
+                        if (message.length == 0) {
+                            break;
+                        }
+                        RapidsUtils.writeDelimitedToOutputStream(message, out);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        echo.start();
+
+        for (int size : sizes) {
+            byte[] message = new byte[size];
+            Arrays.fill(message, (byte) 1);
+            // scale down the number of round trips for large messages
+            int count = (int) Math.max(5, Math.min(iterations, (512L << 20) / Math.max(size, 1) / 2));
+            for (int i = 0; i < Math.max(1, count / 10); i++) {
+                RapidsUtils.writeDelimitedToOutputStream(message, out);
+                RapidsUtils.readDelimitedFromInputStream(in);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                RapidsUtils.writeDelimitedToOutputStream(message, out);
+                if (RapidsUtils.readDelimitedFromInputStream(in).length != size) {
+                    throw new IOException("Echoed message has the wrong size");
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            double microsPerTrip = elapsed / 1000.0 / count;
+            double mbPerSec = (2.0 * size * count / (1024 * 1024)) / (elapsed / 1e9);
+            System.out.println(String.format("%-5s %10d bytes  %6d round trips  %10.1f us/trip  %9.1f MB/s",
+                    name, size, count, microsPerTrip, mbPerSec));
+        }
+
+        // small commands
+        Map<String, Object> command = new HashMap<String, Object>();
+        command.put("command", "variable_is_set");
+        command.put("variable_name", "weka_cuml_learner12345");
+        command.put("debug", false);
+        int count = iterations * 5;
+        long start = 0;
+        for (int i = -count / 10; i < count; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            RapidsUtils.writeDelimitedToOutputStream(RapidsUtils.MAPPER.writeValueAsBytes(command),
+                    out);
+            if (RapidsUtils.readJSONFromInputStream(in).get("command") == null) {
+                throw new IOException("Echoed command is missing its fields");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-5s %16s  %6d round trips  %10.1f us/trip",
+                name, "command", count, elapsed / 1000.0 / count));
+
+        RapidsUtils.writeDelimitedToOutputStream(new byte[0], out);
+        echo.join();
+    }
+}